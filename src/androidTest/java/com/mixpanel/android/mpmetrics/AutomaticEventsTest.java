@@ -91,11 +91,11 @@ public class AutomaticEventsTest extends AndroidTestCase {
             }
 
             @Override
-            public int addJSON(JSONObject j, String token, Table table, boolean isAutomaticRecord) {
+            public int addData(String data, String token, Table table, boolean isAutomaticRecord) {
                 if (token.equalsIgnoreCase(TOKEN)) {
                     mTrackedEvents++;
                     mLatch.countDown();
-                    return super.addJSON(j, token, table, isAutomaticRecord);
+                    return super.addData(data, token, table, isAutomaticRecord);
                 }
 
                 return 1;
@@ -242,10 +242,10 @@ public class AutomaticEventsTest extends AndroidTestCase {
             }
 
             @Override
-            public int addJSON(JSONObject j, String token, Table table, boolean isAutomaticRecord) {
+            public int addData(String data, String token, Table table, boolean isAutomaticRecord) {
                 if (token.equalsIgnoreCase(SECOND_TOKEN)) {
                     secondLatch.countDown();
-                    return super.addJSON(j, token, table, isAutomaticRecord);
+                    return super.addData(data, token, table, isAutomaticRecord);
                 }
 
                 return 1;
@@ -0,0 +1,133 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EventBuilderTest extends AndroidTestCase {
+
+    public void testPrimitiveProperties() throws JSONException {
+        final EventBuilder event = EventBuilder.obtain(null, "Primitives")
+                .putInt("int", 42)
+                .putLong("long", Long.MAX_VALUE)
+                .putDouble("double", 0.25)
+                .putDouble("nan", Double.NaN)
+                .putBoolean("boolean", true)
+                .putString("string", "value \"quoted\"")
+                .putString("null", null)
+                .putInt("int", 43);
+
+        final JSONObject properties = event.getProperties();
+        assertEquals(5, properties.length());
+        assertEquals(43, properties.getInt("int"));
+        assertEquals(Long.MAX_VALUE, properties.getLong("long"));
+        assertEquals(0.25, properties.getDouble("double"));
+        assertTrue(properties.getBoolean("boolean"));
+        assertEquals("value \"quoted\"", properties.getString("string"));
+        event.recycle();
+    }
+
+    public void testTrackedPropertiesPrecedence() throws JSONException {
+        final Map<String, Object> superProperties = new LinkedHashMap<String, Object>();
+        superProperties.put("time", 1);
+        superProperties.put("caller", "super value");
+        superProperties.put("super", "super value");
+
+        final Map<String, String> referrerProperties = new HashMap<String, String>();
+        referrerProperties.put("super", "referrer value");
+        referrerProperties.put("utm_source", "referrer value");
+
+        final EventBuilder event = EventBuilder.obtain(null, "Tracked").putString("caller", "caller value");
+        event.setTrackedProperties(10500, "distinct id", 8000L,
+                new EventWriter.Fragment(superProperties), null, referrerProperties);
+
+        final JSONObject properties = event.getProperties();
+        assertEquals(6, properties.length());
+        assertEquals(10, properties.getLong("time"));
+        assertEquals("distinct id", properties.getString("distinct_id"));
+        assertEquals(2.5, properties.getDouble("$duration"));
+        assertEquals("caller value", properties.getString("caller"));
+        assertEquals("super value", properties.getString("super"));
+        assertEquals("referrer value", properties.getString("utm_source"));
+        event.recycle();
+    }
+
+    public void testDynamicSuperProperties() throws JSONException {
+        final AtomicInteger computed = new AtomicInteger(0);
+        final DynamicSuperProperties dynamicProperties = new DynamicSuperProperties();
+        dynamicProperties.register("counter", new DynamicSuperProperty() {
+            @Override
+            public Object getValue() {
+                return computed.incrementAndGet();
+            }
+        }, 0);
+        dynamicProperties.register("cached", new DynamicSuperProperty() {
+            @Override
+            public Object getValue() {
+                return "cached " + computed.incrementAndGet();
+            }
+        }, 60 * 1000);
+        dynamicProperties.register("caller", new DynamicSuperProperty() {
+            @Override
+            public Object getValue() {
+                fail("Computed a property the caller already set");
+                return null;
+            }
+        }, 0);
+        dynamicProperties.register("broken", new DynamicSuperProperty() {
+            @Override
+            public Object getValue() {
+                throw new RuntimeException("Broken on purpose");
+            }
+        }, 0);
+
+        final Map<String, Object> superProperties = new HashMap<String, Object>();
+        superProperties.put("counter", "super value");
+        superProperties.put("super", "super value");
+
+        final EventBuilder first = EventBuilder.obtain(null, "First").putString("caller", "caller value");
+        first.setTrackedProperties(1000, "distinct id", null, new EventWriter.Fragment(superProperties),
+                dynamicProperties.getEntries(), null);
+        dynamicProperties.unregister("counter");
+        assertEquals(0, computed.get());
+
+        final JSONObject firstProperties = first.getProperties();
+        assertEquals(1, firstProperties.getInt("counter"));
+        assertEquals("cached 2", firstProperties.getString("cached"));
+        assertEquals("caller value", firstProperties.getString("caller"));
+        assertEquals("super value", firstProperties.getString("super"));
+        assertFalse(firstProperties.has("broken"));
+        first.recycle();
+
+        final EventBuilder second = EventBuilder.obtain(null, "Second").putString("caller", "caller value");
+        second.setTrackedProperties(1000, "distinct id", null, new EventWriter.Fragment(superProperties),
+                dynamicProperties.getEntries(), null);
+        final JSONObject secondProperties = second.getProperties();
+        assertEquals("super value", secondProperties.getString("counter"));
+        assertEquals("cached 2", secondProperties.getString("cached"));
+        second.recycle();
+    }
+
+    public void testRecycledBuildersStartEmpty() throws JSONException {
+        final EventBuilder first = EventBuilder.obtain(null, "First").putString("key", "value");
+        first.recycle();
+
+        try {
+            first.putInt("late", 1);
+            fail("Added a property to a recycled builder");
+        } catch (final IllegalStateException e) {
+            // Expected
+        }
+
+        final EventBuilder second = EventBuilder.obtain(null, "Second");
+        assertEquals("Second", second.getEventName());
+        assertEquals(0, second.getProperties().length());
+        second.recycle();
+    }
+}
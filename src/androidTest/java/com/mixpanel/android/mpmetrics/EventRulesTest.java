@@ -0,0 +1,88 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+public class EventRulesTest extends AndroidTestCase {
+
+    public void testPrefixTrie() {
+        final EventRules.PrefixTrie trie = new EventRules.PrefixTrie(Arrays.asList("debug_", "de", "x", "zebra"));
+        assertTrue(trie.matchesPrefixOf("debug_scroll"));
+        assertTrue(trie.matchesPrefixOf("de"));
+        assertTrue(trie.matchesPrefixOf("delta"));
+        assertTrue(trie.matchesPrefixOf("x"));
+        assertFalse(trie.matchesPrefixOf("d"));
+        assertFalse(trie.matchesPrefixOf("zeb"));
+        assertFalse(trie.matchesPrefixOf("Debug"));
+        assertFalse(trie.matchesPrefixOf(""));
+        assertFalse(trie.matchesPrefixOf(null));
+
+        final EventRules.PrefixTrie empty = new EventRules.PrefixTrie(Arrays.<String>asList());
+        assertFalse(empty.matchesPrefixOf("anything"));
+    }
+
+    public void testEventNames() {
+        final EventRules denyOnly = new EventRules.Builder()
+                .denyEvents("Scrolled")
+                .denyEventsWithPrefix("debug_")
+                .build();
+        assertTrue(denyOnly.allowsEvent("Purchased"));
+        assertFalse(denyOnly.allowsEvent("Scrolled"));
+        assertFalse(denyOnly.allowsEvent("debug_frame"));
+
+        final EventRules allowList = new EventRules.Builder()
+                .allowEvents("Purchased")
+                .allowEventsWithPrefix("$ae_")
+                .denyEvents("$ae_session")
+                .build();
+        assertTrue(allowList.allowsEvent("Purchased"));
+        assertTrue(allowList.allowsEvent("$ae_first_open"));
+        assertFalse(allowList.allowsEvent("$ae_session"));
+        assertFalse(allowList.allowsEvent("Scrolled"));
+    }
+
+    public void testProperties() {
+        final EventRules rules = new EventRules.Builder()
+                .removeProperties("email")
+                .removePropertiesWithPrefix("pii_")
+                .truncateValues(5)
+                .build();
+        assertTrue(rules.changesProperties());
+        assertTrue(rules.removesProperty("email"));
+        assertTrue(rules.removesProperty("pii_phone"));
+        assertFalse(rules.removesProperty("plan"));
+
+        assertEquals("short", rules.truncate("short"));
+        assertEquals("too l", rules.truncate("too long"));
+        assertEquals(12345678, rules.truncate(12345678));
+        // Doesn't split the surrogate pair of the emoji
+        assertEquals("abcd", rules.truncate("abcd😀"));
+
+        assertFalse(new EventRules.Builder().denyEvents("Scrolled").build().changesProperties());
+    }
+
+    public void testEventBuilderRules() throws JSONException {
+        final EventRules rules = new EventRules.Builder()
+                .removeProperties("email")
+                .truncateValues(3)
+                .build();
+
+        final EventBuilder event = EventBuilder.obtain(null, "Signed Up")
+                .putString("email", "someone@example.com")
+                .putLong("age", 33)
+                .putString("plan", "premium")
+                .putBoolean("trial", true);
+        event.applyRules(rules);
+
+        final JSONObject properties = event.getProperties();
+        assertEquals(3, properties.length());
+        assertEquals(33, properties.getLong("age"));
+        assertEquals("pre", properties.getString("plan"));
+        assertTrue(properties.getBoolean("trial"));
+        event.recycle();
+    }
+}
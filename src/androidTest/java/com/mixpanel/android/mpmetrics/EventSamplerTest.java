@@ -0,0 +1,74 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+
+import java.util.Random;
+
+public class EventSamplerTest extends AndroidTestCase {
+
+    public void testUnknownEventsAreKept() {
+        final EventSampler sampler = new EventSampler(new Random(1));
+        sampler.setSampleRate("Sampled", 0.5);
+        assertEquals(1.0, sampler.sample("Other"));
+        assertEquals(1.0, sampler.sample(null));
+    }
+
+    public void testSampleRate() {
+        final EventSampler sampler = new EventSampler(new Random(1));
+        sampler.setSampleRate("Scrolled", 0.25);
+
+        int kept = 0;
+        for (int i = 0; i < 4000; i++) {
+            final double rate = sampler.sample("Scrolled");
+            if (rate != 0) {
+                assertEquals(0.25, rate);
+                kept++;
+            }
+        }
+        assertTrue("Kept " + kept, kept > 800 && kept < 1200);
+
+        sampler.setSampleRate("Scrolled", 0);
+        assertEquals(0.0, sampler.sample("Scrolled"));
+
+        sampler.setSampleRate("Scrolled", 1);
+        assertEquals(1.0, sampler.sample("Scrolled"));
+    }
+
+    public void testRateLimit() {
+        final EventSampler sampler = new EventSampler(new Random(1));
+        sampler.setRateLimit("Progress", 1000, 5);
+
+        int kept = 0;
+        for (int i = 0; i < 100; i++) {
+            if (sampler.sample("Progress") != 0) {
+                kept++;
+            }
+        }
+        // The burst, plus whatever refilled while the loop ran
+        assertTrue("Kept " + kept, kept >= 5 && kept < 100);
+
+        sampler.setRateLimit("Progress", 0, 0);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1.0, sampler.sample("Progress"));
+        }
+    }
+
+    public void testTokenBucket() {
+        final EventSampler.TokenBucket bucket = new EventSampler.TokenBucket(2, 3);
+        assertTrue(bucket.take(1000));
+        assertTrue(bucket.take(1000));
+        assertTrue(bucket.take(1000));
+        assertFalse(bucket.take(1000));
+
+        // Two tokens a second
+        assertFalse(bucket.take(1400));
+        assertTrue(bucket.take(1500));
+        assertFalse(bucket.take(1500));
+
+        // Never more than the burst
+        assertTrue(bucket.take(60000));
+        assertTrue(bucket.take(60000));
+        assertTrue(bucket.take(60000));
+        assertFalse(bucket.take(60000));
+    }
+}
@@ -0,0 +1,245 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams events to a {@link FakeStreamServer}, on their own and through AnalyticsMessages,
+ * with a {@link FakeTrackServer} for the batch flushes the stream falls back to.
+ */
+public class EventStreamTest extends AndroidTestCase {
+    private FakeStreamServer mStreamServer;
+    private FakeTrackServer mTrackServer;
+    private MPLDbAdapter mAdapter;
+    private AnalyticsMessages mMessages;
+    private MixpanelLiteAPI mMetrics;
+    private static final String TOKEN = "Test Fake Stream Server";
+    private static final long POLL_WAIT_MAX_MILLISECONDS = 3500;
+    private static final long NOTHING_ARRIVES_MILLISECONDS = 1000;
+    // Longer than AnalyticsMessages waits for an acknowledgement
+    private static final long ACK_TIMEOUT_WAIT_MILLISECONDS = 9000;
+    private static final TimeUnit DEFAULT_TIMEUNIT = TimeUnit.MILLISECONDS;
+
+    public void setUp() throws IOException {
+        mStreamServer = new FakeStreamServer();
+        mTrackServer = new FakeTrackServer();
+        final Future<SharedPreferences> mockPreferences = new TestUtils.EmptyPreferences(getContext());
+
+        final MPLConfig config = new MPLConfig(new Bundle(), getContext()) {
+            @Override
+            public String getEventsEndpoint() {
+                return mTrackServer.getEventsEndpoint();
+            }
+
+            @Override
+            public String getStreamingEndpoint() {
+                return mStreamServer.getStreamingEndpoint();
+            }
+
+            @Override
+            public int getFlushInterval() {
+                // Tests flush explicitly
+                return 60 * 1000;
+            }
+
+            @Override
+            public int getBulkUploadLimit() {
+                return Integer.MAX_VALUE;
+            }
+        };
+
+        mAdapter = new MPLDbAdapter(getContext());
+        mAdapter.cleanupEvents(Long.MAX_VALUE, MPLDbAdapter.Table.EVENTS);
+
+        mMessages = new AnalyticsMessages(getContext()) {
+            @Override
+            protected MPLDbAdapter makeDbAdapter(Context context) {
+                return mAdapter;
+            }
+
+            @Override
+            protected MPLConfig getConfig(Context context) {
+                return config;
+            }
+        };
+
+        mMetrics = new TestUtils.CleanMixpanelLiteAPI(getContext(), mockPreferences, TOKEN) {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return mMessages;
+            }
+        };
+    }
+
+    public void tearDown() {
+        mMessages.stopStreaming();
+        mStreamServer.shutdown();
+        mTrackServer.shutdown();
+    }
+
+    public void testSendIsAcknowledged() throws Exception {
+        final EventStream stream = new EventStream(mStreamServer.getStreamingEndpoint(), null);
+        assertTrue(stream.connect(POLL_WAIT_MAX_MILLISECONDS));
+
+        assertEquals(EventStream.ACKNOWLEDGED, stream.send(TOKEN, "[{\"event\":\"First\"}]", POLL_WAIT_MAX_MILLISECONDS));
+        assertEquals(EventStream.ACKNOWLEDGED, stream.send(TOKEN, "[{\"event\":\"Second\"}]", POLL_WAIT_MAX_MILLISECONDS));
+
+        final JSONObject first = mStreamServer.pollBatch(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT);
+        assertEquals(1, first.getLong("seq"));
+        assertEquals(TOKEN, first.getString("token"));
+        assertEquals("First", first.getJSONArray("events").getJSONObject(0).getString("event"));
+        assertEquals(2, mStreamServer.pollBatch(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT).getLong("seq"));
+        stream.close();
+    }
+
+    public void testSendIsRefused() throws Exception {
+        mStreamServer.setRefuseBatches(true);
+        final EventStream stream = new EventStream(mStreamServer.getStreamingEndpoint(), null);
+        assertTrue(stream.connect(POLL_WAIT_MAX_MILLISECONDS));
+
+        assertEquals(EventStream.REFUSED, stream.send(TOKEN, "[{\"event\":\"Refused\"}]", POLL_WAIT_MAX_MILLISECONDS));
+
+        // A refusal doesn't break the stream
+        assertTrue(stream.isOpen());
+        mStreamServer.setRefuseBatches(false);
+        assertEquals(EventStream.ACKNOWLEDGED, stream.send(TOKEN, "[{\"event\":\"Accepted\"}]", POLL_WAIT_MAX_MILLISECONDS));
+        stream.close();
+    }
+
+    public void testUnansweredSendFails() throws Exception {
+        mStreamServer.setIgnoreBatches(true);
+        final EventStream stream = new EventStream(mStreamServer.getStreamingEndpoint(), null);
+        assertTrue(stream.connect(POLL_WAIT_MAX_MILLISECONDS));
+
+        final long start = SystemClock.elapsedRealtime();
+        assertEquals(EventStream.FAILED, stream.send(TOKEN, "[{\"event\":\"Unanswered\"}]", 500));
+        assertTrue(SystemClock.elapsedRealtime() - start >= 500);
+
+        // The stream gives up on the connection
+        assertTrue(mStreamServer.awaitConnectionEnd(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT));
+        assertFalse(stream.isOpen());
+    }
+
+    public void testConnectWithoutServerFails() throws Exception {
+        final ServerSocket unused = new ServerSocket(0);
+        final int port = unused.getLocalPort();
+        unused.close();
+
+        final EventStream stream = new EventStream("ws://127.0.0.1:" + port + "/stream", null);
+        assertFalse(stream.connect(POLL_WAIT_MAX_MILLISECONDS));
+        assertFalse(stream.isOpen());
+    }
+
+    public void testStreamedEventsLeaveTheQueue() throws InterruptedException, JSONException {
+        mMessages.startStreaming();
+        mMetrics.track("Streamed", null);
+
+        final JSONObject batch = mStreamServer.pollBatch(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT);
+        assertNotNull(batch);
+        assertEquals(TOKEN, batch.getString("token"));
+        assertEquals("Streamed", batch.getJSONArray("events").getJSONObject(0).getString("event"));
+
+        assertQueueEmpties();
+        assertEquals(0, mTrackServer.getRequestCount());
+    }
+
+    public void testRefusedBatchFallsBackToFlush() throws InterruptedException, JSONException {
+        mStreamServer.setRefuseBatches(true);
+        // The first flush fails, so the refused event is still queued when the next one is tracked
+        mTrackServer.enqueueFault(FakeTrackServer.Fault.serviceUnavailable(null));
+        mMessages.startStreaming();
+        mMetrics.track("Refused", null);
+
+        assertNotNull(mStreamServer.pollBatch(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT));
+        waitForRequests(1);
+
+        // Until a flush has dealt with the refused batch, the stream doesn't send it again
+        mMetrics.track("Held", null);
+        assertNull(mStreamServer.pollBatch(NOTHING_ARRIVES_MILLISECONDS, DEFAULT_TIMEUNIT));
+
+        mMetrics.flush();
+        assertEquals("Refused", nextEventName());
+        assertEquals("Held", nextEventName());
+
+        // And once it has, events are streamed again
+        mStreamServer.setRefuseBatches(false);
+        mMetrics.track("Streamed", null);
+        final JSONObject batch = mStreamServer.pollBatch(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT);
+        assertNotNull(batch);
+        assertEquals("Streamed", batch.getJSONArray("events").getJSONObject(0).getString("event"));
+        assertQueueEmpties();
+        assertEquals(1, mStreamServer.getConnectionCount());
+    }
+
+    public void testUnansweredBatchFallsBackAndBacksOff() throws InterruptedException, JSONException {
+        mStreamServer.setIgnoreBatches(true);
+        mMessages.startStreaming();
+        mMetrics.track("Unanswered", null);
+
+        assertNotNull(mStreamServer.pollBatch(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT));
+        final JSONObject event = mTrackServer.pollEvent(ACK_TIMEOUT_WAIT_MILLISECONDS, DEFAULT_TIMEUNIT);
+        assertNotNull(event);
+        assertEquals("Unanswered", event.getString("event"));
+        assertTrue(mStreamServer.awaitConnectionEnd(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT));
+
+        // The stream isn't tried again right away. The event waits for a flush instead.
+        mMetrics.track("Later", null);
+        assertNull(mStreamServer.pollBatch(NOTHING_ARRIVES_MILLISECONDS, DEFAULT_TIMEUNIT));
+        assertEquals(1, mStreamServer.getConnectionCount());
+        mMetrics.flush();
+        assertEquals("Later", nextEventName());
+    }
+
+    public void testStopStreamingClosesTheSocket() throws InterruptedException {
+        mMessages.startStreaming();
+        final long deadline = SystemClock.elapsedRealtime() + POLL_WAIT_MAX_MILLISECONDS;
+        while (mStreamServer.getConnectionCount() == 0 && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, mStreamServer.getConnectionCount());
+
+        mMessages.stopStreaming();
+        assertTrue(mStreamServer.awaitConnectionEnd(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT));
+
+        // Events go back to waiting for a flush
+        mMetrics.track("Batched", null);
+        assertNull(mStreamServer.pollBatch(NOTHING_ARRIVES_MILLISECONDS, DEFAULT_TIMEUNIT));
+        mMetrics.flush();
+        assertEquals("Batched", nextEventName());
+    }
+
+    private void waitForRequests(int count) throws InterruptedException {
+        final long deadline = SystemClock.elapsedRealtime() + POLL_WAIT_MAX_MILLISECONDS;
+        while (mTrackServer.getRequestCount() < count && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(count, mTrackServer.getRequestCount());
+    }
+
+    private void assertQueueEmpties() throws InterruptedException {
+        final long deadline = SystemClock.elapsedRealtime() + POLL_WAIT_MAX_MILLISECONDS;
+        while (null != mAdapter.generateDataString(MPLDbAdapter.Table.EVENTS, TOKEN, true)) {
+            if (SystemClock.elapsedRealtime() > deadline) {
+                fail("Events were still queued after " + POLL_WAIT_MAX_MILLISECONDS + "ms");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private String nextEventName() throws InterruptedException, JSONException {
+        final JSONObject event = mTrackServer.pollEvent(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT);
+        assertNotNull(event);
+        return event.getString("event");
+    }
+}
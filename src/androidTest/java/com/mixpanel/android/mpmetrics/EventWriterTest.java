@@ -0,0 +1,124 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class EventWriterTest extends AndroidTestCase {
+
+    public void testFirstValueWins() throws JSONException {
+        final JSONObject callerProps = new JSONObject();
+        callerProps.put("time", 7);
+        callerProps.put("caller", "caller value");
+
+        final JSONObject superProps = new JSONObject();
+        superProps.put("caller", "super value");
+        superProps.put("distinct_id", "super id");
+        superProps.put("super", "super value");
+
+        final Map<String, String> referrerProps = new HashMap<String, String>();
+        referrerProps.put("super", "referrer value");
+        referrerProps.put("referrer", "referrer value");
+
+        final EventWriter writer = new EventWriter("Event");
+        writer.putAll(callerProps);
+        writer.put("time", 1000L);
+        writer.put("distinct_id", "real id");
+        writer.putAll(superProps);
+        writer.putAll(referrerProps);
+        writer.put("token", "a token");
+
+        final JSONObject event = new JSONObject(writer.finish());
+        assertEquals("Event", event.getString("event"));
+
+        final JSONObject properties = event.getJSONObject("properties");
+        assertEquals(6, properties.length());
+        assertEquals(7, properties.getInt("time"));
+        assertEquals("caller value", properties.getString("caller"));
+        assertEquals("real id", properties.getString("distinct_id"));
+        assertEquals("super value", properties.getString("super"));
+        assertEquals("referrer value", properties.getString("referrer"));
+        assertEquals("a token", properties.getString("token"));
+    }
+
+    public void testMatchesOrgJson() throws JSONException {
+        final JSONObject nested = new JSONObject();
+        nested.put("inner", "value");
+        final JSONArray array = new JSONArray();
+        array.put(1);
+        array.put("two");
+
+        final JSONObject expected = new JSONObject();
+        expected.put("quotes \"and\" slashes \\ /", "tab\t newline\n return\r bell\u0007 ☃");
+        expected.put("int", 12);
+        expected.put("long", Long.MAX_VALUE);
+        expected.put("whole double", 3.0);
+        expected.put("double", 0.1);
+        expected.put("boolean", true);
+        expected.put("null", JSONObject.NULL);
+        expected.put("nested", nested);
+        expected.put("array", array);
+
+        final EventWriter writer = new EventWriter("quote\" me");
+        writer.putAll(expected);
+        final String written = writer.finish();
+
+        final JSONObject event = new JSONObject();
+        event.put("event", "quote\" me");
+        event.put("properties", expected);
+        assertEquals(event.toString().length(), written.length());
+        assertEquals(expected.toString(), new JSONObject(written).getJSONObject("properties").toString());
+        assertEquals(expected.toString(), writer.getProperties().toString());
+    }
+
+    public void testFragments() throws JSONException {
+        final Map<String, Object> defaults = new LinkedHashMap<String, Object>();
+        defaults.put("$os", "Android");
+        defaults.put("$screen_dpi", 320);
+        defaults.put("$carrier", null);
+        final EventWriter.Fragment fragment = new EventWriter.Fragment(defaults);
+        assertEquals("{\"$os\":\"Android\",\"$screen_dpi\":320}", fragment.toString());
+
+        final EventWriter untouched = new EventWriter("Event");
+        untouched.put("caller", "value");
+        untouched.putAll(fragment);
+        final JSONObject untouchedProperties = new JSONObject(untouched.finish()).getJSONObject("properties");
+        assertEquals(3, untouchedProperties.length());
+        assertEquals(320, untouchedProperties.getInt("$screen_dpi"));
+
+        final EventWriter overridden = new EventWriter("Event");
+        overridden.put("$os", "Not Android");
+        overridden.putAll(fragment);
+        final JSONObject overriddenProperties = new JSONObject(overridden.finish()).getJSONObject("properties");
+        assertEquals(2, overriddenProperties.length());
+        assertEquals("Not Android", overriddenProperties.getString("$os"));
+        assertEquals(320, overriddenProperties.getInt("$screen_dpi"));
+    }
+
+    public void testNullsAreSkipped() throws JSONException {
+        final EventWriter writer = new EventWriter("Event");
+        writer.put("key", (Object) null);
+        writer.put(null, "value");
+        writer.put("key", "value");
+
+        final JSONObject properties = new JSONObject(writer.finish()).getJSONObject("properties");
+        assertEquals(1, properties.length());
+        assertEquals("value", properties.getString("key"));
+    }
+
+    public void testNonFiniteNumbersThrow() {
+        final EventWriter writer = new EventWriter("Event");
+        try {
+            writer.put("nan", Double.NaN);
+            fail("Wrote a NaN");
+        } catch (final JSONException e) {
+            // Expected
+        }
+    }
+}
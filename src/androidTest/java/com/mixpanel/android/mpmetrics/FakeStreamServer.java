@@ -0,0 +1,304 @@
+package com.mixpanel.android.mpmetrics;
+
+import com.mixpanel.android.util.Base64Coder;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in for a streaming endpoint that runs inside the test process.
+ *
+ * <p>The server speaks just enough of RFC 6455 for {@link EventStream}: the opening handshake,
+ * masked text frames from the client, and close and ping frames. It records every batch it
+ * receives, and by default acknowledges each one. {@link #setRefuseBatches(boolean)} makes it
+ * answer with a status of 0 instead, and {@link #setIgnoreBatches(boolean)} makes it not answer
+ * at all.
+ */
+public class FakeStreamServer {
+
+    public FakeStreamServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor = Executors.newCachedThreadPool();
+        mBatches = new LinkedBlockingQueue<JSONObject>();
+        mConnectionCount = new AtomicInteger(0);
+        mClosed = new Semaphore(0);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    /**
+     * @return a ws:// URL to use as the streaming endpoint
+     */
+    public String getStreamingEndpoint() {
+        return "ws://127.0.0.1:" + mServerSocket.getLocalPort() + "/stream";
+    }
+
+    /**
+     * Answers every batch with a status of 0, or acknowledges them again if refuse is false.
+     */
+    public void setRefuseBatches(boolean refuse) {
+        mRefuseBatches = refuse;
+    }
+
+    /**
+     * Reads batches without answering them.
+     */
+    public void setIgnoreBatches(boolean ignore) {
+        mIgnoreBatches = ignore;
+    }
+
+    /**
+     * Waits for the next batch a client sends, whatever the server did with it.
+     *
+     * @return the frame, as {"seq": ..., "token": ..., "events": [...]}, or null if none arrived in time
+     */
+    public JSONObject pollBatch(long timeout, TimeUnit unit) throws InterruptedException {
+        return mBatches.poll(timeout, unit);
+    }
+
+    /**
+     * @return the number of connections clients have opened
+     */
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    /**
+     * Waits for a connection to end, whether the client closed it or went away.
+     *
+     * @return true if a connection ended in time
+     */
+    public boolean awaitConnectionEnd(long timeout, TimeUnit unit) throws InterruptedException {
+        return mClosed.tryAcquire(timeout, unit);
+    }
+
+    public void shutdown() {
+        mShutdown = true;
+        try {
+            mServerSocket.close();
+        } catch (final IOException e) {
+            // Nothing more we can do
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void acceptConnections() {
+        while (!mShutdown) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mConnectionCount.incrementAndGet();
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (final IOException e) {
+                if (!mShutdown) {
+                    throw new RuntimeException("Fake stream server stopped accepting connections", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            if (!handshake(in, out)) {
+                return;
+            }
+
+            while (!mShutdown) {
+                final int first = in.read();
+                if (first < 0) {
+                    break;
+                }
+                final int opcode = first & 0x0F;
+                final byte[] payload = readPayload(in);
+                if (opcode == OPCODE_CLOSE) {
+                    writeFrame(out, OPCODE_CLOSE, payload);
+                    break;
+                } else if (opcode == OPCODE_PING) {
+                    writeFrame(out, OPCODE_PONG, payload);
+                } else if (opcode == OPCODE_TEXT) {
+                    onBatch(out, new String(payload, "UTF-8"));
+                }
+            }
+        } catch (final IOException e) {
+            // The client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                // Already closed
+            }
+            mClosed.release();
+        }
+    }
+
+    private void onBatch(OutputStream out, String frame) throws IOException {
+        final JSONObject batch;
+        try {
+            batch = new JSONObject(frame);
+        } catch (final JSONException e) {
+            throw new RuntimeException("Client sent a frame that isn't JSON: " + frame, e);
+        }
+        mBatches.add(batch);
+
+        if (mIgnoreBatches) {
+            return;
+        }
+        final long seq = batch.optLong("seq");
+        final String ack = mRefuseBatches ?
+                "{\"ack\":" + seq + ",\"status\":0,\"error\":\"Injected refusal\"}" :
+                "{\"ack\":" + seq + ",\"status\":1}";
+        writeFrame(out, OPCODE_TEXT, ack.getBytes("UTF-8"));
+    }
+
+    private static boolean handshake(InputStream in, OutputStream out) throws IOException {
+        final String requestLine = readLine(in);
+        if (null == requestLine) {
+            return false;
+        }
+        final Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while (null != (line = readLine(in)) && line.length() > 0) {
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+        }
+
+        final String key = headers.get("sec-websocket-key");
+        if (null == key) {
+            out.write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\n\r\n".getBytes("US-ASCII"));
+            out.flush();
+            return false;
+        }
+        final String response = "HTTP/1.1 101 Switching Protocols\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n" +
+                "\r\n";
+        out.write(response.getBytes("US-ASCII"));
+        out.flush();
+        return true;
+    }
+
+    private static String acceptKey(String key) throws IOException {
+        try {
+            final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            final byte[] digest = sha1.digest((key + WEBSOCKET_GUID).getBytes("US-ASCII"));
+            return new String(Base64Coder.encode(digest));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IOException("No SHA-1 on this platform?", e);
+        }
+    }
+
+    // Reads the rest of a frame after its first byte. Frames from clients are always masked.
+    private static byte[] readPayload(InputStream in) throws IOException {
+        final int second = readByte(in);
+        long length = second & 0x7F;
+        if (length == 126) {
+            length = (readByte(in) << 8) | readByte(in);
+        } else if (length == 127) {
+            length = 0;
+            for (int i = 0; i < 8; i++) {
+                length = (length << 8) | readByte(in);
+            }
+        }
+        final byte[] mask = new byte[4];
+        final boolean masked = (second & 0x80) != 0;
+        if (masked) {
+            for (int i = 0; i < mask.length; i++) {
+                mask[i] = (byte) readByte(in);
+            }
+        }
+
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (long i = 0; i < length; i++) {
+            final int b = readByte(in);
+            payload.write(masked ? b ^ mask[(int) (i % 4)] : b);
+        }
+        return payload.toByteArray();
+    }
+
+    private static void writeFrame(OutputStream out, int opcode, byte[] payload) throws IOException {
+        out.write(0x80 | opcode);
+        if (payload.length < 126) {
+            out.write(payload.length);
+        } else {
+            out.write(126);
+            out.write((payload.length >> 8) & 0xFF);
+            out.write(payload.length & 0xFF);
+        }
+        out.write(payload);
+        out.flush();
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        final int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Connection closed inside a frame");
+        }
+        return b;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                final int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor;
+    private final BlockingQueue<JSONObject> mBatches;
+    private final AtomicInteger mConnectionCount;
+    private final Semaphore mClosed;
+    private volatile boolean mRefuseBatches;
+    private volatile boolean mIgnoreBatches;
+    private volatile boolean mShutdown;
+
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+}
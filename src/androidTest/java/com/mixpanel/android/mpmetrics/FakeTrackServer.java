@@ -0,0 +1,466 @@
+package com.mixpanel.android.mpmetrics;
+
+import com.mixpanel.android.util.Base64Coder;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A stand-in for Mixpanel's /track endpoint that runs inside the test process.
+ *
+ * <p>The server speaks just enough HTTP/1.1 for HttpService: keep-alive, Content-Length and
+ * chunked request bodies, gzipped bodies, and Content-Length or chunked responses. It decodes the base64 "data" form field of each
+ * request and records the events it accepts, in order.
+ *
+ * <p>By default every batch is accepted after {@link #setLatencyMillis(long)}. Tests can change
+ * that with faults queued by {@link #enqueueFault(Fault)}, each of which applies to one request,
+ * or with {@link #setRejectedText(String)}, which refuses any batch holding a matching event.
+ * Since nothing leaves the device and nothing is random, the same test gives the same result
+ * every run.
+ */
+public class FakeTrackServer {
+
+    /**
+     * What the server does with a single request, instead of accepting it.
+     */
+    public static class Fault {
+        private Fault(int kind, int statusCode, long delayMillis, String retryAfter) {
+            mKind = kind;
+            mStatusCode = statusCode;
+            mDelayMillis = delayMillis;
+            mRetryAfter = retryAfter;
+        }
+
+        /**
+         * Waits before handling the request as usual.
+         */
+        public static Fault delay(long millis) {
+            return new Fault(KIND_DELAY, 0, millis, null);
+        }
+
+        /**
+         * Answers 503, with a Retry-After header if retryAfterSeconds is not null.
+         */
+        public static Fault serviceUnavailable(String retryAfterSeconds) {
+            return new Fault(KIND_STATUS, 503, 0, retryAfterSeconds);
+        }
+
+        /**
+         * Answers with the given status and an empty body.
+         */
+        public static Fault status(int statusCode) {
+            return new Fault(KIND_STATUS, statusCode, 0, null);
+        }
+
+        /**
+         * Answers 200, but says in the body that the batch was rejected.
+         */
+        public static Fault rejectInBody() {
+            return new Fault(KIND_REJECT_IN_BODY, 200, 0, null);
+        }
+
+        /**
+         * Reads the request, then resets the connection without answering.
+         */
+        public static Fault reset() {
+            return new Fault(KIND_RESET, 0, 0, null);
+        }
+
+        private final int mKind;
+        private final int mStatusCode;
+        private final long mDelayMillis;
+        private final String mRetryAfter;
+
+        private static final int KIND_DELAY = 0;
+        private static final int KIND_STATUS = 1;
+        private static final int KIND_REJECT_IN_BODY = 2;
+        private static final int KIND_RESET = 3;
+    }
+
+    public FakeTrackServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor = Executors.newCachedThreadPool();
+        mFaults = new LinkedBlockingQueue<Fault>();
+        mEvents = new LinkedBlockingQueue<JSONObject>();
+        mAcceptedEvents = new ArrayList<JSONObject>();
+        mRequestCount = new AtomicInteger(0);
+        mConnectionCount = new AtomicInteger(0);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    /**
+     * @return a URL to use as the events endpoint
+     */
+    public String getEventsEndpoint() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/track?ip=1";
+    }
+
+    public void enqueueFault(Fault fault) {
+        mFaults.add(fault);
+    }
+
+    /**
+     * Sets how long the server waits before answering every request.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * Sends every response body chunked instead of with a Content-Length.
+     */
+    public void setChunkedResponses(boolean chunked) {
+        mChunkedResponses = chunked;
+    }
+
+    /**
+     * Adds a Keep-Alive header with the given value, such as "timeout=5", to every response.
+     * Pass null to stop sending it.
+     */
+    public void setKeepAliveHeader(String keepAlive) {
+        mKeepAliveHeader = keepAlive;
+    }
+
+    /**
+     * Closes each connection right after answering its first request, without saying so
+     * in the response, the way a server drops a connection it has kept idle too long.
+     */
+    public void setCloseAfterResponse(boolean close) {
+        mCloseAfterResponse = close;
+    }
+
+    /**
+     * Refuses, with a 400, any batch with an event whose JSON contains text. Pass null to
+     * accept every batch again.
+     */
+    public void setRejectedText(String text) {
+        mRejectedText = text;
+    }
+
+    /**
+     * Waits for the next accepted event.
+     *
+     * @return the event, or null if none arrived in time
+     */
+    public JSONObject pollEvent(long timeout, TimeUnit unit) throws InterruptedException {
+        return mEvents.poll(timeout, unit);
+    }
+
+    /**
+     * @return every event accepted so far, in the order they arrived
+     */
+    public List<JSONObject> getAcceptedEvents() {
+        synchronized (mAcceptedEvents) {
+            return new ArrayList<JSONObject>(mAcceptedEvents);
+        }
+    }
+
+    /**
+     * @return the number of requests the server has read, whatever it did with them
+     */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return the number of connections clients have opened
+     */
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    public void shutdown() {
+        mShutdown = true;
+        try {
+            mServerSocket.close();
+        } catch (final IOException e) {
+            // Nothing more we can do
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void acceptConnections() {
+        while (!mShutdown) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mConnectionCount.incrementAndGet();
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (final IOException e) {
+                if (!mShutdown) {
+                    throw new RuntimeException("Fake server stopped accepting connections", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            boolean keepAlive = true;
+            while (keepAlive && !mShutdown) {
+                final String requestLine = readLine(in);
+                if (null == requestLine) {
+                    break;
+                }
+                final Map<String, String> headers = new HashMap<String, String>();
+                String line;
+                while (null != (line = readLine(in)) && line.length() > 0) {
+                    final int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+                    }
+                }
+
+                byte[] body = readBody(in, headers);
+                if ("gzip".equalsIgnoreCase(headers.get("content-encoding"))) {
+                    body = gunzip(body);
+                }
+                mRequestCount.incrementAndGet();
+                keepAlive = !"close".equalsIgnoreCase(headers.get("connection")) && !mCloseAfterResponse;
+
+                final Fault fault = mFaults.poll();
+                final long latency = mLatencyMillis + (null != fault && fault.mKind == Fault.KIND_DELAY ? fault.mDelayMillis : 0);
+                if (latency > 0) {
+                    Thread.sleep(latency);
+                }
+
+                if (null != fault && fault.mKind == Fault.KIND_RESET) {
+                    socket.setSoLinger(true, 0);
+                    break;
+                } else if (null != fault && fault.mKind == Fault.KIND_STATUS) {
+                    final String extraHeader = null == fault.mRetryAfter ? "" : "Retry-After: " + fault.mRetryAfter + "\r\n";
+                    respond(out, fault.mStatusCode, extraHeader, "");
+                    continue;
+                }
+
+                final Map<String, String> form = parseForm(body);
+                final boolean verbose = "1".equals(form.get("verbose"));
+                final List<JSONObject> batch = decodeBatch(form.get("data"));
+                if (null == batch) {
+                    respond(out, 200, "", verbose ? "{\"status\": 0, \"error\": \"data, missing or empty\"}" : "0");
+                } else if (null != fault && fault.mKind == Fault.KIND_REJECT_IN_BODY) {
+                    respond(out, 200, "", verbose ? "{\"status\": 0, \"error\": \"Injected rejection\"}" : "0");
+                } else if (containsRejectedText(batch)) {
+                    respond(out, 400, "", verbose ? "{\"status\": 0, \"error\": \"Injected bad request\"}" : "0");
+                } else {
+                    synchronized (mAcceptedEvents) {
+                        mAcceptedEvents.addAll(batch);
+                    }
+                    mEvents.addAll(batch);
+                    respond(out, 200, "", verbose ? "{\"status\": 1, \"error\": null}" : "1");
+                }
+            }
+        } catch (final InterruptedException e) {
+            // Shutting down
+        } catch (final IOException e) {
+            // The client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    private boolean containsRejectedText(List<JSONObject> batch) {
+        final String rejectedText = mRejectedText;
+        if (null == rejectedText) {
+            return false;
+        }
+        for (final JSONObject event : batch) {
+            if (event.toString().contains(rejectedText)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void respond(OutputStream out, int statusCode, String extraHeaders, String body) throws IOException {
+        final byte[] bodyBytes = body.getBytes("UTF-8");
+        final boolean chunked = mChunkedResponses;
+        final String keepAlive = mKeepAliveHeader;
+        final String head = "HTTP/1.1 " + statusCode + " " + reasonPhrase(statusCode) + "\r\n" +
+                "Content-Type: text/plain\r\n" +
+                (chunked ? "Transfer-Encoding: chunked\r\n" : "Content-Length: " + bodyBytes.length + "\r\n") +
+                (null == keepAlive ? "" : "Keep-Alive: " + keepAlive + "\r\n") +
+                extraHeaders +
+                "\r\n";
+        out.write(head.getBytes("US-ASCII"));
+        if (chunked) {
+            // One byte per chunk, so clients have to put the body back together
+            for (final byte b : bodyBytes) {
+                out.write("1\r\n".getBytes("US-ASCII"));
+                out.write(b);
+                out.write("\r\n".getBytes("US-ASCII"));
+            }
+            out.write("0\r\n\r\n".getBytes("US-ASCII"));
+        } else {
+            out.write(bodyBytes);
+        }
+        out.flush();
+    }
+
+    private static String reasonPhrase(int statusCode) {
+        switch (statusCode) {
+            case 200: return "OK";
+            case 400: return "Bad Request";
+            case 413: return "Payload Too Large";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return "Status";
+        }
+    }
+
+    private static byte[] readBody(InputStream in, Map<String, String> headers) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            while (true) {
+                final String sizeLine = readLine(in);
+                if (null == sizeLine) {
+                    throw new SocketException("Connection closed inside a chunked body");
+                }
+                final int semicolon = sizeLine.indexOf(';');
+                final int size = Integer.parseInt((semicolon < 0 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+                if (size == 0) {
+                    String trailer;
+                    while (null != (trailer = readLine(in)) && trailer.length() > 0) {
+                        // Skip trailers
+                    }
+                    break;
+                }
+                copy(in, body, size);
+                readLine(in);
+            }
+        } else if (headers.containsKey("content-length")) {
+            copy(in, body, Integer.parseInt(headers.get("content-length")));
+        }
+        return body.toByteArray();
+    }
+
+    private static void copy(InputStream in, ByteArrayOutputStream out, int count) throws IOException {
+        final byte[] buffer = new byte[8192];
+        int remaining = count;
+        while (remaining > 0) {
+            final int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new SocketException("Connection closed inside a request body");
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        final GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = gzip.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                final int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static Map<String, String> parseForm(byte[] body) throws UnsupportedEncodingException {
+        final Map<String, String> form = new HashMap<String, String>();
+        final String encoded = new String(body, "US-ASCII");
+        for (final String pair : encoded.split("&")) {
+            final int equals = pair.indexOf('=');
+            if (equals > 0) {
+                form.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return form;
+    }
+
+    // Returns null if data isn't a base64 encoded, non-empty JSON array of objects
+    private static List<JSONObject> decodeBatch(String data) {
+        if (null == data) {
+            return null;
+        }
+        try {
+            final JSONArray array = new JSONArray(Base64Coder.decodeString(data));
+            if (array.length() == 0) {
+                return null;
+            }
+            final List<JSONObject> batch = new ArrayList<JSONObject>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                batch.add(array.getJSONObject(i));
+            }
+            return batch;
+        } catch (final JSONException e) {
+            return null;
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor;
+    private final BlockingQueue<Fault> mFaults;
+    private final BlockingQueue<JSONObject> mEvents;
+    private final List<JSONObject> mAcceptedEvents;
+    private final AtomicInteger mRequestCount;
+    private final AtomicInteger mConnectionCount;
+    private volatile long mLatencyMillis;
+    private volatile String mRejectedText;
+    private volatile boolean mChunkedResponses;
+    private volatile String mKeepAliveHeader;
+    private volatile boolean mCloseAfterResponse;
+    private volatile boolean mShutdown;
+}
@@ -32,12 +32,16 @@ public class HttpTest extends AndroidTestCase {
     private BlockingQueue<String> mPerformRequestCalls, mDecideCalls;
     private List<String> mCleanupCalls;
     private MixpanelLiteAPI mMetrics;
+    private MPLDbAdapter mMockAdapter;
     private volatile int mFlushInterval;
     private volatile boolean mForceOverMemThreshold;
     private static final long POLL_WAIT_MAX_MILLISECONDS = 3500;
     private static final TimeUnit DEFAULT_TIMEUNIT = TimeUnit.MILLISECONDS;
     private static final String SUCCEED_TEXT = "Should Succeed";
     private static final String FAIL_TEXT = "Should Fail";
+    private static final String REJECTED_TEXT = "Should Be Rejected";
+    private static final String REJECTED_IN_BODY_TEXT = "Should Be Rejected In Body";
+    private static final String TOKEN = "Test Message Queuing";
 
     public void setUp() {
         mFlushInterval = 2 * 1000;
@@ -88,6 +92,12 @@ public class HttpTest extends AndroidTestCase {
                     }
 
                     final String jsonData = Base64Coder.decodeString(params.get("data").toString());
+                    if (jsonData.contains(REJECTED_IN_BODY_TEXT)) {
+                        return TestUtils.bytes("{\"status\": 0, \"error\": \"Invalid event\"}");
+                    }
+                    if (jsonData.contains(REJECTED_TEXT)) {
+                        throw new RequestRejectedException("Bad Request", 400);
+                    }
                     JSONArray msg = new JSONArray(jsonData);
                     JSONObject event = msg.getJSONObject(0);
                     mPerformRequestCalls.put(event.getString("event"));
@@ -113,7 +123,7 @@ public class HttpTest extends AndroidTestCase {
             }
         };
 
-        final MPLDbAdapter mockAdapter = new MPLDbAdapter(getContext()) {
+        mMockAdapter = new MPLDbAdapter(getContext()) {
             @Override
             public void cleanupEvents(String last_id, Table table, String token, boolean includeAutomaticEvents) {
                 mCleanupCalls.add("called");
@@ -133,7 +143,7 @@ public class HttpTest extends AndroidTestCase {
         final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
             @Override
             protected MPLDbAdapter makeDbAdapter(Context context) {
-                return mockAdapter;
+                return mMockAdapter;
             }
 
             @Override
@@ -147,8 +157,7 @@ public class HttpTest extends AndroidTestCase {
             }
         };
 
-        mMetrics = new TestUtils.CleanMixpanelLiteAPI(getContext(), mMockPreferences, "Test " +
-                "Message Queuing") {
+        mMetrics = new TestUtils.CleanMixpanelLiteAPI(getContext(), mMockPreferences, TOKEN) {
             @Override
             protected AnalyticsMessages getAnalyticsMessages() {
                 return listener;
@@ -172,6 +181,40 @@ public class HttpTest extends AndroidTestCase {
         }
     }
 
+    public void testRejectedBatchIsSplit() throws InterruptedException {
+        final int deadEventsBefore = mMockAdapter.getDeadEventsCount(TOKEN);
+        mCleanupCalls.clear();
+        mMetrics.track(SUCCEED_TEXT, null);
+        mMetrics.track(REJECTED_TEXT, null);
+        mMetrics.track(SUCCEED_TEXT, null);
+        waitForFlushInternval();
+
+        // [S, R, S] is refused, then sent as [S] and [R, S]. [R, S] is refused and sent as [R] and [S].
+        assertEquals(SUCCEED_TEXT, mPerformRequestCalls.poll(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT));
+        assertEquals(SUCCEED_TEXT, mPerformRequestCalls.poll(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT));
+        assertEquals(null, mPerformRequestCalls.poll(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT));
+        assertEquals(deadEventsBefore + 1, mMockAdapter.getDeadEventsCount(TOKEN));
+
+        // The queue isn't held up by the refused event
+        mMetrics.track(SUCCEED_TEXT, null);
+        waitForFlushInternval();
+        assertEquals(SUCCEED_TEXT, mPerformRequestCalls.poll(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT));
+        assertEquals(null, mPerformRequestCalls.poll(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT));
+        assertEquals(deadEventsBefore + 1, mMockAdapter.getDeadEventsCount(TOKEN));
+    }
+
+    public void testRejectedInResponseBodyIsSplit() throws InterruptedException {
+        final int deadEventsBefore = mMockAdapter.getDeadEventsCount(TOKEN);
+        mMetrics.track(SUCCEED_TEXT, null);
+        mMetrics.track(REJECTED_IN_BODY_TEXT, null);
+        waitForFlushInternval();
+
+        // A 200 response saying {"status": 0} is treated like a 400
+        assertEquals(SUCCEED_TEXT, mPerformRequestCalls.poll(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT));
+        assertEquals(null, mPerformRequestCalls.poll(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT));
+        assertEquals(deadEventsBefore + 1, mMockAdapter.getDeadEventsCount(TOKEN));
+    }
+
     public void runBasicSucceed() throws InterruptedException {
         mCleanupCalls.clear();
         mMetrics.track(SUCCEED_TEXT, null);
@@ -0,0 +1,30 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class InsertIdGeneratorTest extends AndroidTestCase {
+
+    public void testIdFormat() {
+        final InsertIdGenerator generator = new InsertIdGenerator(0x0123456789abcdefL);
+        assertEquals("0123456789abcdef0", generator.next());
+        assertEquals("0123456789abcdef1", generator.next());
+
+        final InsertIdGenerator negative = new InsertIdGenerator(-1);
+        assertEquals("ffffffffffffffff0", negative.next());
+    }
+
+    public void testIdsAreUnique() {
+        final Set<String> seen = new HashSet<String>();
+        final InsertIdGenerator first = new InsertIdGenerator();
+        final InsertIdGenerator second = new InsertIdGenerator();
+        for (int i = 0; i < 1000; i++) {
+            final String id = first.next();
+            assertTrue(id.length() <= 32);
+            assertTrue(seen.add(id));
+            assertTrue(seen.add(second.next()));
+        }
+    }
+}
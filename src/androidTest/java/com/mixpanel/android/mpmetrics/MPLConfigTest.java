@@ -3,11 +3,39 @@ package com.mixpanel.android.mpmetrics;
 import android.os.Bundle;
 import android.test.AndroidTestCase;
 
+import com.mixpanel.android.util.NioHttpTransport;
+import com.mixpanel.android.util.UrlConnectionTransport;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
 public class MPLConfigTest extends AndroidTestCase {
 
     public static final String TOKEN = "TOKEN";
     public static final String DISABLE_VIEW_CRAWLER_METADATA_KEY = "com.mixpanel.android.MPConfig.DisableViewCrawler";
 
+    public void testNioTransportKeepsCustomSSLSocketFactory() throws Exception {
+        final MPLConfig config = mpConfig(new Bundle());
+        final NioHttpTransport nio = new NioHttpTransport();
+        config.setHttpTransport(nio);
+        assertSame(nio, AnalyticsMessages.chooseTransport(config));
+
+        // NioHttpTransport can't use a socket factory, so it isn't used when the app sets one
+        config.setSSLSocketFactory((SSLSocketFactory) SSLSocketFactory.getDefault());
+        assertNull(AnalyticsMessages.chooseTransport(config));
+
+        // Unless it brings its own SSLContext
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+        final NioHttpTransport pinned = new NioHttpTransport(context);
+        config.setHttpTransport(pinned);
+        assertSame(pinned, AnalyticsMessages.chooseTransport(config));
+
+        final UrlConnectionTransport urlConnection = new UrlConnectionTransport();
+        config.setHttpTransport(urlConnection);
+        assertSame(urlConnection, AnalyticsMessages.chooseTransport(config));
+    }
+
     private MPLConfig mpConfig(final Bundle metaData) {
         return new MPLConfig(metaData, getContext());
     }
@@ -0,0 +1,117 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MetricsTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() {
+        // No scheduled flushes, so nothing needs a MixpanelLiteAPI or AnalyticsMessages
+        mMetrics = new Metrics(null, null, -1);
+    }
+
+    public void testCounter() throws Exception {
+        final Metrics.Counter counter = mMetrics.counter("requests");
+        assertSame(counter, mMetrics.counter("requests"));
+
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        counter.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        counter.add(5);
+
+        final JSONObject summary = takeSummaries().get("requests");
+        assertEquals(AutomaticEvents.METRIC, summary.getString("event"));
+        final JSONObject properties = summary.getJSONObject("properties");
+        assertEquals("counter", properties.getString(AutomaticEvents.METRIC_TYPE));
+        assertEquals(4005, properties.getLong("count"));
+
+        // Nothing happened in the next window
+        assertTrue(takeSummaries().isEmpty());
+    }
+
+    public void testGauge() throws JSONException {
+        final Metrics.Gauge gauge = mMetrics.gauge("cache_size");
+        gauge.set(10);
+        gauge.set(Double.NaN);
+        gauge.set(12.5);
+
+        final JSONObject properties = takeSummaries().get("cache_size").getJSONObject("properties");
+        assertEquals("gauge", properties.getString(AutomaticEvents.METRIC_TYPE));
+        assertEquals(12.5, properties.getDouble("value"));
+        assertTrue(takeSummaries().isEmpty());
+    }
+
+    public void testHistogram() throws JSONException {
+        final Metrics.Histogram histogram = mMetrics.histogram("latency");
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        final JSONObject properties = takeSummaries().get("latency").getJSONObject("properties");
+        assertEquals("histogram", properties.getString(AutomaticEvents.METRIC_TYPE));
+        assertEquals(1000, properties.getLong("count"));
+        assertEquals(500500.0, properties.getDouble("sum"));
+        assertEquals(1.0, properties.getDouble("min"));
+        assertEquals(1000.0, properties.getDouble("max"));
+        assertEquals(500, properties.getDouble("p50"), 500 * 0.07);
+        assertEquals(900, properties.getDouble("p90"), 900 * 0.07);
+        assertEquals(990, properties.getDouble("p99"), 990 * 0.07);
+        assertTrue(takeSummaries().isEmpty());
+    }
+
+    public void testHistogramBuckets() {
+        assertEquals(0, Metrics.Histogram.bucketIndex(-5));
+        assertEquals(0, Metrics.Histogram.bucketIndex(0));
+        assertEquals(Metrics.Histogram.BUCKET_COUNT - 1, Metrics.Histogram.bucketIndex(1e20));
+
+        double previous = 0;
+        for (int i = 1; i < Metrics.Histogram.BUCKET_COUNT - 1; i++) {
+            final double value = Metrics.Histogram.bucketValue(i);
+            assertTrue(value > previous);
+            assertEquals(i, Metrics.Histogram.bucketIndex(value));
+            previous = value;
+        }
+    }
+
+    public void testMismatchedTypes() throws JSONException {
+        mMetrics.counter("thing").increment();
+        mMetrics.histogram("thing").record(5);
+
+        final JSONObject properties = takeSummaries().get("thing").getJSONObject("properties");
+        assertEquals("counter", properties.getString(AutomaticEvents.METRIC_TYPE));
+    }
+
+    private Map<String, JSONObject> takeSummaries() throws JSONException {
+        final Map<String, JSONObject> ret = new HashMap<String, JSONObject>();
+        final List<EventBuilder> summaries = mMetrics.takeSummaries();
+        for (final EventBuilder summary : summaries) {
+            final EventWriter writer = new EventWriter(summary.getEventName());
+            summary.writeTo(writer);
+            final JSONObject event = new JSONObject(writer.finish());
+            ret.put(event.getJSONObject("properties").getString(AutomaticEvents.METRIC_NAME), event);
+            summary.recycle();
+        }
+        return ret;
+    }
+
+    private Metrics mMetrics;
+}
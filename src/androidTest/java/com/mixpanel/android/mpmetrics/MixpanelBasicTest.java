@@ -108,9 +108,9 @@ public class MixpanelBasicTest extends AndroidTestCase {
 
         final MPLDbAdapter explodingDb = new MPLDbAdapter(getContext()) {
             @Override
-            public int addJSON(JSONObject message, String token, MPLDbAdapter.Table table, boolean isAutomatic) {
+            public int addData(String message, String token, MPLDbAdapter.Table table, boolean isAutomatic) {
                 if (!isAutomatic) {
-                    messages.add(message);
+                    messages.add(TestUtils.json(message));
                     throw new RuntimeException("BANG!");
                 }
 
@@ -157,9 +157,9 @@ public class MixpanelBasicTest extends AndroidTestCase {
 
         final MPLDbAdapter eventOperationsAdapter = new MPLDbAdapter(getContext()) {
             @Override
-            public int addJSON(JSONObject message, String token, MPLDbAdapter.Table table, boolean isAutomatic) {
+            public int addData(String message, String token, MPLDbAdapter.Table table, boolean isAutomatic) {
                 if (!isAutomatic) {
-                    messages.add(message);
+                    messages.add(TestUtils.json(message));
                 }
 
                 return 1;
@@ -265,17 +265,17 @@ public class MixpanelBasicTest extends AndroidTestCase {
 
         final MPLDbAdapter mockAdapter = new MPLDbAdapter(getContext()) {
             @Override
-            public int addJSON(JSONObject message, String token, MPLDbAdapter.Table table, boolean isAutomaticEvent) {
+            public int addData(String message, String token, MPLDbAdapter.Table table, boolean isAutomaticEvent) {
                 if (!isAutomaticEvent) {
                     try {
                         messages.put("TABLE " + table.getName());
-                        messages.put(message.toString());
+                        messages.put(message);
                     } catch (InterruptedException e) {
                         throw new RuntimeException(e);
                     }
                 }
 
-                return super.addJSON(message, token, table, isAutomaticEvent);
+                return super.addData(message, token, table, isAutomaticEvent);
             }
         };
         mockAdapter.cleanupEvents(Long.MAX_VALUE, MPLDbAdapter.Table.EVENTS);
@@ -428,6 +428,44 @@ public class MixpanelBasicTest extends AndroidTestCase {
         }
     }
 
+    public void testBackgroundInitializationKeepsOrder() throws JSONException, InterruptedException {
+        final BlockingQueue<AnalyticsMessages.EventDescription> messages = new LinkedBlockingQueue<AnalyticsMessages.EventDescription>();
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            public void eventsMessage(EventDescription heard) {
+                if (!heard.isAutomatic()) {
+                    messages.add(heard);
+                }
+            }
+        };
+
+        final MixpanelLiteAPI mixpanel = new TestUtils.CleanMixpanelLiteAPI(getContext(), mMockPreferences, "Test background initialization", true) {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return listener;
+            }
+        };
+
+        mixpanel.track("before identify", null);
+        mixpanel.identify("Background Identity");
+        mixpanel.track("after identify", null);
+
+        final AnalyticsMessages.EventDescription before = messages.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+        assertEquals("before identify", before.getEventName());
+        assertFalse("Background Identity".equals(before.getProperties().getString("distinct_id")));
+
+        final AnalyticsMessages.EventDescription after = messages.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+        assertEquals("after identify", after.getEventName());
+        assertEquals("Background Identity", after.getProperties().getString("distinct_id"));
+
+        assertEquals("Background Identity", mixpanel.getDistinctId());
+        final Map<String, Long> trace = mixpanel.getStartupTrace();
+        final String[] stages = { "constructor", "device_info", "time_events", "first_launch", "startup_events", "replay", "initialize_total" };
+        for (final String stage : stages) {
+            assertTrue("Missing startup stage " + stage, trace.containsKey(stage));
+        }
+    }
+
     public void testPersistence() {
         MixpanelLiteAPI metricsOne = new MixpanelLiteAPI(getContext(), mMockPreferences, "SAME TOKEN");
         metricsOne.reset();
@@ -552,9 +590,9 @@ public class MixpanelBasicTest extends AndroidTestCase {
 
                 final MPLDbAdapter dbMock = new MPLDbAdapter(getContext()) {
                     @Override
-                    public int addJSON(JSONObject message, String token, MPLDbAdapter.Table table, boolean isAutomatic) {
+                    public int addData(String message, String token, MPLDbAdapter.Table table, boolean isAutomatic) {
                         if (!isAutomatic) {
-                            mMessages.add(message);
+                            mMessages.add(TestUtils.json(message));
                         }
 
                         return 1;
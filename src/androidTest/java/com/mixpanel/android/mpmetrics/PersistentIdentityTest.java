@@ -173,6 +173,43 @@ public class PersistentIdentityTest extends AndroidTestCase {
         assertEquals("TEST ID TO SET", storedId);
     }
 
+    public void testSuperPropertiesAreStoredInTheBackground() throws JSONException {
+        final JSONObject registered = new JSONObject();
+        registered.put("registered", "value");
+        mPersistentIdentity.registerSuperProperties(registered);
+        mPersistentIdentity.unregisterSuperProperty("thing");
+
+        final JSONObject heard = new JSONObject();
+        mPersistentIdentity.addSuperPropertiesToObject(heard);
+        assertEquals(1, heard.length());
+        assertEquals("value", heard.getString("registered"));
+
+        // A new identity waits for pending changes to be stored before it reads them
+        final SharedPreferencesLoader loader = new SharedPreferencesLoader();
+        final PersistentIdentity reloaded = new PersistentIdentity(
+                loader.loadPreferences(getContext(), TEST_REFERRER_PREFERENCES, null),
+                loader.loadPreferences(getContext(), TEST_PREFERENCES, null),
+                loader.loadPreferences(getContext(), TEST_TIME_EVENTS_PREFERENCES, null),
+                loader.loadPreferences(getContext(), TEST_MIXPANEL_PREFERENCES, null));
+        final JSONObject written = new JSONObject(reloaded.getSuperPropertiesFragment().toString());
+        assertEquals(1, written.length());
+        assertEquals("value", written.getString("registered"));
+
+        final SharedPreferences testPreferences = getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE);
+        assertEquals("value", new JSONObject(testPreferences.getString("super_properties", "{}")).getString("registered"));
+    }
+
+    public void testTimeEventsAreStoredInTheBackground() {
+        mPersistentIdentity.addTimeEvent("Kept", 1000L);
+        mPersistentIdentity.addTimeEvent("Removed", 2000L);
+        mPersistentIdentity.removeTimeEvent("Removed");
+
+        // getTimeEvents waits for pending changes to be stored before it reads them
+        final Map<String, Long> timeEvents = mPersistentIdentity.getTimeEvents();
+        assertEquals(1, timeEvents.size());
+        assertEquals(Long.valueOf(1000L), timeEvents.get("Kept"));
+    }
+
     public void testPushId() {
         final String pushId = mPersistentIdentity.getPushId();
         assertEquals("PUSH ID", pushId);
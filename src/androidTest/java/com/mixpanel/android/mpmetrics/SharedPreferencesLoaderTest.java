@@ -0,0 +1,102 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class SharedPreferencesLoaderTest extends AndroidTestCase {
+
+    public void testLoadsEveryFile() throws InterruptedException, ExecutionException, TimeoutException {
+        final SharedPreferencesLoader loader = new SharedPreferencesLoader();
+        final String[] names = {
+            "SharedPreferencesLoaderTest.One",
+            "SharedPreferencesLoaderTest.Two",
+            "SharedPreferencesLoaderTest.Three",
+            "SharedPreferencesLoaderTest.Four",
+            "SharedPreferencesLoaderTest.Five",
+        };
+
+        for (final String name : names) {
+            final Future<SharedPreferences> loaded = loader.loadPreferences(getContext(), name, null);
+            assertNotNull(loaded.get(POLL_WAIT_SECONDS, TimeUnit.SECONDS));
+        }
+        loader.loadPreferences(getContext(), names[0], null).get(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+
+        final List<String> order = loader.getLoadOrder();
+        assertEquals(names.length, order.size());
+        for (int i = 0; i < names.length; i++) {
+            assertEquals(names[i], order.get(i));
+        }
+    }
+
+    public void testLoadsSideBySideAndLetsThreadsGo() throws InterruptedException, ExecutionException, TimeoutException {
+        final int loadCount = 4;
+        final CountDownLatch allLoading = new CountDownLatch(loadCount);
+        final Set<Thread> loaders = Collections.synchronizedSet(new HashSet<Thread>());
+        final Context context = new ContextWrapper(getContext()) {
+            @Override
+            public SharedPreferences getSharedPreferences(String name, int mode) {
+                loaders.add(Thread.currentThread());
+                allLoading.countDown();
+                try {
+                    // No load finishes until they've all started, so they can't run one at a time
+                    allLoading.await(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getSharedPreferences(name, mode);
+            }
+        };
+
+        final SharedPreferencesLoader loader = new SharedPreferencesLoader(KEEP_ALIVE_MILLIS);
+        final List<Future<SharedPreferences>> loads = new ArrayList<Future<SharedPreferences>>();
+        for (int i = 0; i < loadCount; i++) {
+            loads.add(loader.loadPreferences(context, "SharedPreferencesLoaderTest.SideBySide" + i, null));
+        }
+        assertTrue(allLoading.await(POLL_WAIT_SECONDS, TimeUnit.SECONDS));
+        for (final Future<SharedPreferences> load : loads) {
+            assertNotNull(load.get(POLL_WAIT_SECONDS, TimeUnit.SECONDS));
+        }
+
+        assertEquals(loadCount, loaders.size());
+        for (final Thread thread : loaders) {
+            assertTrue(thread.getName().startsWith("com.mixpanel.android.PrefsLoader-"));
+            assertTrue(thread.isDaemon());
+        }
+
+        // Once there's nothing left to load, the threads go away
+        for (final Thread thread : loaders) {
+            thread.join(KEEP_ALIVE_MILLIS + POLL_WAIT_SECONDS * 1000);
+            assertFalse(thread.isAlive());
+        }
+    }
+
+    public void testListenerHearsEachLoad() throws InterruptedException, ExecutionException, TimeoutException {
+        final SharedPreferencesLoader loader = new SharedPreferencesLoader();
+        final SharedPreferences[] heard = new SharedPreferences[1];
+        final Future<SharedPreferences> loaded = loader.loadPreferences(getContext(), "SharedPreferencesLoaderTest.Listened",
+                new SharedPreferencesLoader.OnPrefsLoadedListener() {
+                    @Override
+                    public void onPrefsLoaded(SharedPreferences prefs) {
+                        heard[0] = prefs;
+                    }
+                });
+
+        assertSame(loaded.get(POLL_WAIT_SECONDS, TimeUnit.SECONDS), heard[0]);
+    }
+
+    private static final int POLL_WAIT_SECONDS = 10;
+    private static final long KEEP_ALIVE_MILLIS = 200;
+}
@@ -0,0 +1,82 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.Arrays;
+
+public class SystemInformationTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        mSnapshotFile = new File(getContext().getCacheDir(), "SystemInformationTest");
+        mSnapshotFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSnapshotFile.delete();
+    }
+
+    public void testSnapshotRoundTrip() {
+        final SystemInformation.Snapshot snapshot = SystemInformation.Snapshot.read(getContext());
+        final byte[] bytes = snapshot.toBytes("key");
+
+        final SystemInformation.Snapshot read = SystemInformation.Snapshot.fromBytes(bytes, "key");
+        assertNotNull(read);
+        assertTrue(Arrays.equals(bytes, read.toBytes("key")));
+
+        assertNull(SystemInformation.Snapshot.fromBytes(bytes, "other key"));
+        assertNull(SystemInformation.Snapshot.fromBytes(Arrays.copyOf(bytes, bytes.length - 1), "key"));
+        assertNull(SystemInformation.Snapshot.fromBytes(new byte[0], "key"));
+    }
+
+    public void testStoredSnapshotIsUsed() {
+        final SystemInformation first = new SystemInformation(getContext(), mSnapshotFile, "key");
+        assertFalse(first.isLoadedFromFile());
+        assertTrue(mSnapshotFile.isFile());
+
+        final SystemInformation second = new SystemInformation(getContext(), mSnapshotFile, "key");
+        assertTrue(second.isLoadedFromFile());
+        assertEquals(first.getAppVersionName(), second.getAppVersionName());
+        assertEquals(first.getAppVersionCode(), second.getAppVersionCode());
+        assertEquals(first.getAppName(), second.getAppName());
+        assertEquals(first.hasNFC(), second.hasNFC());
+        assertEquals(first.hasTelephony(), second.hasTelephony());
+        assertEquals(first.getBluetoothVersion(), second.getBluetoothVersion());
+        assertEquals(first.getDisplayMetrics().densityDpi, second.getDisplayMetrics().densityDpi);
+        assertEquals(first.getDisplayMetrics().widthPixels, second.getDisplayMetrics().widthPixels);
+        assertEquals(first.getDisplayMetrics().heightPixels, second.getDisplayMetrics().heightPixels);
+
+        final SystemInformation updated = new SystemInformation(getContext(), mSnapshotFile, "new key");
+        assertFalse(updated.isLoadedFromFile());
+        assertTrue(new SystemInformation(getContext(), mSnapshotFile, "new key").isLoadedFromFile());
+    }
+
+    public void testRevalidateTellsListenersAboutChanges() {
+        final SystemInformation info = new SystemInformation(getContext(), mSnapshotFile, "key");
+        final int[] changes = { 0 };
+        info.addListener(new SystemInformation.SnapshotListener() {
+            @Override
+            public void onSnapshotChanged() {
+                changes[0]++;
+            }
+        });
+
+        final byte[] current = SystemInformation.Snapshot.read(getContext()).toBytes("key");
+        info.revalidate(current);
+        assertEquals(0, changes[0]);
+
+        // Stored facts that don't match the system's are replaced, on disk too
+        mSnapshotFile.delete();
+        info.revalidate(new byte[0]);
+        assertEquals(1, changes[0]);
+        assertTrue(new SystemInformation(getContext(), mSnapshotFile, "key").isLoadedFromFile());
+    }
+
+    public void testSnapshotKeyIsStable() {
+        assertEquals(SystemInformation.snapshotKey(getContext()), SystemInformation.snapshotKey(getContext()));
+    }
+
+    private File mSnapshotFile;
+}
@@ -5,6 +5,9 @@ import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.Message;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.UnsupportedEncodingException;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
@@ -21,12 +24,25 @@ public class TestUtils {
         }
     }
 
+    public static JSONObject json(String s) {
+        try {
+            return new JSONObject(s);
+        } catch (JSONException e) {
+            throw new RuntimeException("Stored data isn't a JSON object: " + s, e);
+        }
+    }
+
     public static class CleanMixpanelLiteAPI extends MixpanelLiteAPI {
         public CleanMixpanelLiteAPI(final Context context, final Future<SharedPreferences>
                 referrerPreferences, final String token) {
             super(context, referrerPreferences, token);
         }
 
+        public CleanMixpanelLiteAPI(final Context context, final Future<SharedPreferences>
+                referrerPreferences, final String token, final boolean initializeInBackground) {
+            super(context, referrerPreferences, token, MPLConfig.getInstance(context), initializeInBackground);
+        }
+
         @Override
         /* package */ PersistentIdentity getPersistentIdentity(final Context context, final Future<SharedPreferences> referrerPreferences, final String token) {
             final String prefsName = "com.mixpanel.android.mpmetrics.MixpanelAPI_" + token;
@@ -0,0 +1,191 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends events through the real HttpService to a {@link FakeTrackServer}.
+ */
+public class TrackServerTest extends AndroidTestCase {
+    private FakeTrackServer mServer;
+    private MPLDbAdapter mAdapter;
+    private AnalyticsMessages mMessages;
+    private MixpanelLiteAPI mMetrics;
+    private static final String TOKEN = "Test Fake Track Server";
+    private static final long POLL_WAIT_MAX_MILLISECONDS = 3500;
+    private static final long NOTHING_ARRIVES_MILLISECONDS = 1000;
+    private static final TimeUnit DEFAULT_TIMEUNIT = TimeUnit.MILLISECONDS;
+
+    public void setUp() throws IOException {
+        mServer = new FakeTrackServer();
+        final Future<SharedPreferences> mockPreferences = new TestUtils.EmptyPreferences(getContext());
+
+        final MPLConfig config = new MPLConfig(new Bundle(), getContext()) {
+            @Override
+            public String getEventsEndpoint() {
+                return mServer.getEventsEndpoint();
+            }
+
+            @Override
+            public int getFlushInterval() {
+                // Tests flush explicitly
+                return 60 * 1000;
+            }
+
+            @Override
+            public int getBulkUploadLimit() {
+                return Integer.MAX_VALUE;
+            }
+        };
+
+        mAdapter = new MPLDbAdapter(getContext());
+        mAdapter.cleanupEvents(Long.MAX_VALUE, MPLDbAdapter.Table.EVENTS);
+
+        mMessages = new AnalyticsMessages(getContext()) {
+            @Override
+            protected MPLDbAdapter makeDbAdapter(Context context) {
+                return mAdapter;
+            }
+
+            @Override
+            protected MPLConfig getConfig(Context context) {
+                return config;
+            }
+        };
+
+        mMetrics = new TestUtils.CleanMixpanelLiteAPI(getContext(), mockPreferences, TOKEN) {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return mMessages;
+            }
+        };
+    }
+
+    public void tearDown() {
+        mServer.shutdown();
+    }
+
+    public void testEventsArrive() throws InterruptedException, JSONException {
+        mMetrics.track("First", null);
+        mMetrics.track("Second", null);
+        mMetrics.track("Third", null);
+        mMetrics.flush();
+
+        assertEquals("First", nextEventName());
+        assertEquals("Second", nextEventName());
+        assertEquals("Third", nextEventName());
+        assertNull(mServer.pollEvent(NOTHING_ARRIVES_MILLISECONDS, DEFAULT_TIMEUNIT));
+    }
+
+    public void testServiceUnavailableHonorsRetryAfter() throws InterruptedException, JSONException {
+        mServer.enqueueFault(FakeTrackServer.Fault.serviceUnavailable("10"));
+        mMetrics.track("Delayed", null);
+        mMetrics.flush();
+
+        assertNull(mServer.pollEvent(NOTHING_ARRIVES_MILLISECONDS, DEFAULT_TIMEUNIT));
+        assertEquals(1, mServer.getRequestCount());
+        assertTrue(mMessages.getTrackEngageRetryAfter() >= 10 * 1000);
+
+        // The event was kept, and goes out with the next flush
+        mMetrics.flush();
+        assertEquals("Delayed", nextEventName());
+    }
+
+    public void testResetConnectionLosesNothing() throws InterruptedException, JSONException {
+        mServer.enqueueFault(FakeTrackServer.Fault.reset());
+        mMetrics.track("Survivor", null);
+        mMetrics.flush();
+        Thread.sleep(NOTHING_ARRIVES_MILLISECONDS);
+        mMetrics.flush();
+
+        assertEquals("Survivor", nextEventName());
+        assertNull(mServer.pollEvent(NOTHING_ARRIVES_MILLISECONDS, DEFAULT_TIMEUNIT));
+    }
+
+    public void testPartialFailureQuarantinesOnlyTheBadEvent() throws InterruptedException, JSONException {
+        final int deadEventsBefore = mAdapter.getDeadEventsCount(TOKEN);
+        mServer.setRejectedText("Poison");
+        mMetrics.track("Before", null);
+        mMetrics.track("Poison", null);
+        mMetrics.track("After", null);
+        mMetrics.flush();
+
+        assertEquals("Before", nextEventName());
+        assertEquals("After", nextEventName());
+        assertNull(mServer.pollEvent(NOTHING_ARRIVES_MILLISECONDS, DEFAULT_TIMEUNIT));
+        assertEquals(deadEventsBefore + 1, mAdapter.getDeadEventsCount(TOKEN));
+    }
+
+    public void testBadEventsInBothHalvesAreQuarantined() throws InterruptedException, JSONException {
+        final int deadEventsBefore = mAdapter.getDeadEventsCount(TOKEN);
+        mServer.setRejectedText("Poison");
+        for (int i = 0; i < 8; i++) {
+            mMetrics.track(i == 1 || i == 6 ? "Poison " + i : "Event " + i, null);
+        }
+        mMetrics.flush();
+
+        // Halves are sent as they're split, so the good events don't arrive in order
+        final Set<String> sent = new HashSet<String>();
+        for (int i = 0; i < 6; i++) {
+            sent.add(nextEventName());
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("Event 0", "Event 2", "Event 3", "Event 4", "Event 5", "Event 7")), sent);
+        assertNull(mServer.pollEvent(NOTHING_ARRIVES_MILLISECONDS, DEFAULT_TIMEUNIT));
+        assertEquals(deadEventsBefore + 2, mAdapter.getDeadEventsCount(TOKEN));
+        assertNull(mAdapter.generateDataString(MPLDbAdapter.Table.EVENTS, TOKEN, true));
+    }
+
+    public void testRefusingEveryEventKeepsThem() throws InterruptedException, JSONException {
+        final int deadEventsBefore = mAdapter.getDeadEventsCount(TOKEN);
+        // Every event carries the token, as if the project had been deleted
+        mServer.setRejectedText(TOKEN);
+        for (int i = 0; i < 8; i++) {
+            mMetrics.track("Event " + i, null);
+        }
+        mMetrics.flush();
+
+        // The whole batch, then every part of it down to single events, none of them accepted
+        assertNull(mServer.pollEvent(NOTHING_ARRIVES_MILLISECONDS, DEFAULT_TIMEUNIT));
+        assertEquals(1 + 2 * 8 - 2, mServer.getRequestCount());
+        assertEquals(deadEventsBefore, mAdapter.getDeadEventsCount(TOKEN));
+
+        mServer.setRejectedText(null);
+        mMetrics.flush();
+        for (int i = 0; i < 8; i++) {
+            assertEquals("Event " + i, nextEventName());
+        }
+    }
+
+    public void testSlowServerBatchesEverything()throws InterruptedException, JSONException {
+        final int eventCount = 4 * MPLDbAdapter.BATCH_SIZE;
+        mServer.setLatencyMillis(50);
+        for (int i = 0; i < eventCount; i++) {
+            mMetrics.track("Event " + i, null);
+        }
+        mMetrics.flush();
+
+        for (int i = 0; i < eventCount; i++) {
+            assertEquals("Event " + i, nextEventName());
+        }
+        assertNull(mServer.pollEvent(NOTHING_ARRIVES_MILLISECONDS, DEFAULT_TIMEUNIT));
+        assertEquals(4, mServer.getRequestCount());
+    }
+
+    private String nextEventName() throws InterruptedException, JSONException {
+        final JSONObject event = mServer.pollEvent(POLL_WAIT_MAX_MILLISECONDS, DEFAULT_TIMEUNIT);
+        assertNotNull(event);
+        return event.getString("event");
+    }
+}
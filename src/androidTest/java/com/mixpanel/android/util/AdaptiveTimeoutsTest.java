@@ -0,0 +1,122 @@
+package com.mixpanel.android.util;
+
+import android.test.AndroidTestCase;
+
+public class AdaptiveTimeoutsTest extends AndroidTestCase {
+
+    public void testDefaultsBeforeMeasuring() {
+        final AdaptiveTimeouts timeouts = new AdaptiveTimeouts();
+        assertEquals(2000, timeouts.getConnectTimeoutMillis(ENDPOINT));
+        assertEquals(10000, timeouts.getReadTimeoutMillis(ENDPOINT, 0));
+        assertEquals(10000, timeouts.getReadTimeoutMillis(ENDPOINT, 1024 * 1024));
+    }
+
+    public void testConnectEstimate() {
+        final AdaptiveTimeouts timeouts = unbounded();
+
+        // The first sample sets the mean, with half of it as the deviation
+        timeouts.onConnected(ENDPOINT, 400);
+        assertEquals(400 + 4 * 200, timeouts.getConnectTimeoutMillis(ENDPOINT));
+
+        // Later ones are smoothed in with the gains from RFC 6298
+        timeouts.onConnected(ENDPOINT, 800);
+        final double deviation = 0.75 * 200 + 0.25 * 400;
+        final double mean = 0.875 * 400 + 0.125 * 800;
+        assertEquals((int) (mean + 4 * deviation), timeouts.getConnectTimeoutMillis(ENDPOINT));
+    }
+
+    public void testReadEstimate() {
+        final AdaptiveTimeouts timeouts = unbounded();
+
+        // Until there's a round trip sample, connection setup stands in for it
+        timeouts.onConnected(ENDPOINT, 400);
+        assertEquals(1200, timeouts.getReadTimeoutMillis(ENDPOINT, 0));
+
+        timeouts.onExchange(ENDPOINT, 1000, 10, 500);
+        assertEquals(500 + 4 * 250, timeouts.getReadTimeoutMillis(ENDPOINT, 0));
+    }
+
+    public void testThroughputTerm() {
+        final AdaptiveTimeouts timeouts = unbounded();
+        timeouts.onExchange(ENDPOINT, 1000, 10, 500);
+
+        // Without a throughput sample, body size makes no difference
+        assertEquals(1500, timeouts.getReadTimeoutMillis(ENDPOINT, 50000));
+
+        // 100KB in 1500ms, less the 500ms round trip, is 100 bytes per millisecond. A big body
+        // isn't a round trip sample, so the RTT part of the estimate stays as it was.
+        timeouts.onExchange(ENDPOINT, 100000, 900, 600);
+        assertEquals(1500, timeouts.getReadTimeoutMillis(ENDPOINT, 0));
+
+        // Twice the time 50KB should take at that rate
+        assertEquals(1500 + 2 * 50000 / 100, timeouts.getReadTimeoutMillis(ENDPOINT, 50000));
+    }
+
+    public void testClampsToBounds() {
+        final AdaptiveTimeouts timeouts = new AdaptiveTimeouts(1000, 15000, 3000, 60000);
+
+        timeouts.onConnected(ENDPOINT, 100);
+        timeouts.onExchange(ENDPOINT, 100, 1, 100);
+        assertEquals(1000, timeouts.getConnectTimeoutMillis(ENDPOINT));
+        assertEquals(3000, timeouts.getReadTimeoutMillis(ENDPOINT, 0));
+
+        final AdaptiveTimeouts slow = new AdaptiveTimeouts(1000, 15000, 3000, 60000);
+        slow.onConnected(ENDPOINT, 10000);
+        slow.onExchange(ENDPOINT, 100, 1, 20000);
+        assertEquals(15000, slow.getConnectTimeoutMillis(ENDPOINT));
+        assertEquals(60000, slow.getReadTimeoutMillis(ENDPOINT, 0));
+
+        // A ceiling below the floor is raised to it
+        final AdaptiveTimeouts inverted = new AdaptiveTimeouts(5000, 1000, 5000, 1000);
+        assertEquals(5000, inverted.getConnectTimeoutMillis(ENDPOINT));
+        assertEquals(5000, inverted.getReadTimeoutMillis(ENDPOINT, 0));
+    }
+
+    public void testBackoffDoublesAndResets() {
+        final AdaptiveTimeouts timeouts = unbounded();
+        timeouts.onConnected(ENDPOINT, 400);
+        timeouts.onExchange(ENDPOINT, 1000, 10, 500);
+
+        timeouts.onTimeout(ENDPOINT);
+        assertEquals(2 * 1200, timeouts.getConnectTimeoutMillis(ENDPOINT));
+        assertEquals(2 * 1500, timeouts.getReadTimeoutMillis(ENDPOINT, 0));
+
+        timeouts.onTimeout(ENDPOINT);
+        assertEquals(4 * 1200, timeouts.getConnectTimeoutMillis(ENDPOINT));
+
+        // Backoff stops at 8x
+        for (int i = 0; i < 5; i++) {
+            timeouts.onTimeout(ENDPOINT);
+        }
+        assertEquals(8 * 1200, timeouts.getConnectTimeoutMillis(ENDPOINT));
+
+        // And the backed off value is still clamped
+        final AdaptiveTimeouts bounded = new AdaptiveTimeouts(1000, 5000, 3000, 60000);
+        bounded.onConnected(ENDPOINT, 400);
+        for (int i = 0; i < 3; i++) {
+            bounded.onTimeout(ENDPOINT);
+        }
+        assertEquals(5000, bounded.getConnectTimeoutMillis(ENDPOINT));
+
+        // A completed exchange resets the backoff, but leaves the estimates
+        final int read = timeouts.getReadTimeoutMillis(ENDPOINT, 0);
+        timeouts.onExchange(ENDPOINT, 1000, 10, 500);
+        assertEquals(1200, timeouts.getConnectTimeoutMillis(ENDPOINT));
+        assertTrue(timeouts.getReadTimeoutMillis(ENDPOINT, 0) < read);
+    }
+
+    public void testEndpointsAreIndependent() {
+        final AdaptiveTimeouts timeouts = unbounded();
+        timeouts.onConnected(ENDPOINT, 400);
+        timeouts.onTimeout(ENDPOINT);
+
+        assertEquals(2000, timeouts.getConnectTimeoutMillis("https://other.example.com"));
+        assertEquals(10000, timeouts.getReadTimeoutMillis("https://other.example.com", 0));
+    }
+
+    private static AdaptiveTimeouts unbounded() {
+        return new AdaptiveTimeouts(0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE);
+    }
+
+    private static final String ENDPOINT = "https://api.mixpanel.com";
+}
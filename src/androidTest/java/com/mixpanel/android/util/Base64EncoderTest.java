@@ -0,0 +1,47 @@
+package com.mixpanel.android.util;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class Base64EncoderTest extends AndroidTestCase {
+
+    public void testMatchesBase64Coder() {
+        final Random random = new Random(42);
+        for (int length = 0; length < 100; length++) {
+            for (int offset = 0; offset < 3; offset++) {
+                final byte[] src = new byte[offset + length + 2];
+                random.nextBytes(src);
+                final String expected = new String(Base64Coder.encode(Arrays.copyOfRange(src, offset, offset + length)));
+
+                final byte[] dst = new byte[Base64Encoder.encodedLength(length) + 1];
+                final int written = Base64Encoder.encode(src, offset, length, dst, 1);
+                assertEquals(expected, ascii(dst, 1, written));
+            }
+        }
+    }
+
+    public void testPayloadToString() {
+        final byte[] data = "[{\"event\": \"Hello\"}]".getBytes();
+        assertEquals(new String(Base64Coder.encode(data)), new Base64Payload(data).toString());
+        assertEquals(new String(Base64Coder.encode(data, 5)), new Base64Payload(data, 5).toString());
+    }
+
+    public void testOutOfBounds() {
+        try {
+            Base64Encoder.encode(new byte[3], 0, 3, new byte[3], 0);
+            fail("Encoded into a buffer that was too small");
+        } catch (final IndexOutOfBoundsException e) {
+            // Expected
+        }
+    }
+
+    private static String ascii(byte[] bytes, int offset, int length) {
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) bytes[offset + i];
+        }
+        return new String(chars);
+    }
+}
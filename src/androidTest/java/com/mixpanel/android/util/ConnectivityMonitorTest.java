@@ -0,0 +1,148 @@
+package com.mixpanel.android.util;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ConnectivityMonitorTest extends AndroidTestCase {
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mGranted = true;
+        mCanRegister = true;
+        mReceiver = null;
+        mQueries = 0;
+        mPlatformState = WIFI;
+        mChanges = new ArrayList<ConnectivityMonitor.State[]>();
+        mContext = new ContextWrapper(getContext()) {
+            @Override
+            public int checkCallingOrSelfPermission(String permission) {
+                return mGranted ? PackageManager.PERMISSION_GRANTED : PackageManager.PERMISSION_DENIED;
+            }
+
+            @Override
+            public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+                if (!mCanRegister) {
+                    throw new SecurityException("Too many receivers");
+                }
+                mReceiver = receiver;
+                return null;
+            }
+        };
+    }
+
+    public void testStateIsOnline() {
+        assertTrue(WIFI.isOnline());
+        assertTrue(WIFI.isWifiConnected());
+        assertFalse(CELL.isWifiConnected());
+        assertTrue(CELL.isMetered());
+
+        assertFalse(DISCONNECTED.isOnline());
+        assertFalse(DISCONNECTED.isConnected());
+
+        // Without a default network, or without permission to ask, we assume we're online
+        assertTrue(new ConnectivityMonitor.State(true, false, false, false, ConnectivityMonitor.State.TYPE_NONE, false).isOnline());
+        assertTrue(new ConnectivityMonitor.State(false, false, false, false, ConnectivityMonitor.State.TYPE_NONE, false).isOnline());
+    }
+
+    public void testUnknownWithoutPermission() {
+        mGranted = false;
+        final ConnectivityMonitor monitor = newMonitor();
+
+        assertFalse(monitor.getState().isKnown());
+        assertTrue(monitor.getState().isOnline());
+        assertEquals(0, mQueries);
+        assertNull(mReceiver);
+    }
+
+    public void testBroadcastNotifiesListeners() {
+        final ConnectivityMonitor monitor = newMonitor();
+        assertTrue(monitor.getState().isWifiConnected());
+        assertNotNull(mReceiver);
+
+        // Reads are served from the snapshot while we're watching
+        final int queries = mQueries;
+        monitor.getState();
+        monitor.getState();
+        assertEquals(queries, mQueries);
+
+        mPlatformState = DISCONNECTED;
+        mReceiver.onReceive(mContext, new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        assertEquals(1, mChanges.size());
+        assertSame(WIFI, mChanges.get(0)[0]);
+        assertSame(DISCONNECTED, mChanges.get(0)[1]);
+        assertFalse(monitor.getState().isOnline());
+
+        // A broadcast that doesn't change anything isn't passed on
+        mPlatformState = new ConnectivityMonitor.State(true, true, false, false, ConnectivityManager.TYPE_WIFI, false);
+        mReceiver.onReceive(mContext, new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        assertEquals(1, mChanges.size());
+
+        mPlatformState = CELL;
+        mReceiver.onReceive(mContext, new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        assertEquals(2, mChanges.size());
+        assertSame(CELL, monitor.getState());
+    }
+
+    public void testRemovedListenerIsNotCalled() {
+        final ConnectivityMonitor monitor = newMonitor();
+        monitor.removeListener(mListener);
+
+        mPlatformState = DISCONNECTED;
+        mReceiver.onReceive(mContext, new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        assertTrue(mChanges.isEmpty());
+    }
+
+    public void testQueriesOnDemandWhenCantWatch() {
+        mCanRegister = false;
+        final ConnectivityMonitor monitor = newMonitor();
+        assertTrue(monitor.getState().isWifiConnected());
+
+        mPlatformState = CELL;
+        assertSame(CELL, monitor.getState());
+        assertEquals(1, mChanges.size());
+    }
+
+    private ConnectivityMonitor newMonitor() {
+        final ConnectivityMonitor monitor = new ConnectivityMonitor(mContext) {
+            @Override
+            ConnectivityMonitor.State queryState() {
+                mQueries++;
+                return mPlatformState;
+            }
+        };
+        mListener = new ConnectivityMonitor.ConnectivityListener() {
+            @Override
+            public void onConnectivityChanged(ConnectivityMonitor.State previous, ConnectivityMonitor.State current) {
+                mChanges.add(new ConnectivityMonitor.State[] { previous, current });
+            }
+        };
+        monitor.addListener(mListener);
+        return monitor;
+    }
+
+    private Context mContext;
+    private ConnectivityMonitor.ConnectivityListener mListener;
+    private List<ConnectivityMonitor.State[]> mChanges;
+    private BroadcastReceiver mReceiver;
+    private boolean mGranted;
+    private boolean mCanRegister;
+    private int mQueries;
+    private ConnectivityMonitor.State mPlatformState;
+
+    private static final ConnectivityMonitor.State WIFI =
+            new ConnectivityMonitor.State(true, true, true, true, ConnectivityManager.TYPE_WIFI, false);
+    private static final ConnectivityMonitor.State CELL =
+            new ConnectivityMonitor.State(true, true, true, true, ConnectivityManager.TYPE_MOBILE, true);
+    private static final ConnectivityMonitor.State DISCONNECTED =
+            new ConnectivityMonitor.State(true, true, false, false, ConnectivityManager.TYPE_WIFI, false);
+}
@@ -0,0 +1,138 @@
+package com.mixpanel.android.util;
+
+import android.test.AndroidTestCase;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class HostProbeTest extends AndroidTestCase {
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mAddresses = new HashMap<String, byte[]>();
+        mLookups = new ArrayList<String>();
+        mOffline = false;
+        mOnLookup = null;
+        mProbe = new HostProbe() {
+            @Override
+            InetAddress resolve(String host) throws UnknownHostException {
+                mLookups.add(host);
+                if (null != mOnLookup) {
+                    final Runnable onLookup = mOnLookup;
+                    mOnLookup = null;
+                    onLookup.run();
+                }
+                if (mOffline || !mAddresses.containsKey(host)) {
+                    throw new UnknownHostException(host);
+                }
+                return InetAddress.getByAddress(host, mAddresses.get(host));
+            }
+        };
+        setMixpanelAddress(PUBLIC_ADDRESS);
+        mAddresses.put("events.example.com", PUBLIC_ADDRESS);
+    }
+
+    public void testDetectsBlockedHosts() {
+        mProbe.probeIfStale(null);
+        assertFalse(mProbe.isMixpanelBlocked());
+
+        setMixpanelAddress(LOOPBACK_ADDRESS);
+        mProbe.invalidate();
+        mProbe.probeIfStale(null);
+        assertTrue(mProbe.isMixpanelBlocked());
+
+        setMixpanelAddress(ANY_ADDRESS);
+        mProbe.invalidate();
+        mProbe.probeIfStale(null);
+        assertTrue(mProbe.isMixpanelBlocked());
+
+        setMixpanelAddress(PUBLIC_ADDRESS);
+        mProbe.invalidate();
+        mProbe.probeIfStale(null);
+        assertFalse(mProbe.isMixpanelBlocked());
+    }
+
+    public void testCachesResult() {
+        mProbe.probeIfStale(null);
+        final int lookups = mLookups.size();
+        assertEquals(2, lookups);
+
+        mProbe.probeIfStale(null);
+        mProbe.probeIfStale("https://events.example.com/track");
+        assertEquals(lookups, mLookups.size());
+    }
+
+    public void testInvalidateProbesAgain() {
+        mProbe.probeIfStale(null);
+        mProbe.invalidate();
+        mProbe.probeIfStale(null);
+        assertEquals(4, mLookups.size());
+    }
+
+    public void testWarmsEventsHost() {
+        mProbe.probeIfStale("https://events.example.com/track?ip=1");
+        assertTrue(mLookups.contains("events.example.com"));
+
+        // Mixpanel's own hosts are looked up once, not again as the events host
+        mProbe.invalidate();
+        mLookups.clear();
+        mProbe.probeIfStale("https://api.mixpanel.com/track?ip=1");
+        assertEquals(2, mLookups.size());
+    }
+
+    public void testFailedLookupKeepsLastResult() {
+        setMixpanelAddress(LOOPBACK_ADDRESS);
+        mProbe.probeIfStale(null);
+        assertTrue(mProbe.isMixpanelBlocked());
+
+        mOffline = true;
+        mProbe.invalidate();
+        mProbe.probeIfStale(null);
+        assertTrue(mProbe.isMixpanelBlocked());
+
+        // And doesn't look again right away
+        final int lookups = mLookups.size();
+        mProbe.probeIfStale(null);
+        assertEquals(lookups, mLookups.size());
+    }
+
+    public void testNetworkChangeDuringProbeIsNotCached() {
+        // The network changes while the first lookup is in flight, so its answer may describe
+        // the old network and the next probe has to look again
+        mOnLookup = new Runnable() {
+            @Override
+            public void run() {
+                mProbe.invalidate();
+            }
+        };
+        mProbe.probeIfStale(null);
+        assertEquals(2, mLookups.size());
+
+        mProbe.probeIfStale(null);
+        assertEquals(4, mLookups.size());
+
+        // Without a change, the result sticks
+        mProbe.probeIfStale(null);
+        assertEquals(4, mLookups.size());
+    }
+
+    private void setMixpanelAddress(byte[] address) {
+        mAddresses.put("api.mixpanel.com", address);
+        mAddresses.put("decide.mixpanel.com", address);
+    }
+
+    private HostProbe mProbe;
+    private Map<String, byte[]> mAddresses;
+    private List<String> mLookups;
+    private volatile boolean mOffline;
+    private volatile Runnable mOnLookup;
+
+    private static final byte[] PUBLIC_ADDRESS = new byte[] { (byte) 130, (byte) 211, 0, 1 };
+    private static final byte[] LOOPBACK_ADDRESS = new byte[] { 127, 0, 0, 1 };
+    private static final byte[] ANY_ADDRESS = new byte[] { 0, 0, 0, 0 };
+}
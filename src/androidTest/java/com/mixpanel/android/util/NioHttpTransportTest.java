@@ -0,0 +1,147 @@
+package com.mixpanel.android.util;
+
+import android.test.AndroidTestCase;
+
+import com.mixpanel.android.mpmetrics.FakeTrackServer;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+public class NioHttpTransportTest extends AndroidTestCase {
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeTrackServer();
+        mTransport = new NioHttpTransport();
+        mListener = new TransportTestUtils.RecordingListener();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mTransport.evictAll();
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testContentLengthBody() throws Exception {
+        final TransportTestUtils.FormBody body = new TransportTestUtils.FormBody("plain", false);
+        final HttpTransport.Request request = new HttpTransport.Request(mServer.getEventsEndpoint(), "POST",
+                TransportTestUtils.formHeaders(false), body, null, 2000, 2000);
+        final HttpTransport.Response response = mTransport.newCall(request, mListener).execute();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals("1", new String(response.getBody(), "UTF-8"));
+        assertEquals("plain", mServer.pollEvent(2, TimeUnit.SECONDS).getString("event"));
+        assertEquals(Long.valueOf(body.mForm.length), mListener.mBodyBytes.get(0));
+        assertEquals(1, mListener.mCallsEnded);
+    }
+
+    public void testChunkedGzipBody() throws Exception {
+        final HttpTransport.Response response = mTransport.newCall(
+                TransportTestUtils.post(mServer.getEventsEndpoint(), true, "gzipped"), mListener).execute();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals("1", new String(response.getBody(), "UTF-8"));
+        assertEquals("gzipped", mServer.pollEvent(2, TimeUnit.SECONDS).getString("event"));
+    }
+
+    public void testChunkedResponse() throws Exception {
+        mServer.setChunkedResponses(true);
+        final HttpTransport.Response response = mTransport.newCall(
+                TransportTestUtils.post(mServer.getEventsEndpoint(), false, "chunked"), mListener).execute();
+
+        assertEquals("1", new String(response.getBody(), "UTF-8"));
+
+        // The connection is still usable after a chunked body has been read to its end
+        mTransport.newCall(TransportTestUtils.post(mServer.getEventsEndpoint(), false, "chunked"), mListener).execute();
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    public void testErrorStatusIsReturned() throws Exception {
+        mServer.enqueueFault(FakeTrackServer.Fault.status(400));
+        final HttpTransport.Response response = mTransport.newCall(
+                TransportTestUtils.post(mServer.getEventsEndpoint(), false, "refused"), mListener).execute();
+
+        assertEquals(400, response.getStatusCode());
+        assertTrue(mListener.mFailures.isEmpty());
+    }
+
+    public void testReusesConnection() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            mTransport.newCall(TransportTestUtils.post(mServer.getEventsEndpoint(), false, "event " + i), mListener).execute();
+        }
+
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals(1, mServer.getConnectionCount());
+        assertFalse(mListener.mReused.get(0));
+        assertTrue(mListener.mReused.get(1));
+        assertTrue(mListener.mReused.get(2));
+    }
+
+    public void testDoesNotReuseAfterConnectionClose() throws Exception {
+        final Map<String, String> headers = TransportTestUtils.formHeaders(false);
+        headers.put("Connection", "close");
+        mTransport.newCall(new HttpTransport.Request(mServer.getEventsEndpoint(), "POST", headers,
+                new TransportTestUtils.FormBody("last", false), null, 2000, 2000), mListener).execute();
+        mTransport.newCall(TransportTestUtils.post(mServer.getEventsEndpoint(), false, "next"), mListener).execute();
+
+        assertEquals(2, mServer.getConnectionCount());
+        assertFalse(mListener.mReused.get(1));
+    }
+
+    public void testDiscardsConnectionClosedWhileIdle() throws Exception {
+        mServer.setCloseAfterResponse(true);
+        mTransport.newCall(TransportTestUtils.post(mServer.getEventsEndpoint(), false, "first"), mListener).execute();
+        Thread.sleep(200); // Let the server's FIN arrive
+
+        // The pooled connection is found closed before anything is written to it
+        final HttpTransport.Response response = mTransport.newCall(
+                TransportTestUtils.post(mServer.getEventsEndpoint(), false, "second"), mListener).execute();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(2, mServer.getConnectionCount());
+        assertEquals(2, mServer.getRequestCount());
+        assertFalse(mListener.mReused.get(1));
+        assertTrue(mListener.mFailures.isEmpty());
+    }
+
+    public void testDiscardsConnectionPastKeepAliveWindow() throws Exception {
+        // A one second window, less our safety margin, leaves nothing
+        mServer.setKeepAliveHeader("timeout=1");
+        mTransport.newCall(TransportTestUtils.post(mServer.getEventsEndpoint(), false, "first"), mListener).execute();
+        mTransport.newCall(TransportTestUtils.post(mServer.getEventsEndpoint(), false, "second"), mListener).execute();
+
+        assertEquals(2, mServer.getConnectionCount());
+        assertFalse(mListener.mReused.get(1));
+    }
+
+    public void testHasCustomSSLContext() throws Exception {
+        assertFalse(new NioHttpTransport().hasCustomSSLContext());
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+        assertTrue(new NioHttpTransport(context).hasCustomSSLContext());
+    }
+
+    public void testParseKeepAliveTimeout() {
+        // A second under what the server advertises
+        assertEquals(4000, NioHttpTransport.parseKeepAliveTimeout("timeout=5, max=100"));
+        assertEquals(4000, NioHttpTransport.parseKeepAliveTimeout("max=100,timeout=5"));
+        assertEquals(0, NioHttpTransport.parseKeepAliveTimeout("timeout=1"));
+        assertEquals(0, NioHttpTransport.parseKeepAliveTimeout("timeout=0"));
+
+        // Missing or unreadable, we assume the common default of 15 seconds
+        assertEquals(14000, NioHttpTransport.parseKeepAliveTimeout(null));
+        assertEquals(14000, NioHttpTransport.parseKeepAliveTimeout("max=100"));
+        assertEquals(14000, NioHttpTransport.parseKeepAliveTimeout("timeout=soon"));
+
+        // And never trust an idle connection for more than five minutes
+        assertEquals(5 * 60 * 1000 - 1000, NioHttpTransport.parseKeepAliveTimeout("timeout=86400"));
+    }
+
+    private FakeTrackServer mServer;
+    private NioHttpTransport mTransport;
+    private TransportTestUtils.RecordingListener mListener;
+}
@@ -0,0 +1,91 @@
+package com.mixpanel.android.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+public class TransportTestUtils {
+
+    public static Map<String, String> formHeaders(boolean gzip) {
+        final Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", "application/x-www-form-urlencoded");
+        if (gzip) {
+            headers.put("Content-Encoding", "gzip");
+        }
+        return headers;
+    }
+
+    public static HttpTransport.Request post(String url, boolean gzip, String eventName) throws IOException {
+        return new HttpTransport.Request(url, "POST", formHeaders(gzip), new FormBody(eventName, gzip), null, 2000, 2000);
+    }
+
+    /**
+     * A form body holding a single event in the "data" field, sent with a Content-Length,
+     * or gzipped and chunked.
+     */
+    public static class FormBody implements HttpTransport.RequestBody {
+        public FormBody(String eventName, boolean gzip) throws IOException {
+            final String data = Base64Coder.encodeString("[{\"event\":\"" + eventName + "\",\"properties\":{}}]");
+            mForm = ("data=" + URLEncoder.encode(data, "UTF-8")).getBytes("US-ASCII");
+            mGzip = gzip;
+        }
+
+        @Override
+        public long contentLength() {
+            return mGzip ? -1 : mForm.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            if (mGzip) {
+                final GZIPOutputStream gzip = new GZIPOutputStream(out);
+                gzip.write(mForm);
+                gzip.finish();
+            } else {
+                out.write(mForm);
+            }
+        }
+
+        public final byte[] mForm;
+        private final boolean mGzip;
+    }
+
+    /**
+     * Remembers the callbacks made for each call.
+     */
+    public static class RecordingListener implements HttpTransport.EventListener {
+        @Override
+        public synchronized void onConnectionAcquired(HttpTransport.Request request, boolean reused, long elapsedMillis) {
+            mReused.add(reused);
+        }
+
+        @Override
+        public synchronized void onRequestSent(HttpTransport.Request request, long bodyBytes, long elapsedMillis) {
+            mBodyBytes.add(bodyBytes);
+        }
+
+        @Override
+        public void onResponseHeaders(HttpTransport.Request request, int statusCode, long elapsedMillis) {
+        }
+
+        @Override
+        public synchronized void onCallEnd(HttpTransport.Request request, long responseBytes, long elapsedMillis) {
+            mCallsEnded++;
+        }
+
+        @Override
+        public synchronized void onCallFailed(HttpTransport.Request request, IOException e, long elapsedMillis) {
+            mFailures.add(e);
+        }
+
+        public final List<Boolean> mReused = new ArrayList<Boolean>();
+        public final List<Long> mBodyBytes = new ArrayList<Long>();
+        public final List<IOException> mFailures = new ArrayList<IOException>();
+        public int mCallsEnded = 0;
+    }
+}
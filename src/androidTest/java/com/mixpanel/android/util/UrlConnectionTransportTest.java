@@ -0,0 +1,79 @@
+package com.mixpanel.android.util;
+
+import android.test.AndroidTestCase;
+
+import com.mixpanel.android.mpmetrics.FakeTrackServer;
+
+import java.util.concurrent.TimeUnit;
+
+public class UrlConnectionTransportTest extends AndroidTestCase {
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeTrackServer();
+        mTransport = new UrlConnectionTransport();
+        mListener = new TransportTestUtils.RecordingListener();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testContentLengthBody() throws Exception {
+        final TransportTestUtils.FormBody body = new TransportTestUtils.FormBody("plain", false);
+        final HttpTransport.Request request = new HttpTransport.Request(mServer.getEventsEndpoint(), "POST",
+                TransportTestUtils.formHeaders(false), body, null, 2000, 2000);
+        final HttpTransport.Response response = mTransport.newCall(request, mListener).execute();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals("1", new String(response.getBody(), "UTF-8"));
+        assertEquals("plain", mServer.pollEvent(2, TimeUnit.SECONDS).getString("event"));
+        assertEquals(Long.valueOf(body.mForm.length), mListener.mBodyBytes.get(0));
+        assertEquals(1, mListener.mCallsEnded);
+    }
+
+    public void testChunkedGzipBody() throws Exception {
+        final HttpTransport.Response response = mTransport.newCall(
+                TransportTestUtils.post(mServer.getEventsEndpoint(), true, "gzipped"), mListener).execute();
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals("gzipped", mServer.pollEvent(2, TimeUnit.SECONDS).getString("event"));
+    }
+
+    public void testChunkedResponse() throws Exception {
+        mServer.setChunkedResponses(true);
+        final HttpTransport.Response response = mTransport.newCall(
+                TransportTestUtils.post(mServer.getEventsEndpoint(), false, "chunked"), mListener).execute();
+
+        assertEquals("1", new String(response.getBody(), "UTF-8"));
+    }
+
+    public void testErrorStatusIsReturned() throws Exception {
+        mServer.enqueueFault(FakeTrackServer.Fault.status(400));
+        final HttpTransport.Response response = mTransport.newCall(
+                TransportTestUtils.post(mServer.getEventsEndpoint(), false, "refused"), mListener).execute();
+
+        assertEquals(400, response.getStatusCode());
+        assertTrue(mListener.mFailures.isEmpty());
+    }
+
+    public void testNeverReportsReuse() throws Exception {
+        // HttpURLConnection pools connections on its own and doesn't say when it reuses one
+        for (int i = 0; i < 3; i++) {
+            mTransport.newCall(TransportTestUtils.post(mServer.getEventsEndpoint(), false, "event " + i), mListener).execute();
+        }
+
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals(3, mListener.mReused.size());
+        for (final Boolean reused : mListener.mReused) {
+            assertFalse(reused);
+        }
+    }
+
+    private FakeTrackServer mServer;
+    private UrlConnectionTransport mTransport;
+    private TransportTestUtils.RecordingListener mListener;
+}
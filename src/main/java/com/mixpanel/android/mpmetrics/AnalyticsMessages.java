@@ -1,19 +1,21 @@
 package com.mixpanel.android.mpmetrics;
 
 import android.content.Context;
-import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
-import android.util.DisplayMetrics;
+import android.os.SystemClock;
 
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.GoogleApiAvailability;
-import com.mixpanel.android.util.Base64Coder;
+import com.mixpanel.android.util.AdaptiveTimeouts;
+import com.mixpanel.android.util.Base64Payload;
+import com.mixpanel.android.util.ConnectionAwareRemoteService;
+import com.mixpanel.android.util.ConnectivityMonitor;
 import com.mixpanel.android.util.HttpService;
+import com.mixpanel.android.util.HttpTransport;
 import com.mixpanel.android.util.MPLLog;
+import com.mixpanel.android.util.NioHttpTransport;
 import com.mixpanel.android.util.RemoteService;
 
 import org.json.JSONException;
@@ -21,11 +23,17 @@ import org.json.JSONObject;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.net.ssl.SSLSocketFactory;
 
@@ -43,8 +51,29 @@ import javax.net.ssl.SSLSocketFactory;
     /* package */ AnalyticsMessages(final Context context) {
         mContext = context;
         mConfig = getConfig(context);
+        mHttpService = new HttpService(mConfig.getUseGzipCompression(), chooseTransport(mConfig),
+                new AdaptiveTimeouts(mConfig.getMinConnectTimeout(), mConfig.getMaxConnectTimeout(),
+                        mConfig.getMinReadTimeout(), mConfig.getMaxReadTimeout()));
         mWorker = createWorker();
-        getPoster().checkIsMixpanelBlocked();
+
+        final Message probe = Message.obtain();
+        probe.what = PROBE_HOSTS;
+        mWorker.runMessage(probe);
+    }
+
+    // Called on the worker thread, since the monitor asks the system for the network state
+    // and registers for broadcasts when it's first made
+    private void watchConnectivity() {
+        ConnectivityMonitor.getInstance(mContext).addListener(new ConnectivityMonitor.ConnectivityListener() {
+            @Override
+            public void onConnectivityChanged(ConnectivityMonitor.State previous, ConnectivityMonitor.State current) {
+                if (current.isConnected() && !previous.isConnected()) {
+                    final Message m = Message.obtain();
+                    m.what = CONNECTIVITY_RESTORED;
+                    mWorker.runMessage(m);
+                }
+            }
+        });
     }
 
     protected Worker createWorker() {
@@ -88,6 +117,29 @@ import javax.net.ssl.SSLSocketFactory;
         mWorker.runMessage(m);
     }
 
+    /**
+     * Tracks the summaries of metrics after delayMillis, on the worker thread.
+     */
+    public void metricsMessage(final Metrics metrics, long delayMillis) {
+        final Message m = Message.obtain();
+        m.what = FLUSH_METRICS;
+        m.obj = metrics;
+
+        mWorker.runMessageDelayed(m, delayMillis);
+    }
+
+    /**
+     * Runs task on the worker thread, for occasional work that doesn't deserve a thread of its own.
+     * The task has to catch its own exceptions, since one that escapes stops the worker.
+     */
+    public void backgroundMessage(final Runnable task) {
+        final Message m = Message.obtain();
+        m.what = RUN_TASK;
+        m.obj = task;
+
+        mWorker.runMessage(m);
+    }
+
     public void postToServer(final FlushDescription flushDescription) {
         final Message m = Message.obtain();
         m.what = FLUSH_QUEUE;
@@ -97,6 +149,34 @@ import javax.net.ssl.SSLSocketFactory;
         mWorker.runMessage(m);
     }
 
+    /**
+     * Keeps a stream open to the streaming endpoint and sends events over it as they are
+     * tracked, until {@link #stopStreaming()}. Does nothing unless a streaming endpoint is
+     * configured. Call when the app comes to the foreground.
+     */
+    public void startStreaming() {
+        if (null == mConfig.getStreamingEndpoint()) {
+            return;
+        }
+        final Message m = Message.obtain();
+        m.what = START_STREAMING;
+
+        mWorker.runMessage(m);
+    }
+
+    /**
+     * Closes the stream, leaving events to be sent in batches. Call when the app goes to the background.
+     */
+    public void stopStreaming() {
+        if (null == mConfig.getStreamingEndpoint()) {
+            return;
+        }
+        final Message m = Message.obtain();
+        m.what = STOP_STREAMING;
+
+        mWorker.runMessage(m);
+    }
+
     public void hardKill() {
         final Message m = Message.obtain();
         m.what = KILL_WORKER;
@@ -119,34 +199,67 @@ import javax.net.ssl.SSLSocketFactory;
         return MPLConfig.getInstance(context);
     }
 
+    // NioHttpTransport can't use a socket factory, so it would silently drop an app's
+    // certificate pinning. Returns null, meaning the default transport, in that case.
+    /* package */ static HttpTransport chooseTransport(MPLConfig config) {
+        final HttpTransport transport = config.getHttpTransport();
+        if (transport instanceof NioHttpTransport && config.hasCustomSSLSocketFactory() &&
+                !((NioHttpTransport) transport).hasCustomSSLContext()) {
+            MPLLog.w(LOGTAG, "A custom SSLSocketFactory is set, but NioHttpTransport can't use it. " +
+                    "Sending with the default transport instead. Create the NioHttpTransport with " +
+                    "an SSLContext to use it.");
+            return null;
+        }
+        return transport;
+    }
+
+    // A single service per instance, so warm connections survive from one batch to the next
     protected RemoteService getPoster() {
-        return new HttpService();
+        return mHttpService;
     }
 
     ////////////////////////////////////////////////////
 
     static class EventDescription extends MixpanelDescription {
-        public EventDescription(String eventName, JSONObject properties, String token, boolean isAutomatic) {
+        public EventDescription(String eventName, JSONObject properties, String token, boolean isAutomatic)
+                throws JSONException {
+            this(EventBuilder.obtain(null, eventName), token, isAutomatic);
+            if (null != properties) {
+                final Iterator<String> keys = properties.keys();
+                while (keys.hasNext()) {
+                    final String key = keys.next();
+                    mEvent.putObject(key, properties.get(key));
+                }
+            }
+        }
+
+        /**
+         * @param event a tracked event. The worker thread writes it, with the token and
+         *     default properties, and recycles it.
+         */
+        public EventDescription(EventBuilder event, String token, boolean isAutomatic) {
             super(token);
-            mEventName = eventName;
-            mProperties = properties;
+            mEvent = event;
             mIsAutomatic = isAutomatic;
         }
 
         public String getEventName() {
-            return mEventName;
+            return mEvent.getEventName();
         }
 
-        public JSONObject getProperties() {
-            return mProperties;
+        public JSONObject getProperties() throws JSONException {
+            return mEvent.getProperties();
+        }
+
+        public EventBuilder getEvent() {
+            return mEvent;
         }
 
         public boolean isAutomatic() {
             return mIsAutomatic;
         }
 
-        private final String mEventName;
-        private final JSONObject mProperties;
+        private final EventBuilder mEvent;
         private final boolean mIsAutomatic;
     }
 
@@ -211,6 +324,13 @@ import javax.net.ssl.SSLSocketFactory;
     // Worker will manage the (at most single) IO thread associated with
     // this AnalyticsMessages instance.
     // XXX: Worker class is unnecessary, should be just a subclass of HandlerThread
+    // The rows of a refused batch that were refused on their own, and whether any part of it was accepted
+    private static class RefusedRows {
+        private final List<String[]> mRows = new ArrayList<String[]>();
+        private final List<Integer> mStatusCodes = new ArrayList<Integer>();
+        private boolean mAnySent;
+    }
+
     class Worker {
         public Worker() {
             mHandler = restartWorkerThread();
@@ -233,6 +353,16 @@ import javax.net.ssl.SSLSocketFactory;
             }
         }
 
+        public void runMessageDelayed(Message msg, long delayMillis) {
+            synchronized(mHandlerLock) {
+                if (mHandler == null) {
+                    logAboutMessageToMixpanel("Dead mixpanel worker dropping a message: " + msg.what);
+                } else {
+                    mHandler.sendMessageDelayed(msg, delayMillis);
+                }
+            }
+        }
+
         // NOTE that the returned worker will run FOREVER, unless you send a hard kill
         // (which you really shouldn't)
         protected Handler restartWorkerThread() {
@@ -246,16 +376,24 @@ import javax.net.ssl.SSLSocketFactory;
             public AnalyticsMessageHandler(Looper looper) {
                 super(looper);
                 mDbAdapter = null;
-                mSystemInformation = SystemInformation.getInstance(mContext);
+                mDefaultProperties = null;
                 mFlushInterval = mConfig.getFlushInterval();
             }
 
             @Override
             public void handleMessage(Message msg) {
+                // Made here rather than in the constructor, which runs on the app's thread. The
+                // first time, they read storage, ask the system about the device and the network,
+                // and register for broadcasts.
+                if (mDefaultProperties == null) {
+                    mDefaultProperties = DefaultPropertiesCache.getInstance(mContext);
+                    watchConnectivity();
+                }
                 if (mDbAdapter == null) {
                     mDbAdapter = makeDbAdapter(mContext);
                     mDbAdapter.cleanupEvents(System.currentTimeMillis() - mConfig
                             .getDataExpiration(), MPLDbAdapter.Table.EVENTS);
+                    mDbAdapter.cleanupDeadEvents(System.currentTimeMillis() - mConfig.getDataExpiration());
                 }
 
                 try {
@@ -265,12 +403,19 @@ import javax.net.ssl.SSLSocketFactory;
                     if (msg.what == ENQUEUE_EVENTS) {
                         final EventDescription eventDescription = (EventDescription) msg.obj;
                         try {
-                            final JSONObject message = prepareEventObject(eventDescription);
+                            final String message = prepareEventObject(eventDescription);
                             logAboutMessageToMixpanel("Queuing event for sending later");
-                            logAboutMessageToMixpanel("    " + message.toString());
+                            logAboutMessageToMixpanel("    " + message);
                             token = eventDescription.getToken();
-                            returnCode = mDbAdapter.addJSON(message, token, MPLDbAdapter.Table
+                            returnCode = mDbAdapter.addData(message, token, MPLDbAdapter.Table
                                     .EVENTS, eventDescription.isAutomatic());
+                            if (mStreamingWanted && returnCode > 0 && !hasMessages(STREAM_EVENTS, token)) {
+                                // Wait a moment, so events tracked together go out in one frame
+                                final Message streamMessage = Message.obtain();
+                                streamMessage.what = STREAM_EVENTS;
+                                streamMessage.obj = token;
+                                sendMessageDelayed(streamMessage, STREAM_COALESCE_MILLIS);
+                            }
                         } catch (final JSONException e) {
                             MPLLog.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
                         }
@@ -280,6 +425,34 @@ import javax.net.ssl.SSLSocketFactory;
                         token = (String) msg.obj;
                         boolean shouldCheckDecide = msg.arg1 == 1 ? true : false;
                         sendAllData(mDbAdapter, token);
+                    } else if (msg.what == CONNECTIVITY_RESTORED) {
+                        // Don't wait out the retry timer for flushes that failed for lack of a network
+                        if (!mTokensAwaitingNetwork.isEmpty()) {
+                            logAboutMessageToMixpanel("Network is back, flushing queues that were waiting for it");
+                            for (final String waitingToken : new ArrayList<String>(mTokensAwaitingNetwork)) {
+                                removeMessages(FLUSH_QUEUE, waitingToken);
+                                sendAllData(mDbAdapter, waitingToken);
+                            }
+                        }
+                    } else if (msg.what == PROBE_HOSTS) {
+                        checkIsMixpanelBlocked(getPoster(), true);
+                    } else if (msg.what == START_STREAMING) {
+                        mStreamingWanted = true;
+                        openStream();
+                    } else if (msg.what == STOP_STREAMING) {
+                        mStreamingWanted = false;
+                        removeMessages(STREAM_EVENTS);
+                        if (null != mStream) {
+                            logAboutMessageToMixpanel("Closing event stream");
+                            mStream.close();
+                            mStream = null;
+                        }
+                    } else if (msg.what == STREAM_EVENTS) {
+                        streamData(mDbAdapter, (String) msg.obj);
+                    } else if (msg.what == FLUSH_METRICS) {
+                        ((Metrics) msg.obj).flush();
+                    } else if (msg.what == RUN_TASK) {
+                        ((Runnable) msg.obj).run();
                     } else if (msg.what == KILL_WORKER) {
                         MPLLog.w(LOGTAG, "Worker received a hard kill. Dumping all events and force-killing. Thread id " + Thread.currentThread().getId());
                         synchronized(mHandlerLock) {
@@ -331,16 +504,123 @@ import javax.net.ssl.SSLSocketFactory;
                 return mTrackEngageRetryAfter;
             }
 
+            // A RemoteService that only implements the original interface gets the original
+            // call, once, as it used to. Cached probes can be checked before every flush.
+            private void checkIsMixpanelBlocked(RemoteService poster, boolean starting) {
+                if (poster instanceof ConnectionAwareRemoteService) {
+                    ((ConnectionAwareRemoteService) poster).checkIsMixpanelBlocked(mContext, mConfig.getEventsEndpoint());
+                } else if (starting) {
+                    poster.checkIsMixpanelBlocked();
+                }
+            }
+
+            private void setExpectingMoreRequests(RemoteService poster, boolean expectingMore) {
+                if (poster instanceof ConnectionAwareRemoteService) {
+                    ((ConnectionAwareRemoteService) poster).setExpectingMoreRequests(expectingMore);
+                }
+            }
+
             private void sendAllData(MPLDbAdapter dbAdapter, String token) {
                 final RemoteService poster = getPoster();
+                checkIsMixpanelBlocked(poster, false); // Usually answered from cache
                 if (!poster.isOnline(mContext, mConfig.getOfflineMode())) {
                     logAboutMessageToMixpanel("Not flushing data to Mixpanel because the device is not connected to the internet.");
+                    mTokensAwaitingNetwork.add(token);
                     return;
                 }
 
                 sendData(dbAdapter, token, MPLDbAdapter.Table.EVENTS, mConfig.getEventsEndpoint());
             }
 
+            // Sends whatever events are queued for token over the stream. Anything the stream can't
+            // deliver stays in the database for the next batch flush, which is the fallback.
+            private void streamData(MPLDbAdapter dbAdapter, String token) {
+                if (mTokensRefusedByStream.contains(token)) {
+                    // The refused batch is still at the head of the queue. Streaming would only
+                    // send it again, so leave it to the batch flush.
+                    return;
+                }
+                if (!openStream()) {
+                    return;
+                }
+
+                String[] eventsData = dbAdapter.generateDataString(MPLDbAdapter.Table.EVENTS, token, true);
+                while (eventsData != null && Integer.valueOf(eventsData[2]) > 0) {
+                    final String lastId = eventsData[0];
+                    final int result;
+                    try {
+                        result = mStream.send(token, eventsData[1], STREAM_ACK_TIMEOUT_MILLIS);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+
+                    if (result != EventStream.ACKNOWLEDGED) {
+                        if (result == EventStream.FAILED) {
+                            onStreamFailed();
+                        } else {
+                            logAboutMessageToMixpanel("Stream refused a batch, sending events in batches until it is sorted out");
+                            mTokensRefusedByStream.add(token);
+                        }
+                        // Batch flushes know how to retry, split and set aside refused events
+                        if (!hasMessages(FLUSH_QUEUE, token)) {
+                            final Message flushMessage = Message.obtain();
+                            flushMessage.what = FLUSH_QUEUE;
+                            flushMessage.obj = token;
+                            sendMessage(flushMessage);
+                        }
+                        return;
+                    }
+
+                    logAboutMessageToMixpanel("Streamed " + eventsData[3] + " events");
+                    dbAdapter.cleanupEvents(lastId, MPLDbAdapter.Table.EVENTS, token, true);
+                    eventsData = dbAdapter.generateDataString(MPLDbAdapter.Table.EVENTS, token, true);
+                }
+            }
+
+            // Returns true if there is an open stream. Otherwise tries to open one, unless
+            // streaming isn't wanted right now or recently failed.
+            private boolean openStream() {
+                if (null != mStream && mStream.isOpen()) {
+                    return true;
+                }
+                mStream = null;
+
+                final String endpoint = mConfig.getStreamingEndpoint();
+                if (!mStreamingWanted || null == endpoint || SystemClock.elapsedRealtime() < mNextStreamAttempt) {
+                    return false;
+                }
+                if (!getPoster().isOnline(mContext, mConfig.getOfflineMode())) {
+                    return false;
+                }
+
+                try {
+                    final EventStream stream = new EventStream(endpoint, mConfig.getSSLSocketFactory());
+                    if (stream.connect(STREAM_CONNECT_TIMEOUT_MILLIS)) {
+                        logAboutMessageToMixpanel("Streaming events to " + endpoint);
+                        mStream = stream;
+                        mStreamFailures = 0;
+                        return true;
+                    }
+                } catch (final URISyntaxException e) {
+                    MPLLog.e(LOGTAG, "Can't stream events to " + endpoint, e);
+                } catch (final IOException e) {
+                    logAboutMessageToMixpanel("Can't create a socket to stream events over", e);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                onStreamFailed();
+                return false;
+            }
+
+            private void onStreamFailed() {
+                mStream = null;
+                mStreamFailures++;
+                final long backoff = Math.min(STREAM_RETRY_MILLIS << Math.min(mStreamFailures - 1, 6), MAX_STREAM_RETRY_MILLIS);
+                mNextStreamAttempt = SystemClock.elapsedRealtime() + backoff;
+                logAboutMessageToMixpanel("Streaming failed, sending events in batches for the next " + backoff + " ms");
+            }
+
             private void sendData(MPLDbAdapter dbAdapter, String token, MPLDbAdapter.Table table, String url) {
                 final RemoteService poster = getPoster();
                 boolean includeAutomaticEvents = true;
@@ -350,40 +630,33 @@ import javax.net.ssl.SSLSocketFactory;
                     queueCount = Integer.valueOf(eventsData[2]);
                 }
 
+                boolean retryScheduled = false;
                 while (eventsData != null && queueCount > 0) {
                     final String lastId = eventsData[0];
                     final String rawMessage = eventsData[1];
-
-                    final String encodedData = Base64Coder.encodeString(rawMessage);
-                    final Map<String, Object> params = new HashMap<String, Object>();
-                    params.put("data", encodedData);
-                    if (MPLConfig.DEBUG) {
-                        params.put("verbose", "1");
-                    }
+                    final int batchCount = Integer.valueOf(eventsData[3]);
 
                     boolean deleteEvents = true;
-                    byte[] response;
+                    boolean networkFailure = false;
+                    boolean batchSettled = false;
+                    TrackResponse response;
                     try {
-                        final SSLSocketFactory socketFactory = mConfig.getSSLSocketFactory();
-                        response = poster.performRequest(url, params, socketFactory);
+                        setExpectingMoreRequests(poster, queueCount > MPLDbAdapter.BATCH_SIZE);
+                        response = postBatch(poster, url, rawMessage, batchCount);
                         if (null == response) {
                             deleteEvents = false;
                             logAboutMessageToMixpanel("Response was null, unexpected failure posting to " + url + ".");
                         } else {
-                            deleteEvents = true; // Delete events on any successful post, regardless of 1 or 0 response
-                            String parsedResponse;
-                            try {
-                                parsedResponse = new String(response, "UTF-8");
-                            } catch (UnsupportedEncodingException e) {
-                                throw new RuntimeException("UTF not supported on this platform?", e);
-                            }
+                            // Rejections were thrown by postBatch. Anything else we can't make sense of
+                            // came with a successful status, so we don't send it again.
+                            deleteEvents = true;
                             if (mFailedRetries > 0) {
                                 mFailedRetries = 0;
                                 removeMessages(FLUSH_QUEUE, token);
                             }
 
                             logAboutMessageToMixpanel("Successfully posted to " + url + ": \n" + rawMessage);
-                            logAboutMessageToMixpanel("Response was " + parsedResponse);
+                            logAboutMessageToMixpanel("Response was " + response);
                         }
                     } catch (final OutOfMemoryError e) {
                         MPLLog.e(LOGTAG, "Out of memory when posting to " + url + ".", e);
@@ -393,15 +666,39 @@ import javax.net.ssl.SSLSocketFactory;
                         logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
                         deleteEvents = false;
                         mTrackEngageRetryAfter = e.getRetryAfter() * 1000;
+                    } catch (final RemoteService.RequestRejectedException e) {
+                        logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
+                        deleteEvents = false;
+                        if (isRejectedForContent(e.getStatusCode())) {
+                            logAboutMessageToMixpanel("Batch was rejected with status " + e.getStatusCode() +
+                                    ", sending it in parts to find the events the server won't accept.");
+                            setExpectingMoreRequests(poster, true);
+                            final List<String[]> rows = dbAdapter.getBatchRows(table, token, includeAutomaticEvents);
+                            batchSettled = !rows.isEmpty() && isolateRejectedRows(dbAdapter, table, url, rows, e.getStatusCode());
+                            if (batchSettled && mFailedRetries > 0) {
+                                mFailedRetries = 0;
+                                removeMessages(FLUSH_QUEUE, token);
+                            }
+                        }
                     } catch (final SocketTimeoutException e) {
                         logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
                         deleteEvents = false;
+                        networkFailure = true;
                     } catch (final IOException e) {
                         logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
                         deleteEvents = false;
+                        networkFailure = true;
+                    }
+
+                    if (networkFailure) {
+                        mTokensAwaitingNetwork.add(token);
+                    } else {
+                        mTokensAwaitingNetwork.remove(token);
                     }
 
-                    if (deleteEvents) {
+                    if (batchSettled) {
+                        logAboutMessageToMixpanel("Every event of the rejected batch was either sent or set aside.");
+                    } else if (deleteEvents) {
                         logAboutMessageToMixpanel("Not retrying this batch of events, deleting them from DB.");
                         dbAdapter.cleanupEvents(lastId, table, token, includeAutomaticEvents);
                     } else {
@@ -414,6 +711,7 @@ import javax.net.ssl.SSLSocketFactory;
                         sendMessageDelayed(flushMessage, mTrackEngageRetryAfter);
                         mFailedRetries++;
                         logAboutMessageToMixpanel("Retrying this batch of events in " + mTrackEngageRetryAfter + " ms");
+                        retryScheduled = true;
                         break;
                     }
 
@@ -422,121 +720,193 @@ import javax.net.ssl.SSLSocketFactory;
                         queueCount = Integer.valueOf(eventsData[2]);
                     }
                 }
+                if (!retryScheduled && table == MPLDbAdapter.Table.EVENTS) {
+                    // Whatever the stream refused has been sent, set aside or expired by now
+                    mTokensRefusedByStream.remove(token);
+                }
+                logAboutMessageToMixpanel("Upload totals: " + mUploadMetrics);
             }
 
-            private JSONObject getDefaultEventProperties()
-                    throws JSONException {
-                final JSONObject ret = new JSONObject();
-
-                ret.put("mp_lib", "android");
-                ret.put("$lib_version", MPLConfig.VERSION);
-
-                // For querying together with data from other libraries
-                ret.put("$os", "Android");
-                ret.put("$os_version", Build.VERSION.RELEASE == null ? "UNKNOWN" : Build.VERSION.RELEASE);
-
-                ret.put("$manufacturer", Build.MANUFACTURER == null ? "UNKNOWN" : Build.MANUFACTURER);
-                ret.put("$brand", Build.BRAND == null ? "UNKNOWN" : Build.BRAND);
-                ret.put("$model", Build.MODEL == null ? "UNKNOWN" : Build.MODEL);
-
+            // Posts a batch, and throws a RequestRejectedException if the server refuses it,
+            // whether with an error status or in the response body. Returns the parsed response,
+            // or null if there was none.
+            private TrackResponse postBatch(RemoteService poster, String url, String rawMessage, int eventCount)
+                    throws RemoteService.ServiceUnavailableException, IOException {
+                // HttpService Base64 and form encodes the payload as it writes it to the connection.
+                // Other posters get the Base64 String the data parameter has always been.
+                final Base64Payload encodedData;
                 try {
-                    try {
-                        final int servicesAvailable = GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(mContext);
-                        switch (servicesAvailable) {
-                            case ConnectionResult.SUCCESS:
-                                ret.put("$google_play_services", "available");
-                                break;
-                            case ConnectionResult.SERVICE_MISSING:
-                                ret.put("$google_play_services", "missing");
-                                break;
-                            case ConnectionResult.SERVICE_VERSION_UPDATE_REQUIRED:
-                                ret.put("$google_play_services", "out of date");
-                                break;
-                            case ConnectionResult.SERVICE_DISABLED:
-                                ret.put("$google_play_services", "disabled");
-                                break;
-                            case ConnectionResult.SERVICE_INVALID:
-                                ret.put("$google_play_services", "invalid");
-                                break;
-                        }
-                    } catch (RuntimeException e) {
-                        // Turns out even checking for the service will cause explosions
-                        // unless we've set up meta-data
-                        ret.put("$google_play_services", "not configured");
-                    }
-
-                } catch (NoClassDefFoundError e) {
-                    ret.put("$google_play_services", "not included");
+                    encodedData = new Base64Payload(rawMessage.getBytes("UTF-8"));
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException("UTF not supported on this platform?", e);
+                }
+                final Map<String, Object> params = new HashMap<String, Object>();
+                params.put("data", poster instanceof HttpService ? encodedData : encodedData.toString());
+                if (MPLConfig.DEBUG) {
+                    params.put("verbose", "1");
                 }
 
-                final DisplayMetrics displayMetrics = mSystemInformation.getDisplayMetrics();
-                ret.put("$screen_dpi", displayMetrics.densityDpi);
-                ret.put("$screen_height", displayMetrics.heightPixels);
-                ret.put("$screen_width", displayMetrics.widthPixels);
-
-                final String applicationVersionName = mSystemInformation.getAppVersionName();
-                if (null != applicationVersionName) {
-                    ret.put("$app_version", applicationVersionName);
-                    ret.put("$app_version_string", applicationVersionName);
+                final SSLSocketFactory socketFactory = mConfig.getSSLSocketFactory();
+                final byte[] response;
+                try {
+                    response = poster.performRequest(url, params, socketFactory);
+                } catch (final RemoteService.RequestRejectedException e) {
+                    mUploadMetrics.onBatchRefused(e.getStatusCode());
+                    throw e;
                 }
 
-                 final Integer applicationVersionCode = mSystemInformation.getAppVersionCode();
-                 if (null != applicationVersionCode) {
-                    ret.put("$app_release", applicationVersionCode);
-                    ret.put("$app_build_number", applicationVersionCode);
+                if (null == response) {
+                    return null;
                 }
+                final TrackResponse trackResponse = TrackResponse.parse(response);
+                mUploadMetrics.onBatchAnswered(eventCount, trackResponse);
+                if (trackResponse.isRejected()) {
+                    throw new RemoteService.RequestRejectedException("Mixpanel rejected the batch" +
+                            (null == trackResponse.getError() ? "" : ": " + trackResponse.getError()), HttpURLConnection.HTTP_OK);
+                }
+                return trackResponse;
+            }
 
-                final Boolean hasNFC = mSystemInformation.hasNFC();
-                if (null != hasNFC)
-                    ret.put("$has_nfc", hasNFC.booleanValue());
+            // 400 and 413 say something in the batch is malformed or too big, as does a "0" status
+            // in the body of a 200 response. Other refusals, like a bad token, would refuse every
+            // part of the batch just the same.
+            private boolean isRejectedForContent(int statusCode) {
+                return statusCode == HttpURLConnection.HTTP_BAD_REQUEST ||
+                        statusCode == HttpURLConnection.HTTP_ENTITY_TOO_LARGE ||
+                        statusCode == HttpURLConnection.HTTP_OK;
+            }
 
-                final Boolean hasTelephony = mSystemInformation.hasTelephony();
-                if (null != hasTelephony)
-                    ret.put("$has_telephone", hasTelephony.booleanValue());
+            // rows were just refused as a group. Send each half on its own, splitting any half that
+            // is refused again, until every row is either accepted or refused on its own. Rows refused
+            // on their own are moved to the dead events table, so bad events neither take good
+            // events down with them nor hold up the queue until they expire, however they're spread
+            // through the batch.
+            // If no part of the batch is accepted at all, the problem is more likely the project
+            // or the request than the events, so we keep every row for a later retry instead of
+            // throwing the whole queue away.
+            // Returns false if the rows were kept, or some other failure cut this short. Unsent rows
+            // stay queued for a retry.
+            private boolean isolateRejectedRows(MPLDbAdapter dbAdapter, MPLDbAdapter.Table table, String url,
+                                                List<String[]> rows, int statusCode) {
+                final RefusedRows refused = new RefusedRows();
+                if (!bisectRejectedRows(dbAdapter, table, url, rows, statusCode, refused)) {
+                    return false;
+                }
+                if (!refused.mAnySent) {
+                    MPLLog.w(LOGTAG, "Mixpanel refused every event of a batch on its own, with status " + statusCode +
+                            ". Keeping the events to try again later. Check the project token and the events endpoint.");
+                    return false;
+                }
 
-                final String carrier = mSystemInformation.getCurrentNetworkOperator();
-                if (null != carrier)
-                    ret.put("$carrier", carrier);
+                for (int i = 0; i < refused.mRows.size(); i++) {
+                    final String[] row = refused.mRows.get(i);
+                    final int rowStatus = refused.mStatusCodes.get(i);
+                    MPLLog.w(LOGTAG, "Mixpanel refused an event with status " + rowStatus + ", it won't be sent again: " + row[1]);
+                    dbAdapter.quarantineRow(row[0], table, rowStatus);
+                    mUploadMetrics.onEventQuarantined();
+                }
+                return true;
+            }
 
-                final Boolean isWifi = mSystemInformation.isWifiConnected();
-                if (null != isWifi)
-                    ret.put("$wifi", isWifi.booleanValue());
+            // Sends the halves of rows, and the halves of any half that's refused, collecting the
+            // rows refused on their own in refused. Returns false if some other failure cut this short.
+            private boolean bisectRejectedRows(MPLDbAdapter dbAdapter, MPLDbAdapter.Table table, String url,
+                                               List<String[]> rows, int statusCode, RefusedRows refused) {
+                if (rows.size() == 1) {
+                    refused.mRows.add(rows.get(0));
+                    refused.mStatusCodes.add(statusCode);
+                    return true;
+                }
 
-                final Boolean isBluetoothEnabled = mSystemInformation.isBluetoothEnabled();
-                if (isBluetoothEnabled != null)
-                    ret.put("$bluetooth_enabled", isBluetoothEnabled);
+                final int middle = rows.size() / 2;
+                final List<String[]> firstHalf = rows.subList(0, middle);
+                final List<String[]> secondHalf = rows.subList(middle, rows.size());
+                final int firstResult = sendRows(dbAdapter, table, url, firstHalf);
+                if (firstResult == ROWS_FAILED) {
+                    return false;
+                }
+                final int secondResult = sendRows(dbAdapter, table, url, secondHalf);
+                if (secondResult == ROWS_FAILED) {
+                    return false;
+                }
+                if (firstResult == ROWS_SENT || secondResult == ROWS_SENT) {
+                    refused.mAnySent = true;
+                }
 
-                final String bluetoothVersion = mSystemInformation.getBluetoothVersion();
-                if (bluetoothVersion != null)
-                    ret.put("$bluetooth_version", bluetoothVersion);
+                if (firstResult != ROWS_SENT && !bisectRejectedRows(dbAdapter, table, url, firstHalf, firstResult, refused)) {
+                    return false;
+                }
+                if (secondResult != ROWS_SENT && !bisectRejectedRows(dbAdapter, table, url, secondHalf, secondResult, refused)) {
+                    return false;
+                }
+                return true;
+            }
 
-                final String orientation = mSystemInformation.getOrientation();
-                if (bluetoothVersion != null)
-                    ret.put("$orientation", orientation);
+            // Sends rows as one batch, and removes them from the queue if they're accepted.
+            // Returns ROWS_SENT, ROWS_FAILED if the request failed for a reason other than the
+            // content, or the status code the server refused the batch's content with.
+            private int sendRows(MPLDbAdapter dbAdapter, MPLDbAdapter.Table table, String url, List<String[]> rows) {
+                final StringBuilder rawMessage = new StringBuilder("[");
+                final List<String> ids = new ArrayList<String>(rows.size());
+                for (final String[] row : rows) {
+                    if (ids.size() > 0) {
+                        rawMessage.append(',');
+                    }
+                    rawMessage.append(row[1]);
+                    ids.add(row[0]);
+                }
+                rawMessage.append(']');
 
-                return ret;
+                try {
+                    if (null == postBatch(getPoster(), url, rawMessage.toString(), rows.size())) {
+                        return ROWS_FAILED;
+                    }
+                    dbAdapter.removeRows(ids, table);
+                    return ROWS_SENT;
+                } catch (final RemoteService.RequestRejectedException e) {
+                    return isRejectedForContent(e.getStatusCode()) ? e.getStatusCode() : ROWS_FAILED;
+                } catch (final RemoteService.ServiceUnavailableException e) {
+                    logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
+                    mTrackEngageRetryAfter = e.getRetryAfter() * 1000;
+                    return ROWS_FAILED;
+                } catch (final IOException e) {
+                    logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
+                    return ROWS_FAILED;
+                }
             }
 
-            private JSONObject prepareEventObject(EventDescription eventDescription) throws JSONException {
-                final JSONObject eventObj = new JSONObject();
-                final JSONObject eventProperties = eventDescription.getProperties();
-                final JSONObject sendProperties = getDefaultEventProperties();
-                sendProperties.put("token", eventDescription.getToken());
-                if (eventProperties != null) {
-                    for (final Iterator<?> iter = eventProperties.keys(); iter.hasNext();) {
-                        final String key = (String) iter.next();
-                        sendProperties.put(key, eventProperties.get(key));
-                    }
+            // The tracked properties are written first, so the token and defaults only
+            // fill in keys the event doesn't have
+            private String prepareEventObject(EventDescription eventDescription) throws JSONException {
+                final EventBuilder event = eventDescription.getEvent();
+                mEventWriter.reset(event.getEventName());
+                event.writeTo(mEventWriter);
+                mEventWriter.put("token", eventDescription.getToken());
+                // Stored with the event, so every retry of it carries the same id
+                if (null == mInsertIds) {
+                    // Made here rather than with the handler, to keep SecureRandom off the caller's thread
+                    mInsertIds = new InsertIdGenerator();
                 }
-                eventObj.put("event", eventDescription.getEventName());
-                eventObj.put("properties", sendProperties);
-                return eventObj;
+                mEventWriter.put(InsertIdGenerator.INSERT_ID_PROPERTY, mInsertIds.next());
+                mDefaultProperties.writeTo(mEventWriter);
+                final String ret = mEventWriter.finish();
+                event.recycle();
+                return ret;
             }
 
             private MPLDbAdapter mDbAdapter;
+            // Reused for every event, so its buffers only grow once
+            private final EventWriter mEventWriter = new EventWriter(null);
+            private InsertIdGenerator mInsertIds;
+            private final Set<String> mTokensAwaitingNetwork = new HashSet<String>();
+            private final Set<String> mTokensRefusedByStream = new HashSet<String>();
             private final long mFlushInterval;
             private long mTrackEngageRetryAfter;
             private int mFailedRetries;
+            private EventStream mStream;
+            private boolean mStreamingWanted;
+            private int mStreamFailures;
+            private long mNextStreamAttempt;
         }// AnalyticsMessageHandler
 
         private void updateFlushFrequency() {
@@ -561,7 +931,11 @@ import javax.net.ssl.SSLSocketFactory;
         private long mFlushCount = 0;
         private long mAveFlushFrequency = 0;
         private long mLastFlushTime = -1;
-        private SystemInformation mSystemInformation;
+        private DefaultPropertiesCache mDefaultProperties;
+    }
+
+    /* package */ UploadMetrics getUploadMetrics() {
+        return mUploadMetrics;
     }
 
     public long getTrackEngageRetryAfter() {
@@ -571,6 +945,8 @@ import javax.net.ssl.SSLSocketFactory;
 
     // Used across thread boundaries
     private final Worker mWorker;
+    private final RemoteService mHttpService;
+    private final UploadMetrics mUploadMetrics = new UploadMetrics();
     protected final Context mContext;
     protected final MPLConfig mConfig;
 
@@ -578,7 +954,24 @@ import javax.net.ssl.SSLSocketFactory;
     private static final int ENQUEUE_PEOPLE = 0; // submit events and people data
     private static final int ENQUEUE_EVENTS = 1; // push given JSON message to people DB
     private static final int FLUSH_QUEUE = 2; // push given JSON message to events DB
+    private static final int PROBE_HOSTS = 3; // check for ad blockers and warm DNS for the events endpoint
+    private static final int CONNECTIVITY_RESTORED = 4; // the device came back online, retry flushes that were waiting for it
     private static final int KILL_WORKER = 5; // Hard-kill the worker thread, discarding all events on the event queue. This is for testing, or disasters.
+    private static final int START_STREAMING = 6; // the app came to the foreground, open a stream if one is configured
+    private static final int STOP_STREAMING = 7; // the app went to the background, close the stream
+    private static final int STREAM_EVENTS = 8; // send newly tracked events over the stream
+    private static final int FLUSH_METRICS = 9; // track the summaries of counters, gauges and histograms
+    private static final int RUN_TASK = 10; // run a Runnable on the worker thread
+
+    private static final long STREAM_COALESCE_MILLIS = 100;
+    private static final long STREAM_CONNECT_TIMEOUT_MILLIS = 5 * 1000;
+    private static final long STREAM_ACK_TIMEOUT_MILLIS = 5 * 1000;
+    private static final long STREAM_RETRY_MILLIS = 5 * 1000;
+    private static final long MAX_STREAM_RETRY_MILLIS = 5 * 60 * 1000;
+
+    // What sendRows returns when it doesn't return a refusal's status code
+    private static final int ROWS_SENT = 0;
+    private static final int ROWS_FAILED = -1;
 
     private static final String LOGTAG = "MixpanelLiteAPI.Messages";
 
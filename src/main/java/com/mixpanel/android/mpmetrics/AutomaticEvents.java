@@ -8,4 +8,8 @@ package com.mixpanel.android.mpmetrics;
     public static final String VERSION_UPDATED = "$ae_updated_version";
     public static final String APP_CRASHED = "$ae_crashed";
     public static final String APP_CRASHED_REASON = "$ae_crashed_reason";
+    public static final String METRIC = "$ae_metric";
+    public static final String METRIC_NAME = "$ae_metric_name";
+    public static final String METRIC_TYPE = "$ae_metric_type";
+    public static final String METRIC_WINDOW = "$ae_metric_window_seconds";
 }
@@ -0,0 +1,252 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.GoogleApiAvailability;
+import com.mixpanel.android.util.ConnectivityMonitor;
+import com.mixpanel.android.util.MPLLog;
+
+import org.json.JSONException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The default properties sent with every event, written out ahead of time.
+ *
+ * <p>Most default properties describe the device, the OS and the app, and can't change while
+ * the process is alive, so they're written once, and again only if SystemInformation finds
+ * that what it had stored about them was out of date. The rest, like the carrier, wifi, Bluetooth,
+ * orientation and Play Services, take binder calls to read but rarely change. Those are
+ * written together and kept until something says they changed: a connectivity change, a
+ * Bluetooth state broadcast or a configuration change. In case we miss a change, or can't be
+ * told about one (there is no broadcast for a new carrier), they're also read again once
+ * they are {@link #VOLATILE_PROPERTIES_TTL_MILLIS} old. Either way, adding the defaults to an
+ * event is usually two appends.
+ *
+ * <p>Thread safe.
+ */
+/* package */ class DefaultPropertiesCache {
+
+    /* package */ static DefaultPropertiesCache getInstance(Context context) {
+        synchronized (sInstanceLock) {
+            if (null == sInstance) {
+                final Context appContext = context.getApplicationContext();
+                sInstance = new DefaultPropertiesCache(appContext, SystemInformation.getInstance(appContext));
+            }
+        }
+
+        return sInstance;
+    }
+
+    /* package */ DefaultPropertiesCache(Context context, SystemInformation systemInformation) {
+        mContext = context;
+        mSystemInformation = systemInformation;
+        mVolatileStale = true;
+        watchForChanges();
+    }
+
+    /**
+     * Writes the default properties the event doesn't already have.
+     */
+    public void writeTo(EventWriter writer) throws JSONException {
+        writer.putAll(getStaticProperties());
+        writer.putAll(getVolatileProperties());
+    }
+
+    /**
+     * Forces the properties that can change to be read again for the next event.
+     */
+    public void invalidate() {
+        mVolatileStale = true;
+    }
+
+    private synchronized void invalidateStaticProperties() {
+        mStaticProperties = null;
+    }
+
+    private synchronized EventWriter.Fragment getStaticProperties() throws JSONException {
+        if (null == mStaticProperties) {
+            mStaticProperties = new EventWriter.Fragment(readStaticProperties());
+        }
+        return mStaticProperties;
+    }
+
+    private synchronized EventWriter.Fragment getVolatileProperties() throws JSONException {
+        final long now = SystemClock.elapsedRealtime();
+        if (mVolatileStale || null == mVolatileProperties || now >= mVolatileExpires) {
+            // Clear the flag first, so a change that arrives while we read isn't lost
+            mVolatileStale = false;
+            mVolatileProperties = new EventWriter.Fragment(readVolatileProperties());
+            mVolatileExpires = now + VOLATILE_PROPERTIES_TTL_MILLIS;
+        }
+        return mVolatileProperties;
+    }
+
+    private Map<String, Object> readStaticProperties() {
+        final Map<String, Object> ret = new LinkedHashMap<String, Object>();
+
+        ret.put("mp_lib", "android");
+        ret.put("$lib_version", MPLConfig.VERSION);
+
+        // For querying together with data from other libraries
+        ret.put("$os", "Android");
+        ret.put("$os_version", Build.VERSION.RELEASE == null ? "UNKNOWN" : Build.VERSION.RELEASE);
+
+        ret.put("$manufacturer", Build.MANUFACTURER == null ? "UNKNOWN" : Build.MANUFACTURER);
+        ret.put("$brand", Build.BRAND == null ? "UNKNOWN" : Build.BRAND);
+        ret.put("$model", Build.MODEL == null ? "UNKNOWN" : Build.MODEL);
+
+        final DisplayMetrics displayMetrics = mSystemInformation.getDisplayMetrics();
+        ret.put("$screen_dpi", displayMetrics.densityDpi);
+        ret.put("$screen_height", displayMetrics.heightPixels);
+        ret.put("$screen_width", displayMetrics.widthPixels);
+
+        final String applicationVersionName = mSystemInformation.getAppVersionName();
+        if (null != applicationVersionName) {
+            ret.put("$app_version", applicationVersionName);
+            ret.put("$app_version_string", applicationVersionName);
+        }
+
+        final Integer applicationVersionCode = mSystemInformation.getAppVersionCode();
+        if (null != applicationVersionCode) {
+            ret.put("$app_release", applicationVersionCode);
+            ret.put("$app_build_number", applicationVersionCode);
+        }
+
+        final Boolean hasNFC = mSystemInformation.hasNFC();
+        if (null != hasNFC)
+            ret.put("$has_nfc", hasNFC.booleanValue());
+
+        final Boolean hasTelephony = mSystemInformation.hasTelephony();
+        if (null != hasTelephony)
+            ret.put("$has_telephone", hasTelephony.booleanValue());
+
+        ret.put("$bluetooth_version", mSystemInformation.getBluetoothVersion());
+
+        return ret;
+    }
+
+    private Map<String, Object> readVolatileProperties() {
+        final Map<String, Object> ret = new LinkedHashMap<String, Object>();
+
+        try {
+            try {
+                final int servicesAvailable = GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(mContext);
+                switch (servicesAvailable) {
+                    case ConnectionResult.SUCCESS:
+                        ret.put("$google_play_services", "available");
+                        break;
+                    case ConnectionResult.SERVICE_MISSING:
+                        ret.put("$google_play_services", "missing");
+                        break;
+                    case ConnectionResult.SERVICE_VERSION_UPDATE_REQUIRED:
+                        ret.put("$google_play_services", "out of date");
+                        break;
+                    case ConnectionResult.SERVICE_DISABLED:
+                        ret.put("$google_play_services", "disabled");
+                        break;
+                    case ConnectionResult.SERVICE_INVALID:
+                        ret.put("$google_play_services", "invalid");
+                        break;
+                }
+            } catch (RuntimeException e) {
+                // Turns out even checking for the service will cause explosions
+                // unless we've set up meta-data
+                ret.put("$google_play_services", "not configured");
+            }
+
+        } catch (NoClassDefFoundError e) {
+            ret.put("$google_play_services", "not included");
+        }
+
+        final String carrier = mSystemInformation.getCurrentNetworkOperator();
+        if (null != carrier)
+            ret.put("$carrier", carrier);
+
+        final Boolean isWifi = mSystemInformation.isWifiConnected();
+        if (null != isWifi)
+            ret.put("$wifi", isWifi.booleanValue());
+
+        final Boolean isBluetoothEnabled = mSystemInformation.isBluetoothEnabled();
+        if (isBluetoothEnabled != null)
+            ret.put("$bluetooth_enabled", isBluetoothEnabled);
+
+        final String orientation = mSystemInformation.getOrientation();
+        if (null != orientation)
+            ret.put("$orientation", orientation);
+
+        return ret;
+    }
+
+    private void watchForChanges() {
+        mSystemInformation.addListener(new SystemInformation.SnapshotListener() {
+            @Override
+            public void onSnapshotChanged() {
+                invalidateStaticProperties();
+            }
+        });
+
+        ConnectivityMonitor.getInstance(mContext).addListener(new ConnectivityMonitor.ConnectivityListener() {
+            @Override
+            public void onConnectivityChanged(ConnectivityMonitor.State previous, ConnectivityMonitor.State current) {
+                invalidate();
+            }
+        });
+
+        try {
+            mContext.registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    invalidate();
+                }
+            }, new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
+        } catch (final RuntimeException e) {
+            MPLLog.v(LOGTAG, "Can't watch for Bluetooth changes, will rely on the refresh interval", e);
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            watchConfiguration();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void watchConfiguration() {
+        mContext.registerComponentCallbacks(new ComponentCallbacks() {
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                invalidate();
+            }
+
+            @Override
+            public void onLowMemory() {
+                // Nothing to do
+            }
+        });
+    }
+
+    private final Context mContext;
+    private final SystemInformation mSystemInformation;
+    private volatile boolean mVolatileStale;
+    private EventWriter.Fragment mStaticProperties;
+    private EventWriter.Fragment mVolatileProperties;
+    private long mVolatileExpires;
+
+    /* package */ static final long VOLATILE_PROPERTIES_TTL_MILLIS = 30 * 1000;
+
+    private static DefaultPropertiesCache sInstance;
+    private static final Object sInstanceLock = new Object();
+
+    private static final String LOGTAG = "MixpanelLiteAPI.Defaults";
+}
@@ -0,0 +1,124 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.os.SystemClock;
+
+import com.mixpanel.android.util.MPLLog;
+
+import org.json.JSONException;
+
+/**
+ * The dynamic super properties registered with one MixpanelLiteAPI instance.
+ *
+ * <p>Registering replaces the whole list, so a list handed out by {@link #getEntries()}
+ * never changes, and an event holds on to the properties that were registered when it was
+ * tracked. Values are computed on the worker thread as events are written, and may be
+ * cached for a while so that busy apps don't compute them for every event.
+ */
+/* package */ class DynamicSuperProperties {
+
+    public DynamicSuperProperties() {
+        mEntries = NO_ENTRIES;
+    }
+
+    /**
+     * @param ttlMillis how long a computed value is used before it's computed again,
+     *     or 0 to compute it for every event
+     */
+    public synchronized void register(String name, DynamicSuperProperty property, long ttlMillis) {
+        final Entry[] entries = mEntries;
+        final Entry added = new Entry(name, property, ttlMillis);
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].mName.equals(name)) {
+                final Entry[] replaced = entries.clone();
+                replaced[i] = added;
+                mEntries = replaced;
+                return;
+            }
+        }
+
+        final Entry[] grown = new Entry[entries.length + 1];
+        System.arraycopy(entries, 0, grown, 0, entries.length);
+        grown[entries.length] = added;
+        mEntries = grown;
+    }
+
+    public synchronized void unregister(String name) {
+        final Entry[] entries = mEntries;
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].mName.equals(name)) {
+                final Entry[] shrunk = new Entry[entries.length - 1];
+                System.arraycopy(entries, 0, shrunk, 0, i);
+                System.arraycopy(entries, i + 1, shrunk, i, entries.length - i - 1);
+                mEntries = shrunk;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the registered properties, which won't change. Doesn't lock.
+     */
+    public Entry[] getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Computes and writes the value of every entry the event doesn't already have. A property
+     * that throws is left out of the event.
+     */
+    public static void writeTo(Entry[] entries, EventWriter writer) throws JSONException {
+        for (final Entry entry : entries) {
+            if (!writer.has(entry.mName)) {
+                writer.put(entry.mName, entry.getValue());
+            }
+        }
+    }
+
+    /* package */ static class Entry {
+        public Entry(String name, DynamicSuperProperty property, long ttlMillis) {
+            mName = name;
+            mProperty = property;
+            mTtlMillis = ttlMillis;
+        }
+
+        public synchronized Object getValue() {
+            final long now = mTtlMillis > 0 ? SystemClock.elapsedRealtime() : 0;
+            if (mHasValue && now < mExpires) {
+                return mValue;
+            }
+
+            Object value;
+            try {
+                value = mProperty.getValue();
+            } catch (final RuntimeException e) {
+                MPLLog.e(LOGTAG, "Dynamic super property " + mName + " threw, leaving it out of the event", e);
+                value = null;
+            }
+            if ((value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite())) ||
+                (value instanceof Float && (((Float) value).isNaN() || ((Float) value).isInfinite()))) {
+                MPLLog.w(LOGTAG, "Dynamic super property " + mName + " isn't a finite number, leaving it out of the event");
+                value = null;
+            }
+
+            if (mTtlMillis > 0) {
+                mValue = value;
+                mHasValue = true;
+                mExpires = now + mTtlMillis;
+            }
+            return value;
+        }
+
+        private final String mName;
+        private final DynamicSuperProperty mProperty;
+        private final long mTtlMillis;
+        private Object mValue;
+        private boolean mHasValue;
+        private long mExpires;
+    }
+
+    private volatile Entry[] mEntries;
+
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+
+    private static final String LOGTAG = "MixpanelLiteAPI.Dynamic";
+}
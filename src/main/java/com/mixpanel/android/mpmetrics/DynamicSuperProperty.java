@@ -0,0 +1,17 @@
+package com.mixpanel.android.mpmetrics;
+
+/**
+ * A super property whose value is computed when an event is written, rather than when it is
+ * tracked. See {@link MixpanelLiteAPI#registerDynamicSuperProperty(String, DynamicSuperProperty)}
+ * for details.
+ */
+public interface DynamicSuperProperty {
+    /**
+     * Called on Mixpanel's worker thread, not the thread that tracked the event, so
+     * implementations must be thread safe. Keep it quick, since events wait for it.
+     *
+     * @return a String, Number, Boolean, JSONObject or JSONArray to send with the event,
+     *     or null to leave the property out.
+     */
+    public Object getValue();
+}
@@ -0,0 +1,333 @@
+package com.mixpanel.android.mpmetrics;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+
+/**
+ * Builds an event property by property, without boxing numbers or allocating a JSONObject,
+ * for code that tracks events often enough for garbage to matter.
+ *
+ * <pre>
+ * {@code
+ * mMixpanel.buildEvent("Frame Rendered")
+ *          .putLong("frame", frameNumber)
+ *          .putDouble("millis", renderMillis)
+ *          .putBoolean("janky", renderMillis > 16)
+ *          .track();
+ * }
+ * </pre>
+ *
+ * <p>Get a builder from {@link MixpanelLiteAPI#buildEvent(String)}. Builders are pooled:
+ * after {@link #track()} or {@link #recycle()} the builder belongs to the library again, and
+ * you must not touch it. A builder isn't thread safe, but the thread that tracks it doesn't
+ * have to be the one that got it.
+ *
+ * <p>As with a JSONObject, putting a key twice keeps the last value.
+ */
+public class EventBuilder {
+
+    /**
+     * Adds an int property.
+     */
+    public EventBuilder putInt(String key, int value) {
+        return putLong(key, value);
+    }
+
+    /**
+     * Adds a long property.
+     */
+    public EventBuilder putLong(String key, long value) {
+        final int index = add(key, TYPE_LONG);
+        mValues[index] = value;
+        return this;
+    }
+
+    /**
+     * Adds a double property. NaN and infinite values aren't valid JSON, and are left out.
+     */
+    public EventBuilder putDouble(String key, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return this;
+        }
+        final int index = add(key, TYPE_DOUBLE);
+        mValues[index] = Double.doubleToRawLongBits(value);
+        return this;
+    }
+
+    /**
+     * Adds a boolean property.
+     */
+    public EventBuilder putBoolean(String key, boolean value) {
+        final int index = add(key, TYPE_BOOLEAN);
+        mValues[index] = value ? 1 : 0;
+        return this;
+    }
+
+    /**
+     * Adds a String property. A null value is left out.
+     */
+    public EventBuilder putString(String key, String value) {
+        if (null == value) {
+            return this;
+        }
+        final int index = add(key, TYPE_OBJECT);
+        mObjects[index] = value;
+        return this;
+    }
+
+    /**
+     * Tracks the event, and hands the builder back to the library.
+     */
+    public void track() {
+        final MixpanelLiteAPI mixpanel = mMixpanel;
+        if (!mInUse || null == mixpanel) {
+            throw new IllegalStateException("This EventBuilder has already been tracked or recycled");
+        }
+        mixpanel.track(this, false);
+    }
+
+    /**
+     * Hands the builder back to the library without tracking it.
+     */
+    public void recycle() {
+        if (!mInUse) {
+            throw new IllegalStateException("This EventBuilder has already been tracked or recycled");
+        }
+        mInUse = false;
+        mMixpanel = null;
+        mEventName = null;
+        for (int i = 0; i < mCount; i++) {
+            mKeys[i] = null;
+            mObjects[i] = null;
+        }
+        mCount = 0;
+        mTimeMillis = 0;
+        mDistinctId = null;
+        mHasDuration = false;
+        mSuperProperties = null;
+        mDynamicSuperProperties = null;
+        mReferrerProperties = null;
+
+        synchronized (sPoolLock) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    /**
+     * @param mixpanel the instance that {@link #track()} tracks with, or null if the library
+     *     will send the event itself
+     */
+    /* package */ static EventBuilder obtain(MixpanelLiteAPI mixpanel, String eventName) {
+        EventBuilder ret = null;
+        synchronized (sPoolLock) {
+            if (null != sPool) {
+                ret = sPool;
+                sPool = ret.mNext;
+                ret.mNext = null;
+                sPoolSize--;
+            }
+        }
+        if (null == ret) {
+            ret = new EventBuilder();
+        }
+        ret.mInUse = true;
+        ret.mMixpanel = mixpanel;
+        ret.mEventName = eventName;
+        return ret;
+    }
+
+    /* package */ String getEventName() {
+        return mEventName;
+    }
+
+    /**
+     * Adds a property of any type EventWriter accepts, like the values of a JSONObject.
+     */
+    /* package */ EventBuilder putObject(String key, Object value) {
+        if (null == value) {
+            return this;
+        } else if (value instanceof Integer || value instanceof Long ||
+                   value instanceof Short || value instanceof Byte) {
+            return putLong(key, ((Number) value).longValue());
+        } else if (value instanceof Double) {
+            return putDouble(key, ((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            return putBoolean(key, (Boolean) value);
+        }
+        final int index = add(key, TYPE_OBJECT);
+        mObjects[index] = value;
+        return this;
+    }
+
+    /**
+     * Removes the properties rules removes, and truncates the rest, in place.
+     */
+    /* package */ void applyRules(EventRules rules) {
+        int kept = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (rules.removesProperty(mKeys[i])) {
+                continue;
+            }
+            mKeys[kept] = mKeys[i];
+            mTypes[kept] = mTypes[i];
+            mValues[kept] = mValues[i];
+            mObjects[kept] = TYPE_OBJECT == mTypes[i] ? rules.truncate(mObjects[i]) : null;
+            kept++;
+        }
+        for (int i = kept; i < mCount; i++) {
+            mKeys[i] = null;
+            mObjects[i] = null;
+        }
+        mCount = kept;
+    }
+
+    /**
+     * Sets what track() adds to every event. Called on the thread that tracks the event, so
+     * the worker thread writes the event as it was when it was tracked.
+     *
+     * @param eventBeginMillis when timeEvent() was called for this event, or null
+     * @param dynamicSuperProperties evaluated later, when the event is written
+     */
+    /* package */ void setTrackedProperties(long timeMillis, String distinctId, Long eventBeginMillis,
+                                            EventWriter.Fragment superProperties,
+                                            DynamicSuperProperties.Entry[] dynamicSuperProperties,
+                                            Map<String, String> referrerProperties) {
+        mTimeMillis = timeMillis;
+        mDistinctId = distinctId;
+        mHasDuration = null != eventBeginMillis;
+        mEventBeginMillis = mHasDuration ? eventBeginMillis : 0;
+        mSuperProperties = superProperties;
+        mDynamicSuperProperties = dynamicSuperProperties;
+        mReferrerProperties = referrerProperties;
+    }
+
+    /**
+     * Writes the properties of the event, and the ones track() added, in order of precedence.
+     * The writer must have been started for this event.
+     */
+    /* package */ void writeTo(EventWriter writer) throws JSONException {
+        // Later puts replace earlier ones, so the last value for a key is written first
+        for (int i = mCount - 1; i >= 0; i--) {
+            final String key = mKeys[i];
+            switch (mTypes[i]) {
+                case TYPE_LONG:
+                    writer.put(key, mValues[i]);
+                    break;
+                case TYPE_DOUBLE:
+                    writer.put(key, Double.longBitsToDouble(mValues[i]));
+                    break;
+                case TYPE_BOOLEAN:
+                    writer.put(key, mValues[i] != 0);
+                    break;
+                default:
+                    writer.put(key, mObjects[i]);
+                    break;
+            }
+        }
+
+        // Super properties and referrer properties can't override these,
+        // but the caller can, above.
+        if (mTimeMillis > 0) {
+            final double timeSecondsDouble = mTimeMillis / 1000.0;
+            writer.put("time", (long) timeSecondsDouble);
+            if (null != mDistinctId) {
+                writer.put("distinct_id", mDistinctId);
+            }
+            if (mHasDuration) {
+                writer.put("$duration", timeSecondsDouble - mEventBeginMillis / 1000.0);
+            }
+        }
+
+        if (null != mDynamicSuperProperties) {
+            DynamicSuperProperties.writeTo(mDynamicSuperProperties, writer);
+        }
+        if (null != mSuperProperties) {
+            writer.putAll(mSuperProperties);
+        }
+        if (null != mReferrerProperties) {
+            writer.putAll(mReferrerProperties);
+        }
+    }
+
+    /**
+     * For logging and tests, the properties of the event as a JSONObject.
+     */
+    /* package */ JSONObject getProperties() throws JSONException {
+        final EventWriter writer = new EventWriter(mEventName);
+        writeTo(writer);
+        return writer.getProperties();
+    }
+
+    private EventBuilder() {
+        mKeys = new String[INITIAL_CAPACITY];
+        mTypes = new byte[INITIAL_CAPACITY];
+        mValues = new long[INITIAL_CAPACITY];
+        mObjects = new Object[INITIAL_CAPACITY];
+        mCount = 0;
+    }
+
+    private int add(String key, byte type) {
+        if (!mInUse) {
+            throw new IllegalStateException("This EventBuilder has already been tracked or recycled");
+        }
+        if (mCount == mKeys.length) {
+            final int capacity = mCount * 2;
+            final String[] keys = new String[capacity];
+            final byte[] types = new byte[capacity];
+            final long[] values = new long[capacity];
+            final Object[] objects = new Object[capacity];
+            System.arraycopy(mKeys, 0, keys, 0, mCount);
+            System.arraycopy(mTypes, 0, types, 0, mCount);
+            System.arraycopy(mValues, 0, values, 0, mCount);
+            System.arraycopy(mObjects, 0, objects, 0, mCount);
+            mKeys = keys;
+            mTypes = types;
+            mValues = values;
+            mObjects = objects;
+        }
+        final int index = mCount++;
+        mKeys[index] = key;
+        mTypes[index] = type;
+        mObjects[index] = null;
+        return index;
+    }
+
+    // Properties, in the order they were put. Numbers and booleans are kept in mValues,
+    // doubles as their raw bits, and everything else in mObjects.
+    private String[] mKeys;
+    private byte[] mTypes;
+    private long[] mValues;
+    private Object[] mObjects;
+    private int mCount;
+
+    private boolean mInUse;
+    private MixpanelLiteAPI mMixpanel;
+    private String mEventName;
+    private long mTimeMillis;
+    private String mDistinctId;
+    private boolean mHasDuration;
+    private long mEventBeginMillis;
+    private EventWriter.Fragment mSuperProperties;
+    private DynamicSuperProperties.Entry[] mDynamicSuperProperties;
+    private Map<String, String> mReferrerProperties;
+
+    private EventBuilder mNext;
+
+    private static final byte TYPE_LONG = 0;
+    private static final byte TYPE_DOUBLE = 1;
+    private static final byte TYPE_BOOLEAN = 2;
+    private static final byte TYPE_OBJECT = 3;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static final Object sPoolLock = new Object();
+    private static EventBuilder sPool;
+    private static int sPoolSize = 0;
+    private static final int MAX_POOL_SIZE = 10;
+}
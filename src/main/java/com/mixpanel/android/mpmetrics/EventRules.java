@@ -0,0 +1,262 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Rules for which events are tracked and which of their properties are kept, applied as each
+ * event is tracked, before it's queued. Use it to keep noisy events and personal information
+ * out of Mixpanel without wrapping every call to track().
+ *
+ * <pre>
+ * {@code
+ * mMixpanel.setEventRules(new EventRules.Builder()
+ *         .denyEventsWithPrefix("debug_")
+ *         .removeProperties("email", "phone")
+ *         .truncateValues(255)
+ *         .build());
+ * }
+ * </pre>
+ *
+ * <p>Rules apply to the name of each event and to the properties passed with it, including
+ * properties put on an {@link EventBuilder}. Super properties and the properties the library
+ * adds are left alone. Truncation applies to String values, not to Strings inside JSONObject
+ * or JSONArray values.
+ *
+ * <p>Rules are compiled when they're built into hash sets and prefix tries, so checking an
+ * event doesn't allocate. EventRules are immutable, and thread safe.
+ */
+public class EventRules {
+
+    /**
+     * Builds EventRules. Builders aren't thread safe.
+     */
+    public static class Builder {
+        public Builder() {
+            mAllowedNames = new HashSet<String>();
+            mAllowedPrefixes = new ArrayList<String>();
+            mDeniedNames = new HashSet<String>();
+            mDeniedPrefixes = new ArrayList<String>();
+            mRemovedKeys = new HashSet<String>();
+            mRemovedKeyPrefixes = new ArrayList<String>();
+            mMaxValueLength = 0;
+        }
+
+        /**
+         * Tracks only the events with these names, and those allowed by other calls to
+         * allowEvents and {@link #allowEventsWithPrefix(String)}. Without any, all events are
+         * allowed. Denied events are dropped even if they're allowed.
+         */
+        public Builder allowEvents(String... eventNames) {
+            mAllowedNames.addAll(Arrays.asList(eventNames));
+            return this;
+        }
+
+        /**
+         * Like {@link #allowEvents(String...)}, for all of the events whose names start with prefix.
+         */
+        public Builder allowEventsWithPrefix(String prefix) {
+            mAllowedPrefixes.add(prefix);
+            return this;
+        }
+
+        /**
+         * Drops the events with these names.
+         */
+        public Builder denyEvents(String... eventNames) {
+            mDeniedNames.addAll(Arrays.asList(eventNames));
+            return this;
+        }
+
+        /**
+         * Drops the events whose names start with prefix.
+         */
+        public Builder denyEventsWithPrefix(String prefix) {
+            mDeniedPrefixes.add(prefix);
+            return this;
+        }
+
+        /**
+         * Removes the properties with these names from every event.
+         */
+        public Builder removeProperties(String... keys) {
+            mRemovedKeys.addAll(Arrays.asList(keys));
+            return this;
+        }
+
+        /**
+         * Removes the properties whose names start with prefix from every event.
+         */
+        public Builder removePropertiesWithPrefix(String prefix) {
+            mRemovedKeyPrefixes.add(prefix);
+            return this;
+        }
+
+        /**
+         * Cuts String property values down to at most maxLength characters.
+         *
+         * @param maxLength the longest value to keep, or 0 to keep values whole
+         */
+        public Builder truncateValues(int maxLength) {
+            mMaxValueLength = Math.max(0, maxLength);
+            return this;
+        }
+
+        public EventRules build() {
+            return new EventRules(this);
+        }
+
+        private final Set<String> mAllowedNames;
+        private final List<String> mAllowedPrefixes;
+        private final Set<String> mDeniedNames;
+        private final List<String> mDeniedPrefixes;
+        private final Set<String> mRemovedKeys;
+        private final List<String> mRemovedKeyPrefixes;
+        private int mMaxValueLength;
+    }
+
+    private EventRules(Builder builder) {
+        mAllowedNames = Collections.unmodifiableSet(new HashSet<String>(builder.mAllowedNames));
+        mAllowedPrefixes = new PrefixTrie(builder.mAllowedPrefixes);
+        mHasAllowList = !mAllowedNames.isEmpty() || !builder.mAllowedPrefixes.isEmpty();
+        mDeniedNames = Collections.unmodifiableSet(new HashSet<String>(builder.mDeniedNames));
+        mDeniedPrefixes = new PrefixTrie(builder.mDeniedPrefixes);
+        mRemovedKeys = Collections.unmodifiableSet(new HashSet<String>(builder.mRemovedKeys));
+        mRemovedKeyPrefixes = new PrefixTrie(builder.mRemovedKeyPrefixes);
+        mRemovesProperties = !mRemovedKeys.isEmpty() || !builder.mRemovedKeyPrefixes.isEmpty();
+        mMaxValueLength = builder.mMaxValueLength;
+    }
+
+    /**
+     * @return true if an event with this name should be tracked
+     */
+    /* package */ boolean allowsEvent(String eventName) {
+        if (mHasAllowList && !mAllowedNames.contains(eventName) && !mAllowedPrefixes.matchesPrefixOf(eventName)) {
+            return false;
+        }
+        return !mDeniedNames.contains(eventName) && !mDeniedPrefixes.matchesPrefixOf(eventName);
+    }
+
+    /**
+     * @return true if a property with this name should be left out of events
+     */
+    /* package */ boolean removesProperty(String key) {
+        return mRemovesProperties && (mRemovedKeys.contains(key) || mRemovedKeyPrefixes.matchesPrefixOf(key));
+    }
+
+    /**
+     * @return true if property values may need to be changed, by removal or truncation
+     */
+    /* package */ boolean changesProperties() {
+        return mRemovesProperties || mMaxValueLength > 0;
+    }
+
+    /**
+     * @return value, or if it's a String that's too long, as much of it as is allowed
+     */
+    /* package */ Object truncate(Object value) {
+        if (mMaxValueLength > 0 && value instanceof String) {
+            final String string = (String) value;
+            if (string.length() > mMaxValueLength) {
+                int end = mMaxValueLength;
+                // Don't leave half of a surrogate pair
+                if (Character.isHighSurrogate(string.charAt(end - 1))) {
+                    end--;
+                }
+                return string.substring(0, end);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * A set of prefixes, checked against a string one character at a time. Each node keeps
+     * the characters that continue from it sorted, for a binary search without boxing.
+     */
+    /* package */ static class PrefixTrie {
+        public PrefixTrie(List<String> prefixes) {
+            mRoot = new Node();
+            for (final String prefix : prefixes) {
+                if (null != prefix) {
+                    mRoot.add(prefix, 0);
+                }
+            }
+        }
+
+        /**
+         * @return true if one of the prefixes is a prefix of value
+         */
+        public boolean matchesPrefixOf(String value) {
+            if (null == value) {
+                return false;
+            }
+            Node node = mRoot;
+            final int length = value.length();
+            for (int i = 0; ; i++) {
+                if (node.mTerminal) {
+                    return true;
+                }
+                if (i == length) {
+                    return false;
+                }
+                final int index = Arrays.binarySearch(node.mChars, value.charAt(i));
+                if (index < 0) {
+                    return false;
+                }
+                node = node.mChildren[index];
+            }
+        }
+
+        private static class Node {
+            public Node() {
+                mChars = new char[0];
+                mChildren = new Node[0];
+            }
+
+            public void add(String prefix, int from) {
+                if (from == prefix.length()) {
+                    mTerminal = true;
+                    return;
+                }
+
+                final char c = prefix.charAt(from);
+                int index = Arrays.binarySearch(mChars, c);
+                if (index < 0) {
+                    index = -index - 1;
+                    final int count = mChars.length;
+                    final char[] chars = new char[count + 1];
+                    final Node[] children = new Node[count + 1];
+                    System.arraycopy(mChars, 0, chars, 0, index);
+                    System.arraycopy(mChildren, 0, children, 0, index);
+                    System.arraycopy(mChars, index, chars, index + 1, count - index);
+                    System.arraycopy(mChildren, index, children, index + 1, count - index);
+                    chars[index] = c;
+                    children[index] = new Node();
+                    mChars = chars;
+                    mChildren = children;
+                }
+                mChildren[index].add(prefix, from + 1);
+            }
+
+            private char[] mChars;
+            private Node[] mChildren;
+            private boolean mTerminal;
+        }
+
+        private final Node mRoot;
+    }
+
+    private final Set<String> mAllowedNames;
+    private final PrefixTrie mAllowedPrefixes;
+    private final boolean mHasAllowList;
+    private final Set<String> mDeniedNames;
+    private final PrefixTrie mDeniedPrefixes;
+    private final Set<String> mRemovedKeys;
+    private final PrefixTrie mRemovedKeyPrefixes;
+    private final boolean mRemovesProperties;
+    private final int mMaxValueLength;
+}
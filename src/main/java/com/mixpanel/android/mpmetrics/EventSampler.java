@@ -0,0 +1,126 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Decides which events with a given name are tracked, for events that fire too often to
+ * send every one.
+ *
+ * <p>An event name can have a sample rate, which keeps that fraction of its events at random,
+ * and a rate limit, a token bucket that allows bursts of up to a given size but no more than
+ * a given number of events per second on average. Sampled events are stamped with the rate
+ * they were sampled at, so that counts can be scaled back up. Rate limiting is a cap, not a
+ * sample, and isn't stamped.
+ *
+ * <p>Rules are replaced rather than changed, so deciding is a lock free map lookup for names
+ * without a rate limit. Thread safe.
+ */
+/* package */ class EventSampler {
+
+    public EventSampler() {
+        this(new Random());
+    }
+
+    /* package */ EventSampler(Random random) {
+        mRandom = random;
+        mRules = new HashMap<String, Rule>();
+    }
+
+    /**
+     * @param sampleRate the fraction of events to keep, from 0 to 1. 1 keeps them all.
+     */
+    public synchronized void setSampleRate(String eventName, double sampleRate) {
+        final Rule current = mRules.get(eventName);
+        final TokenBucket bucket = null == current ? null : current.mBucket;
+        putRule(eventName, Math.max(0, Math.min(1, sampleRate)), bucket);
+    }
+
+    /**
+     * @param eventsPerSecond the average number of events allowed, or 0 for no limit
+     * @param burst the number of events allowed at once
+     */
+    public synchronized void setRateLimit(String eventName, double eventsPerSecond, int burst) {
+        final Rule current = mRules.get(eventName);
+        final double sampleRate = null == current ? 1 : current.mSampleRate;
+        final TokenBucket bucket = eventsPerSecond > 0 ? new TokenBucket(eventsPerSecond, Math.max(1, burst)) : null;
+        putRule(eventName, sampleRate, bucket);
+    }
+
+    /**
+     * Decides whether to track an event. Doesn't allocate.
+     *
+     * @return 0 to drop the event, or else the rate it was sampled at, which is 1 for events
+     *     that aren't sampled
+     */
+    public double sample(String eventName) {
+        final Rule rule = mRules.get(eventName);
+        if (null == rule) {
+            return 1;
+        }
+        if (rule.mSampleRate < 1 && mRandom.nextDouble() >= rule.mSampleRate) {
+            return 0;
+        }
+        if (null != rule.mBucket && !rule.mBucket.take(SystemClock.elapsedRealtime())) {
+            return 0;
+        }
+        return rule.mSampleRate;
+    }
+
+    private void putRule(String eventName, double sampleRate, TokenBucket bucket) {
+        final Map<String, Rule> rules = new HashMap<String, Rule>(mRules);
+        if (sampleRate >= 1 && null == bucket) {
+            rules.remove(eventName);
+        } else {
+            rules.put(eventName, new Rule(sampleRate, bucket));
+        }
+        mRules = rules;
+    }
+
+    private static class Rule {
+        public Rule(double sampleRate, TokenBucket bucket) {
+            mSampleRate = sampleRate;
+            mBucket = bucket;
+        }
+
+        private final double mSampleRate;
+        private final TokenBucket mBucket;
+    }
+
+    /* package */ static class TokenBucket {
+        public TokenBucket(double tokensPerSecond, int capacity) {
+            mTokensPerMilli = tokensPerSecond / 1000;
+            mCapacity = capacity;
+            mTokens = capacity;
+            mLastRefill = -1;
+        }
+
+        /**
+         * @return true if there was a token to take at time nowMillis
+         */
+        public synchronized boolean take(long nowMillis) {
+            if (mLastRefill >= 0 && nowMillis > mLastRefill) {
+                mTokens = Math.min(mCapacity, mTokens + (nowMillis - mLastRefill) * mTokensPerMilli);
+            }
+            mLastRefill = Math.max(mLastRefill, nowMillis);
+            if (mTokens < 1) {
+                return false;
+            }
+            mTokens -= 1;
+            return true;
+        }
+
+        private final double mTokensPerMilli;
+        private final int mCapacity;
+        private double mTokens;
+        private long mLastRefill;
+    }
+
+    private final Random mRandom;
+    private volatile Map<String, Rule> mRules;
+
+    /* package */ static final String SAMPLE_RATE_PROPERTY = "mp_sample_rate";
+}
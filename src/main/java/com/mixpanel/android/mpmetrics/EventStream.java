@@ -0,0 +1,227 @@
+package com.mixpanel.android.mpmetrics;
+
+import com.mixpanel.android.java_websocket.client.WebSocketClient;
+import com.mixpanel.android.java_websocket.drafts.Draft_17;
+import com.mixpanel.android.java_websocket.exceptions.NotSendableException;
+import com.mixpanel.android.java_websocket.exceptions.WebsocketNotConnectedException;
+import com.mixpanel.android.java_websocket.handshake.ServerHandshake;
+import com.mixpanel.android.util.MPLLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.NotYetConnectedException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A WebSocket to a streaming endpoint, over which the worker thread sends batches of events
+ * and waits for each to be acknowledged.
+ *
+ * <p>Each batch goes out as one text frame:
+ * <pre>{"seq": 7, "token": "...", "events": [...]}</pre>
+ * and the server answers every frame with
+ * <pre>{"ack": 7, "status": 1}</pre>
+ * or with a status of 0 and an "error" if it refused the batch. Sequence numbers start at 1
+ * for every connection, and only one batch is in flight at a time.
+ *
+ * <p>Connecting and sending block, so both must happen off the main thread. A stream is good
+ * for one connection. Once it closes, make a new one.
+ */
+/* package */ class EventStream {
+
+    public static final int ACKNOWLEDGED = 1;
+    public static final int REFUSED = 0;
+    public static final int FAILED = -1;
+
+    /**
+     * @param endpoint a ws:// or wss:// URL
+     * @param socketFactory used for wss:// endpoints, or null for the platform default
+     */
+    public EventStream(String endpoint, SSLSocketFactory socketFactory) throws URISyntaxException, IOException {
+        final URI uri = new URI(endpoint);
+        mHost = uri.getHost();
+        if ("wss".equals(uri.getScheme())) {
+            final SSLSocketFactory factory = null == socketFactory ?
+                    (SSLSocketFactory) SSLSocketFactory.getDefault() : socketFactory;
+            mSocket = factory.createSocket();
+        } else if ("ws".equals(uri.getScheme())) {
+            mSocket = new Socket();
+        } else {
+            throw new URISyntaxException(endpoint, "Streaming endpoints must be ws:// or wss:// URLs");
+        }
+        mOpened = new CountDownLatch(1);
+        mClient = new StreamClient(uri);
+        mClient.setSocket(mSocket);
+    }
+
+    /**
+     * Opens the connection, blocking until it is open or timeoutMillis have passed.
+     *
+     * @return true if the stream is open and ready for {@link #send(String, String, long)}
+     */
+    public boolean connect(long timeoutMillis) throws InterruptedException {
+        mClient.connect();
+        if (!mOpened.await(timeoutMillis, TimeUnit.MILLISECONDS) || !mClient.isOpen()) {
+            MPLLog.v(LOGTAG, "Couldn't open a stream to " + mClient.getURI());
+            abort();
+            return false;
+        }
+
+        // SSLSockets that we connect ourselves don't check that the certificate is for the host
+        if (mSocket instanceof SSLSocket &&
+                !HttpsURLConnection.getDefaultHostnameVerifier().verify(mHost, ((SSLSocket) mSocket).getSession())) {
+            MPLLog.w(LOGTAG, "Certificate of streaming endpoint doesn't match host " + mHost + ", closing the stream");
+            abort();
+            return false;
+        }
+        return true;
+    }
+
+    public boolean isOpen() {
+        return mClient.isOpen();
+    }
+
+    /**
+     * Sends a batch of events and waits for the server to acknowledge it.
+     *
+     * @param token the project token of every event in the batch
+     * @param events a JSON array of events, as stored in the database
+     * @return {@link #ACKNOWLEDGED}, {@link #REFUSED}, or {@link #FAILED} if the stream broke or
+     *     the server didn't answer in time. A stream that failed is closed, and the batch may or
+     *     may not have been ingested.
+     */
+    public int send(String token, String events, long timeoutMillis) throws InterruptedException {
+        final long seq;
+        synchronized (mAckLock) {
+            seq = ++mLastSent;
+        }
+
+        try {
+            mClient.send("{\"seq\":" + seq + ",\"token\":" + JSONObject.quote(token) + ",\"events\":" + events + "}");
+        } catch (final NotYetConnectedException e) {
+            abort();
+            return FAILED;
+        } catch (final WebsocketNotConnectedException e) {
+            abort();
+            return FAILED;
+        } catch (final NotSendableException e) {
+            abort();
+            return FAILED;
+        }
+
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (mAckLock) {
+            while (mLastAcked < seq && mClient.isOpen()) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                mAckLock.wait(remaining);
+            }
+            if (mLastAcked < seq) {
+                MPLLog.v(LOGTAG, "No acknowledgement for batch " + seq + ", closing the stream");
+                abort();
+                return FAILED;
+            }
+            if (mLastRefused == seq) {
+                return REFUSED;
+            }
+        }
+        return ACKNOWLEDGED;
+    }
+
+    /**
+     * Closes the stream with a close handshake.
+     */
+    public void close() {
+        mClient.close();
+    }
+
+    // A server that has stopped answering won't answer a close handshake either, so drop the
+    // socket. The client's reader thread sees that and shuts the connection down.
+    private void abort() {
+        try {
+            mSocket.close();
+        } catch (final IOException e) {
+            MPLLog.v(LOGTAG, "Couldn't close stream socket", e);
+        }
+    }
+
+    private void onAck(String message) {
+        final long seq;
+        final boolean refused;
+        try {
+            final JSONObject ack = new JSONObject(message);
+            seq = ack.getLong("ack");
+            refused = ack.optInt("status", ACKNOWLEDGED) == REFUSED;
+            if (refused) {
+                MPLLog.v(LOGTAG, "Streaming endpoint refused batch " + seq + ": " + ack.optString("error"));
+            }
+        } catch (final JSONException e) {
+            MPLLog.v(LOGTAG, "Ignoring unrecognized message from streaming endpoint: " + message);
+            return;
+        }
+
+        synchronized (mAckLock) {
+            if (refused) {
+                mLastRefused = seq;
+            }
+            // Frames go out and come back in order, so this covers every frame before seq as well
+            mLastAcked = Math.max(mLastAcked, seq);
+            mAckLock.notifyAll();
+        }
+    }
+
+    private class StreamClient extends WebSocketClient {
+        public StreamClient(URI uri) {
+            super(uri, new Draft_17(), null, CONNECT_TIMEOUT_MILLIS);
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshakedata) {
+            MPLLog.v(LOGTAG, "Stream to " + getURI() + " is open");
+            mOpened.countDown();
+        }
+
+        @Override
+        public void onMessage(String message) {
+            onAck(message);
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            MPLLog.v(LOGTAG, "Stream to " + getURI() + " closed (" + code + ", " + reason + ", remote " + remote + ")");
+            mOpened.countDown();
+            synchronized (mAckLock) {
+                mAckLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            MPLLog.v(LOGTAG, "Error on stream to " + getURI(), ex);
+        }
+    }
+
+    private final String mHost;
+    private final Socket mSocket;
+    private final StreamClient mClient;
+    private final CountDownLatch mOpened;
+    private final Object mAckLock = new Object();
+    private long mLastSent;
+    private long mLastAcked;
+    private long mLastRefused;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private static final String LOGTAG = "MixpanelLiteAPI.Stream";
+}
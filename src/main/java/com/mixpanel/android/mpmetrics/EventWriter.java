@@ -0,0 +1,327 @@
+package com.mixpanel.android.mpmetrics;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes a single event as the JSON we store and send,
+ * <pre>{"event": "...", "properties": {...}}</pre>
+ * straight into one buffer, without building a JSONObject for it first.
+ *
+ * <p>Properties come from several places that override one another. Rather than copying each
+ * source over the last, write them from the most important to the least: the first value
+ * written for a key is the one that's kept, and later values for the same key are skipped.
+ * For a tracked event the order is
+ * <ol>
+ *     <li>properties passed to track()</li>
+ *     <li>time, distinct_id and $duration</li>
+ *     <li>dynamic super properties</li>
+ *     <li>super properties</li>
+ *     <li>referrer properties</li>
+ *     <li>the project token and $insert_id</li>
+ *     <li>default properties of the device and library</li>
+ * </ol>
+ *
+ * <p>Values are written the way org.json would write them. Writers aren't thread safe, and
+ * can't be written to after {@link #finish()} until they're {@link #reset(String)}.
+ */
+/* package */ class EventWriter {
+
+    public EventWriter(String eventName) {
+        mOut = new StringBuilder(INITIAL_CAPACITY);
+        mWritten = new HashSet<String>();
+        start(eventName);
+    }
+
+    /**
+     * Starts a new event, discarding anything written so far but keeping the buffers,
+     * so that one writer can write many events.
+     */
+    public void reset(String eventName) {
+        mOut.setLength(0);
+        mWritten.clear();
+        mFinished = false;
+        start(eventName);
+    }
+
+    private void start(String eventName) {
+        mOut.append('{');
+        if (null != eventName) {
+            mOut.append("\"event\":");
+            writeString(eventName);
+            mOut.append(',');
+        }
+        mOut.append("\"properties\":{");
+        mPropertiesStart = mOut.length() - 1;
+    }
+
+    // For fragments, which are properties without an event around them
+    private EventWriter() {
+        mOut = new StringBuilder();
+        mWritten = new HashSet<String>();
+        mPropertiesStart = 0;
+    }
+
+    /**
+     * @return true if key has been written, and further values for it will be ignored
+     */
+    public boolean has(String key) {
+        return mWritten.contains(key);
+    }
+
+    /**
+     * Writes key and value, unless a value for key has already been written. As with
+     * JSONObject, a null value writes nothing.
+     *
+     * @param value a String, Boolean, Number, JSONObject, JSONArray or JSONObject.NULL.
+     *     Anything else is written as the quoted result of its toString().
+     * @throws JSONException if value is a Number that isn't finite
+     */
+    public EventWriter put(String key, Object value) throws JSONException {
+        if (null != value && startProperty(key)) {
+            writeValue(value);
+        }
+        return this;
+    }
+
+    public EventWriter put(String key, long value) {
+        if (startProperty(key)) {
+            mOut.append(value);
+        }
+        return this;
+    }
+
+    /**
+     * @throws JSONException if value is NaN or infinite
+     */
+    public EventWriter put(String key, double value) throws JSONException {
+        if (startProperty(key)) {
+            writeDouble(value);
+        }
+        return this;
+    }
+
+    public EventWriter put(String key, boolean value) {
+        if (startProperty(key)) {
+            mOut.append(value);
+        }
+        return this;
+    }
+
+    /**
+     * Writes every property of properties whose key hasn't already been written.
+     */
+    public EventWriter putAll(JSONObject properties) throws JSONException {
+        final Iterator<String> keys = properties.keys();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            if (!mWritten.contains(key)) {
+                put(key, properties.get(key));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes every entry of properties whose key hasn't already been written.
+     */
+    public EventWriter putAll(Map<String, ?> properties) throws JSONException {
+        for (final Map.Entry<String, ?> entry : properties.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+        return this;
+    }
+
+    /**
+     * Writes the properties of fragment. If the event has none of its keys yet, which is
+     * almost always, this appends the fragment's text and nothing more.
+     */
+    public EventWriter putAll(Fragment fragment) throws JSONException {
+        for (final String key : fragment.mProperties.keySet()) {
+            if (mWritten.contains(key)) {
+                return putAll(fragment.mProperties);
+            }
+        }
+        if (fragment.mProperties.isEmpty()) {
+            return this;
+        }
+        if (mFinished) {
+            throw new IllegalStateException("Can't add properties to an event that has been finished");
+        }
+        if (!mWritten.isEmpty()) {
+            mOut.append(',');
+        }
+        mOut.append(fragment.mText);
+        mWritten.addAll(fragment.mProperties.keySet());
+        return this;
+    }
+
+    /**
+     * For logging and tests, the properties written so far as a JSONObject.
+     */
+    public JSONObject getProperties() throws JSONException {
+        final int end = mFinished ? mOut.length() - 1 : mOut.length();
+        return new JSONObject(mOut.substring(mPropertiesStart, end) + (mFinished ? "" : "}"));
+    }
+
+    /**
+     * Closes the event.
+     *
+     * @return the event as JSON text
+     */
+    public String finish() {
+        if (!mFinished) {
+            mOut.append("}}");
+            mFinished = true;
+        }
+        return mOut.toString();
+    }
+
+    /**
+     * Properties written out once, to be copied into many events with
+     * {@link #putAll(Fragment)}. Fragments are immutable.
+     */
+    public static class Fragment {
+        /**
+         * @param properties written in iteration order. Null keys and values are left out.
+         */
+        public Fragment(Map<String, ?> properties) throws JSONException {
+            final Map<String, Object> written = new LinkedHashMap<String, Object>();
+            for (final Map.Entry<String, ?> entry : properties.entrySet()) {
+                if (null != entry.getKey() && null != entry.getValue()) {
+                    written.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            final EventWriter writer = new EventWriter();
+            writer.putAll(written);
+            mText = writer.mOut.toString();
+            mProperties = written;
+        }
+
+        /**
+         * @return the properties of the fragment, which can't be modified
+         */
+        public Map<String, Object> getProperties() {
+            return Collections.unmodifiableMap(mProperties);
+        }
+
+        /**
+         * @return the fragment as a JSON object
+         */
+        @Override
+        public String toString() {
+            return "{" + mText + "}";
+        }
+
+        private final String mText;
+        private final Map<String, Object> mProperties;
+    }
+
+    // Returns false if key has already been written, or is null, which org.json won't allow
+    private boolean startProperty(String key) {
+        if (mFinished) {
+            throw new IllegalStateException("Can't add properties to an event that has been finished");
+        }
+        if (null == key || !mWritten.add(key)) {
+            return false;
+        }
+        if (mWritten.size() > 1) {
+            mOut.append(',');
+        }
+        writeString(key);
+        mOut.append(':');
+        return true;
+    }
+
+    private void writeValue(Object value) throws JSONException {
+        if (value instanceof Boolean || value == JSONObject.NULL) {
+            mOut.append(value);
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Integer || value instanceof Long ||
+                   value instanceof Short || value instanceof Byte) {
+            mOut.append(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            mOut.append(JSONObject.numberToString((Number) value));
+        } else if (value instanceof JSONObject || value instanceof JSONArray) {
+            mOut.append(value.toString());
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    private void writeDouble(double value) throws JSONException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new JSONException("Forbidden numeric value: " + value);
+        }
+        final long asLong = (long) value;
+        if (value == asLong) {
+            // Whole numbers lose their ".0", as they do in org.json
+            mOut.append(asLong);
+        } else {
+            mOut.append(value);
+        }
+    }
+
+    // Quotes and escapes the same characters org.json's JSONStringer does
+    private void writeString(String value) {
+        final StringBuilder out = mOut;
+        out.append('"');
+        final int length = value.length();
+        int copyFrom = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c > '\\' || (c >= ' ' && c != '"' && c != '/' && c != '\\')) {
+                continue;
+            }
+            out.append(value, copyFrom, i);
+            copyFrom = i + 1;
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    out.append('\\').append(c);
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                default:
+                    out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+                    break;
+            }
+        }
+        out.append(value, copyFrom, length);
+        out.append('"');
+    }
+
+    private final StringBuilder mOut;
+    private final Set<String> mWritten;
+    private int mPropertiesStart;
+    private boolean mFinished;
+
+    // Most events, with the default properties, come to a little under 1KB
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+}
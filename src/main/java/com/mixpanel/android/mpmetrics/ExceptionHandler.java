@@ -39,6 +39,9 @@ public class ExceptionHandler implements Thread.UncaughtExceptionHandler {
                     messageProp.put(AutomaticEvents.APP_CRASHED_REASON, e.toString());
                     mixpanel.track(AutomaticEvents.APP_CRASHED, messageProp, true);
                 } catch (JSONException e) {}
+                // If we crashed while starting up, the event is still held in memory until
+                // startup is done, so give it a moment to get to the queue
+                mixpanel.awaitInitialization(SLEEP_TIMEOUT_MS);
             }
         });
 
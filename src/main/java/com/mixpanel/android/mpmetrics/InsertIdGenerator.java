@@ -0,0 +1,55 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes the $insert_id values that let Mixpanel drop duplicates of an event, so that a batch
+ * can be sent again after a timeout, or over two connections at once, without counting
+ * anything twice.
+ *
+ * <p>An id is 64 random bits, chosen once per generator, followed by a count of the ids the
+ * generator has made, all in hex. That's unique for as long as it needs to be, and is at
+ * most 32 characters, under the server's limit of 36. Unlike UUID.randomUUID(), which reads
+ * SecureRandom for every id, only the first id costs more than a few characters of garbage.
+ *
+ * <p>Thread safe.
+ */
+/* package */ class InsertIdGenerator {
+
+    public InsertIdGenerator() {
+        this(new SecureRandom().nextLong());
+    }
+
+    /* package */ InsertIdGenerator(long prefix) {
+        mPrefix = new char[PREFIX_LENGTH];
+        for (int i = PREFIX_LENGTH - 1; i >= 0; i--) {
+            mPrefix[i] = HEX[(int) (prefix & 0xf)];
+            prefix >>>= 4;
+        }
+        mCount = new AtomicLong(0);
+    }
+
+    public String next() {
+        long count = mCount.getAndIncrement();
+        final char[] id = new char[PREFIX_LENGTH + 16];
+        System.arraycopy(mPrefix, 0, id, 0, PREFIX_LENGTH);
+
+        // The count, without leading zeros
+        int start = id.length;
+        do {
+            id[--start] = HEX[(int) (count & 0xf)];
+            count >>>= 4;
+        } while (count != 0);
+        System.arraycopy(id, start, id, PREFIX_LENGTH, id.length - start);
+        return new String(id, 0, PREFIX_LENGTH + id.length - start);
+    }
+
+    private final char[] mPrefix;
+    private final AtomicLong mCount;
+
+    private static final int PREFIX_LENGTH = 16;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /* package */ static final String INSERT_ID_PROPERTY = "$insert_id";
+}
@@ -94,6 +94,7 @@ import java.util.Locale;
             // App is in foreground now
             sStartSessionTime = (double) System.currentTimeMillis();
         }
+        mMpInstance.onForeground();
     }
 
     @Override
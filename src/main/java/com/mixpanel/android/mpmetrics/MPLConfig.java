@@ -7,8 +7,11 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Bundle;
 
 import com.mixpanel.android.BuildConfig;
+import com.mixpanel.android.util.AdaptiveTimeouts;
+import com.mixpanel.android.util.HttpTransport;
 import com.mixpanel.android.util.MPLLog;
 import com.mixpanel.android.util.OfflineMode;
+import com.mixpanel.android.util.UrlConnectionTransport;
 
 import java.security.GeneralSecurityException;
 
@@ -37,6 +40,9 @@ import javax.net.ssl.SSLSocketFactory;
  *     <dt>com.mixpanellite.android.MPLConfig.DebugFlushInterval</dt>
  *     <dd>An integer number of milliseconds, the maximum time to wait before an upload if the bulk upload limit isn't reached in debug mode.</dd>
  *
+ *     <dt>com.mixpanellite.android.MPLConfig.MetricsFlushInterval</dt>
+ *     <dd>An integer number of milliseconds, how often counters, gauges and histograms are summarized and tracked. A negative number only tracks them when the library flushes. Defaults to 60000.</dd>
+ *
  *     <dt>com.mixpanellite.android.MPLConfig.DataExpiration</dt>
  *     <dd>An integer number of milliseconds, the maximum age of records to send to Mixpanel. Corresponds to Mixpanel's server-side limit on record age.</dd>
  *
@@ -102,6 +108,24 @@ import javax.net.ssl.SSLSocketFactory;
  *     <dt>com.mixpanellite.android.MPLConfig.UseIpAddressForGeolocation</dt>
  *     <dd>A boolean value. If true, Mixpanel will automatically determine city, region and country data using the IP address of the client.Defaults to true.</dd>
  *
+ *     <dt>com.mixpanellite.android.MPLConfig.UseGzipCompression</dt>
+ *     <dd>A boolean value. If true, request bodies sent to Mixpanel are gzip compressed and sent with a "Content-Encoding: gzip" header. Defaults to false.</dd>
+ *
+ *     <dt>com.mixpanellite.android.MPLConfig.MinConnectTimeout</dt>
+ *     <dd>An integer number of milliseconds. Connect timeouts are adjusted to the network's measured speed, but are never shorter than this. Defaults to 1000.</dd>
+ *
+ *     <dt>com.mixpanellite.android.MPLConfig.MaxConnectTimeout</dt>
+ *     <dd>An integer number of milliseconds. The longest connect timeout the library will use, however slow the network. Defaults to 15000.</dd>
+ *
+ *     <dt>com.mixpanellite.android.MPLConfig.MinReadTimeout</dt>
+ *     <dd>An integer number of milliseconds. Read timeouts are adjusted to the network's measured speed and the size of each request, but are never shorter than this. Defaults to 3000.</dd>
+ *
+ *     <dt>com.mixpanellite.android.MPLConfig.MaxReadTimeout</dt>
+ *     <dd>An integer number of milliseconds. The longest read timeout the library will use, however slow the network. Defaults to 60000.</dd>
+ *
+ *     <dt>com.mixpanellite.android.MPLConfig.StreamingEndpoint</dt>
+ *     <dd>A string ws:// or wss:// URL. If present, while the app is in the foreground the library keeps a WebSocket open to this endpoint and streams events to it as they are tracked, falling back to the events endpoint whenever the socket is unavailable. Defaults to null (no streaming).</dd>
+ *
  *     <dt>com.mixpanellite.android.MPLConfig.NotificationChannelId</dt>
  *     <dd>An string value. If present, the library will use this id when creating a notification channel. Applicable only for Android 26 and above.</dd>
  *
@@ -164,6 +188,7 @@ public class MPLConfig {
      */
     public synchronized void setSSLSocketFactory(SSLSocketFactory factory) {
         mSSLSocketFactory = factory;
+        mHasCustomSSLSocketFactory = true;
     }
 
     /**
@@ -191,6 +216,35 @@ public class MPLConfig {
         mOfflineMode = offlineMode;
     }
 
+    /**
+     * Mixpanel sends its requests with {@link UrlConnectionTransport} unless told otherwise.
+     * If you'd prefer Mixpanel to share your application's HTTP client, or to use the
+     * {@link com.mixpanel.android.util.NioHttpTransport} that ships with the library, call
+     * setHttpTransport early in your code, like this
+     *
+     * {@code
+     * <pre>
+     *     MPConfig.getInstance(context).setHttpTransport(new NioHttpTransport());
+     * </pre>
+     * }
+     *
+     * The call is thread safe, but should be done before your first call to
+     * MixpanelAPI.getInstance, since the transport is picked up when the library starts.
+     *
+     * The given {@link HttpTransport} will be used from multiple threads, you should ensure that
+     * your implementation is thread-safe before passing it to Mixpanel.
+     *
+     * If you have also called {@link #setSSLSocketFactory(SSLSocketFactory)}, a NioHttpTransport
+     * must be built with your own SSLContext, since it can't use a socket factory. Otherwise
+     * Mixpanel logs a warning and keeps using {@link UrlConnectionTransport}, so your SSL settings
+     * still apply.
+     *
+     * @param transport the HTTP stack to use, or null for the default
+     */
+    public synchronized void setHttpTransport(HttpTransport transport) {
+        mHttpTransport = transport;
+    }
+
     /* package */ MPLConfig(Bundle metaData, Context context) {
 
         // By default, we use a clean, FACTORY default SSLSocket. In general this is the right
@@ -222,6 +276,8 @@ public class MPLConfig {
                 40); // 40 records default
         mFlushInterval = metaData.getInt("com.mixpanellite.android.MPLConfig.FlushInterval", 60 *
                 1000); // one minute default
+        mMetricsFlushInterval = metaData.getInt("com.mixpanellite.android.MPLConfig.MetricsFlushInterval", 60 *
+                1000); // one minute default
         mDataExpiration = metaData.getInt("com.mixpanellite.android.MPLConfig.DataExpiration",
                 1000 * 60 * 60 * 24 * 5); // 5 days default
         mMinimumDatabaseLimit = metaData.getInt("com.mixpanellite.android.MPLConfig" +
@@ -239,25 +295,41 @@ public class MPLConfig {
         mUseIpAddressForGeolocation = metaData.getBoolean("com.mixpanellite.android.MPLConfig" +
                 ".UseIpAddressForGeolocation", true);
         mTestMode = metaData.getBoolean("com.mixpanellite.android.MPLConfig.TestMode", false);
+        mUseGzipCompression = metaData.getBoolean("com.mixpanellite.android.MPLConfig" +
+                ".UseGzipCompression", false);
+        mMinConnectTimeout = metaData.getInt("com.mixpanellite.android.MPLConfig" +
+                ".MinConnectTimeout", AdaptiveTimeouts.DEFAULT_MIN_CONNECT_TIMEOUT_MILLIS);
+        mMaxConnectTimeout = metaData.getInt("com.mixpanellite.android.MPLConfig" +
+                ".MaxConnectTimeout", AdaptiveTimeouts.DEFAULT_MAX_CONNECT_TIMEOUT_MILLIS);
+        mMinReadTimeout = metaData.getInt("com.mixpanellite.android.MPLConfig" +
+                ".MinReadTimeout", AdaptiveTimeouts.DEFAULT_MIN_READ_TIMEOUT_MILLIS);
+        mMaxReadTimeout = metaData.getInt("com.mixpanellite.android.MPLConfig" +
+                ".MaxReadTimeout", AdaptiveTimeouts.DEFAULT_MAX_READ_TIMEOUT_MILLIS);
 
         String eventsEndpoint = metaData.getString("com.mixpanellite.android.MPLConfig.EventsEndpoint");
         if (null == eventsEndpoint) {
             eventsEndpoint = "https://api.mixpanel.com/track?ip=" + (mUseIpAddressForGeolocation ? "1" : "0");
         }
         mEventsEndpoint = eventsEndpoint;
+        mStreamingEndpoint = metaData.getString("com.mixpanellite.android.MPLConfig.StreamingEndpoint"); // default is null
 
         MPLLog.v(LOGTAG,
                 "MixpanelLite (" + VERSION + ") configured with:\n" +
                 "    BulkUploadLimit " + getBulkUploadLimit() + "\n" +
                 "    FlushInterval " + getFlushInterval() + "\n" +
+                "    MetricsFlushInterval " + getMetricsFlushInterval() + "\n" +
                 "    DataExpiration " + getDataExpiration() + "\n" +
                 "    MinimumDatabaseLimit " + getMinimumDatabaseLimit() + "\n" +
                 "    DisableAppOpenEvent " + getDisableAppOpenEvent() + "\n" +
                 "    EnableDebugLogging " + DEBUG + "\n" +
                 "    TestMode " + getTestMode() + "\n" +
                 "    EventsEndpoint " + getEventsEndpoint() + "\n" +
+                "    StreamingEndpoint " + getStreamingEndpoint() + "\n" +
                 "    MinimumSessionDuration: " + getMinimumSessionDuration() + "\n" +
-                        "    SessionTimeoutDuration: " + getSessionTimeoutDuration() + "\n"
+                        "    SessionTimeoutDuration: " + getSessionTimeoutDuration() + "\n" +
+                        "    UseGzipCompression: " + getUseGzipCompression() + "\n" +
+                        "    ConnectTimeout: " + getMinConnectTimeout() + " to " + getMaxConnectTimeout() + "\n" +
+                        "    ReadTimeout: " + getMinReadTimeout() + " to " + getMaxReadTimeout() + "\n"
         );
     }
 
@@ -271,6 +343,11 @@ public class MPLConfig {
         return mFlushInterval;
     }
 
+    // Milliseconds between summaries of metrics, or negative to only summarize them on flush()
+    public int getMetricsFlushInterval() {
+        return mMetricsFlushInterval;
+    }
+
     // Throw away records that are older than this in milliseconds. Should be below the server side age limit for events.
     public int getDataExpiration() {
         return mDataExpiration;
@@ -291,6 +368,11 @@ public class MPLConfig {
         return mEventsEndpoint;
     }
 
+    // WebSocket URL to stream events to while in the foreground, or null to only send batches
+    public String getStreamingEndpoint() {
+        return mStreamingEndpoint;
+    }
+
     public boolean getDisableDecideChecker() {
         return mDisableDecideChecker;
     }
@@ -303,6 +385,27 @@ public class MPLConfig {
         return mSessionTimeoutDuration;
     }
 
+    public boolean getUseGzipCompression() {
+        return mUseGzipCompression;
+    }
+
+    // Floors and ceilings for the adaptive network timeouts, in milliseconds
+    public int getMinConnectTimeout() {
+        return mMinConnectTimeout;
+    }
+
+    public int getMaxConnectTimeout() {
+        return mMaxConnectTimeout;
+    }
+
+    public int getMinReadTimeout() {
+        return mMinReadTimeout;
+    }
+
+    public int getMaxReadTimeout() {
+        return mMaxReadTimeout;
+    }
+
     // Pre-configured package name for resources, if they differ from the application package name
     //
     // mContext.getPackageName() actually returns the "application id", which
@@ -324,11 +427,21 @@ public class MPLConfig {
         return mSSLSocketFactory;
     }
 
+    // True once the app has replaced the default factory with setSSLSocketFactory
+    /* package */ synchronized boolean hasCustomSSLSocketFactory() {
+        return mHasCustomSSLSocketFactory;
+    }
+
     // This method is thread safe, and assumes that OfflineMode is also thread safe
     public synchronized OfflineMode getOfflineMode() {
         return mOfflineMode;
     }
 
+    // This method is thread safe, and assumes that HttpTransport is also thread safe
+    public synchronized HttpTransport getHttpTransport() {
+        return mHttpTransport;
+    }
+
     ///////////////////////////////////////////////
 
     // Package access for testing only- do not call directly in library code
@@ -349,20 +462,29 @@ public class MPLConfig {
 
     private final int mBulkUploadLimit;
     private final int mFlushInterval;
+    private final int mMetricsFlushInterval;
     private final int mDataExpiration;
     private final int mMinimumDatabaseLimit;
     private final boolean mTestMode;
     private final boolean mDisableAppOpenEvent;
     private final String mEventsEndpoint;
+    private final String mStreamingEndpoint;
     private final String mResourcePackageName;
     private final boolean mDisableDecideChecker;
     private final int mMinSessionDuration;
     private final int mSessionTimeoutDuration;
     private final boolean mUseIpAddressForGeolocation;
+    private final boolean mUseGzipCompression;
+    private final int mMinConnectTimeout;
+    private final int mMaxConnectTimeout;
+    private final int mMinReadTimeout;
+    private final int mMaxReadTimeout;
 
     // Mutable, with synchronized accessor and mutator
     private SSLSocketFactory mSSLSocketFactory;
+    private boolean mHasCustomSSLSocketFactory;
     private OfflineMode mOfflineMode;
+    private HttpTransport mHttpTransport;
 
     private static MPLConfig sInstance;
     private static final Object sInstanceLock = new Object();
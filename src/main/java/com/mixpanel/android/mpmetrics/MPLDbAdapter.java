@@ -6,6 +6,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
 
 import com.mixpanel.android.util.MPLLog;
 
@@ -14,7 +15,9 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -46,13 +49,21 @@ import java.util.Map;
     public static final String KEY_CREATED_AT = "created_at";
     public static final String KEY_AUTOMATIC_DATA = "automatic_data";
     public static final String KEY_TOKEN = "token";
+    public static final String KEY_REJECTION_STATUS = "rejection_status";
 
     public static final int DB_UPDATE_ERROR = -1;
     public static final int DB_OUT_OF_MEMORY_ERROR = -2;
     public static final int DB_UNDEFINED_CODE = -3;
 
+    // Maximum number of records returned by a single call to generateDataString
+    public static final int BATCH_SIZE = 50;
+
+    // Records the server refused, kept for diagnosis rather than sent again
+    public static final String DEAD_EVENTS_TABLE = "dead_events";
+    private static final int DEAD_EVENTS_LIMIT = 100;
+
     private static final String DATABASE_NAME = "mixpanellite";
-    private static final int DATABASE_VERSION = 5;
+    private static final int DATABASE_VERSION = 6;
 
     private static final String CREATE_EVENTS_TABLE =
        "CREATE TABLE " + Table.EVENTS.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
@@ -63,6 +74,13 @@ import java.util.Map;
     private static final String EVENTS_TIME_INDEX =
         "CREATE INDEX IF NOT EXISTS time_idx ON " + Table.EVENTS.getName() +
         " (" + KEY_CREATED_AT + ");";
+    private static final String CREATE_DEAD_EVENTS_TABLE =
+       "CREATE TABLE IF NOT EXISTS " + DEAD_EVENTS_TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+        KEY_DATA + " STRING NOT NULL, " +
+        KEY_CREATED_AT + " INTEGER NOT NULL, " +
+        KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0, " +
+        KEY_TOKEN + " STRING NOT NULL DEFAULT '', " +
+        KEY_REJECTION_STATUS + " INTEGER NOT NULL)";
 
     private final MPDatabaseHelper mDb;
 
@@ -87,18 +105,18 @@ import java.util.Map;
 
             db.execSQL(CREATE_EVENTS_TABLE);
             db.execSQL(EVENTS_TIME_INDEX);
+            db.execSQL(CREATE_DEAD_EVENTS_TABLE);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             MPLLog.v(LOGTAG, "Upgrading app, replacing Mixpanel events DB");
 
-            if (newVersion == 5) {
+            if (oldVersion < 5) {
                 migrateTableFrom4To5(db);
-            } else {
-                db.execSQL("DROP TABLE IF EXISTS " + Table.EVENTS.getName());
-                db.execSQL(CREATE_EVENTS_TABLE);
-                db.execSQL(EVENTS_TIME_INDEX);
+            }
+            if (oldVersion < 6) {
+                db.execSQL(CREATE_DEAD_EVENTS_TABLE);
             }
         }
 
@@ -165,6 +183,20 @@ import java.util.Map;
      * on failure
      */
     public int addJSON(JSONObject j, String token, Table table, boolean isAutomaticRecord) {
+        return addData(j.toString(), token, table, isAutomaticRecord);
+    }
+
+    /**
+     * Adds a record that has already been written out as JSON text, as events are by
+     * {@link EventWriter}, to the SQLiteDatabase.
+     * @param data the JSON text to record
+     * @param token token of the project
+     * @param table the table to insert into, either "events" or "people"
+     * @param isAutomaticRecord mark the record as an automatic event or not
+     * @return the number of rows in the table, or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
+     * on failure
+     */
+    public int addData(String data, String token, Table table, boolean isAutomaticRecord) {
         // we are aware of the race condition here, but what can we do..?
         if (!this.belowMemThreshold()) {
             MPLLog.e(LOGTAG, "There is not enough space left on the device to store Mixpanel " +
@@ -181,7 +213,7 @@ import java.util.Map;
             final SQLiteDatabase db = mDb.getWritableDatabase();
 
             final ContentValues cv = new ContentValues();
-            cv.put(KEY_DATA, j.toString());
+            cv.put(KEY_DATA, data);
             cv.put(KEY_CREATED_AT, System.currentTimeMillis());
             cv.put(KEY_AUTOMATIC_DATA, isAutomaticRecord);
             cv.put(KEY_TOKEN, token);
@@ -293,6 +325,117 @@ import java.util.Map;
         }
     }
 
+    /**
+     * Removes dead events created before time.
+     * @param time the unix epoch in milliseconds to remove dead events before
+     */
+    public void cleanupDeadEvents(long time) {
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            db.delete(DEAD_EVENTS_TABLE, KEY_CREATED_AT + " <= " + time, null);
+        } catch (final SQLiteException e) {
+            MPLLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from " + DEAD_EVENTS_TABLE + ". " +
+                    "Re-initializing database.", e);
+
+            // We assume that in general, the results of a SQL exception are
+            // unrecoverable, and could be associated with an oversized or
+            // otherwise unusable DB. Better to bomb it and get back on track
+            // than to leave it junked up (and maybe filling up the disk.)
+            mDb.deleteDatabase();
+        } finally {
+            mDb.close();
+        }
+    }
+
+    /**
+     * Removes the given rows from table.
+     * @param ids the _id values of the rows to delete
+     * @param table the table to remove events from
+     */
+    public void removeRows(List<String> ids, Table table) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        final String tableName = table.getName();
+
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            db.delete(tableName, "_id IN (" + TextUtils.join(",", ids) + ")", null);
+        } catch (final SQLiteException e) {
+            MPLLog.e(LOGTAG, "Could not clean sent Mixpanel records from " + tableName + ". Re-initializing database.", e);
+
+            // We assume that in general, the results of a SQL exception are
+            // unrecoverable, and could be associated with an oversized or
+            // otherwise unusable DB. Better to bomb it and get back on track
+            // than to leave it junked up (and maybe filling up the disk.)
+            mDb.deleteDatabase();
+        } finally {
+            mDb.close();
+        }
+    }
+
+    /**
+     * Moves a row the server refused out of table and into the dead events table, so it no
+     * longer holds up the rows queued behind it. Only the most recent dead events are kept.
+     * @param id the _id of the row to move
+     * @param table the table the row is queued in
+     * @param rejectionStatus the HTTP status the server refused the row with. This is 200 when
+     *     the response status was fine, but the response body said the row was rejected.
+     */
+    public void quarantineRow(String id, Table table, int rejectionStatus) {
+        final String tableName = table.getName();
+        final String columns = KEY_DATA + ", " + KEY_CREATED_AT + ", " + KEY_AUTOMATIC_DATA + ", " + KEY_TOKEN;
+
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                db.execSQL("INSERT INTO " + DEAD_EVENTS_TABLE + " (" + columns + ", " + KEY_REJECTION_STATUS + ")" +
+                        " SELECT " + columns + ", " + rejectionStatus + " FROM " + tableName + " WHERE _id = " + id);
+                db.delete(tableName, "_id = " + id, null);
+                db.execSQL("DELETE FROM " + DEAD_EVENTS_TABLE + " WHERE _id NOT IN (SELECT _id FROM " +
+                        DEAD_EVENTS_TABLE + " ORDER BY _id DESC LIMIT " + DEAD_EVENTS_LIMIT + ")");
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (final SQLiteException e) {
+            MPLLog.e(LOGTAG, "Could not quarantine Mixpanel record from " + tableName + ". Re-initializing database.", e);
+
+            // We assume that in general, the results of a SQL exception are
+            // unrecoverable, and could be associated with an oversized or
+            // otherwise unusable DB. Better to bomb it and get back on track
+            // than to leave it junked up (and maybe filling up the disk.)
+            mDb.deleteDatabase();
+        } finally {
+            mDb.close();
+        }
+    }
+
+    /**
+     * @param token the token of the project
+     * @return the number of records of the project the server has refused, or 0 if
+     *     they couldn't be counted
+     */
+    public int getDeadEventsCount(String token) {
+        Cursor c = null;
+        int count = 0;
+        try {
+            final SQLiteDatabase db = mDb.getReadableDatabase();
+            c = db.rawQuery("SELECT COUNT(*) FROM " + DEAD_EVENTS_TABLE + " WHERE " + KEY_TOKEN + " = '" + token + "'", null);
+            c.moveToFirst();
+            count = c.getInt(0);
+        } catch (final SQLiteException e) {
+            MPLLog.e(LOGTAG, "Could not count dead Mixpanel records.", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            mDb.close();
+        }
+        return count;
+    }
+
     public void deleteDB() {
         mDb.deleteDatabase();
     }
@@ -306,8 +449,8 @@ import java.util.Map;
      * @param token the token of the project you want to retrieve the records for
      * @param includeAutomaticEvents whether or not it should include pre-track records
      * @return String array containing the maximum ID, the data string
-     * representing the events (or null if none could be successfully retrieved) and the total
-     * current number of events in the queue.
+     * representing the events (or null if none could be successfully retrieved), the total
+     * current number of events in the queue and the number of events in the data string.
      */
     public String[] generateDataString(Table table, String token, boolean includeAutomaticEvents) {
         Cursor c = null;
@@ -315,6 +458,7 @@ import java.util.Map;
         String data = null;
         String last_id = null;
         String queueCount = null;
+        int batchCount = 0;
         final String tableName = table.getName();
         final SQLiteDatabase db = mDb.getReadableDatabase();
 
@@ -326,7 +470,7 @@ import java.util.Map;
                 queueCountQuery.append(" AND " + KEY_AUTOMATIC_DATA + " = 0");
             }
 
-            rawDataQuery.append("ORDER BY " + KEY_CREATED_AT + " ASC LIMIT 50");
+            rawDataQuery.append("ORDER BY " + KEY_CREATED_AT + " ASC LIMIT " + BATCH_SIZE);
             c = db.rawQuery(rawDataQuery.toString(), null);
 
             queueCountCursor = db.rawQuery(queueCountQuery.toString(), null);
@@ -349,6 +493,7 @@ import java.util.Map;
 
             if (arr.length() > 0) {
                 data = arr.toString();
+                batchCount = arr.length();
             }
         } catch (final SQLiteException e) {
             MPLLog.e(LOGTAG, "Could not pull records for Mixpanel out of database " + tableName + ". Waiting to send.", e);
@@ -370,12 +515,49 @@ import java.util.Map;
         }
 
         if (last_id != null && data != null) {
-            final String[] ret = {last_id, data, queueCount};
+            final String[] ret = {last_id, data, queueCount, String.valueOf(batchCount)};
             return ret;
         }
         return null;
     }
 
+    /**
+     * Returns the rows of the batch generateDataString would return right now, one by one,
+     * so a batch the server refused can be sent in parts.
+     *
+     * @param table the table to read the rows from
+     * @param token the token of the project you want to retrieve the records for
+     * @param includeAutomaticEvents whether or not it should include pre-track records
+     * @return a list of {_id, JSON data} pairs in batch order. Empty if none could be read.
+     */
+    public List<String[]> getBatchRows(Table table, String token, boolean includeAutomaticEvents) {
+        Cursor c = null;
+        final List<String[]> rows = new ArrayList<String[]>();
+        final String tableName = table.getName();
+
+        try {
+            final SQLiteDatabase db = mDb.getReadableDatabase();
+            StringBuffer rawDataQuery = new StringBuffer("SELECT _id, " + KEY_DATA + " FROM " + tableName + " WHERE " + KEY_TOKEN + " = '" + token + "' ");
+            if (!includeAutomaticEvents) {
+                rawDataQuery.append("AND " + KEY_AUTOMATIC_DATA + " = 0 ");
+            }
+            rawDataQuery.append("ORDER BY " + KEY_CREATED_AT + " ASC LIMIT " + BATCH_SIZE);
+            c = db.rawQuery(rawDataQuery.toString(), null);
+            while (c.moveToNext()) {
+                rows.add(new String[] {c.getString(0), c.getString(1)});
+            }
+        } catch (final SQLiteException e) {
+            MPLLog.e(LOGTAG, "Could not pull records for Mixpanel out of database " + tableName + ".", e);
+            rows.clear();
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            mDb.close();
+        }
+        return rows;
+    }
+
     public File getDatabaseFile() {
         return mDb.mDatabaseFile;
     }
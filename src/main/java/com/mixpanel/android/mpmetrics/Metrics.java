@@ -0,0 +1,427 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.os.SystemClock;
+
+import com.mixpanel.android.util.MPLLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, gauges and histograms, for measurements taken too often to track each one as an
+ * event, like frame times or request latencies.
+ *
+ * <pre>
+ * {@code
+ * final Metrics.Histogram latency = mMixpanel.getMetrics().histogram("api_latency");
+ * ...
+ * latency.record(elapsedMillis);
+ * }
+ * </pre>
+ *
+ * <p>Measurements are added up in memory, and once per window (by default, a minute) each
+ * instrument that was used is tracked as a single {@link AutomaticEvents#METRIC} event,
+ * with the name of the instrument and a summary of the window: the total for a counter, the
+ * last value for a gauge, and the count, sum, min, max and percentiles for a histogram.
+ * Windows in which an instrument isn't used send nothing for it.
+ *
+ * <p>Recording is lock free and doesn't allocate, so instruments can be used from any thread,
+ * including the UI thread. Get each instrument once and keep it, rather than looking it up
+ * for each measurement.
+ */
+public class Metrics {
+
+    /**
+     * @param windowMillis how often to track summaries, or a negative number to only track
+     *     them when {@link #flush()} is called
+     */
+    /* package */ Metrics(MixpanelLiteAPI mixpanel, AnalyticsMessages messages, long windowMillis) {
+        mMixpanel = mixpanel;
+        mMessages = messages;
+        mWindowMillis = windowMillis;
+        mInstruments = new ConcurrentHashMap<String, Instrument>();
+        mFlushScheduled = new AtomicBoolean(false);
+        mWindowStart = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return the counter with the given name, created the first time it's asked for
+     */
+    public Counter counter(String name) {
+        return get(name, Counter.class);
+    }
+
+    /**
+     * @return the gauge with the given name, created the first time it's asked for
+     */
+    public Gauge gauge(String name) {
+        return get(name, Gauge.class);
+    }
+
+    /**
+     * @return the histogram with the given name, created the first time it's asked for
+     */
+    public Histogram histogram(String name) {
+        return get(name, Histogram.class);
+    }
+
+    /**
+     * A running total, like the number of requests made. Summarized as the total for the
+     * window, and left out of windows where the total is zero.
+     */
+    public static class Counter extends Instrument {
+        private Counter(Metrics metrics, String name) {
+            super(metrics, name, "counter");
+            mCells = new AtomicLongArray(STRIPES * CELL_STRIDE);
+        }
+
+        public void increment() {
+            add(1);
+        }
+
+        public void add(long amount) {
+            mCells.getAndAdd(stripe() * CELL_STRIDE, amount);
+            recorded();
+        }
+
+        @Override
+        /* package */ boolean summarize(EventBuilder event) {
+            long total = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                total += mCells.getAndSet(i * CELL_STRIDE, 0);
+            }
+            if (0 == total) {
+                return false;
+            }
+            event.putLong("count", total);
+            return true;
+        }
+
+        private final AtomicLongArray mCells;
+    }
+
+    /**
+     * A value that goes up and down, like the size of a cache. Summarized as the last
+     * value set in the window.
+     */
+    public static class Gauge extends Instrument {
+        private Gauge(Metrics metrics, String name) {
+            super(metrics, name, "gauge");
+            mValueBits = new AtomicLong();
+        }
+
+        /**
+         * Sets the value. NaN and infinite values are ignored.
+         */
+        public void set(double value) {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                return;
+            }
+            mValueBits.set(Double.doubleToRawLongBits(value));
+            mUsed = true;
+            recorded();
+        }
+
+        @Override
+        /* package */ boolean summarize(EventBuilder event) {
+            if (!mUsed) {
+                return false;
+            }
+            // Cleared before the read, so a value set meanwhile is sent again next window
+            mUsed = false;
+            event.putDouble("value", Double.longBitsToDouble(mValueBits.get()));
+            return true;
+        }
+
+        private final AtomicLong mValueBits;
+        private volatile boolean mUsed;
+    }
+
+    /**
+     * A distribution of values, like request latencies. Summarized as the count, sum, min,
+     * max, and 50th, 90th, 95th and 99th percentiles of the values recorded in the window.
+     *
+     * <p>Values are counted in buckets that are between 6.25% and 12.5% as wide as the values
+     * in them. Percentiles are reported as the middle of a bucket, so they're within about 6%
+     * of the exact answer. Values smaller than {@link #MIN_VALUE}, including
+     * negative ones, count as that value for percentiles, and values larger than
+     * {@link #MAX_VALUE} as that value. Min, max and sum are always exact.
+     */
+    public static class Histogram extends Instrument {
+        public static final double MIN_VALUE = Math.scalb(1.0, Histogram.MIN_EXPONENT);
+        public static final double MAX_VALUE = Math.scalb(1.0, Histogram.MAX_EXPONENT + 1);
+
+        private Histogram(Metrics metrics, String name) {
+            super(metrics, name, "histogram");
+            mBuckets = new AtomicLongArray(STRIPES * BUCKET_COUNT);
+            mCells = new AtomicLongArray(STRIPES * CELL_STRIDE);
+            for (int i = 0; i < STRIPES; i++) {
+                resetCells(i * CELL_STRIDE);
+            }
+        }
+
+        /**
+         * Records a value. NaN and infinite values are ignored.
+         */
+        public void record(double value) {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                return;
+            }
+            final int stripe = stripe();
+            mBuckets.getAndIncrement(stripe * BUCKET_COUNT + bucketIndex(value));
+
+            final int cell = stripe * CELL_STRIDE;
+            long bits;
+            do {
+                bits = mCells.get(cell + SUM);
+            } while (!mCells.compareAndSet(cell + SUM, bits,
+                    Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + value)));
+            do {
+                bits = mCells.get(cell + MIN);
+            } while (value < Double.longBitsToDouble(bits) &&
+                    !mCells.compareAndSet(cell + MIN, bits, Double.doubleToRawLongBits(value)));
+            do {
+                bits = mCells.get(cell + MAX);
+            } while (value > Double.longBitsToDouble(bits) &&
+                    !mCells.compareAndSet(cell + MAX, bits, Double.doubleToRawLongBits(value)));
+
+            recorded();
+        }
+
+        @Override
+        /* package */ boolean summarize(EventBuilder event) {
+            // Only the flushing thread uses mCounts, since flushes are synchronized
+            final long[] counts = mCounts;
+            long count = 0;
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                long bucketCount = 0;
+                for (int stripe = 0; stripe < STRIPES; stripe++) {
+                    bucketCount += mBuckets.getAndSet(stripe * BUCKET_COUNT + bucket, 0);
+                }
+                counts[bucket] = bucketCount;
+                count += bucketCount;
+            }
+
+            double sum = 0;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                final int cell = stripe * CELL_STRIDE;
+                sum += Double.longBitsToDouble(mCells.getAndSet(cell + SUM, ZERO_BITS));
+                min = Math.min(min, Double.longBitsToDouble(mCells.getAndSet(cell + MIN, POSITIVE_INFINITY_BITS)));
+                max = Math.max(max, Double.longBitsToDouble(mCells.getAndSet(cell + MAX, NEGATIVE_INFINITY_BITS)));
+            }
+
+            // A value being recorded as the window closes may have made it into the
+            // counts but not min and max, or the other way around. It will be in the next window.
+            if (0 == count || min > max) {
+                return false;
+            }
+
+            event.putLong("count", count);
+            event.putDouble("sum", sum);
+            event.putDouble("min", min);
+            event.putDouble("max", max);
+            event.putDouble("p50", percentile(counts, count, 0.50, min, max));
+            event.putDouble("p90", percentile(counts, count, 0.90, min, max));
+            event.putDouble("p95", percentile(counts, count, 0.95, min, max));
+            event.putDouble("p99", percentile(counts, count, 0.99, min, max));
+            return true;
+        }
+
+        private void resetCells(int cell) {
+            mCells.set(cell + SUM, ZERO_BITS);
+            mCells.set(cell + MIN, POSITIVE_INFINITY_BITS);
+            mCells.set(cell + MAX, NEGATIVE_INFINITY_BITS);
+        }
+
+        // Bucket 0 holds everything below MIN_VALUE. After that, each power of two from
+        // MIN_EXPONENT to MAX_EXPONENT is split into SUB_BUCKETS buckets by the top bits of
+        // the mantissa, which is what keeps the buckets the same relative width.
+        /* package */ static int bucketIndex(double value) {
+            if (value < MIN_VALUE) {
+                return 0;
+            }
+            if (value >= MAX_VALUE) {
+                return BUCKET_COUNT - 1;
+            }
+            final int exponent = Math.getExponent(value);
+            final int subBucket = (int) (Double.doubleToRawLongBits(value) >>> (52 - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + subBucket;
+        }
+
+        // The middle of the bucket, or the edge of the range for the first and last buckets
+        /* package */ static double bucketValue(int index) {
+            if (0 == index) {
+                return MIN_VALUE;
+            }
+            if (BUCKET_COUNT - 1 == index) {
+                return MAX_VALUE;
+            }
+            final int exponent = (index - 1) / SUB_BUCKETS + MIN_EXPONENT;
+            final int subBucket = (index - 1) % SUB_BUCKETS;
+            return Math.scalb(1.0 + (subBucket + 0.5) / SUB_BUCKETS, exponent);
+        }
+
+        private static double percentile(long[] counts, long count, double fraction, double min, double max) {
+            final long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.max(min, Math.min(max, bucketValue(i)));
+                }
+            }
+            return max;
+        }
+
+        private final AtomicLongArray mBuckets;
+        private final AtomicLongArray mCells;
+        private final long[] mCounts = new long[BUCKET_COUNT];
+
+        private static final int MIN_EXPONENT = -10;
+        private static final int MAX_EXPONENT = 40;
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        /* package */ static final int BUCKET_COUNT = 2 + (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS;
+
+        // Offsets within a stripe's cells
+        private static final int SUM = 0;
+        private static final int MIN = 1;
+        private static final int MAX = 2;
+
+        private static final long ZERO_BITS = Double.doubleToRawLongBits(0.0);
+        private static final long POSITIVE_INFINITY_BITS = Double.doubleToRawLongBits(Double.POSITIVE_INFINITY);
+        private static final long NEGATIVE_INFINITY_BITS = Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY);
+    }
+
+    /* package */ static abstract class Instrument {
+        /* package */ Instrument(Metrics metrics, String name, String type) {
+            mMetrics = metrics;
+            mName = name;
+            mType = type;
+        }
+
+        /**
+         * Adds the summary of the window to event, and starts a new window.
+         *
+         * @return false if nothing was recorded in the window, and there's nothing to send
+         */
+        /* package */ abstract boolean summarize(EventBuilder event);
+
+        /* package */ String getName() {
+            return mName;
+        }
+
+        /* package */ String getType() {
+            return mType;
+        }
+
+        /* package */ void recorded() {
+            mMetrics.recorded();
+        }
+
+        private final Metrics mMetrics;
+        private final String mName;
+        private final String mType;
+    }
+
+    /**
+     * Tracks the summary of every instrument used since the last flush.
+     */
+    /* package */ void flush() {
+        final List<EventBuilder> summaries = takeSummaries();
+        for (final EventBuilder summary : summaries) {
+            mMixpanel.trackMetricSummary(summary);
+        }
+    }
+
+    /**
+     * @return an event for each instrument used in the window that just ended
+     */
+    /* package */ synchronized List<EventBuilder> takeSummaries() {
+        // Cleared first, so anything recorded from here on schedules the next window
+        mFlushScheduled.set(false);
+
+        final long now = SystemClock.elapsedRealtime();
+        final double windowSeconds = (now - mWindowStart) / 1000.0;
+        mWindowStart = now;
+
+        final List<EventBuilder> ret = new ArrayList<EventBuilder>();
+        for (final Instrument instrument : mInstruments.values()) {
+            final EventBuilder event = EventBuilder.obtain(null, AutomaticEvents.METRIC);
+            if (instrument.summarize(event)) {
+                event.putString(AutomaticEvents.METRIC_NAME, instrument.getName());
+                event.putString(AutomaticEvents.METRIC_TYPE, instrument.getType());
+                event.putDouble(AutomaticEvents.METRIC_WINDOW, windowSeconds);
+                ret.add(event);
+            } else {
+                event.recycle();
+            }
+        }
+        return ret;
+    }
+
+    // Called for every measurement, so the common case is one volatile read
+    private void recorded() {
+        if (!mFlushScheduled.get() && mWindowMillis >= 0 && mFlushScheduled.compareAndSet(false, true)) {
+            mMessages.metricsMessage(this, mWindowMillis);
+        }
+    }
+
+    private <T extends Instrument> T get(String name, Class<T> type) {
+        if (null == name) {
+            MPLLog.e(LOGTAG, "Metrics must have a name, measurements without one will be dropped");
+            return type.cast(create("", type));
+        }
+
+        Instrument ret = mInstruments.get(name);
+        if (null == ret) {
+            final Instrument created = create(name, type);
+            ret = mInstruments.putIfAbsent(name, created);
+            if (null == ret) {
+                ret = created;
+            }
+        }
+
+        if (!type.isInstance(ret)) {
+            MPLLog.e(LOGTAG, "Metric " + name + " is already a " + ret.getType() +
+                    ", measurements for it as another kind will be dropped");
+            return type.cast(create(name, type));
+        }
+        return type.cast(ret);
+    }
+
+    private Instrument create(String name, Class<? extends Instrument> type) {
+        if (Counter.class == type) {
+            return new Counter(this, name);
+        } else if (Gauge.class == type) {
+            return new Gauge(this, name);
+        } else {
+            return new Histogram(this, name);
+        }
+    }
+
+    // Threads record into different stripes, so they don't fight over one cache line
+    private static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    private final MixpanelLiteAPI mMixpanel;
+    private final AnalyticsMessages mMessages;
+    private final long mWindowMillis;
+    private final ConcurrentMap<String, Instrument> mInstruments;
+    private final AtomicBoolean mFlushScheduled;
+    private long mWindowStart;
+
+    private static final int STRIPES = 4;
+    // 8 longs is a 64 byte cache line
+    private static final int CELL_STRIDE = 8;
+
+    private static final String LOGTAG = "MixpanelLiteAPI.Metrics";
+}
@@ -4,8 +4,6 @@ import android.annotation.TargetApi;
 import android.app.Application;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
 import android.os.Build;
 
 import com.mixpanel.android.util.MPLLog;
@@ -13,11 +11,18 @@ import com.mixpanel.android.util.MPLLog;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -100,10 +105,139 @@ public class MixpanelLiteAPI {
      */
     MixpanelLiteAPI(Context context, Future<SharedPreferences> referrerPreferences, String token,
                     MPLConfig config) {
+        this(context, referrerPreferences, token, config, false);
+    }
+
+    /**
+     * @param initializeInBackground if true, return before reading storage, and hold tracked
+     *     events in memory until that's done. getInstance() does; tests don't, so that what
+     *     they track is queued right away.
+     */
+    MixpanelLiteAPI(Context context, Future<SharedPreferences> referrerPreferences, String token,
+                    MPLConfig config, boolean initializeInBackground) {
+        final long constructorStart = System.nanoTime();
         mContext = context;
         mToken = token;
         mConfig = config;
 
+        // Only what can't wait, or costs next to nothing, happens here. Preferences load on
+        // their own threads, AnalyticsMessages sets up the rest of what it needs on its worker,
+        // and reading the device's details and stored state happens in initialize(), in the
+        // background. Until it's done, calls that need its results wait in mPending.
+        mStartupTrace = new LinkedHashMap<String, Long>();
+        mPending = new ArrayList<Runnable>();
+        mInitializedLatch = new CountDownLatch(1);
+        mDeviceInfoLatch = new CountDownLatch(1);
+
+        mPersistentIdentity = getPersistentIdentity(context, referrerPreferences, token);
+        mEventTimings = new HashMap<String, Long>();
+        mDynamicSuperProperties = new DynamicSuperProperties();
+        mEventSampler = new EventSampler();
+
+        mMessages = getAnalyticsMessages();
+        mMetrics = new Metrics(this, mMessages, mConfig.getMetricsFlushInterval());
+
+        // Registered now so that we don't miss the first activity, and crashes during startup
+        registerMixpanelActivityLifecycleCallbacks();
+        ExceptionHandler.init();
+
+        recordStartupStage("constructor", constructorStart);
+        mConstructedNanos = System.nanoTime();
+        if (initializeInBackground) {
+            sInitExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    initialize();
+                }
+            });
+        } else {
+            initialize();
+        }
+    }
+
+    private void initialize() {
+        mInitThread = Thread.currentThread();
+        try {
+            long stageStart = System.nanoTime();
+            // Usually read from the stored snapshot, rather than asking the package manager
+            final SystemInformation systemInformation = SystemInformation.getInstance(mContext);
+            final Map<String, String> deviceInfo = readDeviceInfo(systemInformation);
+            mDeviceInfo = deviceInfo;
+            mDeviceInfoLatch.countDown();
+            systemInformation.addListener(new SystemInformation.SnapshotListener() {
+                @Override
+                public void onSnapshotChanged() {
+                    mDeviceInfo = readDeviceInfo(systemInformation);
+                }
+            });
+            recordStartupStage("device_info", stageStart);
+
+            stageStart = System.nanoTime();
+            final Map<String, Long> storedTimings = mPersistentIdentity.getTimeEvents();
+            synchronized (mEventTimings) {
+                // Anything timed since the constructor is newer than what was stored
+                for (final Map.Entry<String, Long> entry : storedTimings.entrySet()) {
+                    if (!mEventTimings.containsKey(entry.getKey())) {
+                        mEventTimings.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            recordStartupStage("time_events", stageStart);
+
+            // Events tracked on this thread skip mPending, so these go ahead of anything
+            // the app tracked while we were starting up
+            stageStart = System.nanoTime();
+            if (mPersistentIdentity.isFirstLaunch(MPLDbAdapter.getInstance(mContext).getDatabaseFile().exists())) {
+                track(AutomaticEvents.FIRST_OPEN, null, true);
+
+                mPersistentIdentity.setHasLaunched();
+            }
+            recordStartupStage("first_launch", stageStart);
+
+            stageStart = System.nanoTime();
+            if (sendAppOpen()) {
+                track("$app_open", null);
+            }
+
+            if (!mPersistentIdentity.isFirstIntegration(mToken)) {
+                try {
+                    final JSONObject messageProps = new JSONObject();
+
+                    messageProps.put("mp_lib", "Android");
+                    messageProps.put("lib", "Android");
+                    messageProps.put("distinct_id", mToken);
+
+                    final AnalyticsMessages.EventDescription eventDescription =
+                            new AnalyticsMessages.EventDescription("Integration", messageProps, "85053bf24bba75239b16a601d9387e17", false);
+                    mMessages.eventsMessage(eventDescription);
+                    mMessages.postToServer(new AnalyticsMessages.FlushDescription("85053bf24bba75239b16a601d9387e17", false));
+
+                    mPersistentIdentity.setIsIntegrated(mToken);
+                } catch (JSONException e) {
+                }
+            }
+
+            if (mPersistentIdentity.isNewVersion(deviceInfo.get("$android_app_version_code"))) {
+                try {
+                    final JSONObject messageProps = new JSONObject();
+                    messageProps.put(AutomaticEvents.VERSION_UPDATED, deviceInfo.get("$android_app_version"));
+                    track(AutomaticEvents.APP_UPDATED, messageProps, true);
+                } catch (JSONException e) {}
+
+            }
+            recordStartupStage("startup_events", stageStart);
+        } catch (final RuntimeException e) {
+            // Better to run without what's missing than to keep the app's events forever
+            MPLLog.e(LOGTAG, "Exception initializing Mixpanel", e);
+        } finally {
+            // In case reading the device info failed, so getDeviceInfo() doesn't wait for nothing
+            mDeviceInfoLatch.countDown();
+            finishInitialization();
+            mInitThread = null;
+        }
+    }
+
+    private static Map<String, String> readDeviceInfo(SystemInformation systemInformation) {
         final Map<String, String> deviceInfo = new HashMap<String, String>();
         deviceInfo.put("$android_lib_version", MPLConfig.VERSION);
         deviceInfo.put("$android_os", "Android");
@@ -111,61 +245,108 @@ public class MixpanelLiteAPI {
         deviceInfo.put("$android_manufacturer", Build.MANUFACTURER == null ? "UNKNOWN" : Build.MANUFACTURER);
         deviceInfo.put("$android_brand", Build.BRAND == null ? "UNKNOWN" : Build.BRAND);
         deviceInfo.put("$android_model", Build.MODEL == null ? "UNKNOWN" : Build.MODEL);
-        try {
-            final PackageManager manager = mContext.getPackageManager();
-            final PackageInfo info = manager.getPackageInfo(mContext.getPackageName(), 0);
-            deviceInfo.put("$android_app_version", info.versionName);
-            deviceInfo.put("$android_app_version_code", Integer.toString(info.versionCode));
-        } catch (final PackageManager.NameNotFoundException e) {
-            MPLLog.e(LOGTAG, "Exception getting app version name", e);
+        final Integer versionCode = systemInformation.getAppVersionCode();
+        if (null != versionCode) {
+            deviceInfo.put("$android_app_version", systemInformation.getAppVersionName());
+            deviceInfo.put("$android_app_version_code", Integer.toString(versionCode));
+        } else {
+            MPLLog.e(LOGTAG, "Can't get the app version");
         }
-        mDeviceInfo = Collections.unmodifiableMap(deviceInfo);
+        return Collections.unmodifiableMap(deviceInfo);
+    }
 
-        mPersistentIdentity = getPersistentIdentity(context, referrerPreferences, token);
-        mEventTimings = mPersistentIdentity.getTimeEvents();
+    private void finishInitialization() {
+        final long stageStart = System.nanoTime();
+        // Held while replaying, so nothing tracked meanwhile can get ahead of what's pending.
+        // What the replay itself tracks runs right away, since this is still the init thread.
+        synchronized (mPending) {
+            for (final Runnable pending : mPending) {
+                pending.run();
+            }
+            mPending.clear();
+            mInitialized = true;
+        }
+        recordStartupStage("replay", stageStart);
+        recordStartupStage("initialize_total", mConstructedNanos);
+        mInitializedLatch.countDown();
 
-        mMessages = getAnalyticsMessages();
+        MPLLog.v(LOGTAG, "Initialized for project " + mToken + ", stages in microseconds: " + getStartupTrace() +
+                ", preferences ready in order " + sPrefsLoader.getLoadOrder());
+    }
 
-        if (mPersistentIdentity.isFirstLaunch(MPLDbAdapter.getInstance(mContext).getDatabaseFile().exists())) {
-            track(AutomaticEvents.FIRST_OPEN, null, true);
+    /**
+     * @return true if action will run once initialization is done, or false if initialization
+     *     is already done, and the caller should go ahead
+     */
+    private boolean runWhenInitialized(Runnable action) {
+        return runWhenInitialized(action, false);
+    }
 
-            mPersistentIdentity.setHasLaunched();
+    /**
+     * @param changesIdentity true if action changes the distinct id or super properties, so
+     *     that reading them has to wait until it has run
+     */
+    private boolean runWhenInitialized(Runnable action, boolean changesIdentity) {
+        synchronized (mPending) {
+            if (mInitialized || Thread.currentThread() == mInitThread) {
+                return false;
+            }
+            mPending.add(action);
+            if (changesIdentity) {
+                mIdentityChangesPending = true;
+            }
+            return true;
         }
+    }
 
-        registerMixpanelActivityLifecycleCallbacks();
-
-        if (sendAppOpen()) {
-            track("$app_open", null);
+    // Reading the identity only waits on its own preferences file, unless a change to it was
+    // made before we were initialized. Then the change has to be applied first.
+    private void awaitPendingIdentityChanges() {
+        if (mIdentityChangesPending) {
+            awaitInitialization(INITIALIZATION_WAIT_MILLIS);
         }
+    }
 
-        if (!mPersistentIdentity.isFirstIntegration(mToken)) {
-            try {
-                final JSONObject messageProps = new JSONObject();
-
-                messageProps.put("mp_lib", "Android");
-                messageProps.put("lib", "Android");
-                messageProps.put("distinct_id", token);
-
-                final AnalyticsMessages.EventDescription eventDescription =
-                        new AnalyticsMessages.EventDescription("Integration", messageProps, "85053bf24bba75239b16a601d9387e17", false);
-                mMessages.eventsMessage(eventDescription);
-                mMessages.postToServer(new AnalyticsMessages.FlushDescription("85053bf24bba75239b16a601d9387e17", false));
+    /**
+     * Blocks until the background part of initialization is done.
+     *
+     * @return false if it wasn't done within timeoutMillis
+     */
+    /* package */ boolean awaitInitialization(long timeoutMillis) {
+        if (mInitialized || Thread.currentThread() == mInitThread) {
+            return true;
+        }
+        try {
+            return mInitializedLatch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return mInitialized;
+        }
+    }
 
-                mPersistentIdentity.setIsIntegrated(mToken);
-            } catch (JSONException e) {
+    // What's registered while we start up is registered later, so it can't change under us
+    private static JSONObject copyOf(JSONObject properties) {
+        if (null == properties) {
+            return null;
+        }
+        final JSONObject ret = new JSONObject();
+        final Iterator<String> keys = properties.keys();
+        try {
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                ret.put(key, properties.get(key));
             }
+        } catch (final JSONException e) {
+            MPLLog.e(LOGTAG, "Can't copy properties", e);
         }
+        return ret;
+    }
 
-        if (mPersistentIdentity.isNewVersion(deviceInfo.get("$android_app_version_code"))) {
-            try {
-                final JSONObject messageProps = new JSONObject();
-                messageProps.put(AutomaticEvents.VERSION_UPDATED, deviceInfo.get("$android_app_version"));
-                track(AutomaticEvents.APP_UPDATED, messageProps, true);
-            } catch (JSONException e) {}
-
+    private void recordStartupStage(String stage, long startNanos) {
+        final long micros = (System.nanoTime() - startNanos) / 1000;
+        synchronized (mStartupTrace) {
+            mStartupTrace.put(stage, micros);
         }
-
-        ExceptionHandler.init();
     }
 
     /**
@@ -213,7 +394,7 @@ public class MixpanelLiteAPI {
 
             MixpanelLiteAPI instance = instances.get(appContext);
             if (null == instance && ConfigurationChecker.checkBasicConfiguration(appContext)) {
-                instance = new MixpanelLiteAPI(appContext, sReferrerPrefs, token);
+                instance = new MixpanelLiteAPI(appContext, sReferrerPrefs, token, MPLConfig.getInstance(appContext), true);
                 instances.put(appContext, instance);
             }
 
@@ -269,7 +450,7 @@ public class MixpanelLiteAPI {
 
             MixpanelLiteAPI instance = instances.get(appContext);
             if (null == instance && ConfigurationChecker.checkBasicConfiguration(appContext)) {
-                instance = new MixpanelLiteAPI(appContext, sReferrerPrefs, token, config);
+                instance = new MixpanelLiteAPI(appContext, sReferrerPrefs, token, config, true);
                 instances.put(appContext, instance);
             }
 
@@ -346,7 +527,15 @@ public class MixpanelLiteAPI {
      *     value is globally unique for each individual user you intend to track.
      *
      */
-    public void identify(String distinctId) {
+    public void identify(final String distinctId) {
+        if (!mInitialized && runWhenInitialized(new Runnable() {
+            @Override
+            public void run() {
+                identify(distinctId);
+            }
+        }, true)) {
+            return;
+        }
         synchronized (mPersistentIdentity) {
             mPersistentIdentity.setEventsDistinctId(distinctId);
         }
@@ -427,6 +616,20 @@ public class MixpanelLiteAPI {
         track(eventName, properties, false);
     }
 
+    /**
+     * Starts an event with properties that can be added one at a time without boxing, for
+     * events tracked often enough that the garbage from JSONObjects adds up. Call
+     * {@link EventBuilder#track()} on the result to track it.
+     *
+     * <p>Builders are pooled, so don't hold on to one after tracking it.
+     *
+     * @param eventName the name of the event to send
+     * @return a builder for the event
+     */
+    public EventBuilder buildEvent(String eventName) {
+        return EventBuilder.obtain(this, eventName);
+    }
+
     /**
      * Equivalent to {@link #track(String, JSONObject)} with a null argument for properties.
      * Consider adding properties to your tracking to get the best insights and experience from Mixpanel.
@@ -436,6 +639,67 @@ public class MixpanelLiteAPI {
         track(eventName, null);
     }
 
+    /**
+     * Track only a fraction of the events with the given name, chosen at random, for events
+     * that fire too often to be worth sending every one. Each event that is tracked gets an
+     * "mp_sample_rate" property with the rate, so that you can scale counts back up.
+     *
+     * <p>Automatically tracked events are never sampled. Events that are dropped don't
+     * end a {@link #timeEvent(String)} timing.
+     *
+     * @param eventName the name of the events to sample
+     * @param sampleRate the fraction of events to track, from 0 to 1. Pass 1 to track them all again.
+     */
+    public void setEventSampleRate(String eventName, double sampleRate) {
+        mEventSampler.setSampleRate(eventName, sampleRate);
+    }
+
+    /**
+     * Limit how often events with the given name are tracked. Up to burst events can be
+     * tracked at once, and after that no more than eventsPerSecond on average; the rest are
+     * dropped. Sampling, if any, is applied first.
+     *
+     * <p>Automatically tracked events are never limited.
+     *
+     * @param eventName the name of the events to limit
+     * @param eventsPerSecond the average rate to allow. Pass 0 to remove the limit.
+     * @param burst the number of events to allow at once
+     * @see #setEventSampleRate(String, double)
+     */
+    public void setEventRateLimit(String eventName, double eventsPerSecond, int burst) {
+        mEventSampler.setRateLimit(eventName, eventsPerSecond, burst);
+    }
+
+    /**
+     * Set rules for which events are tracked and which of their properties are kept. Rules
+     * are checked as each event is tracked, so events they drop are never queued.
+     * Automatically tracked events follow the rules too.
+     *
+     * @param rules the rules to apply from now on, or null to track everything
+     * @see EventRules.Builder
+     */
+    public void setEventRules(EventRules rules) {
+        mEventRules = rules;
+    }
+
+    /**
+     * Returns the counters, gauges and histograms of this instance, for measurements that are
+     * taken too often to track as events. Measurements are added up in memory and tracked as
+     * one summary event per instrument every minute, or as configured with
+     * com.mixpanellite.android.MPLConfig.MetricsFlushInterval.
+     *
+     * <pre>
+     * {@code
+     * mMixpanel.getMetrics().counter("cache_misses").increment();
+     * }
+     * </pre>
+     *
+     * @return the metrics of this instance
+     */
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
     /**
      * Push all queued Mixpanel events and People Analytics changes to Mixpanel servers.
      *
@@ -446,8 +710,19 @@ public class MixpanelLiteAPI {
      * send all remaining messages to the server. We strongly recommend
      * placing a call to flush() in the onDestroy() method of
      * your main application activity.
+     *
+     * <p>Metrics are summarized first, so the summaries go out with everything else.
      */
     public void flush() {
+        if (!mInitialized && runWhenInitialized(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        })) {
+            return;
+        }
+        mMetrics.flush();
         mMessages.postToServer(new AnalyticsMessages.FlushDescription(mToken));
     }
 
@@ -458,6 +733,7 @@ public class MixpanelLiteAPI {
      * and persist beyond the lifetime of your application.
      */
       public JSONObject getSuperProperties() {
+          awaitPendingIdentityChanges();
           JSONObject ret = new JSONObject();
           mPersistentIdentity.addSuperPropertiesToObject(ret);
           return ret;
@@ -473,6 +749,7 @@ public class MixpanelLiteAPI {
      * @see #identify(String)
      */
     public String getDistinctId() {
+        awaitPendingIdentityChanges();
         return mPersistentIdentity.getEventsDistinctId();
      }
 
@@ -525,6 +802,17 @@ public class MixpanelLiteAPI {
      * @see #clearSuperProperties()
      */
     public void registerSuperProperties(JSONObject superProperties) {
+        if (!mInitialized) {
+            final JSONObject copy = copyOf(superProperties);
+            if (runWhenInitialized(new Runnable() {
+                @Override
+                public void run() {
+                    registerSuperProperties(copy);
+                }
+            }, true)) {
+                return;
+            }
+        }
         mPersistentIdentity.registerSuperProperties(superProperties);
     }
 
@@ -538,7 +826,15 @@ public class MixpanelLiteAPI {
      * @param superPropertyName name of the property to unregister
      * @see #registerSuperProperties(JSONObject)
      */
-    public void unregisterSuperProperty(String superPropertyName) {
+    public void unregisterSuperProperty(final String superPropertyName) {
+        if (!mInitialized && runWhenInitialized(new Runnable() {
+            @Override
+            public void run() {
+                unregisterSuperProperty(superPropertyName);
+            }
+        }, true)) {
+            return;
+        }
         mPersistentIdentity.unregisterSuperProperty(superPropertyName);
     }
 
@@ -575,6 +871,17 @@ public class MixpanelLiteAPI {
      * @see #registerSuperProperties(JSONObject)
      */
     public void registerSuperPropertiesOnce(JSONObject superProperties) {
+        if (!mInitialized) {
+            final JSONObject copy = copyOf(superProperties);
+            if (runWhenInitialized(new Runnable() {
+                @Override
+                public void run() {
+                    registerSuperPropertiesOnce(copy);
+                }
+            }, true)) {
+                return;
+            }
+        }
         mPersistentIdentity.registerSuperPropertiesOnce(superProperties);
     }
 
@@ -589,6 +896,14 @@ public class MixpanelLiteAPI {
      * @see #registerSuperProperties(JSONObject)
      */
     public void clearSuperProperties() {
+        if (!mInitialized && runWhenInitialized(new Runnable() {
+            @Override
+            public void run() {
+                clearSuperProperties();
+            }
+        }, true)) {
+            return;
+        }
         mPersistentIdentity.clearSuperProperties();
     }
 
@@ -601,15 +916,87 @@ public class MixpanelLiteAPI {
      *
      * @param update A function from one set of super properties to another. The update should not return null.
      */
-    public void updateSuperProperties(SuperPropertyUpdate update) {
+    public void updateSuperProperties(final SuperPropertyUpdate update) {
+        if (!mInitialized && runWhenInitialized(new Runnable() {
+            @Override
+            public void run() {
+                updateSuperProperties(update);
+            }
+        }, true)) {
+            return;
+        }
         mPersistentIdentity.updateSuperProperties(update);
     }
 
+    /**
+     * Register a super property whose value is computed when each event is written, rather
+     * than fixed when it's registered. Use it for values that change too often to keep
+     * up to date with {@link #registerSuperProperties(JSONObject)}, like the battery level or
+     * the current screen.
+     *
+     * <p>The value is computed on Mixpanel's worker thread, so computing it doesn't slow down
+     * tracking, and it isn't computed at all for events that already have a property with the
+     * same name. Because of that, the value is the one at the time the event is written,
+     * which is usually, but not always, moments after the event was tracked.
+     *
+     * <p>Dynamic super properties take precedence over super properties with the same name,
+     * and properties passed to track() take precedence over both. They aren't stored, so
+     * they must be registered each time the app starts, and aren't affected by
+     * {@link #clearSuperProperties()} or {@link #reset()}.
+     *
+     * @param superPropertyName name of the property. Registering a name again replaces it.
+     * @param superProperty computes the value for each event
+     * @see #registerDynamicSuperProperty(String, DynamicSuperProperty, long)
+     */
+    public void registerDynamicSuperProperty(String superPropertyName, DynamicSuperProperty superProperty) {
+        registerDynamicSuperProperty(superPropertyName, superProperty, 0);
+    }
+
+    /**
+     * Register a dynamic super property whose value is reused for a while once it's been
+     * computed, for values that are expensive to compute and don't need to be exact.
+     *
+     * @param superPropertyName name of the property. Registering a name again replaces it.
+     * @param superProperty computes the value
+     * @param cacheMillis how long a computed value is sent with events before it's computed
+     *     again, or 0 to compute it for every event
+     * @see #registerDynamicSuperProperty(String, DynamicSuperProperty)
+     */
+    public void registerDynamicSuperProperty(String superPropertyName, DynamicSuperProperty superProperty, long cacheMillis) {
+        if (null == superPropertyName || null == superProperty) {
+            MPLLog.e(LOGTAG, "registerDynamicSuperProperty does not accept a null name or property");
+            return;
+        }
+        mDynamicSuperProperties.register(superPropertyName, superProperty, Math.max(0, cacheMillis));
+    }
+
+    /**
+     * Remove a dynamic super property. Events that have been tracked but not yet written may
+     * still compute it.
+     *
+     * @param superPropertyName name of the property registered with
+     *     {@link #registerDynamicSuperProperty(String, DynamicSuperProperty)}
+     */
+    public void unregisterDynamicSuperProperty(String superPropertyName) {
+        if (null == superPropertyName) {
+            return;
+        }
+        mDynamicSuperProperties.unregister(superPropertyName);
+    }
+
     /**
      * Clears all distinct_ids, superProperties, and push registrations from persistent storage.
      * Will not clear referrer information.
      */
     public void reset() {
+        if (!mInitialized && runWhenInitialized(new Runnable() {
+            @Override
+            public void run() {
+                reset();
+            }
+        }, true)) {
+            return;
+        }
         // Will clear distinct_ids, superProperties, notifications, experiments,
         // and waiting People Analytics properties. Will have no effect
         // on messages already queued to send with AnalyticsMessages.
@@ -622,12 +1009,46 @@ public class MixpanelLiteAPI {
      * Returns an unmodifiable map that contains the device description properties
      * that will be sent to Mixpanel. These are not all of the default properties,
      * but are a subset that are dependant on the user's device or installed version
-     * of the host application, and are guaranteed not to change while the app is running.
+     * of the host application, and don't change while the app is running, unless the stored
+     * description of the device turns out to be out of date when it's checked after startup.
+     *
+     * <p>The device info is read in the background when the instance is created. Called before
+     * that's done, this waits for it for up to a few seconds, and returns an empty map if it
+     * still isn't ready.
      */
     public Map<String, String> getDeviceInfo() {
+        final Map<String, String> deviceInfo = mDeviceInfo;
+        if (null != deviceInfo) {
+            return deviceInfo;
+        }
+        try {
+            mDeviceInfoLatch.await(INITIALIZATION_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (null == mDeviceInfo) {
+            MPLLog.w(LOGTAG, "Device info isn't ready yet");
+            return Collections.emptyMap();
+        }
         return mDeviceInfo;
     }
 
+    /**
+     * Returns how long each stage of starting up this instance took, in microseconds, in the
+     * order they ran. "constructor" is the time spent on the thread that called getInstance;
+     * the other stages run in the background, and "initialize_total" is the time from the end
+     * of the constructor until tracking was fully ready. Stages that haven't finished yet are
+     * missing.
+     *
+     * <p>Until the background stages are done, tracked events and flushes are held in memory,
+     * and sent in order as soon as they are.
+     */
+    public Map<String, Long> getStartupTrace() {
+        synchronized (mStartupTrace) {
+            return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(mStartupTrace));
+        }
+    }
+
     /**
      * This method is a no-op, kept for compatibility purposes.
      *
@@ -697,7 +1118,12 @@ public class MixpanelLiteAPI {
     }
 
 
+    /* package */ void onForeground() {
+        mMessages.startStreaming();
+    }
+
     /* package */ void onBackground() {
+        mMessages.stopStreaming();
         flush();
     }
 
@@ -751,55 +1177,131 @@ public class MixpanelLiteAPI {
     }
 
     protected void track(String eventName, JSONObject properties, boolean isAutomaticEvent) {
-        final Long eventBegin;
-        synchronized (mEventTimings) {
-            eventBegin = mEventTimings.get(eventName);
-            mEventTimings.remove(eventName);
-            mPersistentIdentity.removeTimeEvent(eventName);
+        // Decide before building anything, so dropped events cost only the lookups
+        final EventRules rules = mEventRules;
+        if (null != rules && !rules.allowsEvent(eventName)) {
+            endEventTiming(eventName);
+            return;
+        }
+        final double sampleRate = isAutomaticEvent ? 1 : mEventSampler.sample(eventName);
+        if (0 == sampleRate) {
+            endEventTiming(eventName);
+            return;
         }
 
-        try {
-            final JSONObject messageProps = new JSONObject();
+        final EventBuilder event = EventBuilder.obtain(this, eventName);
+        if (null != properties) {
+            try {
+                final Iterator<?> propIter = properties.keys();
+                while (propIter.hasNext()) {
+                    final String key = (String) propIter.next();
+                    if (properties.isNull(key)) {
+                        continue;
+                    }
+                    if (null == rules) {
+                        event.putObject(key, properties.get(key));
+                    } else if (!rules.removesProperty(key)) {
+                        event.putObject(key, rules.truncate(properties.get(key)));
+                    }
+                }
+            } catch (final JSONException e) {
+                MPLLog.e(LOGTAG, "Exception tracking event " + eventName, e);
+                event.recycle();
+                return;
+            }
+        }
+        enqueueEvent(event, isAutomaticEvent, sampleRate);
+    }
 
-            final Map<String, String> referrerProperties = mPersistentIdentity.getReferrerProperties();
-            for (final Map.Entry<String, String> entry : referrerProperties.entrySet()) {
-                final String key = entry.getKey();
-                final String value = entry.getValue();
-                messageProps.put(key, value);
+    /* package */ void track(EventBuilder event, boolean isAutomaticEvent) {
+        final EventRules rules = mEventRules;
+        if (null != rules) {
+            if (!rules.allowsEvent(event.getEventName())) {
+                endEventTiming(event.getEventName());
+                event.recycle();
+                return;
+            }
+            if (rules.changesProperties()) {
+                event.applyRules(rules);
             }
+        }
 
-            mPersistentIdentity.addSuperPropertiesToObject(messageProps);
+        final double sampleRate = isAutomaticEvent ? 1 : mEventSampler.sample(event.getEventName());
+        if (0 == sampleRate) {
+            endEventTiming(event.getEventName());
+            event.recycle();
+            return;
+        }
+        enqueueEvent(event, isAutomaticEvent, sampleRate);
+    }
 
-            // Don't allow super properties or referral properties to override these fields,
-            // but DO allow the caller to override them in their given properties.
-            final double timeSecondsDouble = (System.currentTimeMillis()) / 1000.0;
-            final long timeSeconds = (long) timeSecondsDouble;
-            messageProps.put("time", timeSeconds);
-            messageProps.put("distinct_id", getDistinctId());
+    // Summaries are never sampled, since each one already stands for many measurements
+    /* package */ void trackMetricSummary(EventBuilder event) {
+        final EventRules rules = mEventRules;
+        if (null != rules && !rules.allowsEvent(event.getEventName())) {
+            endEventTiming(event.getEventName());
+            event.recycle();
+            return;
+        }
+        enqueueEvent(event, false, 1);
+    }
 
-            if (null != eventBegin) {
-                final double eventBeginDouble = ((double) eventBegin) / 1000.0;
-                final double secondsElapsed = timeSecondsDouble - eventBeginDouble;
-                messageProps.put("$duration", secondsElapsed);
+    // A dropped event ends its timing just as a sent one does, so a later event with the same
+    // name isn't given a duration that started before this one. Waits for initialization, which
+    // brings back timings saved by earlier runs.
+    private void endEventTiming(final String eventName) {
+        if (!mInitialized && runWhenInitialized(new Runnable() {
+            @Override
+            public void run() {
+                endEventTiming(eventName);
             }
+        })) {
+            return;
+        }
+        synchronized (mEventTimings) {
+            if (null != mEventTimings.remove(eventName)) {
+                mPersistentIdentity.removeTimeEvent(eventName);
+            }
+        }
+    }
 
-            if (null != properties) {
-                final Iterator<?> propIter = properties.keys();
-                while (propIter.hasNext()) {
-                    final String key = (String) propIter.next();
-                    if (!properties.isNull(key)) {
-                        messageProps.put(key, properties.get(key));
-                    }
-                }
+    private void enqueueEvent(final EventBuilder event, final boolean isAutomaticEvent, final double sampleRate) {
+        final long timeMillis = System.currentTimeMillis();
+        if (!mInitialized && runWhenInitialized(new Runnable() {
+            @Override
+            public void run() {
+                sendEvent(event, isAutomaticEvent, sampleRate, timeMillis);
             }
+        })) {
+            return;
+        }
+        sendEvent(event, isAutomaticEvent, sampleRate, timeMillis);
+    }
 
-            final AnalyticsMessages.EventDescription eventDescription =
-                    new AnalyticsMessages.EventDescription(eventName, messageProps, mToken, isAutomaticEvent);
-            mMessages.eventsMessage(eventDescription);
+    private void sendEvent(EventBuilder event, boolean isAutomaticEvent, double sampleRate, long timeMillis) {
+        if (sampleRate < 1) {
+            event.putDouble(EventSampler.SAMPLE_RATE_PROPERTY, sampleRate);
+        }
 
-        } catch (final JSONException e) {
-            MPLLog.e(LOGTAG, "Exception tracking event " + eventName, e);
+        final String eventName = event.getEventName();
+        final Long eventBegin;
+        synchronized (mEventTimings) {
+            eventBegin = mEventTimings.remove(eventName);
+            if (null != eventBegin) {
+                mPersistentIdentity.removeTimeEvent(eventName);
+            }
         }
+
+        // The worker thread writes the event, from these and the properties in the builder.
+        // The super and referrer properties are immutable snapshots, so it sees them as
+        // they are now. Dynamic super properties are registered now but computed then.
+        event.setTrackedProperties(timeMillis, mPersistentIdentity.getEventsDistinctId(), eventBegin,
+                mPersistentIdentity.getSuperPropertiesFragment(), mDynamicSuperProperties.getEntries(),
+                mPersistentIdentity.getReferrerProperties());
+
+        final AnalyticsMessages.EventDescription eventDescription =
+                new AnalyticsMessages.EventDescription(event, mToken, isAutomaticEvent);
+        mMessages.eventsMessage(eventDescription);
     }
 
     private final Context mContext;
@@ -807,8 +1309,20 @@ public class MixpanelLiteAPI {
     private final MPLConfig mConfig;
     private final String mToken;
     private final PersistentIdentity mPersistentIdentity;
-    private final Map<String, String> mDeviceInfo;
+    private final DynamicSuperProperties mDynamicSuperProperties;
+    private final EventSampler mEventSampler;
+    private final Metrics mMetrics;
+    private volatile EventRules mEventRules;
+    private volatile Map<String, String> mDeviceInfo;
     private final Map<String, Long> mEventTimings;
+    private final List<Runnable> mPending;
+    private volatile boolean mInitialized;
+    private volatile Thread mInitThread;
+    private final CountDownLatch mInitializedLatch;
+    private final CountDownLatch mDeviceInfoLatch;
+    private volatile boolean mIdentityChangesPending;
+    private final Map<String, Long> mStartupTrace;
+    private final long mConstructedNanos;
     private MPLActivityLifecycleCallbacks mMPLActivityLifecycleCallbacks;
 
     // Maps each token to a singleton MixpanelAPI instance
@@ -816,5 +1330,16 @@ public class MixpanelLiteAPI {
     private static final SharedPreferencesLoader sPrefsLoader = new SharedPreferencesLoader();
     private static Future<SharedPreferences> sReferrerPrefs;
 
+    // Initializes instances one after another, and lets its thread go when there are none to do
+    private static final ThreadPoolExecutor sInitExecutor =
+            new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new NamedThreadFactory("com.mixpanel.android.Init-"));
+    static {
+        sInitExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    // How long getters wait for startup, when they have to, before answering with what they have
+    private static final long INITIALIZATION_WAIT_MILLIS = 5 * 1000;
+
     private static final String LOGTAG = "MixpanelLiteAPI.API";
 }
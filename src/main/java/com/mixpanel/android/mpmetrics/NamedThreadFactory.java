@@ -0,0 +1,26 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes daemon threads named with a prefix and a count, so the library's background threads
+ * are easy to tell apart in a thread dump and never keep the process alive.
+ */
+/* package */ class NamedThreadFactory implements ThreadFactory {
+
+    public NamedThreadFactory(String namePrefix) {
+        mNamePrefix = namePrefix;
+        mCount = new AtomicInteger(0);
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        final Thread ret = new Thread(runnable, mNamePrefix + mCount.incrementAndGet());
+        ret.setDaemon(true);
+        return ret;
+    }
+
+    private final String mNamePrefix;
+    private final AtomicInteger mCount;
+}
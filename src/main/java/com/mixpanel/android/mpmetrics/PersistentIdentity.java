@@ -12,11 +12,17 @@ import org.json.JSONObject;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.UUID;
+import java.util.WeakHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 // In order to use writeEdits, we have to suppress the linter's check for commit()/apply()
 @SuppressLint("CommitPrefEdits")
@@ -40,7 +46,7 @@ import java.util.concurrent.Future;
         mLoadStoredPreferences = storedPreferences;
         mTimeEventsPreferences = timeEventsPreferences;
         mMixpanelPreferences = mixpanelPreferences;
-        mSuperPropertiesCache = null;
+        mSuperProperties = null;
         mReferrerPropertiesCache = null;
         mIdentitiesLoaded = false;
         mReferrerChangeListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
@@ -54,14 +60,10 @@ import java.util.concurrent.Future;
         };
     }
 
-    public synchronized void addSuperPropertiesToObject(JSONObject ob) {
-        final JSONObject superProperties = this.getSuperPropertiesCache();
-        final Iterator<?> superIter = superProperties.keys();
-        while (superIter.hasNext()) {
-            final String key = (String) superIter.next();
-
+    public void addSuperPropertiesToObject(JSONObject ob) {
+        for (final Map.Entry<String, Object> entry : getSuperProperties().getProperties().entrySet()) {
             try {
-                ob.put(key, superProperties.get(key));
+                ob.put(entry.getKey(), entry.getValue());
             } catch (JSONException e) {
                 MPLLog.e(LOGTAG, "Object read from one JSON Object cannot be written to another",
                         e);
@@ -69,30 +71,37 @@ import java.util.concurrent.Future;
         }
     }
 
+    /**
+     * @return the super properties, written out. Doesn't lock, so tracking never waits for
+     *     another thread to register super properties.
+     */
+    public EventWriter.Fragment getSuperPropertiesFragment() {
+        return getSuperProperties().getFragment();
+    }
+
     public synchronized void updateSuperProperties(SuperPropertyUpdate updates) {
-        final JSONObject oldPropCache = getSuperPropertiesCache();
         final JSONObject copy = new JSONObject();
+        addSuperPropertiesToObject(copy);
+
+        final JSONObject replacementCache = updates.update(copy);
+        if (null == replacementCache) {
+            MPLLog.w(LOGTAG, "An update to Mixpanel's super properties returned null, and will have no effect.");
+            return;
+        }
 
+        final Map<String, Object> replacement = new LinkedHashMap<String, Object>();
         try {
-            final Iterator<String> keys = oldPropCache.keys();
+            final Iterator<String> keys = replacementCache.keys();
             while (keys.hasNext()) {
                 final String k = keys.next();
-                final Object v = oldPropCache.get(k);
-                copy.put(k, v);
+                replacement.put(k, replacementCache.get(k));
             }
         } catch (JSONException e) {
             MPLLog.e(LOGTAG, "Can't copy from one JSONObject to another", e);
             return;
         }
 
-        final JSONObject replacementCache = updates.update(copy);
-        if (null == replacementCache) {
-            MPLLog.w(LOGTAG, "An update to Mixpanel's super properties returned null, and will have no effect.");
-            return;
-        }
-
-        mSuperPropertiesCache = replacementCache;
-        storeSuperProperties();
+        setSuperProperties(replacement);
     }
 
     public Map<String, String> getReferrerProperties() {
@@ -129,7 +138,7 @@ import java.util.concurrent.Future;
             final SharedPreferences.Editor prefsEdit = prefs.edit();
             prefsEdit.clear();
             writeEdits(prefsEdit);
-            readSuperProperties();
+            setSuperProperties(new LinkedHashMap<String, Object>());
             readIdentities();
         } catch (final ExecutionException e) {
             throw new RuntimeException(e.getCause());
@@ -139,7 +148,7 @@ import java.util.concurrent.Future;
     }
 
     public synchronized void registerSuperProperties(JSONObject superProperties) {
-        final JSONObject propCache = getSuperPropertiesCache();
+        final Map<String, Object> propCache = new LinkedHashMap<String, Object>(getSuperProperties().getProperties());
 
         for (final Iterator<?> iter = superProperties.keys(); iter.hasNext(); ) {
             final String key = (String) iter.next();
@@ -150,7 +159,7 @@ import java.util.concurrent.Future;
             }
         }
 
-        storeSuperProperties();
+        setSuperProperties(propCache);
     }
 
     public synchronized void storePushId(String registrationId) {
@@ -193,15 +202,18 @@ import java.util.concurrent.Future;
     }
 
     public synchronized void unregisterSuperProperty(String superPropertyName) {
-        final JSONObject propCache = getSuperPropertiesCache();
-        propCache.remove(superPropertyName);
-
-        storeSuperProperties();
+        final Map<String, Object> propCache = new LinkedHashMap<String, Object>(getSuperProperties().getProperties());
+        if (null != propCache.remove(superPropertyName)) {
+            setSuperProperties(propCache);
+        }
     }
 
     public Map<String, Long> getTimeEvents() {
         Map<String, Long> timeEvents = new HashMap<>();
 
+        // Changes to the file may still be waiting to be saved
+        awaitStores(mTimeEventsPreferences, mPendingTimeEventsStore);
+
         try {
             final SharedPreferences prefs = mTimeEventsPreferences.get();
 
@@ -209,49 +221,38 @@ import java.util.concurrent.Future;
             for (Map.Entry<String, ?> entry : allEntries.entrySet()) {
                 timeEvents.put(entry.getKey(), Long.valueOf(entry.getValue().toString()));
             }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
+        } catch (final ExecutionException e) {
+            MPLLog.e(LOGTAG, "Cannot read timed events from shared preferences.", e.getCause());
+        } catch (final InterruptedException e) {
+            MPLLog.e(LOGTAG, "Cannot read timed events from shared preferences.", e);
         }
 
         return timeEvents;
     }
 
-    // access is synchronized outside (mEventTimings)
+    // access is synchronized outside (mEventTimings). Only call this for events that are
+    // being timed, since it's saved to disk.
     public void removeTimeEvent(String timeEventName) {
-        try {
-            final SharedPreferences prefs = mTimeEventsPreferences.get();
-            final SharedPreferences.Editor editor = prefs.edit();
-            editor.remove(timeEventName);
-            writeEdits(editor);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
+        synchronized (mTimeEventChanges) {
+            mTimeEventChanges.put(timeEventName, null);
         }
+        scheduleStoreTimeEvents();
     }
 
     // access is synchronized outside (mEventTimings)
     public void addTimeEvent(String timeEventName, Long timeEventTimestamp) {
-        try {
-            final SharedPreferences prefs = mTimeEventsPreferences.get();
-            final SharedPreferences.Editor editor = prefs.edit();
-            editor.putLong(timeEventName, timeEventTimestamp);
-            writeEdits(editor);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
+        synchronized (mTimeEventChanges) {
+            mTimeEventChanges.put(timeEventName, timeEventTimestamp);
         }
+        scheduleStoreTimeEvents();
     }
 
     public synchronized void registerSuperPropertiesOnce(JSONObject superProperties) {
-        final JSONObject propCache = getSuperPropertiesCache();
+        final Map<String, Object> propCache = new LinkedHashMap<String, Object>(getSuperProperties().getProperties());
 
         for (final Iterator<?> iter = superProperties.keys(); iter.hasNext(); ) {
             final String key = (String) iter.next();
-            if (! propCache.has(key)) {
+            if (! propCache.containsKey(key)) {
                 try {
                     propCache.put(key, superProperties.get(key));
                 } catch (final JSONException e) {
@@ -260,12 +261,11 @@ import java.util.concurrent.Future;
             }
         }// for
 
-        storeSuperProperties();
+        setSuperProperties(propCache);
     }
 
     public synchronized void clearSuperProperties() {
-        mSuperPropertiesCache = new JSONObject();
-        storeSuperProperties();
+        setSuperProperties(new LinkedHashMap<String, Object>());
     }
 
     public synchronized boolean isFirstIntegration(String token) {
@@ -391,38 +391,71 @@ import java.util.concurrent.Future;
 
     //////////////////////////////////////////////////
 
-    // Must be called from a synchronized setting
-    private JSONObject getSuperPropertiesCache() {
-        if (null == mSuperPropertiesCache) {
-            readSuperProperties();
+    // Safe to call without holding the lock. Once loaded, the snapshot is only ever replaced.
+    private SuperProperties getSuperProperties() {
+        SuperProperties ret = mSuperProperties;
+        if (null == ret) {
+            // Waits outside the lock, since the store may be queued behind other instances' stores
+            awaitStores(mLoadStoredPreferences, mPendingSuperPropertiesStore);
+            synchronized (this) {
+                if (null == mSuperProperties) {
+                    readSuperProperties();
+                }
+                ret = mSuperProperties;
+            }
+        }
+        return ret;
+    }
+
+    // All access should be synchronized on this
+    private void setSuperProperties(Map<String, Object> properties) {
+        try {
+            mSuperProperties = new SuperProperties(++mSuperPropertiesVersion, properties);
+        } catch (final JSONException e) {
+            // Values that came out of a JSONObject can always be written
+            MPLLog.e(LOGTAG, "Cannot write super properties, they will not change", e);
+            return;
         }
-        return mSuperPropertiesCache;
+        scheduleStoreSuperProperties();
     }
 
     // All access should be synchronized on this
     private void readSuperProperties() {
+        final Map<String, Object> properties = new LinkedHashMap<String, Object>();
         try {
             final SharedPreferences prefs = mLoadStoredPreferences.get();
             final String props = prefs.getString("super_properties", "{}");
             MPLLog.v(LOGTAG, "Loading Super Properties " + props);
-            mSuperPropertiesCache = new JSONObject(props);
+            final JSONObject stored = new JSONObject(props);
+            final Iterator<String> keys = stored.keys();
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                properties.put(key, stored.get(key));
+            }
         } catch (final ExecutionException e) {
             MPLLog.e(LOGTAG, "Cannot load superProperties from SharedPreferences.", e.getCause());
         } catch (final InterruptedException e) {
             MPLLog.e(LOGTAG, "Cannot load superProperties from SharedPreferences.", e);
         } catch (final JSONException e) {
             MPLLog.e(LOGTAG, "Cannot parse stored superProperties");
-            storeSuperProperties();
-        } finally {
-            if (null == mSuperPropertiesCache) {
-                mSuperPropertiesCache = new JSONObject();
-            }
+            properties.clear();
+            setSuperProperties(properties);
+            return;
+        }
+
+        try {
+            mSuperProperties = new SuperProperties(++mSuperPropertiesVersion, properties);
+            mStoredSuperPropertiesVersion = mSuperPropertiesVersion;
+        } catch (final JSONException e) {
+            MPLLog.e(LOGTAG, "Cannot use stored superProperties");
+            setSuperProperties(new LinkedHashMap<String, Object>());
         }
     }
 
-    // All access should be synchronized on this
+    // All access should be synchronized on this. The map is filled in before it's published,
+    // and never changed after, so events can hold on to it.
     private void readReferrerProperties() {
-        mReferrerPropertiesCache = new HashMap<String, String>();
+        final Map<String, String> referrerProperties = new HashMap<String, String>();
 
         try {
             final SharedPreferences referrerPrefs = mLoadReferrerPreferences.get();
@@ -433,23 +466,37 @@ import java.util.concurrent.Future;
             for (final Map.Entry<String, ?> entry : prefsMap.entrySet()) {
                 final String prefsName = entry.getKey();
                 final Object prefsVal = entry.getValue();
-                mReferrerPropertiesCache.put(prefsName, prefsVal.toString());
+                referrerProperties.put(prefsName, prefsVal.toString());
             }
         } catch (final ExecutionException e) {
             MPLLog.e(LOGTAG, "Cannot load referrer properties from shared preferences.", e.getCause());
         } catch (final InterruptedException e) {
             MPLLog.e(LOGTAG, "Cannot load referrer properties from shared preferences.", e);
         }
+        mReferrerPropertiesCache = referrerProperties;
     }
 
-    // All access should be synchronized on this
-    private void storeSuperProperties() {
-        if (null == mSuperPropertiesCache) {
-            MPLLog.e(LOGTAG, "storeSuperProperties should not be called with uninitialized superPropertiesCache.");
+    // Changes that come in while a store is waiting to run are saved together
+    private void scheduleStoreSuperProperties() {
+        if (mStoreScheduled.compareAndSet(false, true)) {
+            mPendingSuperPropertiesStore = sStoreExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    mStoreScheduled.set(false);
+                    storeSuperProperties(mSuperProperties);
+                }
+            });
+            rememberStore(mLoadStoredPreferences, mPendingSuperPropertiesStore);
+        }
+    }
+
+    // Only called on sStoreExecutor
+    private void storeSuperProperties(SuperProperties snapshot) {
+        if (snapshot.getVersion() <= mStoredSuperPropertiesVersion) {
             return;
         }
 
-        final String props = mSuperPropertiesCache.toString();
+        final String props = snapshot.toString();
         MPLLog.v(LOGTAG, "Storing Super Properties " + props);
 
         try {
@@ -457,6 +504,7 @@ import java.util.concurrent.Future;
             final SharedPreferences.Editor editor = prefs.edit();
             editor.putString("super_properties", props);
             writeEdits(editor);
+            mStoredSuperPropertiesVersion = snapshot.getVersion();
         } catch (final ExecutionException e) {
             MPLLog.e(LOGTAG, "Cannot store superProperties in shared preferences.", e.getCause());
         } catch (final InterruptedException e) {
@@ -464,6 +512,113 @@ import java.util.concurrent.Future;
         }
     }
 
+    // Timed events that change while a store is waiting to run are saved together
+    private void scheduleStoreTimeEvents() {
+        if (mTimeEventsStoreScheduled.compareAndSet(false, true)) {
+            mPendingTimeEventsStore = sStoreExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    mTimeEventsStoreScheduled.set(false);
+                    storeTimeEvents();
+                }
+            });
+            rememberStore(mTimeEventsPreferences, mPendingTimeEventsStore);
+        }
+    }
+
+    // Only called on sStoreExecutor
+    private void storeTimeEvents() {
+        final Map<String, Long> changes;
+        synchronized (mTimeEventChanges) {
+            if (mTimeEventChanges.isEmpty()) {
+                return;
+            }
+            changes = new HashMap<String, Long>(mTimeEventChanges);
+            mTimeEventChanges.clear();
+        }
+
+        try {
+            final SharedPreferences prefs = mTimeEventsPreferences.get();
+            final SharedPreferences.Editor editor = prefs.edit();
+            for (final Map.Entry<String, Long> change : changes.entrySet()) {
+                if (null == change.getValue()) {
+                    editor.remove(change.getKey());
+                } else {
+                    editor.putLong(change.getKey(), change.getValue());
+                }
+            }
+            writeEdits(editor);
+        } catch (final ExecutionException e) {
+            MPLLog.e(LOGTAG, "Cannot store timed events in shared preferences.", e.getCause());
+            restoreTimeEventChanges(changes);
+        } catch (final InterruptedException e) {
+            MPLLog.e(LOGTAG, "Cannot store timed events in shared preferences.", e);
+            restoreTimeEventChanges(changes);
+        }
+    }
+
+    // Puts back changes that couldn't be saved, so the next store tries them again. Changes
+    // made since they were taken are newer, and win.
+    private void restoreTimeEventChanges(Map<String, Long> changes) {
+        synchronized (mTimeEventChanges) {
+            for (final Map.Entry<String, Long> change : changes.entrySet()) {
+                if (!mTimeEventChanges.containsKey(change.getKey())) {
+                    mTimeEventChanges.put(change.getKey(), change.getValue());
+                }
+            }
+        }
+    }
+
+    // Lets other instances reading the same file, for the same token, wait for this store.
+    // Doesn't wait for the file to load, so a store queued before then is only known to the
+    // instance that queued it.
+    private static void rememberStore(Future<SharedPreferences> loadPreferences, Future<?> store) {
+        if (!loadPreferences.isDone()) {
+            return;
+        }
+        try {
+            final SharedPreferences prefs = loadPreferences.get();
+            synchronized (sPendingStores) {
+                sPendingStores.put(prefs, store);
+            }
+        } catch (final ExecutionException e) {
+            // The store will find out, and log it
+        } catch (final InterruptedException e) {
+            // Can't happen, since it's done
+        }
+    }
+
+    // Waits for this instance's own store, and for the latest store to the same file by any
+    // instance, but not for stores to other files
+    private static void awaitStores(Future<SharedPreferences> loadPreferences, Future<?> ownStore) {
+        awaitStore(ownStore);
+        Future<?> latest = null;
+        try {
+            final SharedPreferences prefs = loadPreferences.get();
+            synchronized (sPendingStores) {
+                latest = sPendingStores.get(prefs);
+            }
+        } catch (final ExecutionException e) {
+            // Reading will find out, and log it
+        } catch (final InterruptedException e) {
+            MPLLog.e(LOGTAG, "Interrupted while waiting for preferences to load", e);
+        }
+        awaitStore(latest);
+    }
+
+    private static void awaitStore(Future<?> store) {
+        if (null == store) {
+            return;
+        }
+        try {
+            store.get();
+        } catch (final ExecutionException e) {
+            MPLLog.e(LOGTAG, "Waiting for pending changes to be stored failed", e.getCause());
+        } catch (final InterruptedException e) {
+            MPLLog.e(LOGTAG, "Interrupted while waiting for pending changes to be stored", e);
+        }
+    }
+
     // All access should be synchronized on this
     private void readIdentities() {
         SharedPreferences prefs = null;
@@ -504,24 +659,84 @@ import java.util.concurrent.Future;
         }
     }
 
+    private static ThreadPoolExecutor newStoreExecutor() {
+        final ThreadPoolExecutor ret = new ThreadPoolExecutor(1, 1, STORE_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("com.mixpanel.android.PrefsStore-"));
+        ret.allowCoreThreadTimeOut(true);
+        return ret;
+    }
+
     private static void writeEdits(final SharedPreferences.Editor editor) {
         editor.apply();
     }
 
+    /**
+     * An immutable snapshot of the super properties, written out once for every event that
+     * uses it. Changing the super properties replaces the snapshot.
+     */
+    /* package */ static class SuperProperties {
+        public SuperProperties(long version, Map<String, Object> properties) throws JSONException {
+            mVersion = version;
+            mFragment = new EventWriter.Fragment(properties);
+        }
+
+        /**
+         * @return a number that is larger for every newer snapshot
+         */
+        public long getVersion() {
+            return mVersion;
+        }
+
+        public EventWriter.Fragment getFragment() {
+            return mFragment;
+        }
+
+        public Map<String, Object> getProperties() {
+            return mFragment.getProperties();
+        }
+
+        /**
+         * @return the super properties as a JSON object, the form in which they're stored
+         */
+        @Override
+        public String toString() {
+            return mFragment.toString();
+        }
+
+        private final long mVersion;
+        private final EventWriter.Fragment mFragment;
+    }
+
     private final Future<SharedPreferences> mLoadStoredPreferences;
     private final Future<SharedPreferences> mLoadReferrerPreferences;
     private final Future<SharedPreferences> mTimeEventsPreferences;
     private final Future<SharedPreferences> mMixpanelPreferences;
     private final SharedPreferences.OnSharedPreferenceChangeListener mReferrerChangeListener;
-    private JSONObject mSuperPropertiesCache;
-    private Map<String, String> mReferrerPropertiesCache;
+    private volatile SuperProperties mSuperProperties;
+    private long mSuperPropertiesVersion;
+    private volatile long mStoredSuperPropertiesVersion;
+    private final AtomicBoolean mStoreScheduled = new AtomicBoolean(false);
+    private volatile Future<?> mPendingSuperPropertiesStore;
+    // Timed events to save, with null for those to remove
+    private final Map<String, Long> mTimeEventChanges = new HashMap<String, Long>();
+    private final AtomicBoolean mTimeEventsStoreScheduled = new AtomicBoolean(false);
+    private volatile Future<?> mPendingTimeEventsStore;
+    private volatile Map<String, String> mReferrerPropertiesCache;
     private boolean mIdentitiesLoaded;
     private String mEventsDistinctId;
     private static Integer sPreviousVersionCode;
     private static Boolean sIsFirstAppLaunch;
 
+    // Saves super properties and timed events off the threads that change them. The one thread
+    // goes away when there's nothing to save.
+    private static final ThreadPoolExecutor sStoreExecutor = newStoreExecutor();
+    // The latest store queued for each preferences file. Every instance for a token shares
+    // the same SharedPreferences objects.
+    private static final Map<SharedPreferences, Future<?>> sPendingStores = new WeakHashMap<SharedPreferences, Future<?>>();
+
     private static boolean sReferrerPrefsDirty = true;
     private static final Object sReferrerPrefsLock = new Object();
+    private static final long STORE_KEEP_ALIVE_SECONDS = 10;
     private static final String DELIMITER = ",";
     private static final String LOGTAG = "MixpanelLiteAPI.PIdentity";
 }
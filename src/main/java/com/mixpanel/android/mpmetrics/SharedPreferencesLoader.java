@@ -1,14 +1,27 @@
 package com.mixpanel.android.mpmetrics;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 
+/**
+ * Loads preference files in the background, so that the first read doesn't block on disk.
+ *
+ * <p>Each file is read from disk on the first getSharedPreferences() call for it, and files
+ * don't depend on one another, so they load side by side on a small pool of threads. A
+ * PersistentIdentity waits only for the file it reads first, not for the ones queued ahead
+ * of it. The threads go away once they've been idle for {@link #KEEP_ALIVE_SECONDS}, since
+ * all of the loading happens at startup.
+ */
 /* package */ class SharedPreferencesLoader {
 
     /* package */ interface OnPrefsLoadedListener {
@@ -16,7 +29,14 @@ import android.content.SharedPreferences;
     }
 
     public SharedPreferencesLoader() {
-        mExecutor = Executors.newSingleThreadExecutor();
+        this(KEEP_ALIVE_SECONDS * 1000);
+    }
+
+    /* package */ SharedPreferencesLoader(long keepAliveMillis) {
+        mLoaded = new ArrayList<String>();
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, keepAliveMillis, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("com.mixpanel.android.PrefsLoader-"));
+        mExecutor.allowCoreThreadTimeOut(true);
     }
 
     public Future<SharedPreferences> loadPreferences(Context context, String name, OnPrefsLoadedListener listener) {
@@ -26,7 +46,25 @@ import android.content.SharedPreferences;
         return task;
     }
 
-    private static class LoadSharedPreferences implements Callable<SharedPreferences> {
+    /**
+     * For logging and tests, the names of the preference files loaded so far, in the order
+     * they became ready. A file loaded more than once is listed once.
+     */
+    public List<String> getLoadOrder() {
+        synchronized (mLoaded) {
+            return Collections.unmodifiableList(new ArrayList<String>(mLoaded));
+        }
+    }
+
+    private void loaded(String name) {
+        synchronized (mLoaded) {
+            if (!mLoaded.contains(name)) {
+                mLoaded.add(name);
+            }
+        }
+    }
+
+    private class LoadSharedPreferences implements Callable<SharedPreferences> {
         public LoadSharedPreferences(Context context, String prefsName, OnPrefsLoadedListener listener) {
             mContext = context;
             mPrefsName = prefsName;
@@ -36,6 +74,10 @@ import android.content.SharedPreferences;
         @Override
         public SharedPreferences call() {
             final SharedPreferences ret = mContext.getSharedPreferences(mPrefsName, Context.MODE_PRIVATE);
+            // Since API 11, getSharedPreferences() returns before the file is read, and reads
+            // wait for it. Waiting here means the file really is ready when we say so.
+            ret.contains(READY_CHECK_KEY);
+            loaded(mPrefsName);
             if (null != mListener) {
                 mListener.onPrefsLoaded(ret);
             }
@@ -47,5 +89,11 @@ import android.content.SharedPreferences;
         private final OnPrefsLoadedListener mListener;
     }
 
-    private final Executor mExecutor;
+    private final List<String> mLoaded;
+    private final ThreadPoolExecutor mExecutor;
+
+    // One for each file an instance reads: referrer, per-token, time events and global
+    private static final int MAX_THREADS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+    private static final String READY_CHECK_KEY = "com.mixpanel.android.PrefsLoader.ready";
 }
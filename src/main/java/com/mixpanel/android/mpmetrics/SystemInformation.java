@@ -8,103 +8,158 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
 import android.telephony.TelephonyManager;
 import android.util.DisplayMetrics;
 import android.view.Display;
 import android.view.WindowManager;
 
+import com.mixpanel.android.util.ConnectivityMonitor;
 import com.mixpanel.android.util.MPLLog;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Abstracts away possibly non-present system information classes,
  * and handles permission-dependent queries for default system information.
+ *
+ * <p>The facts that can only change when the app is updated or the device reboots (the app's
+ * version and name, its hardware features and the display) take reflection and several
+ * binder calls to read. We read them once, and keep them in a small file. On the next cold
+ * start, if neither the app nor the boot has changed, we read the file instead, and read the
+ * facts from the system again later, when the main thread is idle, in case something we don't
+ * watch for has changed. Listeners are told if something had.
  */
 /* package */ class SystemInformation {
 
+    /* package */ interface SnapshotListener {
+        /**
+         * Called on the Mixpanel worker thread when the unchanging facts turn out to have
+         * changed since they were stored.
+         */
+        void onSnapshotChanged();
+    }
+
     /* package */ static SystemInformation getInstance(Context context) {
         synchronized (sInstanceLock) {
             if (null == sInstance) {
                 final Context appContext = context.getApplicationContext();
-                sInstance = new SystemInformation(appContext);
+                final File snapshotFile = new File(appContext.getCacheDir(), SNAPSHOT_FILE_NAME);
+                sInstance = new SystemInformation(appContext, snapshotFile, snapshotKey(appContext));
             }
         }
 
         return sInstance;
     }
 
-    private SystemInformation(Context context) {
+    /**
+     * @param snapshotFile where the unchanging facts are kept between runs
+     * @param snapshotKey the snapshot in snapshotFile is used only if it was written with this key
+     */
+    /* package */ SystemInformation(Context context, File snapshotFile, String snapshotKey) {
         mContext = context;
-
-        PackageManager packageManager = mContext.getPackageManager();
-
-        String foundAppVersionName = null;
-        Integer foundAppVersionCode = null;
-        try {
-            PackageInfo packageInfo = packageManager.getPackageInfo(mContext.getPackageName(), 0);
-            foundAppVersionName = packageInfo.versionName;
-            foundAppVersionCode = packageInfo.versionCode;
-        } catch (NameNotFoundException e) {
-            MPLLog.w(LOGTAG, "System information constructed with a context that apparently " +
-                    "doesn't exist.");
+        mConnectivityMonitor = ConnectivityMonitor.getInstance(context);
+        mSnapshotFile = snapshotFile;
+        mSnapshotKey = snapshotKey;
+        mListeners = new CopyOnWriteArrayList<SnapshotListener>();
+
+        final byte[] stored = readFile(snapshotFile);
+        final Snapshot snapshot = null == stored ? null : Snapshot.fromBytes(stored, snapshotKey);
+        if (null == snapshot) {
+            mSnapshot = Snapshot.read(context);
+            mLoadedFromFile = false;
+            writeFile(snapshotFile, mSnapshot.toBytes(snapshotKey));
+        } else {
+            mSnapshot = snapshot;
+            mLoadedFromFile = true;
+            revalidateWhenIdle(stored);
         }
+    }
 
-        ApplicationInfo applicationInfo = context.getApplicationInfo();
-        int appNameStringId = applicationInfo.labelRes;
+    public String getAppVersionName() { return mSnapshot.mAppVersionName; }
 
-        mAppVersionName = foundAppVersionName;
-        mAppVersionCode = foundAppVersionCode;
-        mAppName = appNameStringId == 0 ? applicationInfo.nonLocalizedLabel == null ? "Misc" : applicationInfo.nonLocalizedLabel.toString() : context.getString(appNameStringId);
+    public Integer getAppVersionCode() { return mSnapshot.mAppVersionCode; }
 
-        // We can't count on these features being available, since we need to
-        // run on old devices. Thus, the reflection fandango below...
-        Class<? extends PackageManager> packageManagerClass = packageManager.getClass();
+    public String getAppName() { return mSnapshot.mAppName; }
 
-        Method hasSystemFeatureMethod = null;
-        try {
-            hasSystemFeatureMethod = packageManagerClass.getMethod("hasSystemFeature", String.class);
-        } catch (NoSuchMethodException e) {
-            // Nothing, this is an expected outcome
-        }
+    public Boolean hasNFC() { return mSnapshot.mHasNFC; }
 
-        Boolean foundNFC = null;
-        Boolean foundTelephony = null;
-        if (null != hasSystemFeatureMethod) {
-            try {
-                foundNFC = (Boolean) hasSystemFeatureMethod.invoke(packageManager, "android.hardware.nfc");
-                foundTelephony = (Boolean) hasSystemFeatureMethod.invoke(packageManager, "android.hardware.telephony");
-            } catch (InvocationTargetException e) {
-                MPLLog.w(LOGTAG, "System version appeared to support PackageManager" +
-                        ".hasSystemFeature, but we were unable to call it.");
-            } catch (IllegalAccessException e) {
-                MPLLog.w(LOGTAG, "System version appeared to support PackageManager.hasSystemFeature, but we were unable to call it.");
-            }
-        }
+    public Boolean hasTelephony() { return mSnapshot.mHasTelephony; }
 
-        mHasNFC = foundNFC;
-        mHasTelephony = foundTelephony;
-        mDisplayMetrics = new DisplayMetrics();
+    public DisplayMetrics getDisplayMetrics() { return mSnapshot.mDisplayMetrics; }
 
-        Display display = ((WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
-        display.getMetrics(mDisplayMetrics);
-    }
+    /**
+     * @return true if the unchanging facts came from the snapshot file
+     */
+    /* package */ boolean isLoadedFromFile() { return mLoadedFromFile; }
 
-    public String getAppVersionName() { return mAppVersionName; }
-
-    public Integer getAppVersionCode() { return mAppVersionCode; }
-
-    public String getAppName() { return mAppName; }
-
-    public boolean hasNFC() { return mHasNFC; }
+    public void addListener(SnapshotListener listener) {
+        mListeners.add(listener);
+    }
 
-    public boolean hasTelephony() { return mHasTelephony; }
+    /**
+     * Reads the unchanging facts from the system again, and keeps them if they changed.
+     * Runs on the Mixpanel worker thread once the main thread is idle after a cold start.
+     */
+    /* package */ void revalidate(byte[] stored) {
+        final Snapshot fresh = Snapshot.read(mContext);
+        final byte[] freshBytes = fresh.toBytes(mSnapshotKey);
+        if (!Arrays.equals(stored, freshBytes)) {
+            MPLLog.v(LOGTAG, "Stored system information was out of date, replacing it");
+            mSnapshot = fresh;
+            writeFile(mSnapshotFile, freshBytes);
+            for (final SnapshotListener listener : mListeners) {
+                listener.onSnapshotChanged();
+            }
+        }
+    }
 
-    public DisplayMetrics getDisplayMetrics() { return mDisplayMetrics; }
+    private void revalidateWhenIdle(final byte[] stored) {
+        final Runnable revalidate = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    revalidate(stored);
+                } catch (final RuntimeException e) {
+                    MPLLog.w(LOGTAG, "Can't check stored system information", e);
+                }
+            }
+        };
+
+        // IdleHandlers can only be added to the current thread's queue,
+        // so get onto the main thread first.
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                    @Override
+                    public boolean queueIdle() {
+                        AnalyticsMessages.getInstance(mContext).backgroundMessage(revalidate);
+                        return false;
+                    }
+                });
+            }
+        });
+    }
 
     public String getPhoneRadioType() {
         String ret = null;
@@ -146,18 +201,12 @@ import java.lang.reflect.Method;
         return ret;
     }
 
-    @SuppressLint("MissingPermission")
-    @SuppressWarnings("MissingPermission")
     public Boolean isWifiConnected() {
-        Boolean ret = null;
-
-        if (PackageManager.PERMISSION_GRANTED == mContext.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE)) {
-            ConnectivityManager connManager = (ConnectivityManager) this.mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
-            NetworkInfo networkInfo = connManager.getActiveNetworkInfo();
-            ret = (networkInfo != null && networkInfo.getType() == ConnectivityManager.TYPE_WIFI && networkInfo.isConnected());
+        final ConnectivityMonitor.State state = mConnectivityMonitor.getState();
+        if (!state.isKnown()) {
+            return null;
         }
-
-        return ret;
+        return state.isWifiConnected();
     }
 
     @SuppressLint("MissingPermission")
@@ -183,16 +232,7 @@ import java.lang.reflect.Method;
         return isBluetoothEnabled;
     }
 
-    public String getBluetoothVersion() {
-        String bluetoothVersion = "none";
-        if(android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 &&
-                mContext.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
-            bluetoothVersion = "ble";
-        } else if(mContext.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH)) {
-            bluetoothVersion = "classic";
-        }
-        return bluetoothVersion;
-    }
+    public String getBluetoothVersion() { return mSnapshot.mBluetoothVersion; }
 
     public String getOrientation() {
         String orientation = "undefined";
@@ -207,17 +247,254 @@ import java.lang.reflect.Method;
     }
 
     private final Context mContext;
+    private final ConnectivityMonitor mConnectivityMonitor;
+    private final File mSnapshotFile;
+    private final String mSnapshotKey;
+    private final boolean mLoadedFromFile;
+    private volatile Snapshot mSnapshot;
+    private final List<SnapshotListener> mListeners;
+
+    /**
+     * Facts that only change when the app is updated or the device reboots. Written to and
+     * read from a small binary file by hand, so that loading it takes no reflection or parsing
+     * to speak of.
+     */
+    /* package */ static class Snapshot {
+
+        /**
+         * Reads the facts from the system. This is the slow part.
+         */
+        /* package */ static Snapshot read(Context context) {
+            final Snapshot ret = new Snapshot();
+            final PackageManager packageManager = context.getPackageManager();
+
+            try {
+                final PackageInfo packageInfo = packageManager.getPackageInfo(context.getPackageName(), 0);
+                ret.mAppVersionName = packageInfo.versionName;
+                ret.mAppVersionCode = packageInfo.versionCode;
+            } catch (NameNotFoundException e) {
+                MPLLog.w(LOGTAG, "System information constructed with a context that apparently " +
+                        "doesn't exist.");
+            }
+
+            final ApplicationInfo applicationInfo = context.getApplicationInfo();
+            final int appNameStringId = applicationInfo.labelRes;
+            ret.mAppName = appNameStringId == 0 ? applicationInfo.nonLocalizedLabel == null ? "Misc" : applicationInfo.nonLocalizedLabel.toString() : context.getString(appNameStringId);
 
-    // Unchanging facts
-    private final Boolean mHasNFC;
-    private final Boolean mHasTelephony;
-    private final DisplayMetrics mDisplayMetrics;
-    private final String mAppVersionName;
-    private final Integer mAppVersionCode;
-    private final String mAppName;
+            // We can't count on these features being available, since we need to
+            // run on old devices. Thus, the reflection fandango below...
+            final Class<? extends PackageManager> packageManagerClass = packageManager.getClass();
+
+            Method hasSystemFeatureMethod = null;
+            try {
+                hasSystemFeatureMethod = packageManagerClass.getMethod("hasSystemFeature", String.class);
+            } catch (NoSuchMethodException e) {
+                // Nothing, this is an expected outcome
+            }
+
+            if (null != hasSystemFeatureMethod) {
+                try {
+                    ret.mHasNFC = (Boolean) hasSystemFeatureMethod.invoke(packageManager, "android.hardware.nfc");
+                    ret.mHasTelephony = (Boolean) hasSystemFeatureMethod.invoke(packageManager, "android.hardware.telephony");
+                } catch (InvocationTargetException e) {
+                    MPLLog.w(LOGTAG, "System version appeared to support PackageManager" +
+                            ".hasSystemFeature, but we were unable to call it.");
+                } catch (IllegalAccessException e) {
+                    MPLLog.w(LOGTAG, "System version appeared to support PackageManager.hasSystemFeature, but we were unable to call it.");
+                }
+            }
+
+            ret.mBluetoothVersion = "none";
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 &&
+                    packageManager.hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
+                ret.mBluetoothVersion = "ble";
+            } else if (packageManager.hasSystemFeature(PackageManager.FEATURE_BLUETOOTH)) {
+                ret.mBluetoothVersion = "classic";
+            }
+
+            final Display display = ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
+            display.getMetrics(ret.mDisplayMetrics);
+
+            return ret;
+        }
+
+        /**
+         * @return the snapshot in bytes, or null if they aren't a snapshot of this format
+         *     written with key
+         */
+        /* package */ static Snapshot fromBytes(byte[] bytes, String key) {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            try {
+                if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_FORMAT_VERSION ||
+                        !key.equals(in.readUTF())) {
+                    return null;
+                }
+
+                final Snapshot ret = new Snapshot();
+                ret.mAppVersionName = in.readBoolean() ? in.readUTF() : null;
+                ret.mAppVersionCode = in.readBoolean() ? in.readInt() : null;
+                ret.mAppName = in.readUTF();
+                ret.mHasNFC = readOptionalBoolean(in);
+                ret.mHasTelephony = readOptionalBoolean(in);
+                ret.mBluetoothVersion = in.readUTF();
+                ret.mDisplayMetrics.density = in.readFloat();
+                ret.mDisplayMetrics.densityDpi = in.readInt();
+                ret.mDisplayMetrics.scaledDensity = in.readFloat();
+                ret.mDisplayMetrics.xdpi = in.readFloat();
+                ret.mDisplayMetrics.ydpi = in.readFloat();
+                ret.mDisplayMetrics.widthPixels = in.readInt();
+                ret.mDisplayMetrics.heightPixels = in.readInt();
+                return ret;
+            } catch (final IOException e) {
+                // Including EOFException, if the file was cut short
+                MPLLog.v(LOGTAG, "Can't read stored system information", e);
+                return null;
+            }
+        }
+
+        /* package */ byte[] toBytes(String key) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(SNAPSHOT_SIZE_ESTIMATE);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_FORMAT_VERSION);
+                out.writeUTF(key);
+                out.writeBoolean(null != mAppVersionName);
+                if (null != mAppVersionName) {
+                    out.writeUTF(mAppVersionName);
+                }
+                out.writeBoolean(null != mAppVersionCode);
+                if (null != mAppVersionCode) {
+                    out.writeInt(mAppVersionCode);
+                }
+                out.writeUTF(mAppName);
+                writeOptionalBoolean(out, mHasNFC);
+                writeOptionalBoolean(out, mHasTelephony);
+                out.writeUTF(mBluetoothVersion);
+                out.writeFloat(mDisplayMetrics.density);
+                out.writeInt(mDisplayMetrics.densityDpi);
+                out.writeFloat(mDisplayMetrics.scaledDensity);
+                out.writeFloat(mDisplayMetrics.xdpi);
+                out.writeFloat(mDisplayMetrics.ydpi);
+                out.writeInt(mDisplayMetrics.widthPixels);
+                out.writeInt(mDisplayMetrics.heightPixels);
+                out.flush();
+            } catch (final IOException e) {
+                throw new RuntimeException("Can't write to a byte array", e);
+            }
+            return bytes.toByteArray();
+        }
+
+        private static Boolean readOptionalBoolean(DataInputStream in) throws IOException {
+            final byte value = in.readByte();
+            return value < 0 ? null : Boolean.valueOf(value != 0);
+        }
+
+        private static void writeOptionalBoolean(DataOutputStream out, Boolean value) throws IOException {
+            out.writeByte(null == value ? -1 : (value ? 1 : 0));
+        }
+
+        private String mAppVersionName;
+        private Integer mAppVersionCode;
+        private String mAppName;
+        private Boolean mHasNFC;
+        private Boolean mHasTelephony;
+        private String mBluetoothVersion;
+        private final DisplayMetrics mDisplayMetrics = new DisplayMetrics();
+    }
+
+    /**
+     * A key that changes when the app is updated or the device reboots. Asking the package
+     * manager for the version code is one of the calls we're trying to save, so we look at
+     * the installed package file instead, which is replaced by every update.
+     */
+    /* package */ static String snapshotKey(Context context) {
+        final String sourceDir = context.getApplicationInfo().sourceDir;
+        final long installed = null == sourceDir ? 0 : new File(sourceDir).lastModified();
+        return readBootId() + "|" + Build.FINGERPRINT + "|" + sourceDir + "|" + installed;
+    }
+
+    private static String readBootId() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(BOOT_ID_PATH));
+            final String bootId = reader.readLine();
+            if (null != bootId) {
+                return bootId.trim();
+            }
+        } catch (final IOException e) {
+            // Fall through
+        } catch (final SecurityException e) {
+            // Fall through
+        } finally {
+            closeQuietly(reader);
+        }
+
+        // When the device booted, to the minute, which is close enough for a cache
+        final long bootMillis = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        return "boot-" + bootMillis / (60 * 1000);
+    }
+
+    private static byte[] readFile(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(SNAPSHOT_SIZE_ESTIMATE);
+            final byte[] buffer = new byte[SNAPSHOT_SIZE_ESTIMATE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        } catch (final IOException e) {
+            MPLLog.v(LOGTAG, "Can't read stored system information", e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    // Writes next to the file and renames, so a reader never sees half a snapshot
+    private static void writeFile(File file, byte[] bytes) {
+        final File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(bytes);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                MPLLog.w(LOGTAG, "Can't store system information in " + file);
+            }
+        } catch (final IOException e) {
+            MPLLog.w(LOGTAG, "Can't store system information", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (null != closeable) {
+            try {
+                closeable.close();
+            } catch (final IOException e) {
+                // Nothing more to do
+            }
+        }
+    }
 
     private static SystemInformation sInstance;
     private static final Object sInstanceLock = new Object();
 
+    private static final String SNAPSHOT_FILE_NAME = "com.mixpanel.android.SystemInformation";
+    private static final String BOOT_ID_PATH = "/proc/sys/kernel/random/boot_id";
+    private static final int SNAPSHOT_MAGIC = 0x4d505349; // "MPSI"
+    private static final int SNAPSHOT_FORMAT_VERSION = 1;
+    private static final int SNAPSHOT_SIZE_ESTIMATE = 256;
+
     private static final String LOGTAG = "MixpanelLiteAPI.SysInfo";
 }
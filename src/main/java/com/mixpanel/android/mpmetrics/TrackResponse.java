@@ -0,0 +1,82 @@
+package com.mixpanel.android.mpmetrics;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * What the /track endpoint said about a batch.
+ *
+ * <p>By default the endpoint answers "1" if it accepted the batch and "0" if it didn't.
+ * With verbose=1 it answers with a JSON object instead, like {"status": 0, "error": "..."}.
+ * Anything else, such as a page from a captive portal or a proxy in front of a custom
+ * endpoint, leaves us unsure whether the batch was ingested.
+ */
+/* package */ class TrackResponse {
+
+    public static final int ACCEPTED = 1;
+    public static final int REJECTED = 0;
+    public static final int UNRECOGNIZED = -1;
+
+    private TrackResponse(int status, String error) {
+        mStatus = status;
+        mError = error;
+    }
+
+    public static TrackResponse parse(byte[] response) {
+        final String body;
+        try {
+            body = new String(response, "UTF-8").trim();
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF not supported on this platform?", e);
+        }
+
+        if ("1".equals(body)) {
+            return new TrackResponse(ACCEPTED, null);
+        } else if ("0".equals(body)) {
+            return new TrackResponse(REJECTED, null);
+        } else if (body.startsWith("{")) {
+            try {
+                final JSONObject verbose = new JSONObject(body);
+                final int status = verbose.optInt("status", UNRECOGNIZED);
+                final String error = verbose.isNull("error") ? null : verbose.optString("error", null);
+                if (status == ACCEPTED || status == REJECTED) {
+                    return new TrackResponse(status, error);
+                }
+                return new TrackResponse(UNRECOGNIZED, error);
+            } catch (final JSONException e) {
+                // Falls through to unrecognized
+            }
+        }
+        return new TrackResponse(UNRECOGNIZED, null);
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public boolean isAccepted() {
+        return mStatus == ACCEPTED;
+    }
+
+    public boolean isRejected() {
+        return mStatus == REJECTED;
+    }
+
+    /**
+     * @return the server's explanation of a rejection. Only verbose responses have one.
+     */
+    public String getError() {
+        return mError;
+    }
+
+    @Override
+    public String toString() {
+        final String status = mStatus == ACCEPTED ? "accepted" : mStatus == REJECTED ? "rejected" : "unrecognized";
+        return null == mError ? status : status + " (" + mError + ")";
+    }
+
+    private final int mStatus;
+    private final String mError;
+}
@@ -0,0 +1,97 @@
+package com.mixpanel.android.mpmetrics;
+
+/**
+ * Running totals of what happened to the events we uploaded, so "sent" can be told apart from
+ * "ingested" on the device itself.
+ *
+ * <p>Counts are kept in memory for the life of the process. Thread safe.
+ */
+/* package */ class UploadMetrics {
+
+    /**
+     * Records a batch the server answered.
+     * @param eventCount number of events in the batch
+     * @param response what the server said about it
+     */
+    public synchronized void onBatchAnswered(int eventCount, TrackResponse response) {
+        mBatchesSent++;
+        if (response.isAccepted()) {
+            mBatchesAccepted++;
+            mEventsAccepted += eventCount;
+        } else if (response.isRejected()) {
+            mBatchesRejected++;
+            mLastError = response.getError();
+        } else {
+            mBatchesUnconfirmed++;
+            mEventsUnconfirmed += eventCount;
+        }
+    }
+
+    /**
+     * Records a batch refused with an HTTP error status.
+     */
+    public synchronized void onBatchRefused(int statusCode) {
+        mBatchesSent++;
+        mBatchesRejected++;
+        mLastError = "HTTP " + statusCode;
+    }
+
+    /**
+     * Records an event that was refused on its own, and set aside in the dead events table.
+     */
+    public synchronized void onEventQuarantined() {
+        mEventsRejected++;
+    }
+
+    public synchronized long getBatchesSent() {
+        return mBatchesSent;
+    }
+
+    public synchronized long getBatchesAccepted() {
+        return mBatchesAccepted;
+    }
+
+    public synchronized long getBatchesRejected() {
+        return mBatchesRejected;
+    }
+
+    public synchronized long getEventsAccepted() {
+        return mEventsAccepted;
+    }
+
+    public synchronized long getEventsRejected() {
+        return mEventsRejected;
+    }
+
+    /**
+     * @return the number of events in batches whose response we couldn't understand. They were
+     *     removed from the queue, but may or may not have been ingested.
+     */
+    public synchronized long getEventsUnconfirmed() {
+        return mEventsUnconfirmed;
+    }
+
+    /**
+     * @return the most recent reason the server gave for rejecting a batch, or null
+     */
+    public synchronized String getLastError() {
+        return mLastError;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "batches sent " + mBatchesSent + " (accepted " + mBatchesAccepted + ", rejected " + mBatchesRejected +
+                ", unconfirmed " + mBatchesUnconfirmed + "), events accepted " + mEventsAccepted +
+                ", rejected " + mEventsRejected + ", unconfirmed " + mEventsUnconfirmed +
+                (null == mLastError ? "" : ", last error: " + mLastError);
+    }
+
+    private long mBatchesSent;
+    private long mBatchesAccepted;
+    private long mBatchesRejected;
+    private long mBatchesUnconfirmed;
+    private long mEventsAccepted;
+    private long mEventsRejected;
+    private long mEventsUnconfirmed;
+    private String mLastError;
+}
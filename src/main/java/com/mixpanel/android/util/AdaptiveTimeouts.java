@@ -0,0 +1,184 @@
+package com.mixpanel.android.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Picks connect and read timeouts for each endpoint from what we've seen of the network.
+ *
+ * <p>For every endpoint we keep a smoothed estimate of connection setup time, round trip time
+ * and upload throughput, updated the way TCP updates its retransmission timer (RFC 6298).
+ * A request gets timeouts of a few deviations above the smoothed values, plus enough time to
+ * push its body through at the throughput we've measured. Each timeout doubles the next
+ * request's timeouts, up to a limit, and a successful exchange resets that backoff.
+ * All timeouts stay between the configured floor and ceiling.
+ *
+ * <p>Thread safe.
+ */
+public class AdaptiveTimeouts {
+
+    /**
+     * Creates estimates bounded by the default floors and ceilings.
+     */
+    public AdaptiveTimeouts() {
+        this(DEFAULT_MIN_CONNECT_TIMEOUT_MILLIS, DEFAULT_MAX_CONNECT_TIMEOUT_MILLIS,
+                DEFAULT_MIN_READ_TIMEOUT_MILLIS, DEFAULT_MAX_READ_TIMEOUT_MILLIS);
+    }
+
+    public AdaptiveTimeouts(int minConnectTimeoutMillis, int maxConnectTimeoutMillis,
+                            int minReadTimeoutMillis, int maxReadTimeoutMillis) {
+        mMinConnectTimeoutMillis = minConnectTimeoutMillis;
+        mMaxConnectTimeoutMillis = Math.max(minConnectTimeoutMillis, maxConnectTimeoutMillis);
+        mMinReadTimeoutMillis = minReadTimeoutMillis;
+        mMaxReadTimeoutMillis = Math.max(minReadTimeoutMillis, maxReadTimeoutMillis);
+        mEstimates = new HashMap<String, Estimate>();
+    }
+
+    /**
+     * @param endpoint identifies the server, such as "https://api.mixpanel.com"
+     * @return the connect timeout to use for the next request to endpoint
+     */
+    public synchronized int getConnectTimeoutMillis(String endpoint) {
+        final Estimate estimate = getEstimate(endpoint);
+        long timeout = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        if (estimate.mConnectSamples > 0) {
+            timeout = (long) (estimate.mSmoothedConnectMillis + DEVIATIONS * estimate.mConnectDeviationMillis);
+        }
+        return clamp(timeout * estimate.mBackoff, mMinConnectTimeoutMillis, mMaxConnectTimeoutMillis);
+    }
+
+    /**
+     * @param endpoint identifies the server, such as "https://api.mixpanel.com"
+     * @param bodyBytes number of bytes the request will put on the wire
+     * @return the read timeout to use for the next request to endpoint
+     */
+    public synchronized int getReadTimeoutMillis(String endpoint, long bodyBytes) {
+        final Estimate estimate = getEstimate(endpoint);
+        long timeout = DEFAULT_READ_TIMEOUT_MILLIS;
+        if (estimate.mRttSamples > 0) {
+            timeout = (long) (estimate.mSmoothedRttMillis + DEVIATIONS * estimate.mRttDeviationMillis);
+        } else if (estimate.mConnectSamples > 0) {
+            // Connection setup takes a few round trips, so it bounds the RTT from above
+            timeout = (long) (estimate.mSmoothedConnectMillis + DEVIATIONS * estimate.mConnectDeviationMillis);
+        }
+        if (estimate.mThroughputSamples > 0 && bodyBytes > 0) {
+            // Much of a body can sit in the socket's send buffer after the last write returns,
+            // so the wait for the response includes the time to drain it. Allow twice the
+            // time we'd expect that to take.
+            timeout += (long) (2 * bodyBytes / estimate.mBytesPerMilli);
+        }
+        return clamp(timeout * estimate.mBackoff, mMinReadTimeoutMillis, mMaxReadTimeoutMillis);
+    }
+
+    /**
+     * Records the time it took to set up a new connection, including DNS and TLS.
+     */
+    public synchronized void onConnected(String endpoint, long connectMillis) {
+        final Estimate estimate = getEstimate(endpoint);
+        if (estimate.mConnectSamples == 0) {
+            estimate.mSmoothedConnectMillis = connectMillis;
+            estimate.mConnectDeviationMillis = connectMillis / 2.0;
+        } else {
+            estimate.mConnectDeviationMillis = (1 - BETA) * estimate.mConnectDeviationMillis +
+                    BETA * Math.abs(estimate.mSmoothedConnectMillis - connectMillis);
+            estimate.mSmoothedConnectMillis = (1 - ALPHA) * estimate.mSmoothedConnectMillis + ALPHA * connectMillis;
+        }
+        estimate.mConnectSamples++;
+    }
+
+    /**
+     * Records a completed exchange.
+     *
+     * @param bodyBytes number of request body bytes put on the wire
+     * @param sendMillis time from having a connection to having written the whole request
+     * @param waitMillis time from having written the request to receiving response headers
+     */
+    public synchronized void onExchange(String endpoint, long bodyBytes, long sendMillis, long waitMillis) {
+        final Estimate estimate = getEstimate(endpoint);
+        estimate.mBackoff = 1;
+
+        // Big bodies spend part of the wait draining the send buffer, which would inflate the RTT.
+        // Small requests sample the round trip, big ones sample throughput.
+        if (bodyBytes < THROUGHPUT_SAMPLE_BYTES) {
+            if (estimate.mRttSamples == 0) {
+                estimate.mSmoothedRttMillis = waitMillis;
+                estimate.mRttDeviationMillis = waitMillis / 2.0;
+            } else {
+                estimate.mRttDeviationMillis = (1 - BETA) * estimate.mRttDeviationMillis +
+                        BETA * Math.abs(estimate.mSmoothedRttMillis - waitMillis);
+                estimate.mSmoothedRttMillis = (1 - ALPHA) * estimate.mSmoothedRttMillis + ALPHA * waitMillis;
+            }
+            estimate.mRttSamples++;
+        } else {
+            // Counting the server's time against the upload underestimates throughput,
+            // which errs on the side of longer timeouts.
+            final long transferMillis = Math.max(1, sendMillis + waitMillis - (long) estimate.mSmoothedRttMillis);
+            final double bytesPerMilli = (double) bodyBytes / transferMillis;
+            if (estimate.mThroughputSamples == 0) {
+                estimate.mBytesPerMilli = bytesPerMilli;
+            } else {
+                estimate.mBytesPerMilli = (1 - ALPHA) * estimate.mBytesPerMilli + ALPHA * bytesPerMilli;
+            }
+            estimate.mThroughputSamples++;
+        }
+    }
+
+    /**
+     * Records that a request to endpoint timed out, doubling the timeouts of the next one.
+     */
+    public synchronized void onTimeout(String endpoint) {
+        final Estimate estimate = getEstimate(endpoint);
+        estimate.mBackoff = Math.min(estimate.mBackoff * 2, MAX_BACKOFF);
+        MPLLog.v(LOGTAG, "Request to " + endpoint + " timed out, backing off timeouts by " + estimate.mBackoff + "x");
+    }
+
+    private Estimate getEstimate(String endpoint) {
+        Estimate estimate = mEstimates.get(endpoint);
+        if (null == estimate) {
+            estimate = new Estimate();
+            mEstimates.put(endpoint, estimate);
+        }
+        return estimate;
+    }
+
+    private static int clamp(long value, int min, int max) {
+        return (int) Math.max(min, Math.min(max, value));
+    }
+
+    private static class Estimate {
+        double mSmoothedConnectMillis;
+        double mConnectDeviationMillis;
+        int mConnectSamples;
+        double mSmoothedRttMillis;
+        double mRttDeviationMillis;
+        int mRttSamples;
+        double mBytesPerMilli;
+        int mThroughputSamples;
+        int mBackoff = 1;
+    }
+
+    private final int mMinConnectTimeoutMillis;
+    private final int mMaxConnectTimeoutMillis;
+    private final int mMinReadTimeoutMillis;
+    private final int mMaxReadTimeoutMillis;
+    private final Map<String, Estimate> mEstimates;
+
+    public static final int DEFAULT_MIN_CONNECT_TIMEOUT_MILLIS = 1000;
+    public static final int DEFAULT_MAX_CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    public static final int DEFAULT_MIN_READ_TIMEOUT_MILLIS = 3000;
+    public static final int DEFAULT_MAX_READ_TIMEOUT_MILLIS = 60 * 1000;
+
+    // Used until we have measurements, these are the timeouts HttpService has always used
+    private static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long DEFAULT_READ_TIMEOUT_MILLIS = 10000;
+
+    // Smoothing gains and deviation multiplier from RFC 6298
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    private static final int DEVIATIONS = 4;
+
+    private static final int MAX_BACKOFF = 8;
+    private static final long THROUGHPUT_SAMPLE_BYTES = 16 * 1024;
+
+    private static final String LOGTAG = "MixpanelLiteAPI.Timeouts";
+}
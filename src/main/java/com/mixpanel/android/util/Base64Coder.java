@@ -17,8 +17,12 @@ package com.mixpanel.android.util;
 //
 // This file has been modified from it's original version by Mixpanel, Inc
 
+import java.nio.charset.Charset;
+
 public class Base64Coder {
 
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
 	// Mapping table from 6-bit nibbles to Base64 characters.
 	private static char[] map1 = new char[64];
 	   static {
@@ -35,13 +39,13 @@ public class Base64Coder {
 	      for (int i=0; i<64; i++) map2[map1[i]] = (byte)i; }
 
 	/**
-	* Encodes a string into Base64 format.
+	* Encodes the UTF-8 bytes of a string into Base64 format.
 	* No blanks or line breaks are inserted.
 	* @param s  a String to be encoded.
 	* @return   A String with the Base64 encoded data.
 	*/
 	public static String encodeString (String s) {
-	   return new String(encode(s.getBytes())); }
+	   return new String(encode(s.getBytes(UTF_8))); }
 
 	/**
 	* Encodes a byte array into Base64 format.
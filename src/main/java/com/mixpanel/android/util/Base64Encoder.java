@@ -0,0 +1,88 @@
+package com.mixpanel.android.util;
+
+/**
+ * Encodes bytes as standard, padded Base64 (RFC 4648) into an array the caller owns.
+ *
+ * <p>Encoding works on three input bytes at a time. The 24 bits are split in two, and each
+ * half is looked up in a table of all 4096 possible symbol pairs, so every group costs two
+ * table reads rather than four.
+ *
+ * <p>Thread safe.
+ */
+public class Base64Encoder {
+
+    /**
+     * @return the number of bytes encoding length bytes produces, including padding
+     */
+    public static int encodedLength(int length) {
+        return ((length + 2) / 3) * 4;
+    }
+
+    /**
+     * Encodes length bytes of src, starting at srcOffset, into dst starting at dstOffset.
+     *
+     * @return the number of bytes written, which is {@link #encodedLength(int)}
+     * @throws IndexOutOfBoundsException if either range is out of bounds. Nothing is written.
+     */
+    public static int encode(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        final int outLength = encodedLength(length);
+        if (srcOffset < 0 || length < 0 || srcOffset > src.length - length ||
+                dstOffset < 0 || dstOffset > dst.length - outLength) {
+            throw new IndexOutOfBoundsException("Can't encode " + length + " bytes at " + srcOffset + " of " +
+                    src.length + " into " + dst.length + " bytes at " + dstOffset);
+        }
+
+        final int remainder = length % 3;
+        final int end = srcOffset + length - remainder;
+        int out = encodeGroups(src, srcOffset, end, dst, dstOffset);
+        if (remainder > 0) {
+            out = encodeTail(src, end, remainder, dst, out);
+        }
+        return out - dstOffset;
+    }
+
+    // Encodes src[from, to), where to - from is a multiple of three. Returns the new dst offset.
+    private static int encodeGroups(byte[] src, int from, int to, byte[] dst, int out) {
+        final byte[] pairs = PAIRS;
+        for (int i = from; i < to; i += 3) {
+            final int bits = ((src[i] & 0xff) << 16) | ((src[i + 1] & 0xff) << 8) | (src[i + 2] & 0xff);
+            final int high = (bits >>> 12) << 1;
+            final int low = (bits & 0xfff) << 1;
+            dst[out] = pairs[high];
+            dst[out + 1] = pairs[high + 1];
+            dst[out + 2] = pairs[low];
+            dst[out + 3] = pairs[low + 1];
+            out += 4;
+        }
+        return out;
+    }
+
+    // Encodes and pads the last one or two bytes of the input. Returns the new dst offset.
+    private static int encodeTail(byte[] src, int from, int count, byte[] dst, int out) {
+        final int b0 = src[from] & 0xff;
+        final int b1 = count > 1 ? src[from + 1] & 0xff : 0;
+        dst[out] = ALPHABET[b0 >>> 2];
+        dst[out + 1] = ALPHABET[((b0 & 0x3) << 4) | (b1 >>> 4)];
+        dst[out + 2] = count > 1 ? ALPHABET[(b1 & 0xf) << 2] : PAD;
+        dst[out + 3] = PAD;
+        return out + 4;
+    }
+
+    /* package */ static final byte[] ALPHABET = {
+        'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M',
+        'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
+        'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm',
+        'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '+', '/'
+    };
+    private static final byte PAD = '=';
+
+    // The two symbols for every 12 bit value, side by side. 8KB, built once.
+    private static final byte[] PAIRS = new byte[2 * 4096];
+    static {
+        for (int i = 0; i < 4096; i++) {
+            PAIRS[2 * i] = ALPHABET[i >>> 6];
+            PAIRS[2 * i + 1] = ALPHABET[i & 0x3f];
+        }
+    }
+}
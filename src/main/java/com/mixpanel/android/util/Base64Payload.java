@@ -0,0 +1,57 @@
+package com.mixpanel.android.util;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A request parameter value holding raw bytes that should be sent Base64 encoded.
+ *
+ * <p>{@link HttpService} recognizes these values and streams the encoded form of the bytes
+ * directly into the connection, without ever building the encoded String. Other
+ * {@link RemoteService} implementations are given the Base64 text from {@link #toString()}
+ * instead, as they always were.
+ */
+public class Base64Payload {
+
+    /**
+     * @param data the bytes to send. The array is not copied, and should not be changed
+     *     while the payload is in use.
+     */
+    public Base64Payload(byte[] data) {
+        this(data, data.length);
+    }
+
+    /**
+     * @param data an array holding the bytes to send. The array is not copied, and should not
+     *     be changed while the payload is in use.
+     * @param length number of bytes of data, starting at index 0, to send
+     */
+    public Base64Payload(byte[] data, int length) {
+        if (length < 0 || length > data.length) {
+            throw new IllegalArgumentException("Length " + length + " is out of range for " + data.length + " bytes of data");
+        }
+        mData = data;
+        mLength = length;
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    @Override
+    public String toString() {
+        final byte[] encoded = new byte[Base64Encoder.encodedLength(mLength)];
+        Base64Encoder.encode(mData, 0, mLength, encoded, 0);
+        try {
+            return new String(encoded, "US-ASCII");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("ASCII not supported on this platform?", e);
+        }
+    }
+
+    private final byte[] mData;
+    private final int mLength;
+}
@@ -0,0 +1,29 @@
+package com.mixpanel.android.util;
+
+import android.content.Context;
+
+/**
+ * A {@link RemoteService} that can use what the library knows about the requests it's about to
+ * make. The library checks for this interface, so a RemoteService written against the plain
+ * interface keeps working, and gets the plain calls.
+ */
+public interface ConnectionAwareRemoteService extends RemoteService {
+    /**
+     * Checks whether Mixpanel's hosts are blocked on this device, and warms DNS for
+     * eventsEndpoint. Results are cached, so this is cheap to call before every flush, but it
+     * may block on DNS lookups and must not be called from the main thread.
+     *
+     * @param context used to watch for network changes, which invalidate the cached result
+     * @param eventsEndpoint the URL events will be posted to
+     */
+    void checkIsMixpanelBlocked(Context context, String eventsEndpoint);
+
+    /**
+     * Tells the service whether more requests are expected right after the current one, as
+     * when draining a backlog in batches. Implementations that pool connections may keep a warm
+     * connection to the endpoint while this is true, and should let it go once it is false.
+     *
+     * @param expectingMore true if another request will follow shortly
+     */
+    void setExpectingMoreRequests(boolean expectingMore);
+}
@@ -0,0 +1,239 @@
+package com.mixpanel.android.util;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tracks the device's network connectivity for the whole process.
+ *
+ * <p>The monitor subscribes to connectivity changes once, and keeps the latest state in an
+ * immutable snapshot, so asking whether we're online or on wifi costs a volatile read rather
+ * than a permission check and a binder call. Listeners are told when the snapshot changes.
+ */
+public class ConnectivityMonitor {
+
+    /**
+     * Receives connectivity changes. Called on the thread that noticed the change, usually the
+     * main thread, so implementations should return quickly.
+     */
+    public interface ConnectivityListener {
+        void onConnectivityChanged(State previous, State current);
+    }
+
+    /**
+     * An immutable snapshot of the device's connectivity.
+     */
+    public static class State {
+        /* package */ State(boolean known, boolean hasActiveNetwork, boolean connected,
+                            boolean connectedOrConnecting, int type, boolean metered) {
+            mKnown = known;
+            mHasActiveNetwork = hasActiveNetwork;
+            mConnected = connected;
+            mConnectedOrConnecting = connectedOrConnecting;
+            mType = type;
+            mMetered = metered;
+        }
+
+        /**
+         * @return false if we don't have ACCESS_NETWORK_STATE, in which case nothing else
+         *     in this snapshot is meaningful
+         */
+        public boolean isKnown() {
+            return mKnown;
+        }
+
+        /**
+         * @return false if the platform hasn't picked a default network
+         */
+        public boolean hasActiveNetwork() {
+            return mHasActiveNetwork;
+        }
+
+        /**
+         * @return true unless we know for certain that there is no usable network. When the
+         *     state isn't known, or there is no default network, we assume we are online.
+         */
+        public boolean isOnline() {
+            return !mKnown || !mHasActiveNetwork || mConnectedOrConnecting;
+        }
+
+        /**
+         * @return true if the active network is connected
+         */
+        public boolean isConnected() {
+            return mConnected;
+        }
+
+        /**
+         * @return one of the ConnectivityManager.TYPE_* constants, or {@link #TYPE_NONE}
+         */
+        public int getType() {
+            return mType;
+        }
+
+        public boolean isWifiConnected() {
+            return mConnected && mType == ConnectivityManager.TYPE_WIFI;
+        }
+
+        /**
+         * @return true if the active network may charge the user for data
+         */
+        public boolean isMetered() {
+            return mMetered;
+        }
+
+        private boolean sameAs(State other) {
+            return mKnown == other.mKnown &&
+                    mHasActiveNetwork == other.mHasActiveNetwork &&
+                    mConnected == other.mConnected &&
+                    mConnectedOrConnecting == other.mConnectedOrConnecting &&
+                    mType == other.mType &&
+                    mMetered == other.mMetered;
+        }
+
+        @Override
+        public String toString() {
+            if (!mKnown) {
+                return "unknown";
+            } else if (!mHasActiveNetwork) {
+                return "no default network";
+            }
+            return "type " + mType + (mConnected ? ", connected" : mConnectedOrConnecting ? ", connecting" : ", disconnected") +
+                    (mMetered ? ", metered" : "");
+        }
+
+        public static final int TYPE_NONE = -1;
+
+        private final boolean mKnown;
+        private final boolean mHasActiveNetwork;
+        private final boolean mConnected;
+        private final boolean mConnectedOrConnecting;
+        private final int mType;
+        private final boolean mMetered;
+    }
+
+    public static ConnectivityMonitor getInstance(Context context) {
+        synchronized (sInstanceLock) {
+            if (null == sInstance) {
+                sInstance = new ConnectivityMonitor(context.getApplicationContext());
+            }
+        }
+        return sInstance;
+    }
+
+    // Tests create their own monitors. Everything else should use getInstance().
+    /* package */ ConnectivityMonitor(Context context) {
+        mContext = context;
+        mListeners = new CopyOnWriteArrayList<ConnectivityListener>();
+        mHasPermission = PackageManager.PERMISSION_GRANTED ==
+                context.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE);
+        mState = readState();
+
+        boolean watching = false;
+        if (mHasPermission) {
+            try {
+                context.registerReceiver(new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        refresh();
+                    }
+                }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+                watching = true;
+            } catch (final RuntimeException e) {
+                MPLLog.v(LOGTAG, "Can't watch for network changes, will query connectivity on demand", e);
+            }
+        }
+        mWatching = watching;
+    }
+
+    /**
+     * @return the latest connectivity snapshot. Cheap, and safe to call from any thread.
+     */
+    public State getState() {
+        if (mHasPermission && !mWatching) {
+            refresh();
+        }
+        return mState;
+    }
+
+    public void addListener(ConnectivityListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(ConnectivityListener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void refresh() {
+        final State current = readState();
+        final State previous;
+        synchronized (this) {
+            previous = mState;
+            if (previous.sameAs(current)) {
+                return;
+            }
+            mState = current;
+        }
+
+        MPLLog.v(LOGTAG, "Connectivity changed from " + previous + " to " + current);
+        for (final ConnectivityListener listener : mListeners) {
+            listener.onConnectivityChanged(previous, current);
+        }
+    }
+
+    private State readState() {
+        if (!mHasPermission) {
+            return UNKNOWN;
+        }
+        return queryState();
+    }
+
+    // Asks the platform, which we may only do with ACCESS_NETWORK_STATE. Overridden in tests.
+    @SuppressLint("MissingPermission")
+    @SuppressWarnings("MissingPermission")
+    /* package */ State queryState() {
+        try {
+            final ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+            final NetworkInfo netInfo = cm.getActiveNetworkInfo();
+            if (null == netInfo) {
+                return new State(true, false, false, false, State.TYPE_NONE, false);
+            }
+
+            final boolean metered;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                metered = cm.isActiveNetworkMetered();
+            } else {
+                metered = netInfo.getType() != ConnectivityManager.TYPE_WIFI &&
+                        netInfo.getType() != ConnectivityManager.TYPE_ETHERNET;
+            }
+            return new State(true, true, netInfo.isConnected(), netInfo.isConnectedOrConnecting(),
+                    netInfo.getType(), metered);
+        } catch (final SecurityException e) {
+            MPLLog.v(LOGTAG, "Don't have permission to check connectivity", e);
+            return UNKNOWN;
+        }
+    }
+
+    private final Context mContext;
+    private final boolean mHasPermission;
+    private final boolean mWatching;
+    private final List<ConnectivityListener> mListeners;
+    private volatile State mState;
+
+    private static ConnectivityMonitor sInstance;
+    private static final Object sInstanceLock = new Object();
+    private static final State UNKNOWN = new State(false, false, false, false, State.TYPE_NONE, false);
+
+    private static final String LOGTAG = "MixpanelLiteAPI.Connectivity";
+}
@@ -0,0 +1,34 @@
+package com.mixpanel.android.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that counts the bytes written through it to the wrapped stream.
+ */
+/* package */ class CountingOutputStream extends FilterOutputStream {
+
+    public CountingOutputStream(OutputStream out) {
+        super(out);
+        mCount = 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        mCount++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        mCount += len;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    private long mCount;
+}
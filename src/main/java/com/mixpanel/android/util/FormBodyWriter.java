@@ -0,0 +1,246 @@
+package com.mixpanel.android.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Writes request parameters as an application/x-www-form-urlencoded body directly to an
+ * OutputStream, using a single fixed buffer.
+ *
+ * <p>The output is byte-for-byte what {@code Uri.Builder.appendQueryParameter(...).getEncodedQuery()}
+ * would produce, but without building the query String or its byte[] copies.
+ * {@link Base64Payload} values are Base64 and URL encoded in the same pass, so a payload
+ * goes from its raw bytes to the wire with no intermediate copies at all.
+ *
+ * <p>Not thread-safe. Instances should only be used by a single thread.
+ */
+/* package */ class FormBodyWriter {
+
+    public FormBodyWriter() {
+        mBuffer = new byte[BUFFER_SIZE];
+        mPosition = 0;
+    }
+
+    /**
+     * Computes the exact number of bytes {@link #write(Map, OutputStream)} will produce
+     * for the given parameters, without encoding anything.
+     */
+    public long contentLength(Map<String, Object> params) {
+        long length = 0;
+        boolean first = true;
+        for (final Map.Entry<String, Object> param : params.entrySet()) {
+            if (!first) {
+                length++; // '&'
+            }
+            first = false;
+
+            length += encodedLength(param.getKey());
+            length++; // '='
+            final Object value = param.getValue();
+            if (value instanceof Base64Payload) {
+                final Base64Payload payload = (Base64Payload) value;
+                length += encodedBase64Length(payload.getData(), payload.getLength());
+            } else {
+                length += encodedLength(value.toString());
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes the encoded parameters to out. Does not flush or close out.
+     */
+    public void write(Map<String, Object> params, OutputStream out) throws IOException {
+        mPosition = 0;
+        boolean first = true;
+        for (final Map.Entry<String, Object> param : params.entrySet()) {
+            if (!first) {
+                put(out, (byte) '&');
+            }
+            first = false;
+
+            writeEncoded(param.getKey(), out);
+            put(out, (byte) '=');
+            final Object value = param.getValue();
+            if (value instanceof Base64Payload) {
+                final Base64Payload payload = (Base64Payload) value;
+                writeBase64(payload.getData(), payload.getLength(), out);
+            } else {
+                writeEncoded(value.toString(), out);
+            }
+        }
+        drain(out);
+    }
+
+    /* package */ static long encodedBase64Length(byte[] data, int length) {
+        final int remainder = length % 3;
+        final int whole = length - remainder;
+        long ret = 0;
+        for (int i = 0; i < whole; i += 3) {
+            final int bits = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8) | (data[i + 2] & 0xff);
+            ret += ENCODED_SYMBOL_LENGTH[bits >>> 18]
+                 + ENCODED_SYMBOL_LENGTH[(bits >>> 12) & 0x3f]
+                 + ENCODED_SYMBOL_LENGTH[(bits >>> 6) & 0x3f]
+                 + ENCODED_SYMBOL_LENGTH[bits & 0x3f];
+        }
+        if (remainder == 1) {
+            final int bits = (data[whole] & 0xff) << 16;
+            ret += ENCODED_SYMBOL_LENGTH[bits >>> 18]
+                 + ENCODED_SYMBOL_LENGTH[(bits >>> 12) & 0x3f]
+                 + 2 * ENCODED_PAD.length;
+        } else if (remainder == 2) {
+            final int bits = ((data[whole] & 0xff) << 16) | ((data[whole + 1] & 0xff) << 8);
+            ret += ENCODED_SYMBOL_LENGTH[bits >>> 18]
+                 + ENCODED_SYMBOL_LENGTH[(bits >>> 12) & 0x3f]
+                 + ENCODED_SYMBOL_LENGTH[(bits >>> 6) & 0x3f]
+                 + ENCODED_PAD.length;
+        }
+        return ret;
+    }
+
+    private void writeBase64(byte[] data, int length, OutputStream out) throws IOException {
+        final int remainder = length % 3;
+        final int whole = length - remainder;
+        for (int i = 0; i < whole; i += 3) {
+            // Worst case, four symbols that all need percent-encoding
+            if (mPosition > mBuffer.length - 12) {
+                drain(out);
+            }
+            final int bits = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8) | (data[i + 2] & 0xff);
+            putSymbol(bits >>> 18);
+            putSymbol((bits >>> 12) & 0x3f);
+            putSymbol((bits >>> 6) & 0x3f);
+            putSymbol(bits & 0x3f);
+        }
+
+        if (mPosition > mBuffer.length - 12) {
+            drain(out);
+        }
+        if (remainder == 1) {
+            final int bits = (data[whole] & 0xff) << 16;
+            putSymbol(bits >>> 18);
+            putSymbol((bits >>> 12) & 0x3f);
+            putPad();
+            putPad();
+        } else if (remainder == 2) {
+            final int bits = ((data[whole] & 0xff) << 16) | ((data[whole + 1] & 0xff) << 8);
+            putSymbol(bits >>> 18);
+            putSymbol((bits >>> 12) & 0x3f);
+            putSymbol((bits >>> 6) & 0x3f);
+            putPad();
+        }
+    }
+
+    private void putSymbol(int sixBits) {
+        final byte symbol = Base64Encoder.ALPHABET[sixBits];
+        if (ENCODED_SYMBOL_LENGTH[sixBits] == 1) {
+            mBuffer[mPosition++] = symbol;
+        } else {
+            mBuffer[mPosition++] = '%';
+            mBuffer[mPosition++] = HEX[(symbol >> 4) & 0xf];
+            mBuffer[mPosition++] = HEX[symbol & 0xf];
+        }
+    }
+
+    private void putPad() {
+        for (int i = 0; i < ENCODED_PAD.length; i++) {
+            mBuffer[mPosition++] = ENCODED_PAD[i];
+        }
+    }
+
+    // Percent-encodes the UTF-8 bytes of s, with the same unreserved set as android.net.Uri.encode
+    private void writeEncoded(String s, OutputStream out) throws IOException {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (isUnreserved(c)) {
+                put(out, (byte) c);
+            } else if (c < 0x80) {
+                putEscaped(out, c);
+            } else if (c < 0x800) {
+                putEscaped(out, 0xc0 | (c >> 6));
+                putEscaped(out, 0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, s.charAt(i + 1));
+                i++;
+                putEscaped(out, 0xf0 | (codePoint >> 18));
+                putEscaped(out, 0x80 | ((codePoint >> 12) & 0x3f));
+                putEscaped(out, 0x80 | ((codePoint >> 6) & 0x3f));
+                putEscaped(out, 0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                putEscaped(out, '?'); // Unpaired surrogate, as String.getBytes("UTF-8") would do
+            } else {
+                putEscaped(out, 0xe0 | (c >> 12));
+                putEscaped(out, 0x80 | ((c >> 6) & 0x3f));
+                putEscaped(out, 0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private static long encodedLength(String s) {
+        final int length = s.length();
+        long ret = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (isUnreserved(c)) {
+                ret += 1;
+            } else if (c < 0x80) {
+                ret += 3;
+            } else if (c < 0x800) {
+                ret += 6;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                i++;
+                ret += 12;
+            } else if (Character.isSurrogate(c)) {
+                ret += 3;
+            } else {
+                ret += 9;
+            }
+        }
+        return ret;
+    }
+
+    private static boolean isUnreserved(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || UNRESERVED_PUNCTUATION.indexOf(c) >= 0;
+    }
+
+    private void put(OutputStream out, byte b) throws IOException {
+        if (mPosition == mBuffer.length) {
+            drain(out);
+        }
+        mBuffer[mPosition++] = b;
+    }
+
+    private void putEscaped(OutputStream out, int b) throws IOException {
+        if (mPosition > mBuffer.length - 3) {
+            drain(out);
+        }
+        mBuffer[mPosition++] = '%';
+        mBuffer[mPosition++] = HEX[(b >> 4) & 0xf];
+        mBuffer[mPosition++] = HEX[b & 0xf];
+    }
+
+    private void drain(OutputStream out) throws IOException {
+        if (mPosition > 0) {
+            out.write(mBuffer, 0, mPosition);
+            mPosition = 0;
+        }
+    }
+
+    private final byte[] mBuffer;
+    private int mPosition;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final String UNRESERVED_PUNCTUATION = "_-!.~'()*";
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+    private static final byte[] ENCODED_PAD = "%3D".getBytes();
+
+    // Length of each Base64 symbol once URL encoded: one byte, or three for '+' and '/'
+    private static final int[] ENCODED_SYMBOL_LENGTH = new int[64];
+    static {
+        for (int i = 0; i < Base64Encoder.ALPHABET.length; i++) {
+            ENCODED_SYMBOL_LENGTH[i] = isUnreserved((char) Base64Encoder.ALPHABET[i]) ? 1 : 3;
+        }
+    }
+}
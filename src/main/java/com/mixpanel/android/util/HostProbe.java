@@ -0,0 +1,151 @@
+package com.mixpanel.android.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Resolves Mixpanel's hosts to find out whether an ad blocker has pointed them at this device,
+ * and keeps the platform resolver warm for the events endpoint while it's at it.
+ *
+ * <p>There is one probe per process, shared by every HttpService. Results are cached, and
+ * the hosts are looked up again only when the cache expires or the device changes networks.
+ * A probe does blocking DNS lookups, so {@link #probeIfStale(String)} must be called from a
+ * background thread. {@link #isMixpanelBlocked()} is cheap and can be called from anywhere.
+ */
+/* package */ class HostProbe {
+
+    /* package */ static HostProbe getInstance(Context context) {
+        synchronized (sInstanceLock) {
+            if (null == sInstance) {
+                sInstance = new HostProbe(context.getApplicationContext());
+            }
+        }
+        return sInstance;
+    }
+
+    private HostProbe(Context context) {
+        this();
+        ConnectivityMonitor.getInstance(context).addListener(new ConnectivityMonitor.ConnectivityListener() {
+            @Override
+            public void onConnectivityChanged(ConnectivityMonitor.State previous, ConnectivityMonitor.State current) {
+                invalidate();
+            }
+        });
+    }
+
+    // For tests, a probe that isn't told about network changes
+    /* package */ HostProbe() {
+        mNextProbeTime = 0;
+    }
+
+    /**
+     * @return true if the last probe found Mixpanel's hosts resolving to this device
+     */
+    public boolean isMixpanelBlocked() {
+        return mIsMixpanelBlocked;
+    }
+
+    /**
+     * Looks up Mixpanel's hosts, and the host of eventsEndpoint, unless a recent probe on the
+     * current network already did. Blocks for the duration of the lookups.
+     *
+     * @param eventsEndpoint the URL events will be posted to, or null
+     */
+    public synchronized void probeIfStale(String eventsEndpoint) {
+        final long now = SystemClock.elapsedRealtime();
+        if (now < mNextProbeTime) {
+            return;
+        }
+        final int generation = mGeneration;
+
+        final Set<String> warmHosts = new LinkedHashSet<String>();
+        if (null != eventsEndpoint) {
+            final String eventsHost = Uri.parse(eventsEndpoint).getHost();
+            if (null != eventsHost) {
+                warmHosts.add(eventsHost);
+            }
+        }
+        warmHosts.remove(API_HOST);
+        warmHosts.remove(DECIDE_HOST);
+
+        try {
+            final InetAddress apiMixpanelInet = resolve(API_HOST);
+            final InetAddress decideMixpanelInet = resolve(DECIDE_HOST);
+            final boolean blocked = isLocal(apiMixpanelInet) || isLocal(decideMixpanelInet);
+            if (blocked != mIsMixpanelBlocked) {
+                if (blocked) {
+                    MPLLog.v(LOGTAG, "AdBlocker is enabled. Won't be able to use Mixpanel services.");
+                } else {
+                    MPLLog.v(LOGTAG, "Mixpanel services are no longer blocked.");
+                }
+            }
+            mIsMixpanelBlocked = blocked;
+            expireAfter(generation, now + PROBE_TTL_MILLIS);
+        } catch (final UnknownHostException e) {
+            // Most likely offline. We learned nothing, so keep what we knew and try again soon.
+            MPLLog.v(LOGTAG, "Couldn't resolve Mixpanel hosts, will probe again later", e);
+            expireAfter(generation, now + FAILED_PROBE_RETRY_MILLIS);
+            return;
+        } catch (final SecurityException e) {
+            MPLLog.v(LOGTAG, "Not allowed to resolve Mixpanel hosts", e);
+            expireAfter(generation, now + PROBE_TTL_MILLIS);
+            return;
+        }
+
+        // Resolving now means the first flush doesn't wait on DNS
+        for (final String host : warmHosts) {
+            try {
+                resolve(host);
+            } catch (final UnknownHostException e) {
+                MPLLog.v(LOGTAG, "Couldn't resolve events host " + host, e);
+            } catch (final SecurityException e) {
+                MPLLog.v(LOGTAG, "Not allowed to resolve events host " + host, e);
+            }
+        }
+    }
+
+    /**
+     * Forgets the cached result, so the next call to {@link #probeIfStale(String)} probes again.
+     */
+    public void invalidate() {
+        // Not synchronized, so a network change never waits on a lookup in progress. Bumping the
+        // generation keeps that lookup from caching a result from the old network.
+        mGeneration++;
+        mNextProbeTime = 0;
+    }
+
+    // Overridden in tests, so they don't depend on the device's DNS
+    /* package */ InetAddress resolve(String host) throws UnknownHostException {
+        return InetAddress.getByName(host);
+    }
+
+    private void expireAfter(int generation, long nextProbeTime) {
+        if (generation == mGeneration) {
+            mNextProbeTime = nextProbeTime;
+        }
+    }
+
+    private static boolean isLocal(InetAddress address) {
+        return address.isLoopbackAddress() || address.isAnyLocalAddress();
+    }
+
+    private volatile boolean mIsMixpanelBlocked;
+    private volatile long mNextProbeTime;
+    private volatile int mGeneration;
+
+    private static HostProbe sInstance;
+    private static final Object sInstanceLock = new Object();
+
+    private static final String API_HOST = "api.mixpanel.com";
+    private static final String DECIDE_HOST = "decide.mixpanel.com";
+    private static final long PROBE_TTL_MILLIS = 30 * 60 * 1000;
+    private static final long FAILED_PROBE_RETRY_MILLIS = 60 * 1000;
+
+    private static final String LOGTAG = "MixpanelLiteAPI.HostProbe";
+}
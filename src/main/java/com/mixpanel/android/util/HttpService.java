@@ -1,79 +1,89 @@
 package com.mixpanel.android.util;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.net.Uri;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.InetAddress;
-import java.net.URL;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
 
 /**
  * An HTTP utility class for internal use in the Mixpanel library. Not thread-safe.
  */
-public class HttpService implements RemoteService {
+public class HttpService implements ConnectionAwareRemoteService {
+
+    public HttpService() {
+        this(false);
+    }
+
+    /**
+     * @param gzipRequestBodies if true, request bodies are compressed as they are written to
+     *     the connection and sent with "Content-Encoding: gzip"
+     */
+    public HttpService(boolean gzipRequestBodies) {
+        this(gzipRequestBodies, null);
+    }
+
+    /**
+     * @param gzipRequestBodies if true, request bodies are compressed as they are written to
+     *     the connection and sent with "Content-Encoding: gzip"
+     * @param transport the HTTP stack to send requests with, or null for a {@link UrlConnectionTransport}
+     */
+    public HttpService(boolean gzipRequestBodies, HttpTransport transport) {
+        this(gzipRequestBodies, transport, null);
+    }
+
+    /**
+     * @param gzipRequestBodies if true, request bodies are compressed as they are written to
+     *     the connection and sent with "Content-Encoding: gzip"
+     * @param transport the HTTP stack to send requests with, or null for a {@link UrlConnectionTransport}
+     * @param timeouts estimates connect and read timeouts for each request, or null for
+     *     estimates with the default floors and ceilings
+     */
+    public HttpService(boolean gzipRequestBodies, HttpTransport transport, AdaptiveTimeouts timeouts) {
+        mGzipRequestBodies = gzipRequestBodies;
+        mFormBodyWriter = new FormBodyWriter();
+        mTransport = null == transport ? new UrlConnectionTransport() : transport;
+        mTimeouts = null == timeouts ? new AdaptiveTimeouts() : timeouts;
+    }
 
-    private static boolean sIsMixpanelBlocked;
     private static final int MIN_UNAVAILABLE_HTTP_RESPONSE_CODE = HttpURLConnection.HTTP_INTERNAL_ERROR;
     private static final int MAX_UNAVAILABLE_HTTP_RESPONSE_CODE = 599;
 
+    /**
+     * Kept for {@link RemoteService}. The library calls
+     * {@link #checkIsMixpanelBlocked(Context, String)} instead, which shares one cached probe
+     * per process. Without a Context there is no probe to run, so this does nothing.
+     */
     @Override
     public void checkIsMixpanelBlocked() {
-        Thread t = new Thread(new Runnable() {
-            public void run() {
-                try {
-                    InetAddress apiMixpanelInet = InetAddress.getByName("api.mixpanel.com");
-                    InetAddress decideMixpanelInet = InetAddress.getByName("decide.mixpanel.com");
-                    sIsMixpanelBlocked = apiMixpanelInet.isLoopbackAddress() ||
-                            apiMixpanelInet.isAnyLocalAddress() ||
-                            decideMixpanelInet.isLoopbackAddress() ||
-                            decideMixpanelInet.isAnyLocalAddress();
-                    if (sIsMixpanelBlocked) {
-                        MPLLog.v(LOGTAG, "AdBlocker is enabled. Won't be able to use Mixpanel " +
-                                "services.");
-                    }
-                } catch (Exception e) {
-                }
-            }
-        });
+    }
 
-        t.start();
+    @Override
+    public void checkIsMixpanelBlocked(Context context, String eventsEndpoint) {
+        HostProbe.getInstance(context).probeIfStale(eventsEndpoint);
     }
 
-    @SuppressLint("MissingPermission")
-    @SuppressWarnings("MissingPermission")
     @Override
     public boolean isOnline(Context context, OfflineMode offlineMode) {
-        if (sIsMixpanelBlocked) return false;
+        if (HostProbe.getInstance(context).isMixpanelBlocked()) return false;
         if (onOfflineMode(offlineMode)) return false;
 
-        boolean isOnline;
-        try {
-            final ConnectivityManager cm =
-                    (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-            final NetworkInfo netInfo = cm.getActiveNetworkInfo();
-            if (netInfo == null) {
-                isOnline = true;
-                MPLLog.v(LOGTAG, "A default network has not been set so we cannot be certain whether we are offline");
-            } else {
-                isOnline = netInfo.isConnectedOrConnecting();
-                MPLLog.v(LOGTAG, "ConnectivityManager says we " + (isOnline ? "are" : "are not") + " online");
-            }
-        } catch (final SecurityException e) {
-            isOnline = true;
+        final ConnectivityMonitor.State state = ConnectivityMonitor.getInstance(context).getState();
+        final boolean isOnline = state.isOnline();
+        if (!state.isKnown()) {
             MPLLog.v(LOGTAG, "Don't have permission to check connectivity, will assume we are online");
+        } else if (!state.hasActiveNetwork()) {
+            MPLLog.v(LOGTAG, "A default network has not been set so we cannot be certain whether we are offline");
+        } else {
+            MPLLog.v(LOGTAG, "ConnectivityManager says we " + (isOnline ? "are" : "are not") + " online");
         }
         return isOnline;
     }
@@ -91,76 +101,84 @@ public class HttpService implements RemoteService {
         return onOfflineMode;
     }
 
+    @Override
+    public void setExpectingMoreRequests(boolean expectingMore) {
+        mExpectingMoreRequests = expectingMore;
+    }
+
     @Override
     public byte[] performRequest(String endpointUrl, Map<String, Object> params, SSLSocketFactory socketFactory) throws ServiceUnavailableException, IOException {
         MPLLog.v(LOGTAG, "Attempting request to " + endpointUrl);
 
+        final Map<String, String> headers = new HashMap<String, String>();
+        if (!mExpectingMoreRequests) {
+            // Last request of a burst. Ask the server to close so we don't leave an
+            // idle socket (and an awake radio) behind us.
+            headers.put("Connection", "close");
+        }
+        FormRequestBody body = null;
+        if (null != params) {
+            headers.put("Content-Type", "application/x-www-form-urlencoded");
+            if (mGzipRequestBodies) {
+                headers.put("Content-Encoding", "gzip");
+            }
+            body = new FormRequestBody(params);
+        }
+        final String endpoint = hostOf(endpointUrl);
+
         byte[] response = null;
 
-        // the while(retries) loop is a workaround for a bug in some Android HttpURLConnection
-        // libraries- The underlying library will attempt to reuse stale connections,
-        // meaning the second (or every other) attempt to connect fails with an EOFException.
-        // Apparently this nasty retry logic is the current state of the workaround art.
+        // The transport keeps the connection alive between requests, so a drain of many batches
+        // pays for one TCP and TLS handshake instead of one per batch. The price is that a pooled
+        // socket may have been closed by the server while idle, in which case the first write
+        // or read on it fails with an EOFException. The while(retries) loop tries again, and the
+        // transport opens a fresh connection for the retry.
         int retries = 0;
         boolean succeeded = false;
         while (retries < 3 && !succeeded) {
-            InputStream in = null;
-            OutputStream out = null;
-            BufferedOutputStream bout = null;
-            HttpURLConnection connection = null;
-
+            final boolean mayReuseConnection = mConnectionMayBeWarm;
+            final HttpTransport.Request request = new HttpTransport.Request(endpointUrl, null == body ? "GET" : "POST",
+                    headers, body, socketFactory, mTimeouts.getConnectTimeoutMillis(endpoint),
+                    mTimeouts.getReadTimeoutMillis(endpoint, null == body ? 0 : body.expectedWireBytes()));
+            final TimingListener timing = new TimingListener();
             try {
-                final URL url = new URL(endpointUrl);
-                connection = (HttpURLConnection) url.openConnection();
-                if (null != socketFactory && connection instanceof HttpsURLConnection) {
-                    ((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory);
-                }
-
-                connection.setConnectTimeout(2000);
-                connection.setReadTimeout(10000);
-                if (null != params) {
-                    Uri.Builder builder = new Uri.Builder();
-                    for (Map.Entry<String, Object> param : params.entrySet()) {
-                        builder.appendQueryParameter(param.getKey(), param.getValue().toString());
-                    }
-                    String query = builder.build().getEncodedQuery();
-
-                    connection.setFixedLengthStreamingMode(query.getBytes().length);
-                    connection.setDoOutput(true);
-                    connection.setRequestMethod("POST");
-                    out = connection.getOutputStream();
-                    bout = new BufferedOutputStream(out);
-                    bout.write(query.getBytes("UTF-8"));
-                    bout.flush();
-                    bout.close();
-                    bout = null;
-                    out.close();
-                    out = null;
+                final HttpTransport.Response result = mTransport.newCall(request, timing).execute();
+                recordTimings(endpoint, timing, mayReuseConnection);
+                final int statusCode = result.getStatusCode();
+                if (statusCode >= MIN_UNAVAILABLE_HTTP_RESPONSE_CODE && statusCode <= MAX_UNAVAILABLE_HTTP_RESPONSE_CODE) {
+                    mConnectionMayBeWarm = false;
+                    throw new ServiceUnavailableException("Service Unavailable", result.getHeader("Retry-After"));
+                } else if (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST && statusCode < MIN_UNAVAILABLE_HTTP_RESPONSE_CODE) {
+                    mConnectionMayBeWarm = false;
+                    throw new RequestRejectedException("Server returned HTTP response code: " + statusCode + " for URL: " + endpointUrl, statusCode);
+                } else if (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                    mConnectionMayBeWarm = false;
+                    throw new IOException("Server returned HTTP response code: " + statusCode + " for URL: " + endpointUrl);
                 }
-                in = connection.getInputStream();
-                response = slurp(in);
-                in.close();
-                in = null;
+                response = result.getBody();
                 succeeded = true;
+                if (null != body) {
+                    recordBodySize(endpointUrl, body.mBodyBytes, body.mWireBytes);
+                }
+                // Only a hint for the timing samples below. The transport decides what to reuse.
+                mConnectionMayBeWarm = mExpectingMoreRequests &&
+                        !"close".equalsIgnoreCase(result.getHeader("Connection"));
             } catch (final EOFException e) {
-                MPLLog.d(LOGTAG, "Failure to connect, likely caused by a known issue with Android lib. Retrying.");
+                if (mayReuseConnection) {
+                    MPLLog.d(LOGTAG, "Connection to " + endpointUrl + " was probably closed while idle. Retrying.");
+                } else {
+                    MPLLog.d(LOGTAG, "Failure to connect, likely caused by a known issue with Android lib. Retrying.");
+                }
+                mConnectionMayBeWarm = false;
                 retries = retries + 1;
+            } catch (final ServiceUnavailableException e) {
+                throw e;
             } catch (final IOException e) {
-                if (connection.getResponseCode() >= MIN_UNAVAILABLE_HTTP_RESPONSE_CODE && connection.getResponseCode() <= MAX_UNAVAILABLE_HTTP_RESPONSE_CODE) {
-                    throw new ServiceUnavailableException("Service Unavailable", connection.getHeaderField("Retry-After"));
-                } else {
-                    throw e;
+                mConnectionMayBeWarm = false;
+                if (e instanceof SocketTimeoutException) {
+                    mTimeouts.onTimeout(endpoint);
                 }
-            }
-            finally {
-                if (null != bout)
-                    try { bout.close(); } catch (final IOException e) { ; }
-                if (null != out)
-                    try { out.close(); } catch (final IOException e) { ; }
-                if (null != in)
-                    try { in.close(); } catch (final IOException e) { ; }
-                if (null != connection)
-                    connection.disconnect();
+                throw e;
             }
         }
         if (retries >= 3) {
@@ -169,20 +187,135 @@ public class HttpService implements RemoteService {
         return response;
     }
 
-    private static byte[] slurp(final InputStream inputStream)
-            throws IOException {
-        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    /**
+     * @return the size in bytes of the last request body before any compression was applied,
+     *     or zero if no body has been sent yet
+     */
+    public long getLastRequestBodyBytes() {
+        return mLastRequestBodyBytes;
+    }
+
+    /**
+     * @return the number of body bytes actually written to the connection for the last request.
+     *     This is smaller than {@link #getLastRequestBodyBytes()} when compression is on.
+     */
+    public long getLastRequestWireBytes() {
+        return mLastRequestWireBytes;
+    }
+
+    private void recordBodySize(String endpointUrl, long bodyBytes, long wireBytes) {
+        mLastRequestBodyBytes = bodyBytes;
+        mLastRequestWireBytes = wireBytes;
+        if (mGzipRequestBodies && bodyBytes > 0) {
+            MPLLog.v(LOGTAG, "Compressed request to " + endpointUrl + " from " + bodyBytes + " to " +
+                    wireBytes + " bytes (" + (100 * wireBytes / bodyBytes) + "%)");
+        }
+    }
+
+    private static String hostOf(String endpointUrl) {
+        final Uri uri = Uri.parse(endpointUrl);
+        return uri.getScheme() + "://" + uri.getAuthority();
+    }
+
+    private void recordTimings(String endpoint, TimingListener timing, boolean mayReuseConnection) {
+        // A transport that can't tell us about reuse reports every connection as new. If the
+        // last request may have left a warm connection, its "connect" time says nothing about
+        // the network.
+        if (!timing.mReused && !mayReuseConnection) {
+            mTimeouts.onConnected(endpoint, timing.mAcquiredMillis);
+        }
+        if (timing.mHeadersMillis >= 0) {
+            mTimeouts.onExchange(endpoint, timing.mBodyBytes, timing.mSentMillis - timing.mAcquiredMillis,
+                    timing.mHeadersMillis - timing.mSentMillis);
+        }
+    }
+
+    // Remembers when each phase of a call finished, as milliseconds since it started
+    private static class TimingListener implements HttpTransport.EventListener {
+        @Override
+        public void onConnectionAcquired(HttpTransport.Request request, boolean reused, long elapsedMillis) {
+            mReused = reused;
+            mAcquiredMillis = elapsedMillis;
+        }
+
+        @Override
+        public void onRequestSent(HttpTransport.Request request, long bodyBytes, long elapsedMillis) {
+            mBodyBytes = bodyBytes;
+            mSentMillis = elapsedMillis;
+        }
+
+        @Override
+        public void onResponseHeaders(HttpTransport.Request request, int statusCode, long elapsedMillis) {
+            mHeadersMillis = elapsedMillis;
+        }
 
-        int nRead;
-        byte[] data = new byte[8192];
+        @Override
+        public void onCallEnd(HttpTransport.Request request, long responseBytes, long elapsedMillis) {
+        }
+
+        @Override
+        public void onCallFailed(HttpTransport.Request request, IOException e, long elapsedMillis) {
+        }
+
+        boolean mReused;
+        long mAcquiredMillis;
+        long mBodyBytes;
+        long mSentMillis;
+        long mHeadersMillis = -1;
+    }
+
+    // Form-encodes params straight onto the transport's stream, compressing on the way if asked to
+    private class FormRequestBody implements HttpTransport.RequestBody {
+        public FormRequestBody(Map<String, Object> params) {
+            mParams = params;
+            // Measuring walks the whole encoded payload, so do it once and not on every attempt
+            mBodyBytes = mFormBodyWriter.contentLength(params);
+        }
+
+        @Override
+        public long contentLength() {
+            // We don't know the compressed size up front, so a gzipped body goes out chunked
+            return mGzipRequestBodies ? -1 : mBodyBytes;
+        }
+
+        // A guess at the size on the wire, assuming this body compresses about as well as the last one
+        public long expectedWireBytes() {
+            if (!mGzipRequestBodies || mLastRequestBodyBytes <= 0) {
+                return mBodyBytes;
+            }
+            return mBodyBytes * mLastRequestWireBytes / mLastRequestBodyBytes;
+        }
 
-        while ((nRead = inputStream.read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, nRead);
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            final CountingOutputStream wire = new CountingOutputStream(out);
+            // mFormBodyWriter buffers internally, so there is no need for a BufferedOutputStream
+            if (mGzipRequestBodies) {
+                final GZIPOutputStream gzip = new GZIPOutputStream(wire, GZIP_BUFFER_SIZE);
+                mFormBodyWriter.write(mParams, gzip);
+                gzip.finish();
+            } else {
+                mFormBodyWriter.write(mParams, wire);
+            }
+            wire.flush();
+            mWireBytes = wire.getCount();
         }
 
-        buffer.flush();
-        return buffer.toByteArray();
+        private final Map<String, Object> mParams;
+        private final long mBodyBytes;
+        private long mWireBytes;
     }
 
+    private final boolean mGzipRequestBodies;
+    private final FormBodyWriter mFormBodyWriter;
+    private final HttpTransport mTransport;
+    private final AdaptiveTimeouts mTimeouts;
+    private long mLastRequestBodyBytes;
+    private long mLastRequestWireBytes;
+    private boolean mExpectingMoreRequests;
+    private boolean mConnectionMayBeWarm;
+
+    private static final int GZIP_BUFFER_SIZE = 8192;
+
     private static final String LOGTAG = "MixpanelLiteAPI.Message";
 }
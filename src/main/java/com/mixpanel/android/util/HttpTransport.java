@@ -0,0 +1,228 @@
+package com.mixpanel.android.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * The HTTP stack used by {@link HttpService} to talk to Mixpanel.
+ *
+ * <p>The library ships with {@link UrlConnectionTransport}, which uses HttpURLConnection
+ * and is the default, and {@link NioHttpTransport}, built directly on java.nio channels.
+ * If your application already has an HTTP client, you can implement this interface on top of it
+ * so Mixpanel shares its connection pool, and install it with
+ * {@code MPLConfig.getInstance(context).setHttpTransport(yourTransport)}.
+ *
+ * <p>Implementations must be safe to use from multiple threads.
+ */
+public interface HttpTransport {
+
+    /**
+     * Prepares a request for execution. Nothing is sent until {@link Call#execute()} is called.
+     *
+     * @param request the request to perform
+     * @param listener receives progress and timing callbacks for this call. May be null.
+     * @return a call that can be executed exactly once
+     */
+    Call newCall(Request request, EventListener listener);
+
+    /**
+     * A single request/response exchange.
+     */
+    interface Call {
+        /**
+         * Sends the request and blocks until the whole response has been read.
+         * Responses with error status codes are returned normally, not thrown.
+         *
+         * @throws IOException if the request could not be sent or the response could not be read,
+         *     including when the call was canceled
+         */
+        Response execute() throws IOException;
+
+        /**
+         * Aborts the call. Safe to call from any thread, at any time. A call blocked in
+         * {@link #execute()} will fail with an IOException.
+         */
+        void cancel();
+
+        boolean isCanceled();
+    }
+
+    /**
+     * Writes a request body on demand, so it never has to be held in memory as a whole.
+     */
+    interface RequestBody {
+        /**
+         * @return the exact number of bytes {@link #writeTo(OutputStream)} will write,
+         *     or -1 if that isn't known ahead of time, in which case the body is sent chunked.
+         */
+        long contentLength();
+
+        /**
+         * Writes the body to out. Implementations should not close out.
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Callbacks for a single call, in the order they occur. All callbacks are made on the thread
+     * executing the call, and should return quickly.
+     */
+    interface EventListener {
+        /**
+         * Called once a connection to the server is ready to carry the request.
+         *
+         * @param reused true if an already open connection was used. Transports that can't
+         *     tell, such as {@link UrlConnectionTransport}, always pass false.
+         * @param elapsedMillis time since the call started. This covers DNS, TCP and TLS setup
+         *     for new connections.
+         */
+        void onConnectionAcquired(Request request, boolean reused, long elapsedMillis);
+
+        /**
+         * Called after the request, including its body, has been written.
+         *
+         * @param bodyBytes number of body bytes written, zero if the request had no body
+         * @param elapsedMillis time since the call started
+         */
+        void onRequestSent(Request request, long bodyBytes, long elapsedMillis);
+
+        /**
+         * Called when the status line and headers of the response have arrived.
+         *
+         * @param elapsedMillis time since the call started
+         */
+        void onResponseHeaders(Request request, int statusCode, long elapsedMillis);
+
+        /**
+         * Called when the response has been read completely.
+         *
+         * @param responseBytes size of the response body
+         * @param elapsedMillis time since the call started
+         */
+        void onCallEnd(Request request, long responseBytes, long elapsedMillis);
+
+        /**
+         * Called instead of {@link #onCallEnd(Request, long, long)} when the call fails
+         * or is canceled.
+         */
+        void onCallFailed(Request request, IOException e, long elapsedMillis);
+    }
+
+    /**
+     * An immutable description of an HTTP request.
+     */
+    class Request {
+        /**
+         * @param url absolute http or https URL
+         * @param method HTTP method, such as "GET" or "POST"
+         * @param headers request headers. The transport supplies Host, Content-Length and
+         *     Transfer-Encoding itself.
+         * @param body the request body, or null for none
+         * @param sslSocketFactory factory to use for https connections, or null for the
+         *     transport's default. Transports that don't use sockets directly may ignore it.
+         * @param connectTimeoutMillis maximum time to wait for a connection to be established
+         * @param readTimeoutMillis maximum time to wait for each read from the server
+         */
+        public Request(String url, String method, Map<String, String> headers, RequestBody body,
+                       SSLSocketFactory sslSocketFactory, int connectTimeoutMillis, int readTimeoutMillis) {
+            mUrl = url;
+            mMethod = method;
+            mHeaders = Collections.unmodifiableMap(headers);
+            mBody = body;
+            mSSLSocketFactory = sslSocketFactory;
+            mConnectTimeoutMillis = connectTimeoutMillis;
+            mReadTimeoutMillis = readTimeoutMillis;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        public String getMethod() {
+            return mMethod;
+        }
+
+        public Map<String, String> getHeaders() {
+            return mHeaders;
+        }
+
+        public RequestBody getBody() {
+            return mBody;
+        }
+
+        public SSLSocketFactory getSSLSocketFactory() {
+            return mSSLSocketFactory;
+        }
+
+        public int getConnectTimeoutMillis() {
+            return mConnectTimeoutMillis;
+        }
+
+        public int getReadTimeoutMillis() {
+            return mReadTimeoutMillis;
+        }
+
+        private final String mUrl;
+        private final String mMethod;
+        private final Map<String, String> mHeaders;
+        private final RequestBody mBody;
+        private final SSLSocketFactory mSSLSocketFactory;
+        private final int mConnectTimeoutMillis;
+        private final int mReadTimeoutMillis;
+    }
+
+    /**
+     * A complete HTTP response. Mixpanel responses are small, so the body is read into memory.
+     */
+    class Response {
+        /**
+         * @param statusCode the HTTP status code
+         * @param headers response headers. Header names are matched without regard to case.
+         * @param body the response body, possibly empty
+         */
+        public Response(int statusCode, Map<String, List<String>> headers, byte[] body) {
+            final Map<String, List<String>> caseInsensitive = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+            for (final Map.Entry<String, List<String>> header : headers.entrySet()) {
+                if (null != header.getKey()) { // HttpURLConnection reports the status line with a null key
+                    caseInsensitive.put(header.getKey(), header.getValue());
+                }
+            }
+            mStatusCode = statusCode;
+            mHeaders = Collections.unmodifiableMap(caseInsensitive);
+            mBody = body;
+        }
+
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        public Map<String, List<String>> getHeaders() {
+            return mHeaders;
+        }
+
+        /**
+         * @return the last value of the named header, or null if the response doesn't have it
+         */
+        public String getHeader(String name) {
+            final List<String> values = mHeaders.get(name);
+            if (null == values || values.isEmpty()) {
+                return null;
+            }
+            return values.get(values.size() - 1);
+        }
+
+        public byte[] getBody() {
+            return mBody;
+        }
+
+        private final int mStatusCode;
+        private final Map<String, List<String>> mHeaders;
+        private final byte[] mBody;
+    }
+}
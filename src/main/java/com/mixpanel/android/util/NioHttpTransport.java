@@ -0,0 +1,677 @@
+package com.mixpanel.android.util;
+
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * An {@link HttpTransport} that speaks HTTP/1.1 directly over java.nio SocketChannels, with TLS
+ * provided by an SSLEngine.
+ *
+ * <p>It keeps at most one idle connection per host open between calls. An idle connection is
+ * dropped once the keep-alive window advertised by the server runs out, and is probed before
+ * reuse so a connection the server has already closed is never handed to a request.
+ *
+ * <p>Because it doesn't use sockets from a factory, this transport ignores
+ * {@link HttpTransport.Request#getSSLSocketFactory()}. To customize TLS, for instance to pin
+ * certificates, pass your own SSLContext to {@link #NioHttpTransport(SSLContext)}. If an app
+ * has set a socket factory with MPLConfig.setSSLSocketFactory but installs a transport without
+ * its own SSLContext, Mixpanel won't use this transport and falls back to
+ * {@link UrlConnectionTransport} instead.
+ */
+public class NioHttpTransport implements HttpTransport {
+
+    /**
+     * Creates a transport that uses a default TLS context.
+     */
+    public NioHttpTransport() {
+        this(null);
+    }
+
+    /**
+     * @param sslContext context used to create SSLEngines for https requests, or null to use
+     *     a default TLS context
+     */
+    public NioHttpTransport(SSLContext sslContext) {
+        mSSLContext = sslContext;
+        mHasCustomSSLContext = null != sslContext;
+        mIdleConnections = new HashMap<String, Connection>();
+    }
+
+    @Override
+    public Call newCall(Request request, EventListener listener) {
+        return new NioCall(request, listener);
+    }
+
+    /**
+     * @return true if this transport was created with its own SSLContext, rather than a default one
+     */
+    public boolean hasCustomSSLContext() {
+        return mHasCustomSSLContext;
+    }
+
+    /**
+     * Closes all idle connections.
+     */
+    public void evictAll() {
+        final List<Connection> idle;
+        synchronized (mIdleConnections) {
+            idle = new ArrayList<Connection>(mIdleConnections.values());
+            mIdleConnections.clear();
+        }
+        for (final Connection connection : idle) {
+            connection.close();
+        }
+    }
+
+    private Connection acquire(String key, Request request, URL url) throws IOException {
+        Connection pooled;
+        synchronized (mIdleConnections) {
+            pooled = mIdleConnections.remove(key);
+        }
+        if (null != pooled) {
+            if (pooled.isStale()) {
+                MPLLog.v(LOGTAG, "Discarding stale connection to " + key);
+                pooled.close();
+            } else {
+                return pooled;
+            }
+        }
+
+        final String host = url.getHost();
+        final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        final Connection created = new Connection(key, SocketChannel.open());
+        try {
+            created.connect(new InetSocketAddress(host, port), request.getConnectTimeoutMillis());
+            if ("https".equalsIgnoreCase(url.getProtocol())) {
+                final SSLEngine engine = getSSLContext().createSSLEngine(host, port);
+                engine.setUseClientMode(true);
+                created.startTls(engine, host, request.getReadTimeoutMillis());
+            }
+        } catch (IOException e) {
+            created.close();
+            throw e;
+        }
+        return created;
+    }
+
+    private void release(Connection connection) {
+        final Connection replaced;
+        synchronized (mIdleConnections) {
+            replaced = mIdleConnections.put(connection.mKey, connection);
+        }
+        if (null != replaced && replaced != connection) {
+            replaced.close();
+        }
+    }
+
+    private synchronized SSLContext getSSLContext() throws IOException {
+        if (null == mSSLContext) {
+            try {
+                final SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+                mSSLContext = context;
+            } catch (final GeneralSecurityException e) {
+                throw new IOException("System has no TLS support", e);
+            }
+        }
+        return mSSLContext;
+    }
+
+    private class NioCall implements Call {
+        public NioCall(Request request, EventListener listener) {
+            mRequest = request;
+            mListener = listener;
+        }
+
+        @Override
+        public Response execute() throws IOException {
+            final long start = SystemClock.elapsedRealtime();
+            Connection connection = null;
+            boolean reusable = false;
+            try {
+                final URL url = new URL(mRequest.getUrl());
+                final String key = url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+                if (!"http".equalsIgnoreCase(url.getProtocol()) && !"https".equalsIgnoreCase(url.getProtocol())) {
+                    throw new IOException("Unsupported protocol " + url.getProtocol());
+                }
+
+                connection = acquire(key, mRequest, url);
+                synchronized (this) {
+                    if (mCanceled) {
+                        throw new IOException("Canceled");
+                    }
+                    mConnection = connection;
+                }
+                connection.setTimeout(mRequest.getReadTimeoutMillis());
+                if (null != mListener) {
+                    mListener.onConnectionAcquired(mRequest, connection.mUseCount > 0, SystemClock.elapsedRealtime() - start);
+                }
+                connection.mUseCount++;
+
+                final long bodyBytes = writeRequest(connection, url);
+                if (null != mListener) {
+                    mListener.onRequestSent(mRequest, bodyBytes, SystemClock.elapsedRealtime() - start);
+                }
+
+                // Skip any interim 1xx responses
+                String version;
+                int statusCode;
+                Map<String, List<String>> headers;
+                do {
+                    final String statusLine = connection.readLine();
+                    final String[] parts = statusLine.split(" ", 3);
+                    if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                        throw new IOException("Unexpected status line from server: " + statusLine);
+                    }
+                    version = parts[0];
+                    try {
+                        statusCode = Integer.parseInt(parts[1]);
+                    } catch (final NumberFormatException e) {
+                        throw new IOException("Unexpected status line from server: " + statusLine);
+                    }
+                    headers = readHeaders(connection);
+                } while (statusCode >= 100 && statusCode < 200);
+
+                if (null != mListener) {
+                    mListener.onResponseHeaders(mRequest, statusCode, SystemClock.elapsedRealtime() - start);
+                }
+
+                final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                final String transferEncoding = lastHeader(headers, "Transfer-Encoding");
+                final String contentLength = lastHeader(headers, "Content-Length");
+                boolean framed = true;
+                if ("HEAD".equals(mRequest.getMethod()) || statusCode == 204 || statusCode == 304) {
+                    // No body
+                } else if (null != transferEncoding && transferEncoding.toLowerCase().contains("chunked")) {
+                    readChunkedBody(connection, body);
+                } else if (null != contentLength) {
+                    try {
+                        connection.readFully(body, Long.parseLong(contentLength.trim()));
+                    } catch (final NumberFormatException e) {
+                        throw new IOException("Unexpected Content-Length from server: " + contentLength);
+                    }
+                } else {
+                    connection.readToEnd(body);
+                    framed = false;
+                }
+
+                reusable = framed && "HTTP/1.1".equals(version) &&
+                        !"close".equalsIgnoreCase(lastHeader(headers, "Connection")) &&
+                        !"close".equalsIgnoreCase(mRequest.getHeaders().get("Connection"));
+                if (reusable) {
+                    connection.mIdleDeadline = SystemClock.elapsedRealtime() +
+                            parseKeepAliveTimeout(lastHeader(headers, "Keep-Alive"));
+                }
+
+                final byte[] responseBody = body.toByteArray();
+                if (null != mListener) {
+                    mListener.onCallEnd(mRequest, responseBody.length, SystemClock.elapsedRealtime() - start);
+                }
+                return new Response(statusCode, headers, responseBody);
+            } catch (final IOException e) {
+                final IOException reported = isCanceled() ? new IOException("Canceled", e) : e;
+                if (null != mListener) {
+                    mListener.onCallFailed(mRequest, reported, SystemClock.elapsedRealtime() - start);
+                }
+                throw reported;
+            } finally {
+                synchronized (this) {
+                    mConnection = null;
+                }
+                if (null != connection) {
+                    if (reusable && !isCanceled()) {
+                        release(connection);
+                    } else {
+                        connection.close();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            final Connection connection;
+            synchronized (this) {
+                mCanceled = true;
+                connection = mConnection;
+            }
+            if (null != connection) {
+                connection.close();
+            }
+        }
+
+        @Override
+        public synchronized boolean isCanceled() {
+            return mCanceled;
+        }
+
+        private long writeRequest(Connection connection, URL url) throws IOException {
+            final RequestBody body = mRequest.getBody();
+            final long contentLength = null == body ? -1 : body.contentLength();
+
+            final StringBuilder head = new StringBuilder();
+            final String file = url.getFile();
+            head.append(mRequest.getMethod()).append(' ').append(file.length() == 0 ? "/" : file).append(" HTTP/1.1\r\n");
+            head.append("Host: ").append(url.getHost());
+            if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+                head.append(':').append(url.getPort());
+            }
+            head.append("\r\n");
+            for (final Map.Entry<String, String> header : mRequest.getHeaders().entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            if (null != body) {
+                if (contentLength >= 0) {
+                    head.append("Content-Length: ").append(contentLength).append("\r\n");
+                } else {
+                    head.append("Transfer-Encoding: chunked\r\n");
+                }
+            }
+            head.append("\r\n");
+
+            final ChannelOutputStream out = new ChannelOutputStream(connection);
+            out.write(head.toString().getBytes("ISO-8859-1"));
+            long bodyBytes = 0;
+            if (null != body) {
+                final long headBytes = out.getCount();
+                if (contentLength >= 0) {
+                    body.writeTo(out);
+                } else {
+                    final ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+                    body.writeTo(chunked);
+                    chunked.finish();
+                }
+                bodyBytes = out.getCount() - headBytes;
+            }
+            out.flush();
+            return bodyBytes;
+        }
+
+        private final Request mRequest;
+        private final EventListener mListener;
+        private Connection mConnection;
+        private boolean mCanceled;
+    }
+
+    private static Map<String, List<String>> readHeaders(Connection connection) throws IOException {
+        final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+        String line;
+        while ((line = connection.readLine()).length() > 0) {
+            final int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            final String name = line.substring(0, colon).trim();
+            List<String> values = headers.get(name);
+            if (null == values) {
+                values = new ArrayList<String>();
+                headers.put(name, values);
+            }
+            values.add(line.substring(colon + 1).trim());
+        }
+        return headers;
+    }
+
+    private static void readChunkedBody(Connection connection, ByteArrayOutputStream body) throws IOException {
+        while (true) {
+            String sizeLine = connection.readLine();
+            final int extension = sizeLine.indexOf(';');
+            if (extension >= 0) {
+                sizeLine = sizeLine.substring(0, extension);
+            }
+            final long size;
+            try {
+                size = Long.parseLong(sizeLine.trim(), 16);
+            } catch (final NumberFormatException e) {
+                throw new IOException("Unexpected chunk size from server: " + sizeLine);
+            }
+            if (size == 0) {
+                break;
+            }
+            connection.readFully(body, size);
+            connection.readLine(); // CRLF after the chunk
+        }
+        // Discard any trailers
+        while (connection.readLine().length() > 0) {
+            ;
+        }
+    }
+
+    // Servers may advertise how long they keep idle connections open, as in "Keep-Alive: timeout=5, max=100".
+    // We stay a little under what they advertise so we give up on the socket before they do.
+    /* package */ static long parseKeepAliveTimeout(String keepAliveHeader) {
+        long timeoutMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+        if (null != keepAliveHeader) {
+            for (final String part : keepAliveHeader.split(",")) {
+                final String trimmed = part.trim();
+                if (trimmed.startsWith("timeout=")) {
+                    try {
+                        timeoutMillis = Long.parseLong(trimmed.substring("timeout=".length()).trim()) * 1000;
+                    } catch (NumberFormatException e) {
+                        MPLLog.v(LOGTAG, "Ignoring unparseable Keep-Alive header " + keepAliveHeader);
+                    }
+                }
+            }
+        }
+        return Math.max(0, Math.min(timeoutMillis, MAX_KEEP_ALIVE_MILLIS) - KEEP_ALIVE_SAFETY_MARGIN_MILLIS);
+    }
+
+    private static String lastHeader(Map<String, List<String>> headers, String name) {
+        for (final Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                return header.getValue().get(header.getValue().size() - 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A single socket, plain or TLS, with its own selector for waiting with timeouts.
+     */
+    private static class Connection implements SSLByteChannel.Waiter {
+        public Connection(String key, SocketChannel socket) throws IOException {
+            mKey = key;
+            mSocket = socket;
+            mChannel = socket;
+            mSocket.configureBlocking(false);
+            mSelector = Selector.open();
+            mInput = ByteBuffer.allocate(BUFFER_SIZE);
+            mInput.flip();
+            mUseCount = 0;
+        }
+
+        public void connect(InetSocketAddress address, int timeoutMillis) throws IOException {
+            if (address.isUnresolved()) {
+                throw new IOException("Unable to resolve host " + address.getHostName());
+            }
+            if (!mSocket.connect(address)) {
+                mTimeoutMillis = timeoutMillis;
+                while (!mSocket.finishConnect()) {
+                    await(SelectionKey.OP_CONNECT);
+                }
+            }
+        }
+
+        public void startTls(SSLEngine engine, String host, int timeoutMillis) throws IOException {
+            mTimeoutMillis = timeoutMillis;
+            final SSLByteChannel tls = new SSLByteChannel(mSocket, engine);
+            tls.handshake(this);
+            if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, engine.getSession())) {
+                throw new SSLPeerUnverifiedException("Certificate for " + host + " doesn't match the host name");
+            }
+            mChannel = tls;
+        }
+
+        public void setTimeout(int timeoutMillis) {
+            mTimeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public void await(int ops) throws IOException {
+            final SelectionKey key;
+            final int ready;
+            try {
+                key = mSocket.register(mSelector, ops);
+                ready = mSelector.select(mTimeoutMillis);
+                mSelector.selectedKeys().clear();
+            } catch (final ClosedSelectorException e) {
+                throw new IOException("Connection closed", e);
+            }
+            if (!mSocket.isOpen()) {
+                throw new IOException("Connection closed");
+            }
+            if (ready == 0 && (key.readyOps() & ops) == 0) {
+                throw new SocketTimeoutException("Timed out after " + mTimeoutMillis + "ms");
+            }
+        }
+
+        // True if this idle connection can't carry another request: the keep-alive window has
+        // passed, or the server has closed it (or sent something we didn't ask for) while idle.
+        public boolean isStale() {
+            if (!mSocket.isOpen() || SystemClock.elapsedRealtime() >= mIdleDeadline) {
+                return true;
+            }
+            try {
+                mInput.compact();
+                final int read = mChannel.read(mInput);
+                mInput.flip();
+                return read != 0 || mInput.hasRemaining();
+            } catch (final IOException e) {
+                return true;
+            }
+        }
+
+        public void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (mChannel.write(buffer) == 0) {
+                    await(SelectionKey.OP_WRITE);
+                }
+            }
+            if (mChannel instanceof SSLByteChannel) {
+                final SSLByteChannel tls = (SSLByteChannel) mChannel;
+                while (tls.isNeedWrite()) {
+                    await(SelectionKey.OP_WRITE);
+                    tls.writeMore();
+                }
+            }
+        }
+
+        // Returns false at end of stream
+        private boolean fill() throws IOException {
+            mInput.compact();
+            try {
+                while (true) {
+                    final int read = mChannel.read(mInput);
+                    if (read == -1) {
+                        return false;
+                    } else if (read > 0) {
+                        return true;
+                    }
+                    await(SelectionKey.OP_READ);
+                }
+            } finally {
+                mInput.flip();
+            }
+        }
+
+        // Reads a CRLF (or bare LF) terminated line of ISO-8859-1 text, without the terminator
+        public String readLine() throws IOException {
+            final StringBuilder line = new StringBuilder();
+            while (true) {
+                while (mInput.hasRemaining()) {
+                    final char c = (char) (mInput.get() & 0xff);
+                    if (c == '\n') {
+                        final int length = line.length();
+                        if (length > 0 && line.charAt(length - 1) == '\r') {
+                            line.setLength(length - 1);
+                        }
+                        return line.toString();
+                    }
+                    line.append(c);
+                    if (line.length() > MAX_LINE_LENGTH) {
+                        throw new IOException("Line from server is too long");
+                    }
+                }
+                if (!fill()) {
+                    throw new EOFException("Connection closed by server");
+                }
+            }
+        }
+
+        public void readFully(ByteArrayOutputStream out, long count) throws IOException {
+            long remaining = count;
+            while (remaining > 0) {
+                if (!mInput.hasRemaining() && !fill()) {
+                    throw new EOFException("Connection closed by server with " + remaining + " bytes still expected");
+                }
+                final int chunk = (int) Math.min(remaining, mInput.remaining());
+                out.write(mInput.array(), mInput.arrayOffset() + mInput.position(), chunk);
+                mInput.position(mInput.position() + chunk);
+                remaining -= chunk;
+            }
+        }
+
+        public void readToEnd(ByteArrayOutputStream out) throws IOException {
+            do {
+                out.write(mInput.array(), mInput.arrayOffset() + mInput.position(), mInput.remaining());
+                mInput.position(mInput.limit());
+            } while (fill());
+        }
+
+        public void close() {
+            try {
+                mChannel.close();
+            } catch (final IOException e) {
+                // Nothing to do
+            }
+            try {
+                mSocket.close();
+            } catch (final IOException e) {
+                // Nothing to do
+            }
+            mSelector.wakeup();
+            try {
+                mSelector.close();
+            } catch (final IOException e) {
+                // Nothing to do
+            }
+        }
+
+        private final String mKey;
+        private final SocketChannel mSocket;
+        private final Selector mSelector;
+        private final ByteBuffer mInput;
+        private ByteChannel mChannel;
+        private int mTimeoutMillis;
+        private long mIdleDeadline;
+        private int mUseCount;
+    }
+
+    /**
+     * Buffers writes and hands them to a Connection, counting the bytes.
+     */
+    private static class ChannelOutputStream extends OutputStream {
+        public ChannelOutputStream(Connection connection) {
+            mConnection = connection;
+            mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!mBuffer.hasRemaining()) {
+                flush();
+            }
+            mBuffer.put((byte) b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!mBuffer.hasRemaining()) {
+                    flush();
+                }
+                final int chunk = Math.min(len, mBuffer.remaining());
+                mBuffer.put(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+                mCount += chunk;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mBuffer.flip();
+            try {
+                mConnection.writeFully(mBuffer);
+            } finally {
+                mBuffer.clear();
+            }
+        }
+
+        @Override
+        public void close() {
+            // The connection outlives the request body
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        private final Connection mConnection;
+        private final ByteBuffer mBuffer;
+        private long mCount;
+    }
+
+    /**
+     * Frames everything written to it as HTTP/1.1 chunks.
+     */
+    private static class ChunkedOutputStream extends FilterOutputStream {
+        public ChunkedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            out.write((Integer.toHexString(len) + "\r\n").getBytes("ISO-8859-1"));
+            out.write(b, off, len);
+            out.write(CRLF);
+        }
+
+        @Override
+        public void close() {
+            // finish() writes the last chunk, the underlying stream stays open
+        }
+
+        public void finish() throws IOException {
+            out.write(LAST_CHUNK);
+        }
+
+        private static final byte[] CRLF = { '\r', '\n' };
+        private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+    }
+
+    private SSLContext mSSLContext;
+    private final boolean mHasCustomSSLContext;
+    private final Map<String, Connection> mIdleConnections;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final long DEFAULT_KEEP_ALIVE_MILLIS = 15 * 1000;
+    private static final long MAX_KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+    private static final long KEEP_ALIVE_SAFETY_MARGIN_MILLIS = 1000;
+    private static final String LOGTAG = "MixpanelLiteAPI.Nio";
+}
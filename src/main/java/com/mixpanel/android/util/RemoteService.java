@@ -35,4 +35,21 @@ public interface RemoteService {
 
         private final int mRetryAfter;
     }
+
+    /**
+     * Thrown when the server answers with a 4xx status, meaning it won't accept the request as
+     * sent. Retrying the same request unchanged is unlikely to help.
+     */
+    class RequestRejectedException extends IOException {
+        public RequestRejectedException(String message, int statusCode) {
+            super(message);
+            mStatusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        private final int mStatusCode;
+    }
 }
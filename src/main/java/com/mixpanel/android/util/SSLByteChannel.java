@@ -0,0 +1,246 @@
+package com.mixpanel.android.util;
+
+import com.mixpanel.android.java_websocket.AbstractWrappedByteChannel;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * TLS over a non-blocking SocketChannel, using an SSLEngine.
+ *
+ * <p>Follows the {@link com.mixpanel.android.java_websocket.WrappedByteChannel} contract of the
+ * bundled websocket library. Once the handshake is done, reads and writes never block:
+ * read returns 0 when more network input is needed, and write may leave encrypted bytes
+ * pending, in which case {@link #isNeedWrite()} is true until {@link #writeMore()} flushes them.
+ *
+ * <p>Not thread-safe, except for {@link #close()}.
+ */
+/* package */ class SSLByteChannel extends AbstractWrappedByteChannel {
+
+    /* package */ interface Waiter {
+        /**
+         * Blocks until the underlying socket is ready for one of the given SelectionKey operations.
+         */
+        void await(int ops) throws IOException;
+    }
+
+    public SSLByteChannel(SocketChannel channel, SSLEngine engine) {
+        super(channel);
+        mChannel = channel;
+        mEngine = engine;
+
+        final int packetSize = engine.getSession().getPacketBufferSize();
+        final int applicationSize = engine.getSession().getApplicationBufferSize();
+        mNetIn = ByteBuffer.allocate(packetSize); // Filled from the channel, kept ready for writing
+        mNetOut = ByteBuffer.allocate(packetSize); // Pending encrypted output, kept ready for reading
+        mNetOut.flip();
+        mAppIn = ByteBuffer.allocate(applicationSize); // Decrypted but unread input, kept ready for reading
+        mAppIn.flip();
+    }
+
+    /**
+     * Runs the TLS handshake to completion, using waiter whenever the socket isn't ready.
+     */
+    public void handshake(Waiter waiter) throws IOException {
+        mEngine.beginHandshake();
+        SSLEngineResult.HandshakeStatus status = mEngine.getHandshakeStatus();
+        while (status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING &&
+                status != SSLEngineResult.HandshakeStatus.FINISHED) {
+            switch (status) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    while (!flushNetOut()) {
+                        waiter.await(SelectionKey.OP_WRITE);
+                    }
+                    break;
+                default: // NEED_UNWRAP, and NEED_UNWRAP_AGAIN on newer platforms
+                    final SSLEngineResult result = unwrap();
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW ||
+                            (result.bytesConsumed() == 0 && result.bytesProduced() == 0 &&
+                             result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP)) {
+                        final int read = mChannel.read(mNetIn);
+                        if (read == -1) {
+                            throw new EOFException("Connection closed during TLS handshake");
+                        } else if (read == 0) {
+                            waiter.await(SelectionKey.OP_READ);
+                        }
+                    } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("TLS engine closed during handshake");
+                    }
+                    break;
+            }
+            status = mEngine.getHandshakeStatus();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (mAppIn.hasRemaining()) {
+            return transfer(mAppIn, dst);
+        }
+
+        while (true) {
+            if (mNetIn.position() > 0) {
+                final SSLEngineResult result = unwrap();
+                if (mAppIn.hasRemaining()) {
+                    return transfer(mAppIn, dst);
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    return -1;
+                }
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    continue;
+                }
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    // The server wants to renegotiate or update keys. Answer it, and keep reading.
+                    wrap(EMPTY);
+                    flushNetOut();
+                    continue;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.OK && result.bytesConsumed() > 0) {
+                    continue; // A record with no application data, like a session ticket
+                }
+            }
+
+            final int read = mChannel.read(mNetIn);
+            if (read <= 0) {
+                return read;
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!flushNetOut()) {
+            return 0;
+        }
+
+        int consumed = 0;
+        while (src.hasRemaining()) {
+            final SSLEngineResult result = wrap(src);
+            consumed += result.bytesConsumed();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new ClosedChannelException();
+            }
+            if (!flushNetOut()) {
+                break;
+            }
+        }
+        return consumed;
+    }
+
+    @Override
+    public boolean isNeedWrite() {
+        return mNetOut.hasRemaining();
+    }
+
+    @Override
+    public void writeMore() throws IOException {
+        flushNetOut();
+    }
+
+    @Override
+    public boolean isNeedRead() {
+        return mAppIn.hasRemaining();
+    }
+
+    @Override
+    public int readMore(ByteBuffer dst) throws SSLException {
+        return transfer(mAppIn, dst);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mChannel.isOpen()) {
+                mEngine.closeOutbound();
+                wrap(EMPTY);
+                flushNetOut(); // Best effort close_notify, we won't wait for it
+            }
+        } catch (IOException e) {
+            // We're closing anyway
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    // Returns true if all pending encrypted output made it to the channel
+    private boolean flushNetOut() throws IOException {
+        while (mNetOut.hasRemaining()) {
+            if (mChannel.write(mNetOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private SSLEngineResult wrap(ByteBuffer src) throws SSLException {
+        mNetOut.compact();
+        try {
+            return mEngine.wrap(src, mNetOut);
+        } finally {
+            mNetOut.flip();
+        }
+    }
+
+    private SSLEngineResult unwrap() throws SSLException {
+        mNetIn.flip();
+        mAppIn.compact();
+        final SSLEngineResult result;
+        try {
+            result = mEngine.unwrap(mNetIn, mAppIn);
+        } finally {
+            mAppIn.flip();
+            mNetIn.compact();
+        }
+
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && !mNetIn.hasRemaining()) {
+            // A record larger than we planned for. Make room for it.
+            mNetIn = grow(mNetIn, mEngine.getSession().getPacketBufferSize());
+        }
+        return result;
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = mEngine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer writable, int extra) {
+        final ByteBuffer bigger = ByteBuffer.allocate(writable.capacity() + extra);
+        writable.flip();
+        bigger.put(writable);
+        return bigger;
+    }
+
+    private static int transfer(ByteBuffer from, ByteBuffer to) {
+        final int count = Math.min(from.remaining(), to.remaining());
+        final int limit = from.limit();
+        from.limit(from.position() + count);
+        to.put(from);
+        from.limit(limit);
+        return count;
+    }
+
+    private final SocketChannel mChannel;
+    private final SSLEngine mEngine;
+    private ByteBuffer mNetIn;
+    private final ByteBuffer mNetOut;
+    private final ByteBuffer mAppIn;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+}
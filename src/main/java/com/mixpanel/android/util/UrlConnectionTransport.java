@@ -0,0 +1,170 @@
+package com.mixpanel.android.util;
+
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * The default {@link HttpTransport}, built on HttpURLConnection.
+ *
+ * <p>Connections are left to the platform's connection pool after a successful exchange,
+ * so requests to the same host reuse a warm socket. A connection is only torn down when the
+ * exchange fails, or when the request asked for "Connection: close".
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+    @Override
+    public Call newCall(Request request, EventListener listener) {
+        return new UrlConnectionCall(request, listener);
+    }
+
+    private static class UrlConnectionCall implements Call {
+        public UrlConnectionCall(Request request, EventListener listener) {
+            mRequest = request;
+            mListener = listener;
+        }
+
+        @Override
+        public Response execute() throws IOException {
+            final long start = SystemClock.elapsedRealtime();
+            InputStream in = null;
+            OutputStream out = null;
+            HttpURLConnection connection = null;
+            boolean reusable = false;
+
+            try {
+                connection = (HttpURLConnection) new URL(mRequest.getUrl()).openConnection();
+                synchronized (this) {
+                    if (mCanceled) {
+                        throw new IOException("Canceled");
+                    }
+                    mConnection = connection;
+                }
+
+                if (null != mRequest.getSSLSocketFactory() && connection instanceof HttpsURLConnection) {
+                    ((HttpsURLConnection) connection).setSSLSocketFactory(mRequest.getSSLSocketFactory());
+                }
+                connection.setConnectTimeout(mRequest.getConnectTimeoutMillis());
+                connection.setReadTimeout(mRequest.getReadTimeoutMillis());
+                connection.setRequestMethod(mRequest.getMethod());
+                for (final Map.Entry<String, String> header : mRequest.getHeaders().entrySet()) {
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+
+                final RequestBody body = mRequest.getBody();
+                long bodyBytes = 0;
+                if (null != body) {
+                    final long contentLength = body.contentLength();
+                    connection.setDoOutput(true);
+                    if (contentLength >= 0) {
+                        connection.setFixedLengthStreamingMode((int) contentLength);
+                    } else {
+                        connection.setChunkedStreamingMode(0);
+                    }
+                    final CountingOutputStream counter = new CountingOutputStream(connection.getOutputStream());
+                    out = counter;
+                    // HttpURLConnection connects lazily, on the first call that needs the socket
+                    if (null != mListener) {
+                        mListener.onConnectionAcquired(mRequest, false, SystemClock.elapsedRealtime() - start);
+                    }
+                    body.writeTo(out);
+                    out.close();
+                    out = null;
+                    bodyBytes = counter.getCount();
+                } else {
+                    connection.connect();
+                    if (null != mListener) {
+                        mListener.onConnectionAcquired(mRequest, false, SystemClock.elapsedRealtime() - start);
+                    }
+                }
+                if (null != mListener) {
+                    mListener.onRequestSent(mRequest, bodyBytes, SystemClock.elapsedRealtime() - start);
+                }
+
+                final int statusCode = connection.getResponseCode();
+                if (null != mListener) {
+                    mListener.onResponseHeaders(mRequest, statusCode, SystemClock.elapsedRealtime() - start);
+                }
+
+                in = statusCode >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream() : connection.getInputStream();
+                final byte[] responseBody = null == in ? new byte[0] : slurp(in);
+                if (null != in) {
+                    in.close();
+                    in = null;
+                }
+
+                // Reading the body to the end and closing the stream hands the socket back to the
+                // platform pool. disconnect() would close it instead.
+                reusable = statusCode < HttpURLConnection.HTTP_BAD_REQUEST &&
+                        !"close".equalsIgnoreCase(mRequest.getHeaders().get("Connection"));
+
+                final Response response = new Response(statusCode, connection.getHeaderFields(), responseBody);
+                if (null != mListener) {
+                    mListener.onCallEnd(mRequest, responseBody.length, SystemClock.elapsedRealtime() - start);
+                }
+                return response;
+            } catch (final IOException e) {
+                if (null != mListener) {
+                    mListener.onCallFailed(mRequest, isCanceled() ? new IOException("Canceled", e) : e, SystemClock.elapsedRealtime() - start);
+                }
+                throw e;
+            } finally {
+                if (null != out)
+                    try { out.close(); } catch (final IOException e) { ; }
+                if (null != in)
+                    try { in.close(); } catch (final IOException e) { ; }
+                if (null != connection && !reusable)
+                    connection.disconnect();
+                synchronized (this) {
+                    mConnection = null;
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            final HttpURLConnection connection;
+            synchronized (this) {
+                mCanceled = true;
+                connection = mConnection;
+            }
+            if (null != connection) {
+                // Closes the socket out from under any blocked read or write
+                connection.disconnect();
+            }
+        }
+
+        @Override
+        public synchronized boolean isCanceled() {
+            return mCanceled;
+        }
+
+        private final Request mRequest;
+        private final EventListener mListener;
+        private HttpURLConnection mConnection;
+        private boolean mCanceled;
+    }
+
+    private static byte[] slurp(final InputStream inputStream)
+            throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        int nRead;
+        byte[] data = new byte[8192];
+
+        while ((nRead = inputStream.read(data, 0, data.length)) != -1) {
+            buffer.write(data, 0, nRead);
+        }
+
+        buffer.flush();
+        return buffer.toByteArray();
+    }
+}